@@ -1,4 +1,5 @@
 import groovy.util.Node
+import net.ltgt.gradle.errorprone.errorprone
 
 buildscript {
     extra.apply {
@@ -12,8 +13,24 @@ plugins {
 
 val jdkVersion = JavaVersion.VERSION_1_6
 
+sourceSets {
+    create("jmh")
+}
+
+val jmhImplementation by configurations.getting {
+    extendsFrom(configurations.implementation.get())
+}
+
+val jmhAnnotationProcessor by configurations.getting {
+    extendsFrom(configurations.annotationProcessor.get())
+}
+
 dependencies {
     compileOnly(libs.errorprone)
+    // Only read back from, when unwrapping methods.  Applications bring their own copy.
+    compileOnly(project(":perfmark-impl"))
+    // The hooks call PerfMark, which applications already have to depend on.
+    compileOnly(project(":perfmark-api"))
 
     implementation("org.ow2.asm:asm:9.1")
     implementation("org.ow2.asm:asm-commons:9.1")
@@ -22,6 +39,12 @@ dependencies {
     testImplementation(project(":perfmark-impl"))
     testImplementation(libs.truth)
     testRuntimeOnly(project(":perfmark-java6"))
+
+    jmhImplementation(project(":perfmark-agent"))
+    jmhImplementation(project(":perfmark-api"))
+    jmhImplementation(libs.junit)
+    jmhImplementation(libs.jmhcore)
+    jmhAnnotationProcessor(libs.jmhanno)
 }
 
 tasks.named<JavaCompile>("compileJava") {
@@ -40,12 +63,29 @@ tasks.named<JavaCompile>("compileTestJava") {
     targetCompatibility = JavaVersion.VERSION_17.toString()
 }
 
+tasks.named<JavaCompile>("compileJmhJava") {
+    sourceCompatibility = JavaVersion.VERSION_17.toString()
+    targetCompatibility = JavaVersion.VERSION_17.toString()
+    options.errorprone.excludedPaths.set(".*/build/generated/sources/annotationProcessor/.*")
+}
+
+tasks.register<Test>("jmh") {
+    description = "Runs integration tests."
+    group = "stress"
+
+    testClassesDirs = sourceSets["jmh"].output.classesDirs
+    classpath = sourceSets["jmh"].runtimeClasspath
+}
+
 tasks.named<Jar>("jar") {
     // Make this not the default
     archiveClassifier.value("original")
     manifest {
         attributes(mapOf(
                 "Premain-Class" to "io.perfmark.agent.PerfMarkAgent",
+                "Agent-Class" to "io.perfmark.agent.PerfMarkAgent",
+                "Can-Retransform-Classes" to "true",
+                "Main-Class" to "io.perfmark.agent.PerfMarkWeaver",
         ))
     }
 }
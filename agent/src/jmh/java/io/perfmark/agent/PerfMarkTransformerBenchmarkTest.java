@@ -0,0 +1,150 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import io.perfmark.PerfMark;
+import io.perfmark.TaskCloseable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Measures what the agent adds to startup, by transforming the classes a large application would
+ * load: thousands of JDK classes, along with a few that use PerfMark.
+ */
+@RunWith(JUnit4.class)
+public class PerfMarkTransformerBenchmarkTest {
+
+  @Test
+  public void transformerBenchmark() throws Exception {
+    Options options =
+        new OptionsBuilder()
+            .include(PerfMarkTransformerBenchmark.class.getCanonicalName())
+            .addProfiler("gc")
+            .measurementIterations(5)
+            .warmupIterations(3)
+            .forks(1)
+            .warmupTime(TimeValue.seconds(1))
+            .measurementTime(TimeValue.seconds(1))
+            .shouldFailOnError(true)
+            // This is necessary to run in the IDE, otherwise it would inherit the VM args.
+            .jvmArgs("-da")
+            .build();
+
+    new Runner(options).run();
+  }
+
+  @State(Scope.Benchmark)
+  public static class PerfMarkTransformerBenchmark {
+
+    @Param({"10000"})
+    public int jdkClasses;
+
+    private final List<String> classNames = new ArrayList<>();
+    private final List<byte[]> classfiles = new ArrayList<>();
+    private PerfMarkTransformer transformer;
+
+    @Setup
+    public void setup() throws IOException {
+      FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+      try (Stream<Path> paths = Files.walk(jrt.getPath("/modules"))) {
+        Iterator<Path> it = paths.iterator();
+        while (it.hasNext() && classNames.size() < jdkClasses) {
+          Path path = it.next();
+          String name = path.toString();
+          if (!name.endsWith(".class") || name.endsWith("module-info.class")) {
+            continue;
+          }
+          // Strip off "/modules/<module>/" and ".class".
+          int start = name.indexOf('/', "/modules/".length()) + 1;
+          classNames.add(name.substring(start, name.length() - ".class".length()));
+          classfiles.add(Files.readAllBytes(path));
+        }
+      }
+      for (Class<?> clz :
+          new Class<?>[] {PerfMark.class, TaskCloseable.class, PerfMarkUser.class}) {
+        String name = clz.getName().replace('.', '/');
+        try (InputStream stream = clz.getResourceAsStream("/" + name + ".class")) {
+          classNames.add(name);
+          classfiles.add(stream.readAllBytes());
+        }
+      }
+      transformer = new PerfMarkTransformer(null);
+    }
+
+    /** What the agent does when a class is loaded. */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int transform() {
+      int transformed = 0;
+      for (int i = 0; i < classfiles.size(); i++) {
+        if (transformer.transform(null, classNames.get(i), null, null, classfiles.get(i))
+            != null) {
+          transformed++;
+        }
+      }
+      return transformed;
+    }
+
+    /** Parsing and rewriting every class, which is what the agent did before it looked first. */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int rewriteAll() {
+      int transformed = 0;
+      for (int i = 0; i < classfiles.size(); i++) {
+        if (PerfMarkTransformer.rewrite(null, classNames.get(i), classfiles.get(i)) != null) {
+          transformed++;
+        }
+      }
+      return transformed;
+    }
+  }
+
+  static final class PerfMarkUser {
+    void work() {
+      try (TaskCloseable task = PerfMark.traceTask("work")) {
+        PerfMark.event("working");
+      }
+    }
+  }
+}
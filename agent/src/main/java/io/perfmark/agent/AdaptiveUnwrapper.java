@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops tracing wrapped methods that are called very often and return very quickly, such as
+ * getters.  Timing them says little, but fills up the buffers and keeps the JIT from inlining them.
+ * After a warmup, this reads back the marks PerfMark recorded, finds the wrapped methods that were
+ * called at least {@link #MIN_CALLS} times for at most {@link #MAX_MEAN_NANOS} each on average, and
+ * retransforms their classes so the wrappers only call the original body.
+ */
+final class AdaptiveUnwrapper implements Runnable {
+
+  static final long MIN_CALLS = 10000;
+  static final long MAX_MEAN_NANOS = 1000;
+
+  private final PerfMarkTransformer transformer;
+  private final long warmupSeconds;
+  private final boolean debug;
+
+  AdaptiveUnwrapper(PerfMarkTransformer transformer, long warmupSeconds, boolean debug) {
+    this.transformer = transformer;
+    this.warmupSeconds = warmupSeconds;
+    this.debug = debug;
+  }
+
+  void start() {
+    Thread thread = new Thread(this, "perfmark-agent-adaptive");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    try {
+      TimeUnit.SECONDS.sleep(warmupSeconds);
+      Set<String> taskNames = findHotTrivialTasks(Storage.read(), MIN_CALLS, MAX_MEAN_NANOS);
+      int classes = transformer.unwrap(taskNames);
+      if (debug) {
+        System.err.println("  Unwrapped " + taskNames + " in " + classes + " classes");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      System.err.println(e.toString());
+      e.printStackTrace(System.err);
+    } catch (LinkageError e) {
+      // PerfMark's implementation isn't on the class path, so there is nothing to read.
+      System.err.println(e.toString());
+    }
+  }
+
+  /**
+   * Finds the tasks started at least {@code minCalls} times that lasted {@code maxMeanNanos} or
+   * less on average.  Visible for testing.
+   *
+   * @param markLists the recorded marks.
+   * @param minCalls the fewest times the task must have run.
+   * @param maxMeanNanos the longest the task may take on average.
+   * @return the names of the matching tasks, sorted.
+   */
+  static Set<String> findHotTrivialTasks(
+      List<MarkList> markLists, long minCalls, long maxMeanNanos) {
+    Map<String, long[]> countAndNanosByTask = new HashMap<String, long[]>();
+    List<Mark> starts = new ArrayList<Mark>();
+    for (MarkList markList : markLists) {
+      starts.clear();
+      for (Mark mark : markList) {
+        switch (mark.getOperation().getOpType()) {
+          case TASK_START:
+            starts.add(mark);
+            break;
+          case TASK_END:
+            // The oldest marks may have been overwritten, leaving ends without starts.
+            if (starts.isEmpty()) {
+              break;
+            }
+            Mark start = starts.remove(starts.size() - 1);
+            String taskName = start.getTaskName();
+            if (taskName != null) {
+              long[] countAndNanos = countAndNanosByTask.get(taskName);
+              if (countAndNanos == null) {
+                countAndNanos = new long[2];
+                countAndNanosByTask.put(taskName, countAndNanos);
+              }
+              countAndNanos[0]++;
+              countAndNanos[1] += mark.getNanoTime() - start.getNanoTime();
+            }
+            break;
+          default:
+            break;
+        }
+      }
+    }
+    Set<String> taskNames = new TreeSet<String>();
+    for (Map.Entry<String, long[]> entry : countAndNanosByTask.entrySet()) {
+      long count = entry.getValue()[0];
+      long nanos = entry.getValue()[1];
+      if (count >= minCalls && nanos / count <= maxMeanNanos) {
+        taskNames.add(entry.getKey());
+      }
+    }
+    return taskNames;
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The options of the agent, given as agent arguments separated by commas, such as {@code
+ * -javaagent:perfmark-agent.jar=include=com.example.*,exclude=com.example.generated.*}.
+ *
+ * <ul>
+ *   <li>{@code include=RULE} instruments the classes matching the rule. Without any include rules,
+ *       every class is included.
+ *   <li>{@code exclude=RULE} leaves the classes matching the rule alone.
+ *   <li>{@code method=NAME} instruments only the methods with the name, in the included classes.
+ *       Without any method options, every method is instrumented.
+ *   <li>{@code wrap} starts and stops a task around every method of the included classes, named
+ *       like {@code com/example/Foo::bar}. {@code wrap=NAME} only wraps the methods with the name.
+ *       Only classes loaded after the agent starts can be wrapped.
+ *   <li>{@code adaptive=SECONDS} waits the given time, then stops tracing the wrapped methods that
+ *       were called very often and returned very quickly. See {@link AdaptiveUnwrapper}.
+ *   <li>{@code async} wraps the tasks handed to executors and {@code CompletableFuture} async
+ *       stages by the included classes, so they link back to where they were handed off and record
+ *       how long they waited. Tasks given to {@code execute} of a {@code ThreadPoolExecutor}
+ *       subclass are left unwrapped. See {@link AsyncHooks}.
+ *   <li>{@code locks} records when {@code synchronized} blocks and {@code Lock.lock()} calls in
+ *       the included classes block. See {@link LockHooks}. Since {@code synchronized} blocks can't
+ *       be found without parsing, every included class is rewritten, so this is best used with
+ *       include rules.
+ *   <li>{@code io} records the blocking {@code FileChannel} and {@code Files} calls, and socket
+ *       stream reads and writes, of the included classes as tasks, tagged with the bytes and the
+ *       file or remote address. See {@link IoHooks}.
+ *   <li>{@code off} instruments nothing. Loading the agent again with this option, or calling
+ *       {@link PerfMarkAgent#uninstrument()}, puts back the original code of every class.
+ *   <li>{@code config=FILE} reads more options from a file, one per line. Blank lines and lines
+ *       starting with {@code #} are skipped.
+ *   <li>{@code debug} logs each class as it is considered.
+ * </ul>
+ *
+ * <p>See {@link ClassFilter} for how rules match classes.
+ */
+final class AgentOptions {
+
+  static final AgentOptions DEFAULT = new AgentOptions(new Parser());
+
+  static final AgentOptions OFF;
+
+  static {
+    Parser parser = new Parser();
+    parser.off = true;
+    OFF = new AgentOptions(parser);
+  }
+
+  final List<String> includes;
+  final List<String> excludes;
+  final List<String> methods;
+  final List<String> wraps;
+  final boolean wrapAll;
+  /** How long to wait before unwrapping hot trivial methods, or 0 to never unwrap them. */
+  final long adaptiveSeconds;
+  final boolean async;
+  final boolean locks;
+  final boolean io;
+  final boolean off;
+  final boolean debug;
+
+  private AgentOptions(Parser parser) {
+    this.includes = Collections.unmodifiableList(new ArrayList<String>(parser.includes));
+    this.excludes = Collections.unmodifiableList(new ArrayList<String>(parser.excludes));
+    this.methods = Collections.unmodifiableList(new ArrayList<String>(parser.methods));
+    this.wraps = Collections.unmodifiableList(new ArrayList<String>(parser.wraps));
+    this.wrapAll = parser.wrapAll;
+    this.adaptiveSeconds = parser.adaptiveSeconds;
+    this.async = parser.async;
+    this.locks = parser.locks;
+    this.io = parser.io;
+    this.off = parser.off;
+    this.debug = parser.debug;
+  }
+
+  /**
+   * Parses the agent arguments.
+   *
+   * @param agentArgs the arguments, or {@code null} if there are none.
+   * @return the options.
+   * @throws IOException if a config file can't be read.
+   * @throws IllegalArgumentException if an option isn't known.
+   */
+  static AgentOptions parse(String agentArgs) throws IOException {
+    Parser parser = new Parser();
+    if (agentArgs != null) {
+      for (String option : agentArgs.split(",")) {
+        parser.parseOption(option.trim());
+      }
+    }
+    return new AgentOptions(parser);
+  }
+
+  ClassFilter newClassFilter() {
+    return ClassFilter.create(includes, excludes);
+  }
+
+  /** Returns the methods to instrument, or {@link PerfMarkClassVisitor#ALL_METHODS}. */
+  String[] methodsToRewrite() {
+    if (methods.isEmpty()) {
+      return PerfMarkClassVisitor.ALL_METHODS;
+    }
+    return methods.toArray(new String[0]);
+  }
+
+  /**
+   * Returns the methods to wrap in a task, {@link PerfMarkClassVisitor#ALL_METHODS}, or {@link
+   * PerfMarkClassVisitor#NO_METHODS}.
+   */
+  String[] methodsToWrap() {
+    if (wrapAll) {
+      return PerfMarkClassVisitor.ALL_METHODS;
+    } else if (wraps.isEmpty()) {
+      return PerfMarkClassVisitor.NO_METHODS;
+    }
+    return wraps.toArray(new String[0]);
+  }
+
+  private static final class Parser {
+    final List<String> includes = new ArrayList<String>();
+    final List<String> excludes = new ArrayList<String>();
+    final List<String> methods = new ArrayList<String>();
+    final List<String> wraps = new ArrayList<String>();
+    boolean wrapAll;
+    long adaptiveSeconds;
+    boolean async;
+    boolean locks;
+    boolean io;
+    boolean off;
+    boolean debug;
+
+    void parseOption(String option) throws IOException {
+      if (option.isEmpty()) {
+        return;
+      }
+      int eq = option.indexOf('=');
+      String key = eq != -1 ? option.substring(0, eq).trim() : option;
+      String value = eq != -1 ? option.substring(eq + 1).trim() : null;
+      if (key.equals("debug") && (value == null || value.equals("true") || value.equals("false"))) {
+        debug = value == null || value.equals("true");
+      } else if (key.equals("include") && value != null && !value.isEmpty()) {
+        includes.add(value);
+      } else if (key.equals("exclude") && value != null && !value.isEmpty()) {
+        excludes.add(value);
+      } else if (key.equals("method") && value != null && !value.isEmpty()) {
+        methods.add(value);
+      } else if (key.equals("wrap") && value == null) {
+        wrapAll = true;
+      } else if (key.equals("wrap") && !value.isEmpty()) {
+        wraps.add(value);
+      } else if (key.equals("adaptive") && value != null && isPositiveNumber(value)) {
+        adaptiveSeconds = Long.parseLong(value);
+      } else if (key.equals("async") && value == null) {
+        async = true;
+      } else if (key.equals("locks") && value == null) {
+        locks = true;
+      } else if (key.equals("io") && value == null) {
+        io = true;
+      } else if (key.equals("off") && value == null) {
+        off = true;
+      } else if (key.equals("config") && value != null && !value.isEmpty()) {
+        parseConfig(value);
+      } else {
+        throw new IllegalArgumentException("Unknown PerfMark agent option: " + option);
+      }
+    }
+
+    private static boolean isPositiveNumber(String value) {
+      if (value.isEmpty() || value.length() > 18) {
+        return false;
+      }
+      for (int i = 0; i < value.length(); i++) {
+        if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+          return false;
+        }
+      }
+      return Long.parseLong(value) > 0;
+    }
+
+    private void parseConfig(String path) throws IOException {
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (!line.startsWith("#")) {
+            parseOption(line);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+}
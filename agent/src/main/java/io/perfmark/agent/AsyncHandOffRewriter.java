@@ -0,0 +1,202 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Wraps the tasks handed to executors and {@code CompletableFuture} async stages with {@link
+ * AsyncHooks}, so they link back to the call site and record how long they waited.  Only the
+ * static type at the call site is checked, so executors called through their own class, rather
+ * than one of the JDK types, are left alone.
+ *
+ * <p>{@code execute} and the dependent {@code CompletableFuture} stages are instead routed through
+ * hooks of the same name, which decide at run time whether to wrap and when the task was actually
+ * handed off.
+ */
+final class AsyncHandOffRewriter extends MethodVisitor {
+
+  private static final String HOOKS_CLZ = "io/perfmark/agent/AsyncHooks";
+  private static final String COMPLETABLE_FUTURE_CLZ = "java/util/concurrent/CompletableFuture";
+
+  private static final Set<String> EXECUTOR_CLZS =
+      new HashSet<String>(
+          Arrays.asList(
+              "java/util/concurrent/Executor",
+              "java/util/concurrent/ExecutorService",
+              "java/util/concurrent/ScheduledExecutorService",
+              "java/util/concurrent/AbstractExecutorService",
+              "java/util/concurrent/ThreadPoolExecutor",
+              "java/util/concurrent/ScheduledThreadPoolExecutor",
+              "java/util/concurrent/ForkJoinPool"));
+
+  private static final Set<String> EXECUTOR_METHODS =
+      new HashSet<String>(Arrays.asList("execute", "submit"));
+
+  private static final String EXECUTE_DESCRIPTOR = "(Ljava/lang/Runnable;)V";
+
+  private static final Set<String> COMPLETABLE_FUTURE_METHODS =
+      new HashSet<String>(Arrays.asList("runAsync", "supplyAsync"));
+
+  /** Stages that are only handed off once the stage they are called on completes. */
+  private static final Set<String> DEPENDENT_STAGE_METHODS =
+      new HashSet<String>(Arrays.asList("thenRunAsync", "thenApplyAsync", "thenAcceptAsync"));
+
+  /** The task types {@link AsyncHooks} can wrap, and the hook that wraps each. */
+  private static final Map<String, String> TASK_WRAPPERS = new HashMap<String, String>();
+
+  static {
+    TASK_WRAPPERS.put("Ljava/lang/Runnable;", "wrapRunnable");
+    TASK_WRAPPERS.put("Ljava/util/concurrent/Callable;", "wrapCallable");
+    TASK_WRAPPERS.put("Ljava/util/function/Supplier;", "wrapSupplier");
+    TASK_WRAPPERS.put("Ljava/util/function/Function;", "wrapFunction");
+    TASK_WRAPPERS.put("Ljava/util/function/Consumer;", "wrapConsumer");
+  }
+
+  /** Finds classes that may hand off tasks, see {@link ConstantPoolScanner}. */
+  static final ConstantPoolScanner SCANNER;
+
+  static {
+    Set<String> names = new HashSet<String>(EXECUTOR_CLZS);
+    names.add(COMPLETABLE_FUTURE_CLZ);
+    SCANNER = new ConstantPoolScanner(names.toArray(new String[0]));
+  }
+
+  private final Runnable onChange;
+
+  /**
+   * @param onChange runnable to invoke if any changes are made to the class definition.  May be
+   *     {@code null}.
+   * @param methodVisitor the delegate to call.  May be {@code null}.
+   */
+  AsyncHandOffRewriter(Runnable onChange, MethodVisitor methodVisitor) {
+    super(Opcodes.ASM9, methodVisitor);
+    this.onChange = onChange;
+  }
+
+  @Override
+  public void visitMethodInsn(
+      int opcode, String owner, String name, String descriptor, boolean isInterface) {
+    if (isExecute(opcode, owner, name, descriptor)) {
+      callHook(
+          owner,
+          name,
+          "execute",
+          "(Ljava/util/concurrent/Executor;Ljava/lang/Runnable;Ljava/lang/String;)V");
+      return;
+    } else if (isDependentStage(opcode, owner, name)) {
+      int end = descriptor.indexOf(')');
+      callHook(
+          owner,
+          name,
+          name,
+          "(L" + COMPLETABLE_FUTURE_CLZ + ";" + descriptor.substring(1, end)
+              + "Ljava/lang/String;" + descriptor.substring(end));
+      return;
+    }
+    if (isHandOff(opcode, owner, name)) {
+      wrapTask(owner, name, descriptor);
+    }
+    super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+  }
+
+  private static boolean isExecute(int opcode, String owner, String name, String descriptor) {
+    return EXECUTOR_CLZS.contains(owner)
+        && (opcode == Opcodes.INVOKEINTERFACE || opcode == Opcodes.INVOKEVIRTUAL)
+        && name.equals("execute")
+        && descriptor.equals(EXECUTE_DESCRIPTOR);
+  }
+
+  private static boolean isDependentStage(int opcode, String owner, String name) {
+    return COMPLETABLE_FUTURE_CLZ.equals(owner)
+        && opcode == Opcodes.INVOKEVIRTUAL
+        && DEPENDENT_STAGE_METHODS.contains(name);
+  }
+
+  /**
+   * Replaces the call with a static hook taking the receiver and arguments as they are on the
+   * stack, followed by the hand off name.
+   */
+  private void callHook(String owner, String name, String hookName, String hookDescriptor) {
+    super.visitLdcInsn(handOffName(owner, name));
+    super.visitMethodInsn(Opcodes.INVOKESTATIC, HOOKS_CLZ, hookName, hookDescriptor, false);
+    if (onChange != null) {
+      onChange.run();
+    }
+  }
+
+  private static String handOffName(String owner, String name) {
+    return owner.substring(owner.lastIndexOf('/') + 1) + "." + name;
+  }
+
+  private static boolean isHandOff(int opcode, String owner, String name) {
+    if (EXECUTOR_CLZS.contains(owner)) {
+      return (opcode == Opcodes.INVOKEINTERFACE || opcode == Opcodes.INVOKEVIRTUAL)
+          && EXECUTOR_METHODS.contains(name);
+    } else if (COMPLETABLE_FUTURE_CLZ.equals(owner)) {
+      return (opcode == Opcodes.INVOKESTATIC || opcode == Opcodes.INVOKEVIRTUAL)
+          && COMPLETABLE_FUTURE_METHODS.contains(name);
+    }
+    return false;
+  }
+
+  /**
+   * Wraps the task on the operand stack, if it is the last argument, or the one before a trailing
+   * executor or result.  Tasks further down the stack, such as for {@code schedule}, are left
+   * alone.
+   */
+  private void wrapTask(String owner, String name, String descriptor) {
+    Type[] args = Type.getArgumentTypes(descriptor);
+    int last = args.length - 1;
+    boolean swap;
+    String taskDescriptor;
+    if (last >= 0 && TASK_WRAPPERS.containsKey(args[last].getDescriptor())) {
+      swap = false;
+      taskDescriptor = args[last].getDescriptor();
+    } else if (last >= 1
+        && TASK_WRAPPERS.containsKey(args[last - 1].getDescriptor())
+        && args[last].getSort() == Type.OBJECT) {
+      swap = true;
+      taskDescriptor = args[last - 1].getDescriptor();
+    } else {
+      return;
+    }
+    if (swap) {
+      super.visitInsn(Opcodes.SWAP);
+    }
+    super.visitLdcInsn(handOffName(owner, name));
+    super.visitMethodInsn(
+        Opcodes.INVOKESTATIC,
+        HOOKS_CLZ,
+        TASK_WRAPPERS.get(taskDescriptor),
+        "(" + taskDescriptor + "Ljava/lang/String;)" + taskDescriptor,
+        false);
+    if (swap) {
+      super.visitInsn(Opcodes.SWAP);
+    }
+    if (onChange != null) {
+      onChange.run();
+    }
+  }
+}
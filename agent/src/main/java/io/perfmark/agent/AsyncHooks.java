@@ -0,0 +1,310 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import io.perfmark.Link;
+import io.perfmark.PerfMark;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Wraps tasks handed off to other threads, so the work links back to where it was handed off.  The
+ * agent inserts calls to these at {@code Executor} and {@code CompletableFuture} call sites when it
+ * has the {@code async} option.  They aren't meant to be called directly.
+ *
+ * <p>Wrapping records a link out on the handing off thread.  When the task runs, it starts a task
+ * named after the hand off, such as {@code ExecutorService.submit}, links in, and tags how long the
+ * task waited to run as {@value #QUEUE_NANOS_TAG}.  Dependent stages, such as from {@code
+ * thenApplyAsync}, link back to where they were set up, but only start waiting once the stage
+ * before them completes.
+ *
+ * <p>Tasks passed to {@code execute} of a {@link ThreadPoolExecutor} subclass are not wrapped,
+ * since the pool hands the very same task to {@code afterExecute}, which may cast it.  Those hand
+ * offs are not linked.  The JDK's own pools, such as from {@code Executors.newFixedThreadPool},
+ * are still wrapped, so their {@code remove} won't find the task, and {@code shutdownNow} returns
+ * the wrappers, which run the task if called.
+ *
+ * <p>The {@code java.util.function} wrappers are only called from code that uses {@code
+ * CompletableFuture}, so older JVMs never load them.
+ */
+public final class AsyncHooks {
+
+  static final String QUEUE_NANOS_TAG = "queueNanos";
+
+  public static Runnable wrapRunnable(Runnable task, String name) {
+    return task != null ? new HandOffRunnable(task, name) : null;
+  }
+
+  public static <V> Callable<V> wrapCallable(Callable<V> task, String name) {
+    return task != null ? new HandOffCallable<V>(task, name) : null;
+  }
+
+  public static <T> Supplier<T> wrapSupplier(Supplier<T> task, String name) {
+    return task != null ? new HandOffSupplier<T>(task, name) : null;
+  }
+
+  public static <T, R> Function<T, R> wrapFunction(Function<T, R> task, String name) {
+    return task != null ? new HandOffFunction<T, R>(task, name) : null;
+  }
+
+  public static <T> Consumer<T> wrapConsumer(Consumer<T> task, String name) {
+    return task != null ? new HandOffConsumer<T>(task, name) : null;
+  }
+
+  public static void execute(Executor executor, Runnable task, String name) {
+    Class<?> executorClass = executor.getClass();
+    if (executor instanceof ThreadPoolExecutor
+        && executorClass != ThreadPoolExecutor.class
+        && executorClass != ScheduledThreadPoolExecutor.class) {
+      executor.execute(task);
+    } else {
+      executor.execute(wrapRunnable(task, name));
+    }
+  }
+
+  public static CompletableFuture<Void> thenRunAsync(
+      CompletableFuture<?> stage, Runnable action, String name) {
+    HandOffRunnable task = action != null ? new HandOffRunnable(action, name) : null;
+    boolean pending = !stage.isDone();
+    CompletableFuture<Void> next = stage.thenRunAsync(task);
+    readyOnCompletion(stage, task, pending);
+    return next;
+  }
+
+  public static CompletableFuture<Void> thenRunAsync(
+      CompletableFuture<?> stage, Runnable action, Executor executor, String name) {
+    HandOffRunnable task = action != null ? new HandOffRunnable(action, name) : null;
+    boolean pending = !stage.isDone();
+    CompletableFuture<Void> next = stage.thenRunAsync(task, executor);
+    readyOnCompletion(stage, task, pending);
+    return next;
+  }
+
+  public static <T, U> CompletableFuture<U> thenApplyAsync(
+      CompletableFuture<T> stage, Function<? super T, ? extends U> fn, String name) {
+    HandOffFunction<T, U> task = fn != null ? new HandOffFunction<T, U>(fn, name) : null;
+    boolean pending = !stage.isDone();
+    CompletableFuture<U> next = stage.thenApplyAsync(task);
+    readyOnCompletion(stage, task, pending);
+    return next;
+  }
+
+  public static <T, U> CompletableFuture<U> thenApplyAsync(
+      CompletableFuture<T> stage,
+      Function<? super T, ? extends U> fn,
+      Executor executor,
+      String name) {
+    HandOffFunction<T, U> task = fn != null ? new HandOffFunction<T, U>(fn, name) : null;
+    boolean pending = !stage.isDone();
+    CompletableFuture<U> next = stage.thenApplyAsync(task, executor);
+    readyOnCompletion(stage, task, pending);
+    return next;
+  }
+
+  public static <T> CompletableFuture<Void> thenAcceptAsync(
+      CompletableFuture<T> stage, Consumer<? super T> action, String name) {
+    HandOffConsumer<T> task = action != null ? new HandOffConsumer<T>(action, name) : null;
+    boolean pending = !stage.isDone();
+    CompletableFuture<Void> next = stage.thenAcceptAsync(task);
+    readyOnCompletion(stage, task, pending);
+    return next;
+  }
+
+  public static <T> CompletableFuture<Void> thenAcceptAsync(
+      CompletableFuture<T> stage, Consumer<? super T> action, Executor executor, String name) {
+    HandOffConsumer<T> task = action != null ? new HandOffConsumer<T>(action, name) : null;
+    boolean pending = !stage.isDone();
+    CompletableFuture<Void> next = stage.thenAcceptAsync(task, executor);
+    readyOnCompletion(stage, task, pending);
+    return next;
+  }
+
+  /**
+   * Starts the wait of a dependent stage over once the stage before it completes, which is when it
+   * is handed to the executor.  Stages that were already complete handed it off right away.
+   */
+  private static void readyOnCompletion(
+      CompletableFuture<?> stage, final HandOff task, boolean pending) {
+    if (!pending || task == null) {
+      return;
+    }
+    stage.whenComplete(
+        new BiConsumer<Object, Throwable>() {
+          @Override
+          public void accept(Object result, Throwable failure) {
+            task.ready();
+          }
+        });
+  }
+
+  private abstract static class HandOff {
+    private final String name;
+    private final Link link;
+    private volatile long handOffNanoTime;
+
+    HandOff(String name) {
+      this.name = name;
+      this.link = PerfMark.linkOut();
+      this.handOffNanoTime = System.nanoTime();
+    }
+
+    final void ready() {
+      handOffNanoTime = System.nanoTime();
+    }
+
+    final void start() {
+      // The stage before may complete, and run this, just before ready() is called.
+      long queueNanos = Math.max(0, System.nanoTime() - handOffNanoTime);
+      PerfMark.startTask(name);
+      PerfMark.linkIn(link);
+      PerfMark.attachTag(QUEUE_NANOS_TAG, queueNanos);
+    }
+
+    final void stop() {
+      PerfMark.stopTask(name);
+    }
+  }
+
+  private static final class HandOffRunnable extends HandOff implements Runnable {
+    private final Runnable task;
+
+    HandOffRunnable(Runnable task, String name) {
+      super(name);
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      start();
+      try {
+        task.run();
+      } finally {
+        stop();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return task.toString();
+    }
+  }
+
+  private static final class HandOffCallable<V> extends HandOff implements Callable<V> {
+    private final Callable<V> task;
+
+    HandOffCallable(Callable<V> task, String name) {
+      super(name);
+      this.task = task;
+    }
+
+    @Override
+    public V call() throws Exception {
+      start();
+      try {
+        return task.call();
+      } finally {
+        stop();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return task.toString();
+    }
+  }
+
+  private static final class HandOffSupplier<T> extends HandOff implements Supplier<T> {
+    private final Supplier<T> task;
+
+    HandOffSupplier(Supplier<T> task, String name) {
+      super(name);
+      this.task = task;
+    }
+
+    @Override
+    public T get() {
+      start();
+      try {
+        return task.get();
+      } finally {
+        stop();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return task.toString();
+    }
+  }
+
+  private static final class HandOffFunction<T, R> extends HandOff implements Function<T, R> {
+    private final Function<? super T, ? extends R> task;
+
+    HandOffFunction(Function<? super T, ? extends R> task, String name) {
+      super(name);
+      this.task = task;
+    }
+
+    @Override
+    public R apply(T t) {
+      start();
+      try {
+        return task.apply(t);
+      } finally {
+        stop();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return task.toString();
+    }
+  }
+
+  private static final class HandOffConsumer<T> extends HandOff implements Consumer<T> {
+    private final Consumer<? super T> task;
+
+    HandOffConsumer(Consumer<? super T> task, String name) {
+      super(name);
+      this.task = task;
+    }
+
+    @Override
+    public void accept(T t) {
+      start();
+      try {
+        task.accept(t);
+      } finally {
+        stop();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return task.toString();
+    }
+  }
+
+  private AsyncHooks() {}
+}
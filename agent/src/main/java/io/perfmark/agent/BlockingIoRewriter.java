@@ -0,0 +1,136 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Redirects blocking {@code FileChannel} and {@code Files} calls to {@link IoHooks}, which record
+ * them as tasks.  Sockets are read and written through plain {@code InputStream}s and {@code
+ * OutputStream}s, which can't be told apart at the call site, so instead the streams returned by
+ * {@code Socket.getInputStream()} and {@code Socket.getOutputStream()} are wrapped.  Only the
+ * static type at the call site is checked, so channels called through one of their interfaces are
+ * left alone.
+ */
+final class BlockingIoRewriter extends MethodVisitor {
+
+  private static final String HOOKS_CLZ = "io/perfmark/agent/IoHooks";
+  private static final String FILE_CHANNEL_CLZ = "java/nio/channels/FileChannel";
+  private static final String FILES_CLZ = "java/nio/file/Files";
+
+  private static final Set<String> SOCKET_CLZS =
+      new HashSet<String>(Arrays.asList("java/net/Socket", "javax/net/ssl/SSLSocket"));
+
+  /** The {@code FileChannel} methods, by name and descriptor, that {@link IoHooks} has. */
+  private static final Set<String> FILE_CHANNEL_METHODS =
+      new HashSet<String>(
+          Arrays.asList(
+              "read(Ljava/nio/ByteBuffer;)I",
+              "read(Ljava/nio/ByteBuffer;J)I",
+              "write(Ljava/nio/ByteBuffer;)I",
+              "write(Ljava/nio/ByteBuffer;J)I",
+              "force(Z)V",
+              "transferTo(JJLjava/nio/channels/WritableByteChannel;)J",
+              "transferFrom(Ljava/nio/channels/ReadableByteChannel;JJ)J"));
+
+  /** The {@code Files} methods, by name and descriptor, that {@link IoHooks} has. */
+  private static final Set<String> FILES_METHODS =
+      new HashSet<String>(
+          Arrays.asList(
+              "readAllBytes(Ljava/nio/file/Path;)[B",
+              "readAllLines(Ljava/nio/file/Path;)Ljava/util/List;",
+              "readAllLines(Ljava/nio/file/Path;Ljava/nio/charset/Charset;)Ljava/util/List;",
+              "write(Ljava/nio/file/Path;[B[Ljava/nio/file/OpenOption;)Ljava/nio/file/Path;",
+              "write(Ljava/nio/file/Path;Ljava/lang/Iterable;Ljava/nio/charset/Charset;"
+                  + "[Ljava/nio/file/OpenOption;)Ljava/nio/file/Path;",
+              "write(Ljava/nio/file/Path;Ljava/lang/Iterable;[Ljava/nio/file/OpenOption;)"
+                  + "Ljava/nio/file/Path;",
+              "copy(Ljava/nio/file/Path;Ljava/nio/file/Path;[Ljava/nio/file/CopyOption;)"
+                  + "Ljava/nio/file/Path;",
+              "copy(Ljava/io/InputStream;Ljava/nio/file/Path;[Ljava/nio/file/CopyOption;)J",
+              "copy(Ljava/nio/file/Path;Ljava/io/OutputStream;)J",
+              "move(Ljava/nio/file/Path;Ljava/nio/file/Path;[Ljava/nio/file/CopyOption;)"
+                  + "Ljava/nio/file/Path;",
+              "delete(Ljava/nio/file/Path;)V",
+              "deleteIfExists(Ljava/nio/file/Path;)Z"));
+
+  /** Finds classes that may do blocking I/O, see {@link ConstantPoolScanner}. */
+  static final ConstantPoolScanner SCANNER;
+
+  static {
+    Set<String> names = new HashSet<String>(SOCKET_CLZS);
+    names.add(FILE_CHANNEL_CLZ);
+    names.add(FILES_CLZ);
+    SCANNER = new ConstantPoolScanner(names.toArray(new String[0]));
+  }
+
+  private final Runnable onChange;
+
+  /**
+   * @param onChange runnable to invoke if any changes are made to the class definition.  May be
+   *     {@code null}.
+   * @param methodVisitor the delegate to call.  May be {@code null}.
+   */
+  BlockingIoRewriter(Runnable onChange, MethodVisitor methodVisitor) {
+    super(Opcodes.ASM9, methodVisitor);
+    this.onChange = onChange;
+  }
+
+  @Override
+  public void visitMethodInsn(
+      int opcode, String owner, String name, String descriptor, boolean isInterface) {
+    if (opcode == Opcodes.INVOKEVIRTUAL
+        && owner.equals(FILE_CHANNEL_CLZ)
+        && FILE_CHANNEL_METHODS.contains(name + descriptor)) {
+      // The channel is already on the stack, so it becomes the first argument.
+      super.visitMethodInsn(
+          Opcodes.INVOKESTATIC,
+          HOOKS_CLZ,
+          name,
+          "(L" + FILE_CHANNEL_CLZ + ";" + descriptor.substring(1),
+          false);
+      changed();
+      return;
+    } else if (opcode == Opcodes.INVOKESTATIC
+        && owner.equals(FILES_CLZ)
+        && FILES_METHODS.contains(name + descriptor)) {
+      super.visitMethodInsn(Opcodes.INVOKESTATIC, HOOKS_CLZ, name, descriptor, false);
+      changed();
+      return;
+    } else if (opcode == Opcodes.INVOKEVIRTUAL
+        && SOCKET_CLZS.contains(owner)
+        && (name.equals("getInputStream") || name.equals("getOutputStream"))
+        && descriptor.startsWith("()")) {
+      super.visitMethodInsn(
+          Opcodes.INVOKESTATIC, HOOKS_CLZ, name, "(Ljava/net/Socket;" + descriptor.substring(1),
+          false);
+      changed();
+      return;
+    }
+    super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+  }
+
+  private void changed() {
+    if (onChange != null) {
+      onChange.run();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import java.util.List;
+
+/**
+ * Decides which classes the agent instruments, using include and exclude rules compiled into a
+ * prefix trie. Looking up a class walks down the trie once, one character of its name at a time,
+ * so it costs the same no matter how many rules there are.
+ *
+ * <p>Rules are written with dots, like Java class names.
+ *
+ * <ul>
+ *   <li>A rule ending in {@code .*} or {@code .} matches a package and its subpackages, such as
+ *       {@code com.example.*}.
+ *   <li>A rule ending in {@code *} matches every class name starting with the rest of it, such as
+ *       {@code com.example.Fast*}. {@code *} alone matches every class.
+ *   <li>Any other rule matches a single class and its nested classes, such as {@code
+ *       com.example.Outer}.
+ * </ul>
+ *
+ * <p>When several rules match a class, the longest one wins. If an include and an exclude rule are
+ * the same, the exclude rule wins. Classes matching no rule are included only if there are no
+ * include rules at all.
+ */
+final class ClassFilter {
+
+  private static final int INCLUDE_PREFIX = 1;
+  private static final int EXCLUDE_PREFIX = 2;
+  private static final int INCLUDE_CLASS = 4;
+  private static final int EXCLUDE_CLASS = 8;
+
+  private static final char[] NO_LABELS = new char[0];
+  private static final Node[] NO_CHILDREN = new Node[0];
+
+  private static final class Node {
+    /** The characters leading to each of the children. */
+    char[] labels = NO_LABELS;
+    Node[] children = NO_CHILDREN;
+    /** The rules that end at this node. */
+    int rules;
+
+    /** Returns the child for the character, or {@code null} if there is none. */
+    Node child(char c) {
+      // Nodes rarely have more than a few children, so a scan beats hashing.
+      char[] labels = this.labels;
+      for (int i = 0; i < labels.length; i++) {
+        if (labels[i] == c) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    Node addChild(char c) {
+      Node child = child(c);
+      if (child != null) {
+        return child;
+      }
+      int n = labels.length;
+      char[] newLabels = new char[n + 1];
+      System.arraycopy(labels, 0, newLabels, 0, n);
+      newLabels[n] = c;
+      Node[] newChildren = new Node[n + 1];
+      System.arraycopy(children, 0, newChildren, 0, n);
+      child = new Node();
+      newChildren[n] = child;
+      labels = newLabels;
+      children = newChildren;
+      return child;
+    }
+  }
+
+  private final Node root = new Node();
+  private final boolean includeByDefault;
+
+  private ClassFilter(boolean includeByDefault) {
+    this.includeByDefault = includeByDefault;
+  }
+
+  static ClassFilter create(List<String> includes, List<String> excludes) {
+    ClassFilter filter = new ClassFilter(includes.isEmpty());
+    for (String include : includes) {
+      filter.add(include, INCLUDE_PREFIX, INCLUDE_CLASS);
+    }
+    for (String exclude : excludes) {
+      filter.add(exclude, EXCLUDE_PREFIX, EXCLUDE_CLASS);
+    }
+    return filter;
+  }
+
+  private void add(String rule, int prefixRule, int classRule) {
+    String name = rule.replace('.', '/');
+    int ruleType;
+    if (name.endsWith("*")) {
+      name = name.substring(0, name.length() - 1);
+      ruleType = prefixRule;
+    } else if (name.endsWith("/")) {
+      ruleType = prefixRule;
+    } else {
+      ruleType = classRule;
+    }
+    Node node = root;
+    for (int i = 0; i < name.length(); i++) {
+      node = node.addChild(name.charAt(i));
+    }
+    node.rules |= ruleType;
+  }
+
+  /**
+   * Returns if the class should be instrumented.
+   *
+   * @param className the internal name of the class, such as {@code com/example/Outer$Inner}.
+   */
+  boolean matches(String className) {
+    boolean included = includeByDefault;
+    Node node = root;
+    int length = className.length();
+    int i = 0;
+    while (true) {
+      int rules = node.rules;
+      if ((rules & (INCLUDE_PREFIX | EXCLUDE_PREFIX)) != 0) {
+        included = (rules & EXCLUDE_PREFIX) == 0;
+      }
+      if ((rules & (INCLUDE_CLASS | EXCLUDE_CLASS)) != 0
+          && (i == length || className.charAt(i) == '$')) {
+        included = (rules & EXCLUDE_CLASS) == 0;
+      }
+      if (i == length || (node = node.child(className.charAt(i++))) == null) {
+        return included;
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+/**
+ * Looks through the constant pool of a class file for names, without parsing the rest of it. Any
+ * class that calls PerfMark has the name of the class in its constant pool, so classes without it
+ * can be passed over long before {@code ClassReader} would be done with them.
+ */
+final class ConstantPoolScanner {
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_FLOAT = 4;
+  private static final int CONSTANT_LONG = 5;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+  private static final int CONSTANT_METHOD_HANDLE = 15;
+  private static final int CONSTANT_METHOD_TYPE = 16;
+  private static final int CONSTANT_DYNAMIC = 17;
+  private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+  private static final int CONSTANT_MODULE = 19;
+  private static final int CONSTANT_PACKAGE = 20;
+
+  private static final int MAGIC = 0xCAFEBABE;
+  private static final int CONSTANT_POOL_COUNT_OFFSET = 8;
+
+  private final byte[][] names;
+
+  /**
+   * @param names the names to look for, which must be ASCII, such as internal class names.
+   */
+  ConstantPoolScanner(String... names) {
+    this.names = new byte[names.length][];
+    for (int i = 0; i < names.length; i++) {
+      byte[] name = new byte[names[i].length()];
+      for (int k = 0; k < name.length; k++) {
+        char c = names[i].charAt(k);
+        if (c == 0 || c > 0x7F) {
+          throw new IllegalArgumentException("Not ASCII: " + names[i]);
+        }
+        name[k] = (byte) c;
+      }
+      this.names[i] = name;
+    }
+  }
+
+  /**
+   * Returns if one of the names is in the constant pool of the class. Class files that can't be
+   * read, such as those of a newer version with unknown constants, may contain them, so they are
+   * left for {@code ClassReader} to decide.
+   */
+  boolean mayContain(byte[] classfile) {
+    try {
+      return scan(classfile);
+    } catch (ArrayIndexOutOfBoundsException e) {
+      return true;
+    }
+  }
+
+  private boolean scan(byte[] b) {
+    if (readInt(b, 0) != MAGIC) {
+      return true;
+    }
+    int count = readUnsignedShort(b, CONSTANT_POOL_COUNT_OFFSET);
+    int pos = CONSTANT_POOL_COUNT_OFFSET + 2;
+    // Entry 0 is unused.
+    for (int i = 1; i < count; i++) {
+      switch (b[pos]) {
+        case CONSTANT_UTF8:
+          int length = readUnsignedShort(b, pos + 1);
+          if (matches(b, pos + 3, length)) {
+            return true;
+          }
+          pos += 3 + length;
+          break;
+        case CONSTANT_CLASS:
+        case CONSTANT_STRING:
+        case CONSTANT_METHOD_TYPE:
+        case CONSTANT_MODULE:
+        case CONSTANT_PACKAGE:
+          pos += 3;
+          break;
+        case CONSTANT_METHOD_HANDLE:
+          pos += 4;
+          break;
+        case CONSTANT_INTEGER:
+        case CONSTANT_FLOAT:
+        case CONSTANT_FIELDREF:
+        case CONSTANT_METHODREF:
+        case CONSTANT_INTERFACE_METHODREF:
+        case CONSTANT_NAME_AND_TYPE:
+        case CONSTANT_DYNAMIC:
+        case CONSTANT_INVOKE_DYNAMIC:
+          pos += 5;
+          break;
+        case CONSTANT_LONG:
+        case CONSTANT_DOUBLE:
+          // These take up two entries.
+          pos += 9;
+          i++;
+          break;
+        default:
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matches(byte[] b, int offset, int length) {
+    nextName:
+    for (byte[] name : names) {
+      if (name.length != length) {
+        continue;
+      }
+      // Names share their package, so compare from the end where they differ.
+      for (int i = length - 1; i >= 0; i--) {
+        if (b[offset + i] != name[i]) {
+          continue nextName;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private static int readUnsignedShort(byte[] b, int offset) {
+    return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+  }
+
+  private static int readInt(byte[] b, int offset) {
+    return (readUnsignedShort(b, offset) << 16) | readUnsignedShort(b, offset + 2);
+  }
+}
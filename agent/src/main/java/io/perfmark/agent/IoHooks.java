@@ -0,0 +1,330 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import io.perfmark.PerfMark;
+import io.perfmark.StringFunction;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.CopyOption;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Records blocking I/O as tasks.  The agent redirects {@code FileChannel} and {@code Files} calls,
+ * and {@code Socket.getInputStream()} and {@code Socket.getOutputStream()}, to these when it has the
+ * {@code io} option.  They aren't meant to be called directly.
+ *
+ * <p>Each call becomes a task named after the method, such as {@code FileChannel.force} or {@code
+ * Files.readAllBytes}, tagged with the bytes read or written as {@value #BYTES_TAG} when that is
+ * known, and the file or remote address as {@value #TARGET_TAG}.  Copies and moves also tag the
+ * file they read from as {@value #SOURCE_TAG}.  A {@code FileChannel} doesn't know its path, so
+ * its tasks have no target.  Socket streams only record reads and writes of arrays, since single
+ * bytes are usually buffered by the caller and would cost more to trace than to do.
+ */
+public final class IoHooks {
+
+  static final String BYTES_TAG = "bytes";
+  static final String TARGET_TAG = "target";
+  static final String SOURCE_TAG = "source";
+
+  /** Formats paths and addresses only if tracing is enabled, since most calls are not traced. */
+  private static final StringFunction<Object> TO_STRING =
+      new StringFunction<Object>() {
+        @Override
+        public String apply(Object object) {
+          return String.valueOf(object);
+        }
+      };
+
+  public static int read(FileChannel channel, ByteBuffer dst) throws IOException {
+    PerfMark.startTask("FileChannel.read");
+    try {
+      int read = channel.read(dst);
+      PerfMark.attachTag(BYTES_TAG, read);
+      return read;
+    } finally {
+      PerfMark.stopTask("FileChannel.read");
+    }
+  }
+
+  public static int read(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+    PerfMark.startTask("FileChannel.read");
+    try {
+      int read = channel.read(dst, position);
+      PerfMark.attachTag(BYTES_TAG, read);
+      return read;
+    } finally {
+      PerfMark.stopTask("FileChannel.read");
+    }
+  }
+
+  public static int write(FileChannel channel, ByteBuffer src) throws IOException {
+    PerfMark.startTask("FileChannel.write");
+    try {
+      int written = channel.write(src);
+      PerfMark.attachTag(BYTES_TAG, written);
+      return written;
+    } finally {
+      PerfMark.stopTask("FileChannel.write");
+    }
+  }
+
+  public static int write(FileChannel channel, ByteBuffer src, long position) throws IOException {
+    PerfMark.startTask("FileChannel.write");
+    try {
+      int written = channel.write(src, position);
+      PerfMark.attachTag(BYTES_TAG, written);
+      return written;
+    } finally {
+      PerfMark.stopTask("FileChannel.write");
+    }
+  }
+
+  public static void force(FileChannel channel, boolean metaData) throws IOException {
+    PerfMark.startTask("FileChannel.force");
+    try {
+      channel.force(metaData);
+    } finally {
+      PerfMark.stopTask("FileChannel.force");
+    }
+  }
+
+  public static long transferTo(
+      FileChannel channel, long position, long count, WritableByteChannel target)
+      throws IOException {
+    PerfMark.startTask("FileChannel.transferTo");
+    try {
+      long transferred = channel.transferTo(position, count, target);
+      PerfMark.attachTag(BYTES_TAG, transferred);
+      return transferred;
+    } finally {
+      PerfMark.stopTask("FileChannel.transferTo");
+    }
+  }
+
+  public static long transferFrom(
+      FileChannel channel, ReadableByteChannel src, long position, long count) throws IOException {
+    PerfMark.startTask("FileChannel.transferFrom");
+    try {
+      long transferred = channel.transferFrom(src, position, count);
+      PerfMark.attachTag(BYTES_TAG, transferred);
+      return transferred;
+    } finally {
+      PerfMark.stopTask("FileChannel.transferFrom");
+    }
+  }
+
+  public static byte[] readAllBytes(Path path) throws IOException {
+    PerfMark.startTask("Files.readAllBytes");
+    try {
+      PerfMark.attachTag(TARGET_TAG, path, TO_STRING);
+      byte[] bytes = Files.readAllBytes(path);
+      PerfMark.attachTag(BYTES_TAG, bytes.length);
+      return bytes;
+    } finally {
+      PerfMark.stopTask("Files.readAllBytes");
+    }
+  }
+
+  public static List<String> readAllLines(Path path) throws IOException {
+    PerfMark.startTask("Files.readAllLines");
+    try {
+      PerfMark.attachTag(TARGET_TAG, path, TO_STRING);
+      return Files.readAllLines(path);
+    } finally {
+      PerfMark.stopTask("Files.readAllLines");
+    }
+  }
+
+  public static List<String> readAllLines(Path path, Charset cs) throws IOException {
+    PerfMark.startTask("Files.readAllLines");
+    try {
+      PerfMark.attachTag(TARGET_TAG, path, TO_STRING);
+      return Files.readAllLines(path, cs);
+    } finally {
+      PerfMark.stopTask("Files.readAllLines");
+    }
+  }
+
+  public static Path write(Path path, byte[] bytes, OpenOption... options) throws IOException {
+    PerfMark.startTask("Files.write");
+    try {
+      PerfMark.attachTag(TARGET_TAG, path, TO_STRING);
+      PerfMark.attachTag(BYTES_TAG, bytes.length);
+      return Files.write(path, bytes, options);
+    } finally {
+      PerfMark.stopTask("Files.write");
+    }
+  }
+
+  public static Path write(
+      Path path, Iterable<? extends CharSequence> lines, Charset cs, OpenOption... options)
+      throws IOException {
+    PerfMark.startTask("Files.write");
+    try {
+      PerfMark.attachTag(TARGET_TAG, path, TO_STRING);
+      return Files.write(path, lines, cs, options);
+    } finally {
+      PerfMark.stopTask("Files.write");
+    }
+  }
+
+  public static Path write(
+      Path path, Iterable<? extends CharSequence> lines, OpenOption... options)
+      throws IOException {
+    PerfMark.startTask("Files.write");
+    try {
+      PerfMark.attachTag(TARGET_TAG, path, TO_STRING);
+      return Files.write(path, lines, options);
+    } finally {
+      PerfMark.stopTask("Files.write");
+    }
+  }
+
+  public static Path copy(Path source, Path target, CopyOption... options) throws IOException {
+    PerfMark.startTask("Files.copy");
+    try {
+      PerfMark.attachTag(SOURCE_TAG, source, TO_STRING);
+      PerfMark.attachTag(TARGET_TAG, target, TO_STRING);
+      return Files.copy(source, target, options);
+    } finally {
+      PerfMark.stopTask("Files.copy");
+    }
+  }
+
+  public static long copy(InputStream in, Path target, CopyOption... options) throws IOException {
+    PerfMark.startTask("Files.copy");
+    try {
+      PerfMark.attachTag(TARGET_TAG, target, TO_STRING);
+      long copied = Files.copy(in, target, options);
+      PerfMark.attachTag(BYTES_TAG, copied);
+      return copied;
+    } finally {
+      PerfMark.stopTask("Files.copy");
+    }
+  }
+
+  public static long copy(Path source, OutputStream out) throws IOException {
+    PerfMark.startTask("Files.copy");
+    try {
+      PerfMark.attachTag(SOURCE_TAG, source, TO_STRING);
+      long copied = Files.copy(source, out);
+      PerfMark.attachTag(BYTES_TAG, copied);
+      return copied;
+    } finally {
+      PerfMark.stopTask("Files.copy");
+    }
+  }
+
+  public static Path move(Path source, Path target, CopyOption... options) throws IOException {
+    PerfMark.startTask("Files.move");
+    try {
+      PerfMark.attachTag(SOURCE_TAG, source, TO_STRING);
+      PerfMark.attachTag(TARGET_TAG, target, TO_STRING);
+      return Files.move(source, target, options);
+    } finally {
+      PerfMark.stopTask("Files.move");
+    }
+  }
+
+  public static void delete(Path path) throws IOException {
+    PerfMark.startTask("Files.delete");
+    try {
+      PerfMark.attachTag(TARGET_TAG, path, TO_STRING);
+      Files.delete(path);
+    } finally {
+      PerfMark.stopTask("Files.delete");
+    }
+  }
+
+  public static boolean deleteIfExists(Path path) throws IOException {
+    PerfMark.startTask("Files.deleteIfExists");
+    try {
+      PerfMark.attachTag(TARGET_TAG, path, TO_STRING);
+      return Files.deleteIfExists(path);
+    } finally {
+      PerfMark.stopTask("Files.deleteIfExists");
+    }
+  }
+
+  public static InputStream getInputStream(Socket socket) throws IOException {
+    return new SocketInputStream(socket.getInputStream(), socket.getRemoteSocketAddress());
+  }
+
+  public static OutputStream getOutputStream(Socket socket) throws IOException {
+    return new SocketOutputStream(socket.getOutputStream(), socket.getRemoteSocketAddress());
+  }
+
+  private static final class SocketInputStream extends FilterInputStream {
+    private final SocketAddress remoteAddress;
+
+    SocketInputStream(InputStream in, SocketAddress remoteAddress) {
+      super(in);
+      this.remoteAddress = remoteAddress;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      PerfMark.startTask("Socket.read");
+      try {
+        PerfMark.attachTag(TARGET_TAG, remoteAddress, TO_STRING);
+        int read = in.read(b, off, len);
+        PerfMark.attachTag(BYTES_TAG, read);
+        return read;
+      } finally {
+        PerfMark.stopTask("Socket.read");
+      }
+    }
+  }
+
+  private static final class SocketOutputStream extends FilterOutputStream {
+    private final SocketAddress remoteAddress;
+
+    SocketOutputStream(OutputStream out, SocketAddress remoteAddress) {
+      super(out);
+      this.remoteAddress = remoteAddress;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      PerfMark.startTask("Socket.write");
+      try {
+        PerfMark.attachTag(TARGET_TAG, remoteAddress, TO_STRING);
+        PerfMark.attachTag(BYTES_TAG, len);
+        // FilterOutputStream would otherwise write one byte at a time.
+        out.write(b, off, len);
+      } finally {
+        PerfMark.stopTask("Socket.write");
+      }
+    }
+  }
+
+  private IoHooks() {}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.TypePath;
+
+/**
+ * Routes {@code Lock.lock()} calls and {@code monitorenter} instructions through {@link LockHooks},
+ * so blocked acquisitions are recorded.  {@code synchronized} methods have no instructions to
+ * rewrite, and are left alone.
+ *
+ * <p>The hook runs with the monitor held, but before the compiler's handler that releases it, so
+ * the call gets a handler of its own that exits the monitor and rethrows.  The handler reads the
+ * monitor back from the local the compiler stores it in, so {@code monitorenter} instructions not
+ * preceded by {@code dup, astore} are left alone.  The added handlers must come before the
+ * compiler's in the exception table, or those of enclosing {@code synchronized} blocks would catch
+ * first, so the method's own try catch blocks are held back until the end.
+ */
+final class LockContentionRewriter extends MethodVisitor {
+
+  private static final String HOOKS_CLZ = "io/perfmark/agent/LockHooks";
+
+  private static final Set<String> LOCK_CLZS =
+      new HashSet<String>(
+          Arrays.asList(
+              "java/util/concurrent/locks/Lock",
+              "java/util/concurrent/locks/ReentrantLock",
+              "java/util/concurrent/locks/ReentrantReadWriteLock$ReadLock",
+              "java/util/concurrent/locks/ReentrantReadWriteLock$WriteLock"));
+
+  private final Runnable onChange;
+
+  /** Try catch blocks of the method, visited once all the monitor handlers have been. */
+  private final List<Object[]> tryCatchBlocks = new ArrayList<Object[]>();
+
+  private final List<Label> monitorHandlers = new ArrayList<Label>();
+  private final List<Integer> monitorLocals = new ArrayList<Integer>();
+
+  private boolean afterDup;
+  /** The local the object on top of the stack was just stored in, or {@code -1}. */
+  private int storedLocal = -1;
+
+  /**
+   * @param onChange runnable to invoke if any changes are made to the class definition.  May be
+   *     {@code null}.
+   * @param methodVisitor the delegate to call.  May be {@code null}.
+   */
+  LockContentionRewriter(Runnable onChange, MethodVisitor methodVisitor) {
+    super(Opcodes.ASM9, methodVisitor);
+    this.onChange = onChange;
+  }
+
+  @Override
+  public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+    tryCatchBlocks.add(new Object[] {start, end, handler, type});
+  }
+
+  @Override
+  public AnnotationVisitor visitTryCatchAnnotation(
+      int typeRef, TypePath typePath, String descriptor, boolean visible) {
+    // These apply to the last visited block, so it can't be held back any longer.
+    visitHeldTryCatchBlocks();
+    return super.visitTryCatchAnnotation(typeRef, typePath, descriptor, visible);
+  }
+
+  @Override
+  public void visitInsn(int opcode) {
+    int monitorLocal = storedLocal;
+    storedLocal = -1;
+    afterDup = opcode == Opcodes.DUP;
+    if (opcode != Opcodes.MONITORENTER || monitorLocal == -1) {
+      super.visitInsn(opcode);
+      return;
+    }
+    // Keeps the start time on the stack, under the monitor, rather than in a new local:
+    // [obj] -> [obj, obj, time] -> [obj, time, obj, time] -> [obj, time, obj] -> [obj, time]
+    super.visitInsn(Opcodes.DUP);
+    super.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+    super.visitInsn(Opcodes.DUP2_X1);
+    super.visitInsn(Opcodes.POP2);
+    super.visitInsn(Opcodes.MONITORENTER);
+    // Read the time here, so loading the hooks the first time doesn't count as blocking.
+    super.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+    Label start = new Label();
+    Label end = new Label();
+    Label handler = new Label();
+    super.visitTryCatchBlock(start, end, handler, null);
+    super.visitLabel(start);
+    super.visitMethodInsn(
+        Opcodes.INVOKESTATIC, HOOKS_CLZ, "monitorEntered", "(Ljava/lang/Object;JJ)V", false);
+    super.visitLabel(end);
+    monitorHandlers.add(handler);
+    monitorLocals.add(monitorLocal);
+    changed();
+  }
+
+  @Override
+  public void visitVarInsn(int opcode, int varIndex) {
+    storedLocal = afterDup && opcode == Opcodes.ASTORE ? varIndex : -1;
+    afterDup = false;
+    super.visitVarInsn(opcode, varIndex);
+  }
+
+  @Override
+  public void visitIntInsn(int opcode, int operand) {
+    clearStored();
+    super.visitIntInsn(opcode, operand);
+  }
+
+  @Override
+  public void visitTypeInsn(int opcode, String type) {
+    clearStored();
+    super.visitTypeInsn(opcode, type);
+  }
+
+  @Override
+  public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+    clearStored();
+    super.visitFieldInsn(opcode, owner, name, descriptor);
+  }
+
+  @Override
+  public void visitInvokeDynamicInsn(
+      String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapArgs) {
+    clearStored();
+    super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapArgs);
+  }
+
+  @Override
+  public void visitLdcInsn(Object value) {
+    clearStored();
+    super.visitLdcInsn(value);
+  }
+
+  @Override
+  public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+    clearStored();
+    super.visitMultiANewArrayInsn(descriptor, numDimensions);
+  }
+
+  @Override
+  public void visitLabel(Label label) {
+    // Other paths may jump here with something else in the local.
+    clearStored();
+    super.visitLabel(label);
+  }
+
+  @Override
+  public void visitMaxs(int maxStack, int maxLocals) {
+    visitHeldTryCatchBlocks();
+    for (int i = 0; i < monitorHandlers.size(); i++) {
+      int monitorLocal = monitorLocals.get(i);
+      // Nothing else from the locals is needed, so the frame doesn't have to know their types.
+      Object[] locals = new Object[monitorLocal + 1];
+      Arrays.fill(locals, Opcodes.TOP);
+      locals[monitorLocal] = "java/lang/Object";
+      super.visitLabel(monitorHandlers.get(i));
+      super.visitFrame(
+          Opcodes.F_FULL, locals.length, locals, 1, new Object[] {"java/lang/Throwable"});
+      super.visitVarInsn(Opcodes.ALOAD, monitorLocal);
+      super.visitInsn(Opcodes.MONITOREXIT);
+      super.visitInsn(Opcodes.ATHROW);
+    }
+    super.visitMaxs(maxStack, maxLocals);
+  }
+
+  private void visitHeldTryCatchBlocks() {
+    for (Object[] block : tryCatchBlocks) {
+      super.visitTryCatchBlock(
+          (Label) block[0], (Label) block[1], (Label) block[2], (String) block[3]);
+    }
+    tryCatchBlocks.clear();
+  }
+
+  private void clearStored() {
+    afterDup = false;
+    storedLocal = -1;
+  }
+
+  @Override
+  public void visitMethodInsn(
+      int opcode, String owner, String name, String descriptor, boolean isInterface) {
+    clearStored();
+    if ((opcode == Opcodes.INVOKEINTERFACE || opcode == Opcodes.INVOKEVIRTUAL)
+        && LOCK_CLZS.contains(owner)
+        && name.equals("lock")
+        && descriptor.equals("()V")) {
+      super.visitMethodInsn(
+          Opcodes.INVOKESTATIC,
+          HOOKS_CLZ,
+          "lock",
+          "(Ljava/util/concurrent/locks/Lock;)V",
+          false);
+      changed();
+      return;
+    }
+    super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+  }
+
+  private void changed() {
+    if (onChange != null) {
+      onChange.run();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import io.perfmark.PerfMark;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Records when acquiring a lock blocks.  The agent inserts calls to these around {@code
+ * synchronized} blocks and {@code Lock.lock()} calls when it has the {@code locks} option.  They
+ * aren't meant to be called directly.
+ *
+ * <p>The JDK's own locks are tried first, and only if that fails does the wait become a task, named
+ * {@code Lock.lock} with the lock's class as the sub task name.  Other locks, including subclasses
+ * of the JDK's, may give {@code tryLock} side effects or a different meaning, so their {@code
+ * lock()} is always recorded.  Monitors can't be tried, so the time to enter them is measured
+ * instead, and if it took at least {@link #MIN_BLOCKED_NANOS} a {@code monitorenter} task is
+ * recorded once the monitor is held, tagged with the time as {@value #BLOCKED_NANOS_TAG}.  The
+ * task itself only marks where the wait ended, the tag is how long it was.  Uncontended
+ * acquisitions of the JDK's locks and of monitors record nothing.
+ */
+public final class LockHooks {
+
+  static final String BLOCKED_NANOS_TAG = "blockedNanos";
+
+  /** Less than this is about what an uncontended monitor takes to enter, and isn't recorded. */
+  static final long MIN_BLOCKED_NANOS = 1000;
+
+  public static void lock(Lock lock) {
+    if (tryLock(lock)) {
+      return;
+    }
+    String lockClassName = lock.getClass().getName();
+    PerfMark.startTask("Lock.lock", lockClassName);
+    try {
+      lock.lock();
+    } finally {
+      PerfMark.stopTask("Lock.lock", lockClassName);
+    }
+  }
+
+  private static boolean tryLock(Lock lock) {
+    Class<?> lockClass = lock.getClass();
+    if (lockClass == ReentrantLock.class && !((ReentrantLock) lock).isFair()) {
+      return lock.tryLock();
+    } else if (lockClass != ReentrantLock.class
+        && lockClass != ReentrantReadWriteLock.ReadLock.class
+        && lockClass != ReentrantReadWriteLock.WriteLock.class) {
+      return false;
+    }
+    // An untimed tryLock barges ahead of waiting threads, which fair locks must not do.
+    try {
+      return lock.tryLock(0, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      // lock() doesn't throw on interrupt, so leave it for the caller to see.
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Called once the monitor is held, but before the {@code synchronized} block would release it on
+   * an exception.  The rewritten code releases it instead if this throws.
+   *
+   * @param monitor the object whose monitor was entered.
+   * @param startNanoTime the {@link System#nanoTime()} before entering.
+   * @param enteredNanoTime the {@link System#nanoTime()} after entering.
+   */
+  public static void monitorEntered(Object monitor, long startNanoTime, long enteredNanoTime) {
+    long blockedNanos = enteredNanoTime - startNanoTime;
+    if (blockedNanos < MIN_BLOCKED_NANOS) {
+      return;
+    }
+    String monitorClassName = monitor.getClass().getName();
+    PerfMark.startTask("monitorenter", monitorClassName);
+    PerfMark.attachTag(BLOCKED_NANOS_TAG, blockedNanos);
+    PerfMark.stopTask("monitorenter", monitorClassName);
+  }
+
+  private LockHooks() {}
+}
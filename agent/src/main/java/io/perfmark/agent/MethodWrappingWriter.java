@@ -33,10 +33,16 @@ final class MethodWrappingWriter {
   private final String bodyMethodName;
   private final ClassVisitor classVisitor;
   private final boolean isInterface;
+  private final boolean traced;
 
+  /**
+   * @param traced if the wrapper starts and stops a task around the body.  If not, it only calls
+   *     the body, which the JIT can inline away.
+   */
   MethodWrappingWriter(
       MethodVisitorRecorder recorder, int access, String methodName, String descriptor, String signature,
-      String[] exceptions, boolean isInterface, String className, String bodyMethodName, ClassVisitor cv) {
+      String[] exceptions, boolean isInterface, String className, String bodyMethodName, boolean traced,
+      ClassVisitor cv) {
     this.recorder = recorder;
     this.access = access;
     this.methodName = methodName;
@@ -46,9 +52,15 @@ final class MethodWrappingWriter {
     this.isInterface = isInterface;
     this.className = className;
     this.bodyMethodName = bodyMethodName;
+    this.traced = traced;
     this.classVisitor = cv;
   }
 
+  /** Returns the name of the task a wrapper starts, which {@link AdaptiveUnwrapper} looks for. */
+  static String taskName(String className, String methodName) {
+    return className + "::" + methodName;
+  }
+
   void visit() {
     MethodVisitor mv = classVisitor.visitMethod(access, methodName, descriptor, signature, exceptions);
     if (mv == null) {
@@ -62,14 +74,17 @@ final class MethodWrappingWriter {
     Label end = new Label();
     mv.visitLabel(start);
     mv.visitLineNumber(recorder.firstLine, start);
-    mv.visitLdcInsn(className + "::" + methodName);
-    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "io/perfmark/PerfMark", "startTask", "(Ljava/lang/String;)V", false);
+    if (traced) {
+      mv.visitLdcInsn(taskName(className, methodName));
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, "io/perfmark/PerfMark", "startTask", "(Ljava/lang/String;)V", false);
+    }
 
     if (((access & Opcodes.ACC_STATIC) == 0)) {
       mv.visitVarInsn(Opcodes.ALOAD, 0);
     }
 
-    int params = 1;
+    // The local slot of the next parameter.  Static methods have no "this" in slot 0.
+    int params = (access & Opcodes.ACC_STATIC) == 0 ? 1 : 0;
     char ret = 0;
     assert descriptor.charAt(0) == '(';
     out: for (int i = 1; i < descriptor.length(); i++) {
@@ -94,10 +109,12 @@ final class MethodWrappingWriter {
           mv.visitVarInsn(Opcodes.FLOAD, params++);
           break;
         case 'J':
-          mv.visitVarInsn(Opcodes.LLOAD, params++);
+          mv.visitVarInsn(Opcodes.LLOAD, params);
+          params += 2;
           break;
         case 'D':
-          mv.visitVarInsn(Opcodes.DLOAD, params++);
+          mv.visitVarInsn(Opcodes.DLOAD, params);
+          params += 2;
           break;
         case '[':
           mv.visitVarInsn(Opcodes.ALOAD, params++);
@@ -123,12 +140,22 @@ final class MethodWrappingWriter {
       invoke = Opcodes.INVOKESPECIAL;
     }
 
+    Label bodyStart = new Label();
+    Label bodyEnd = new Label();
+    Label handler = new Label();
+    if (traced) {
+      mv.visitTryCatchBlock(bodyStart, bodyEnd, handler, null);
+    }
+    mv.visitLabel(bodyStart);
     mv.visitMethodInsn(invoke, className.replace(".", "/"), bodyMethodName, descriptor, isInterface);
+    mv.visitLabel(bodyEnd);
 
     mv.visitLabel(end);
     mv.visitLineNumber(recorder.lastLine, end);
-    mv.visitLdcInsn(className + ":::" + methodName);
-    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "io/perfmark/PerfMark", "stopTask", "(Ljava/lang/String;)V", false);
+    if (traced) {
+      mv.visitLdcInsn(taskName(className, methodName));
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, "io/perfmark/PerfMark", "stopTask", "(Ljava/lang/String;)V", false);
+    }
 
     switch (ret) {
       case 'V':
@@ -158,7 +185,17 @@ final class MethodWrappingWriter {
         throw new RuntimeException("Bad Descriptor " + ret);
     }
 
-    mv.visitMaxs(params, params + 1);
+    if (traced) {
+      // Stop the task if the body throws, so later tasks on the thread don't nest under it.  The
+      // handler doesn't read any locals, so the frame doesn't need their types.
+      mv.visitLabel(handler);
+      mv.visitFrame(Opcodes.F_FULL, 0, new Object[0], 1, new Object[] {"java/lang/Throwable"});
+      mv.visitLdcInsn(taskName(className, methodName));
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, "io/perfmark/PerfMark", "stopTask", "(Ljava/lang/String;)V", false);
+      mv.visitInsn(Opcodes.ATHROW);
+    }
+
+    mv.visitMaxs(Math.max(params, 2), params + 1);
     mv.visitEnd();
   }
 }
@@ -16,15 +16,106 @@
 
 package io.perfmark.agent;
 
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
 
+/**
+ * The PerfMark agent, which can be started with the JVM using {@code -javaagent}, or attached to a
+ * running JVM later.  Once started, which classes are instrumented can be changed without a
+ * restart, either by attaching the agent again with new options, or with {@link #instrument} and
+ * {@link #uninstrument}.  Classes that are no longer included go back to their original code, so
+ * they cost nothing.
+ */
 public final class PerfMarkAgent {
 
+  /** May be {@code null}, if the agent hasn't started. */
+  private static PerfMarkTransformer transformer;
+
   /**
    * Entry point as an agent.
+   *
+   * @param agentArgs the options of the agent, as described in {@link AgentOptions}.
+   * @param inst the instrumentation to add the transformer to.
+   * @throws IOException if the config file named in the options can't be read.
+   */
+  public static void premain(String agentArgs, Instrumentation inst) throws IOException {
+    AgentOptions options = AgentOptions.parse(agentArgs);
+    start(inst, options);
+    startAdaptive(options);
+  }
+
+  /**
+   * Entry point as an agent attached to a running JVM.  The first time, the already loaded classes
+   * that the options include are instrumented.  After that, the options replace the previous ones,
+   * as in {@link #instrument}.
+   *
+   * @param agentArgs the options of the agent, as described in {@link AgentOptions}.
+   * @param inst the instrumentation to add the transformer to.
+   * @throws IOException if the config file named in the options can't be read.
+   * @throws UnmodifiableClassException if an included class can't be changed.
+   */
+  public static void agentmain(String agentArgs, Instrumentation inst)
+      throws IOException, UnmodifiableClassException {
+    AgentOptions options = AgentOptions.parse(agentArgs);
+    PerfMarkTransformer current;
+    synchronized (PerfMarkAgent.class) {
+      current = transformer;
+      if (current == null) {
+        start(inst, AgentOptions.OFF);
+        current = transformer;
+      }
+    }
+    current.retransform(options);
+    startAdaptive(options);
+  }
+
+  /**
+   * Replaces the options of the running agent, and retransforms the classes affected.
+   *
+   * @param agentArgs the options of the agent, as described in {@link AgentOptions}.
+   * @throws IOException if the config file named in the options can't be read.
+   * @throws UnmodifiableClassException if an included class can't be changed.  No classes are
+   *     changed in that case.
+   * @throws IllegalStateException if the agent isn't running, or can't retransform classes.
    */
-  public static void premain(String agentArgs, Instrumentation inst) {
-    inst.addTransformer(new PerfMarkTransformer(inst));
+  public static void instrument(String agentArgs) throws IOException, UnmodifiableClassException {
+    AgentOptions options = AgentOptions.parse(agentArgs);
+    running().retransform(options);
+    startAdaptive(options);
+  }
+
+  /**
+   * Puts back the original code of every instrumented class.  Classes loaded afterwards aren't
+   * instrumented, until {@link #instrument} is called again.
+   *
+   * @throws UnmodifiableClassException if an instrumented class can't be changed back.
+   * @throws IllegalStateException if the agent isn't running, or can't retransform classes.
+   */
+  public static void uninstrument() throws UnmodifiableClassException {
+    running().retransform(AgentOptions.OFF);
+  }
+
+  private static synchronized void start(Instrumentation inst, AgentOptions options) {
+    if (transformer != null) {
+      throw new IllegalStateException("PerfMark agent already started");
+    }
+    PerfMarkTransformer newTransformer = new PerfMarkTransformer(inst, options);
+    inst.addTransformer(newTransformer, inst.isRetransformClassesSupported());
+    transformer = newTransformer;
+  }
+
+  private static void startAdaptive(AgentOptions options) {
+    if (options.adaptiveSeconds > 0) {
+      new AdaptiveUnwrapper(running(), options.adaptiveSeconds, options.debug).start();
+    }
+  }
+
+  private static synchronized PerfMarkTransformer running() {
+    if (transformer == null) {
+      throw new IllegalStateException("PerfMark agent isn't running");
+    }
+    return transformer;
   }
 
   private PerfMarkAgent() {}
@@ -24,6 +24,10 @@ import org.objectweb.asm.Opcodes;
 final class PerfMarkClassVisitor extends ClassVisitor {
 
   static final String[] ALL_METHODS = new String[0];
+  static final String[] NO_METHODS = new String[0];
+
+  /** Appended to the name of a wrapped method, to name the method its original body moves to. */
+  static final String BODY_METHOD_SUFFIX = "$perfmark";
 
   private final Runnable changeDetector = new ChangeDetector();
 
@@ -31,6 +35,10 @@ final class PerfMarkClassVisitor extends ClassVisitor {
   private final String className;
   private final String[] methodsToRewrite;
   private final String[] methodsToWrap;
+  private final String[] methodsToUnwrap;
+  private final boolean asyncHandOffs;
+  private final boolean lockContention;
+  private final boolean blockingIo;
 
   private String fileName;
   private String moduleName;
@@ -42,11 +50,40 @@ final class PerfMarkClassVisitor extends ClassVisitor {
   PerfMarkClassVisitor(
       String classLoaderName, String className, String[] methodsToRewrite, String[] methodsToWrap,
       ClassVisitor classVisitor) {
+    this(
+        classLoaderName, className, methodsToRewrite, methodsToWrap, NO_METHODS, false, false, false,
+        classVisitor);
+  }
+
+  /**
+   * @param methodsToUnwrap the wrapped methods whose wrappers only call the original body, without
+   *     starting and stopping a task.  The class keeps the same methods either way, which lets a
+   *     loaded class switch between the two.
+   * @param asyncHandOffs if tasks handed to executors in the methods to rewrite should be wrapped,
+   *     see {@link AsyncHandOffRewriter}.
+   * @param lockContention if blocking on locks in the methods to rewrite should be recorded, see
+   *     {@link LockContentionRewriter}.
+   * @param blockingIo if blocking I/O in the methods to rewrite should be recorded, see {@link
+   *     BlockingIoRewriter}.
+   */
+  PerfMarkClassVisitor(
+      String classLoaderName, String className, String[] methodsToRewrite, String[] methodsToWrap,
+      String[] methodsToUnwrap, boolean asyncHandOffs, boolean lockContention, boolean blockingIo,
+      ClassVisitor classVisitor) {
     super(Opcodes.ASM9, classVisitor);
     this.classLoaderName = classLoaderName;
     this.className = className;
     this.methodsToRewrite = methodsToRewrite == ALL_METHODS ? ALL_METHODS : methodsToRewrite.clone();
     this.methodsToWrap = methodsToWrap == ALL_METHODS ? ALL_METHODS : methodsToWrap.clone();
+    this.methodsToUnwrap = methodsToUnwrap == ALL_METHODS ? ALL_METHODS : methodsToUnwrap.clone();
+    this.asyncHandOffs = asyncHandOffs;
+    this.lockContention = lockContention;
+    this.blockingIo = blockingIo;
+  }
+
+  /** Returns if the methods, as passed to the constructor, include any at all. */
+  static boolean anyMethods(String[] methods) {
+    return methods == ALL_METHODS || methods.length != 0;
   }
 
   @Override
@@ -78,7 +115,7 @@ final class PerfMarkClassVisitor extends ClassVisitor {
         // Avoid recursion for now.
         return super.visitMethod(access, methodName, descriptor, signature, exceptions);
       }
-      String bodyMethodName = methodName + "$perfmark";
+      String bodyMethodName = methodName + BODY_METHOD_SUFFIX;
       int newAccess;
       if (!isInterface) {
         newAccess = (access | Opcodes.ACC_PRIVATE) & ~(Opcodes.ACC_PROTECTED | Opcodes.ACC_PUBLIC);
@@ -91,7 +128,7 @@ final class PerfMarkClassVisitor extends ClassVisitor {
       methodWrapper =
           new MethodWrappingWriter(
               recorder, access, methodName, descriptor, signature, exceptions, isInterface, className, bodyMethodName,
-              cv);
+              !contains(methodsToUnwrap, methodName), cv);
     } else {
       superDelegate = super.visitMethod(access, methodName, descriptor, signature, exceptions);
       methodWrapper = null;
@@ -99,8 +136,18 @@ final class PerfMarkClassVisitor extends ClassVisitor {
 
     final MethodVisitor visitor;
     if (shouldRewrite(methodName)) {
-      visitor = new PerfMarkMethodRewriter(
+      MethodVisitor rewriter = new PerfMarkMethodRewriter(
           classLoaderName, moduleName, moduleVersion, className, methodName, fileName, changeDetector, superDelegate);
+      if (asyncHandOffs) {
+        rewriter = new AsyncHandOffRewriter(changeDetector, rewriter);
+      }
+      if (lockContention) {
+        rewriter = new LockContentionRewriter(changeDetector, rewriter);
+      }
+      if (blockingIo) {
+        rewriter = new BlockingIoRewriter(changeDetector, rewriter);
+      }
+      visitor = rewriter;
     } else {
       visitor = superDelegate;
     }
@@ -128,10 +175,14 @@ final class PerfMarkClassVisitor extends ClassVisitor {
   }
 
   boolean shouldRewrite(String methodName) {
-    if (methodsToRewrite == ALL_METHODS) {
+    return contains(methodsToRewrite, methodName);
+  }
+
+  private static boolean contains(String[] methods, String methodName) {
+    if (methods == ALL_METHODS) {
       return true;
     }
-    for (String method : methodsToRewrite) {
+    for (String method : methods) {
       if (method.equals(methodName)) {
         return true;
       }
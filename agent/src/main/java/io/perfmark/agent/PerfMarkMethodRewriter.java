@@ -28,6 +28,10 @@ import org.objectweb.asm.Opcodes;
 
 /**
  * Modified PerfMark startTask and stopTask call sits to include tags about where in code they came from.
+ *
+ * <p>The tags are String constants, built once here and loaded with {@code ldc}.  The JVM interns
+ * them when the call site is first linked, so the rewritten code allocates nothing, and the JIT sees
+ * them as constants.
  */
 final class PerfMarkMethodRewriter extends MethodVisitor {
 
@@ -49,6 +53,9 @@ final class PerfMarkMethodRewriter extends MethodVisitor {
   private final String fileName;
 
   private int lineNumber = -1;
+  private int callSiteLineNumber = -1;
+  /** The call site of {@link #callSiteLineNumber}, since a line often has several PerfMark calls. */
+  private String callSite;
 
   /**
    * Builds the rewriter to add debug into to trace calls.
@@ -122,6 +129,9 @@ final class PerfMarkMethodRewriter extends MethodVisitor {
   }
 
   private String callSite() {
+    if (callSite != null && callSiteLineNumber == lineNumber) {
+      return callSite;
+    }
     StackTraceElement elem = null;
     try {
       elem = moduleElement();
@@ -131,7 +141,8 @@ final class PerfMarkMethodRewriter extends MethodVisitor {
     if (elem == null) {
       elem = new StackTraceElement(className, methodName, fileName, lineNumber);
     }
-    return elem.toString();
+    callSiteLineNumber = lineNumber;
+    return callSite = elem.toString();
   }
 
   /**
@@ -20,10 +20,22 @@ package io.perfmark.agent;
 import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.jar.JarFile;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
@@ -33,14 +45,47 @@ final class PerfMarkTransformer implements ClassFileTransformer {
   /** May be {@code null}. */
   private static final Method CLASS_LOADER_GET_NAME = getClassLoaderNameMethodSafe();
 
-  @SuppressWarnings("unused")
+  /** Only classes using these are rewritten, see {@link PerfMarkMethodRewriter}. */
+  private static final ConstantPoolScanner PERFMARK_SCANNER =
+      new ConstantPoolScanner("io/perfmark/PerfMark", "io/perfmark/TaskCloseable");
+
   private final Instrumentation instrumentation;
 
+  /**
+   * The internal names of the classes that have been rewritten, so they can be put back when they
+   * are no longer included.  Classes of the same name from different loaders share an entry, which
+   * at worst retransforms a class that didn't need it.
+   */
+  private final Set<String> rewrittenClasses =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * The methods wrapped in each class when it was first loaded.  Retransforming has to wrap the same
+   * ones, since it can't add or remove methods.
+   */
+  private final ConcurrentMap<String, String[]> wrappedClasses =
+      new ConcurrentHashMap<String, String[]>();
+
+  /** The wrapped methods of each class that no longer trace, see {@link #unwrap}. */
+  private final ConcurrentMap<String, String[]> unwrappedMethods =
+      new ConcurrentHashMap<String, String[]>();
+
+  private volatile Config config;
+
   /**
    * @param instrumentation may be {@code null}.
    */
   PerfMarkTransformer(Instrumentation instrumentation) {
+    this(instrumentation, AgentOptions.DEFAULT);
+  }
+
+  /**
+   * @param instrumentation may be {@code null}.
+   * @param options which classes to instrument, and how.
+   */
+  PerfMarkTransformer(Instrumentation instrumentation, AgentOptions options) {
     this.instrumentation = instrumentation;
+    this.config = new Config(options);
     if (instrumentation != null) {
       try {
         URL url = getClass().getClassLoader().getResource("io/perfmark/PerfMark.class");
@@ -67,9 +112,69 @@ final class PerfMarkTransformer implements ClassFileTransformer {
       Class<?> classBeingRedefined,
       ProtectionDomain protectionDomain,
       byte[] classfileBuffer) {
-    System.err.println("  Attempting " + className);
+    Config config = this.config;
+    String[] wrapped =
+        classBeingRedefined != null && className != null ? wrappedClasses.get(className) : null;
+    // Rejected classes are never parsed, which is most of them for a narrow filter.  Hidden classes
+    // have no name, and can't be matched at all.  When retransforming, returning null puts back the
+    // original class.
+    boolean included = className != null && !config.off && config.classFilter.matches(className);
+    if (!included && wrapped == null) {
+      if (config.debug) {
+        System.err.println("  Skipping " + className);
+      }
+      if (classBeingRedefined != null && className != null) {
+        rewrittenClasses.remove(className);
+      }
+      return null;
+    }
+    if (config.debug) {
+      System.err.println("  Attempting " + className);
+    }
     try {
-      return transformInternal(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+      byte[] rewritten;
+      if (included) {
+        // Retransforming can't add methods, so only classes being loaded for the first time can be
+        // wrapped.
+        String[] methodsToWrap =
+            wrapped != null
+                ? wrapped
+                : classBeingRedefined == null
+                    ? config.methodsToWrap
+                    : PerfMarkClassVisitor.NO_METHODS;
+        String[] methodsToUnwrap = unwrappedMethods.get(className);
+        rewritten =
+            transformInternal(
+                loader,
+                className,
+                config.methodsToRewrite,
+                methodsToWrap,
+                methodsToUnwrap != null ? methodsToUnwrap : PerfMarkClassVisitor.NO_METHODS,
+                config.asyncHandOffs && canSeeHooks(loader, className),
+                config.lockContention && canSeeHooks(loader, className),
+                config.blockingIo && canSeeHooks(loader, className),
+                classfileBuffer);
+        if (rewritten != null && wrapped == null && PerfMarkClassVisitor.anyMethods(methodsToWrap)) {
+          wrappedClasses.put(className, methodsToWrap);
+        }
+      } else {
+        // Nor can it remove them, so wrapped classes keep their wrappers, which just stop tracing.
+        rewritten =
+            transformInternal(
+                loader,
+                className,
+                PerfMarkClassVisitor.NO_METHODS,
+                wrapped,
+                PerfMarkClassVisitor.ALL_METHODS,
+                false,
+                false,
+                false,
+                classfileBuffer);
+      }
+      if (rewritten != null) {
+        rewrittenClasses.add(className);
+      }
+      return rewritten;
     } catch (Exception e) {
       System.err.println(e.toString());
       e.printStackTrace(System.err);
@@ -83,24 +188,190 @@ final class PerfMarkTransformer implements ClassFileTransformer {
       Class<?> classBeingRedefined,
       ProtectionDomain protectionDomain,
       byte[] classfileBuffer) {
+    return transformInternal(
+        loader,
+        className,
+        PerfMarkClassVisitor.ALL_METHODS,
+        PerfMarkClassVisitor.NO_METHODS,
+        PerfMarkClassVisitor.NO_METHODS,
+        false,
+        false,
+        false,
+        classfileBuffer);
+  }
+
+  private static byte[] transformInternal(
+      ClassLoader loader,
+      final String className,
+      String[] methodsToRewrite,
+      String[] methodsToWrap,
+      String[] methodsToUnwrap,
+      boolean asyncHandOffs,
+      boolean lockContention,
+      boolean blockingIo,
+      byte[] classfileBuffer) {
     assert !className.contains(".") : "Binary name with `.` detected rather than internal name";
+    // Most classes never call PerfMark, and a quick look at the constant pool is enough to tell.
+    // Wrapped classes are rewritten regardless, as are classes that may have synchronized blocks,
+    // which leave nothing in the constant pool.
+    if (!PerfMarkClassVisitor.anyMethods(methodsToWrap)
+        && !lockContention
+        && !PERFMARK_SCANNER.mayContain(classfileBuffer)
+        && !(asyncHandOffs && AsyncHandOffRewriter.SCANNER.mayContain(classfileBuffer))
+        && !(blockingIo && BlockingIoRewriter.SCANNER.mayContain(classfileBuffer))) {
+      return null;
+    }
     String classLoaderName = getClassLoaderName(loader);
-    return transform(classLoaderName, className, classfileBuffer);
+    return rewrite(
+        classLoaderName, className, methodsToRewrite, methodsToWrap, methodsToUnwrap,
+        asyncHandOffs, lockContention, blockingIo, classfileBuffer);
   }
 
-  private static byte[] transform(String classLoaderName, String className, byte[] classfileBuffer) {
+  /**
+   * Rewrites the class without checking if it uses PerfMark first.  Visible for benchmarking.
+   */
+  static byte[] rewrite(String classLoaderName, String className, byte[] classfileBuffer) {
+    return rewrite(
+        classLoaderName,
+        className,
+        PerfMarkClassVisitor.ALL_METHODS,
+        PerfMarkClassVisitor.NO_METHODS,
+        PerfMarkClassVisitor.NO_METHODS,
+        false,
+        false,
+        false,
+        classfileBuffer);
+  }
+
+  private static byte[] rewrite(
+      String classLoaderName,
+      String className,
+      String[] methodsToRewrite,
+      String[] methodsToWrap,
+      String[] methodsToUnwrap,
+      boolean asyncHandOffs,
+      boolean lockContention,
+      boolean blockingIo,
+      byte[] classfileBuffer) {
     ClassReader cr = new ClassReader(classfileBuffer);
     if (true) {
       ClassWriter cw = new NonMergingClassWriter(cr, ClassWriter.COMPUTE_MAXS);
       PerfMarkClassVisitor perfMarkClassVisitor =
           new PerfMarkClassVisitor(
-              classLoaderName, className, PerfMarkClassVisitor.ALL_METHODS, new String[0], cw);
+              classLoaderName, className, methodsToRewrite, methodsToWrap, methodsToUnwrap,
+              asyncHandOffs, lockContention, blockingIo, cw);
       cr.accept(perfMarkClassVisitor, 0);
       return cw.toByteArray();
     }
     return null;
   }
 
+  /**
+   * Stops tracing wrapped methods, and retransforms their classes.  The wrappers stay, since
+   * retransforming can't remove methods, but only call the original body.
+   *
+   * @param taskNames the names of the tasks the wrappers start, like {@code com/example/Foo::bar}.
+   *     Names of other tasks are ignored.
+   * @return the number of classes retransformed.
+   * @throws UnmodifiableClassException if a class can't be retransformed, in which case none are.
+   */
+  synchronized int unwrap(Collection<String> taskNames) throws UnmodifiableClassException {
+    if (instrumentation == null || !instrumentation.isRetransformClassesSupported()) {
+      throw new IllegalStateException("Retransforming classes isn't supported");
+    }
+    Map<String, Set<String>> methodsByClass = new HashMap<String, Set<String>>();
+    for (String taskName : taskNames) {
+      int sep = taskName.indexOf("::");
+      if (sep == -1) {
+        continue;
+      }
+      String className = taskName.substring(0, sep);
+      String methodName = taskName.substring(sep + 2);
+      if (!wrappedClasses.containsKey(className)) {
+        continue;
+      }
+      Set<String> methods = methodsByClass.get(className);
+      if (methods == null) {
+        methods = new LinkedHashSet<String>();
+        String[] previous = unwrappedMethods.get(className);
+        if (previous != null) {
+          methods.addAll(Arrays.asList(previous));
+        }
+        methodsByClass.put(className, methods);
+      }
+      methods.add(methodName);
+    }
+    for (Map.Entry<String, Set<String>> entry : methodsByClass.entrySet()) {
+      unwrappedMethods.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+    }
+    List<Class<?>> classes = new ArrayList<Class<?>>();
+    for (Class<?> clz : instrumentation.getAllLoadedClasses()) {
+      if (methodsByClass.containsKey(clz.getName().replace('.', '/'))
+          && instrumentation.isModifiableClass(clz)) {
+        classes.add(clz);
+      }
+    }
+    if (!classes.isEmpty()) {
+      instrumentation.retransformClasses(classes.toArray(new Class<?>[0]));
+    }
+    return classes.size();
+  }
+
+  /**
+   * Switches to new options, and retransforms the loaded classes they affect: the ones that were
+   * rewritten before, which may need to be put back, and the ones that are now included.
+   *
+   * @param options the new options.
+   * @return the number of classes retransformed.
+   * @throws UnmodifiableClassException if a class can't be retransformed, in which case none are.
+   */
+  synchronized int retransform(AgentOptions options) throws UnmodifiableClassException {
+    if (instrumentation == null || !instrumentation.isRetransformClassesSupported()) {
+      throw new IllegalStateException("Retransforming classes isn't supported");
+    }
+    Config newConfig = new Config(options);
+    this.config = newConfig;
+    List<Class<?>> classes = new ArrayList<Class<?>>();
+    for (Class<?> clz : instrumentation.getAllLoadedClasses()) {
+      if (!instrumentation.isModifiableClass(clz)) {
+        continue;
+      }
+      String className = clz.getName().replace('.', '/');
+      if (rewrittenClasses.contains(className)
+          || (!newConfig.off && newConfig.classFilter.matches(className))) {
+        classes.add(clz);
+      }
+    }
+    if (!classes.isEmpty()) {
+      instrumentation.retransformClasses(classes.toArray(new Class<?>[0]));
+    }
+    return classes.size();
+  }
+
+  /**
+   * Returns if code in the class can call {@link AsyncHooks}, {@link LockHooks} and {@link IoHooks}.  The JDK's own
+   * classes, and those of loaders that don't delegate to the agent's loader, can't.  Without
+   * instrumentation, such as when weaving, the hooks are assumed to be on the class path.
+   */
+  private boolean canSeeHooks(ClassLoader loader, String className) {
+    if (className.startsWith("java/")
+        || className.startsWith("jdk/")
+        || className.startsWith("sun/")
+        || className.startsWith("io/perfmark/")) {
+      return false;
+    }
+    if (instrumentation == null) {
+      return true;
+    }
+    ClassLoader hooksLoader = AsyncHooks.class.getClassLoader();
+    for (ClassLoader l = loader; l != null; l = l.getParent()) {
+      if (l == hooksLoader) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   static String deriveFileName(String className) {
     String clzName = className.replace('/', '.');
     int dollar = clzName.indexOf('$');
@@ -177,6 +448,29 @@ final class PerfMarkTransformer implements ClassFileTransformer {
     return null;
   }
 
+  /** The parts of {@link AgentOptions} that are checked on each class, swapped all at once. */
+  private static final class Config {
+    final ClassFilter classFilter;
+    final String[] methodsToRewrite;
+    final String[] methodsToWrap;
+    final boolean asyncHandOffs;
+    final boolean lockContention;
+    final boolean blockingIo;
+    final boolean off;
+    final boolean debug;
+
+    Config(AgentOptions options) {
+      this.classFilter = options.newClassFilter();
+      this.methodsToRewrite = options.methodsToRewrite();
+      this.methodsToWrap = options.methodsToWrap();
+      this.asyncHandOffs = options.async;
+      this.lockContention = options.locks;
+      this.blockingIo = options.io;
+      this.off = options.off;
+      this.debug = options.debug;
+    }
+  }
+
   @SuppressWarnings("UnusedVariable")
   private static void safeLog(Throwable t, String message, Object... args) {
     // TODO(carl-mastrangelo): implement.
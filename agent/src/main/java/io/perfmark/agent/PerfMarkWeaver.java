@@ -0,0 +1,307 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Instruments compiled classes ahead of time, the same way the agent would when they are loaded.
+ * This gives the same tracing without {@code -javaagent}, and without paying for the rewriting at
+ * startup.  The input may be a jar, or a directory of classes, such as a build's output directory.
+ * Woven classes call PerfMark, so the PerfMark API has to be on their class path at runtime.  With
+ * the {@code async}, {@code locks} or {@code io} options, they also call the agent's hooks, such as
+ * {@link AsyncHooks}, so the agent jar does too.
+ *
+ * <p>From the command line, the agent jar runs the weaver:
+ *
+ * <pre>
+ * java -jar perfmark-agent.jar --options=include=com.example.* app.jar app-woven.jar
+ * </pre>
+ *
+ * <p>In a Gradle build, the classes can be woven in place after they are compiled:
+ *
+ * <pre>
+ * val perfmarkWeaver by configurations.creating
+ * dependencies { perfmarkWeaver("io.perfmark:perfmark-agent:VERSION") }
+ * val weaveClasses by tasks.registering(JavaExec::class) {
+ *     val classes = sourceSets.main.get().java.destinationDirectory
+ *     classpath = perfmarkWeaver
+ *     mainClass.set("io.perfmark.agent.PerfMarkWeaver")
+ *     args("--options=include=com.example.*", classes.get(), classes.get())
+ * }
+ * tasks.compileJava { finalizedBy(weaveClasses) }
+ * </pre>
+ *
+ * <p>The options are the same as the agent's, see {@link AgentOptions}.  Classes that already carry
+ * PerfMark call site tags, hooks, or wrapped methods are left alone, so weaving the same classes
+ * twice is harmless.  Signature files are dropped from woven jars, since the classes no longer match
+ * them.
+ */
+public final class PerfMarkWeaver {
+
+  /** Finds classes woven before, by the tag keys and hooks the rewriters add. */
+  private static final ConstantPoolScanner WOVEN_SCANNER =
+      new ConstantPoolScanner(
+          "PerfMark.startCallSite",
+          "PerfMark.stopCallSite",
+          "io/perfmark/agent/AsyncHooks",
+          "io/perfmark/agent/LockHooks",
+          "io/perfmark/agent/IoHooks");
+
+  private final PerfMarkTransformer transformer;
+  private int classes;
+  private int wovenClasses;
+
+  private PerfMarkWeaver(AgentOptions options) {
+    this.transformer = new PerfMarkTransformer(null, options);
+  }
+
+  /**
+   * Weaves a jar, or a directory of classes.  The output may be the same as the input, to weave in
+   * place.
+   *
+   * @param input the jar or directory to read.
+   * @param output where to write the jar or directory.  Parent directories are created as needed.
+   * @param agentArgs the options, as described in {@link AgentOptions}.  May be {@code null}.
+   * @return the number of classes that were changed.
+   * @throws IOException if the input can't be read, or the output can't be written.
+   */
+  public static int weave(File input, File output, String agentArgs) throws IOException {
+    PerfMarkWeaver weaver = new PerfMarkWeaver(AgentOptions.parse(agentArgs));
+    weaver.weaveFile(input, output);
+    return weaver.wovenClasses;
+  }
+
+  public static void main(String[] args) throws IOException {
+    String agentArgs = null;
+    File input = null;
+    File output = null;
+    boolean badArgs = false;
+    for (String arg : args) {
+      if (arg.startsWith("--options=")) {
+        agentArgs = arg.substring("--options=".length());
+      } else if (arg.startsWith("--")) {
+        badArgs = true;
+      } else if (input == null) {
+        input = new File(arg);
+      } else if (output == null) {
+        output = new File(arg);
+      } else {
+        badArgs = true;
+      }
+    }
+    if (badArgs || input == null || output == null || !input.exists()) {
+      usage(System.err);
+      System.exit(2);
+      return;
+    }
+    PerfMarkWeaver weaver = new PerfMarkWeaver(AgentOptions.parse(agentArgs));
+    weaver.weaveFile(input, output);
+    System.err.println(
+        "Wove " + weaver.wovenClasses + " of " + weaver.classes + " classes into " + output);
+  }
+
+  private static void usage(PrintStream err) {
+    err.println("Usage: PerfMarkWeaver [--options=AGENT_OPTIONS] INPUT OUTPUT");
+    err.println("  INPUT and OUTPUT are both jars, or both directories of classes.");
+  }
+
+  private void weaveFile(File input, File output) throws IOException {
+    if (input.isDirectory()) {
+      weaveDirectory(input, output);
+    } else {
+      weaveJar(input, output);
+    }
+  }
+
+  private void weaveDirectory(File input, File output) throws IOException {
+    File[] files = input.listFiles();
+    if (files == null) {
+      throw new IOException("Can't list " + input);
+    }
+    if (!output.isDirectory() && !output.mkdirs()) {
+      throw new IOException("Can't create " + output);
+    }
+    for (File file : files) {
+      File outputFile = new File(output, file.getName());
+      if (file.isDirectory()) {
+        weaveDirectory(file, outputFile);
+        continue;
+      }
+      byte[] data = readFile(file);
+      byte[] woven = file.getName().endsWith(".class") ? weaveClass(data) : null;
+      // Weaving in place leaves the classes that didn't change untouched.
+      if (woven != null || !outputFile.getCanonicalFile().equals(file.getCanonicalFile())) {
+        writeFile(outputFile, woven != null ? woven : data);
+      }
+    }
+  }
+
+  private void weaveJar(File input, File output) throws IOException {
+    File parent = output.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Can't create " + parent);
+    }
+    // Always write to a temporary file, in case the output is the input.
+    File tmp = File.createTempFile(output.getName(), ".tmp", parent);
+    try {
+      JarFile jar = new JarFile(input, false);
+      try {
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(tmp));
+        try {
+          for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
+            JarEntry entry = entries.nextElement();
+            if (isSignatureFile(entry.getName())) {
+              continue;
+            }
+            JarEntry newEntry = new JarEntry(entry.getName());
+            newEntry.setTime(entry.getTime());
+            jos.putNextEntry(newEntry);
+            if (!entry.isDirectory()) {
+              InputStream is = jar.getInputStream(entry);
+              byte[] data;
+              try {
+                data = readFully(is);
+              } finally {
+                is.close();
+              }
+              byte[] woven = entry.getName().endsWith(".class") ? weaveClass(data) : null;
+              jos.write(woven != null ? woven : data);
+            }
+            jos.closeEntry();
+          }
+        } finally {
+          jos.close();
+        }
+      } finally {
+        jar.close();
+      }
+      if (output.exists() && !output.delete()) {
+        throw new IOException("Can't replace " + output);
+      }
+      if (!tmp.renameTo(output)) {
+        throw new IOException("Can't rename " + tmp + " to " + output);
+      }
+    } finally {
+      if (tmp.exists()) {
+        tmp.delete();
+      }
+    }
+  }
+
+  /**
+   * Returns the woven class, or {@code null} if it is unchanged.  Visible for testing.
+   */
+  byte[] weaveClass(byte[] classfile) {
+    ClassReader cr;
+    String className;
+    try {
+      cr = new ClassReader(classfile);
+      className = cr.getClassName();
+    } catch (RuntimeException e) {
+      // Not a class file ASM understands, so leave it alone rather than fail the build.
+      System.err.println("Skipping unreadable class: " + e);
+      return null;
+    }
+    if (className.equals("module-info") || className.endsWith("/module-info")) {
+      return null;
+    }
+    classes++;
+    if (WOVEN_SCANNER.mayContain(classfile) || hasWrappedMethods(cr)) {
+      return null;
+    }
+    byte[] woven = transformer.transform(null, className, null, null, classfile);
+    if (woven != null) {
+      wovenClasses++;
+    }
+    return woven;
+  }
+
+  /**
+   * Returns if the class has methods wrapped before.  Wrapping leaves nothing to scan for, since the
+   * wrappers name their tasks after the class, so look for the methods the bodies were moved to.
+   */
+  private static boolean hasWrappedMethods(ClassReader cr) {
+    final boolean[] found = new boolean[1];
+    cr.accept(
+        new ClassVisitor(Opcodes.ASM9) {
+          @Override
+          public MethodVisitor visitMethod(
+              int access, String name, String descriptor, String signature, String[] exceptions) {
+            if (name.endsWith(PerfMarkClassVisitor.BODY_METHOD_SUFFIX)) {
+              found[0] = true;
+            }
+            return null;
+          }
+        },
+        ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return found[0];
+  }
+
+  private static boolean isSignatureFile(String name) {
+    if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1) {
+      return false;
+    }
+    return name.endsWith(".SF")
+        || name.endsWith(".RSA")
+        || name.endsWith(".DSA")
+        || name.endsWith(".EC");
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    InputStream is = new FileInputStream(file);
+    try {
+      return readFully(is);
+    } finally {
+      is.close();
+    }
+  }
+
+  private static void writeFile(File file, byte[] data) throws IOException {
+    OutputStream os = new FileOutputStream(file);
+    try {
+      os.write(data);
+    } finally {
+      os.close();
+    }
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = is.read(buf)) != -1) {
+      baos.write(buf, 0, n);
+    }
+    return baos.toByteArray();
+  }
+}
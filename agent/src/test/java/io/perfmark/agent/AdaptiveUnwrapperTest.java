@@ -0,0 +1,175 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import static io.perfmark.agent.RenamedClasses.define;
+import static io.perfmark.agent.RenamedClasses.renamed;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
+
+import io.perfmark.PerfMark;
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AdaptiveUnwrapperTest {
+
+  @Test
+  public void findHotTrivialTasks() {
+    List<Mark> marks = new ArrayList<>();
+    // An end left over from marks that were overwritten.
+    marks.add(Mark.taskEnd(1, 0));
+    long time = 0;
+    for (int i = 0; i < 10; i++) {
+      marks.add(Mark.taskStart(1, time, "Foo::slow"));
+      marks.add(Mark.taskStart(1, time + 10, "Foo::get"));
+      marks.add(Mark.taskEnd(1, time + 20));
+      marks.add(Mark.taskEnd(1, time += 5000));
+      marks.add(Mark.taskStart(1, time, "Foo::rare"));
+      marks.add(Mark.taskEnd(1, time += 20));
+    }
+    MarkList markList =
+        MarkList.newBuilder()
+            .setMarkRecorderId(1)
+            .setThreadId(1)
+            .setThreadName("thread")
+            .setMarks(marks)
+            .build();
+
+    assertEquals(
+        Set.of("Foo::get", "Foo::rare"),
+        AdaptiveUnwrapper.findHotTrivialTasks(List.of(markList), 10, 1000));
+    assertEquals(
+        Set.of("Foo::get"), AdaptiveUnwrapper.findHotTrivialTasks(List.of(markList), 10, 15));
+    assertEquals(Set.of(), AdaptiveUnwrapper.findHotTrivialTasks(List.of(markList), 11, 1000));
+  }
+
+  @Test
+  public void unwrap_keepsMethodsButStopsTracing() throws Exception {
+    PerfMark.setEnabled(true);
+    // Classes in io/perfmark are never wrapped, so move it elsewhere.
+    String className = "com/example/Wrapped";
+    byte[] data = renamed(Wrapped.class, className);
+    List<Class<?>> loaded = new ArrayList<>(List.of(String.class));
+    List<Class<?>> retransformed = new ArrayList<>();
+    Instrumentation inst =
+        (Instrumentation)
+            Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] {Instrumentation.class},
+                (proxy, method, args) ->
+                    switch (method.getName()) {
+                      case "getAllLoadedClasses" -> loaded.toArray(new Class<?>[0]);
+                      case "isModifiableClass", "isRetransformClassesSupported" -> true;
+                      case "retransformClasses" -> {
+                        retransformed.addAll(Arrays.asList((Class<?>[]) args[0]));
+                        yield null;
+                      }
+                      default -> throw new UnsupportedOperationException(method.getName());
+                    });
+    PerfMarkTransformer transformer =
+        new PerfMarkTransformer(inst, AgentOptions.parse("wrap,include=com.example.Wrapped"));
+
+    Storage.resetForThread();
+    Class<?> traced = define(transformer.transform(null, className, null, null, data));
+    loaded.add(traced);
+    callMethods(traced);
+    List<Mark> marks = Storage.readForTest();
+    assertNotNull(marks);
+    assertEquals(4, marks.size());
+    assertEquals(className + "::twice", marks.get(0).getTaskName());
+    assertEquals(className + "::add", marks.get(2).getTaskName());
+
+    assertEquals(1, transformer.unwrap(Set.of(className + "::twice", "com/example/Other::get")));
+    assertEquals(List.of(traced), retransformed);
+
+    Storage.resetForThread();
+    Class<?> untraced = define(transformer.transform(null, className, traced, null, data));
+    callMethods(untraced);
+    marks = Storage.readForTest();
+    assertEquals(2, marks.size());
+    assertEquals(className + "::add", marks.get(0).getTaskName());
+    assertEquals(methodNames(traced), methodNames(untraced));
+  }
+
+  @Test
+  public void wrappedMethodThrows_stopsTask() throws Exception {
+    PerfMark.setEnabled(true);
+    String className = "com/example/Wrapped";
+    byte[] data = renamed(Wrapped.class, className);
+    PerfMarkTransformer transformer =
+        new PerfMarkTransformer(null, AgentOptions.parse("wrap,include=com.example.Wrapped"));
+    Class<?> traced = define(transformer.transform(null, className, null, null, data));
+    Method fail = traced.getMethod("fail");
+
+    Storage.resetForThread();
+    InvocationTargetException e =
+        assertThrows(InvocationTargetException.class, () -> fail.invoke(null));
+
+    assertEquals(IllegalStateException.class, e.getCause().getClass());
+    List<Mark> marks = Storage.readForTest();
+    assertEquals(2, marks.size());
+    assertEquals(Mark.Operation.TASK_START_N1S1, marks.get(0).getOperation());
+    assertEquals(Mark.Operation.TASK_END_N1S1, marks.get(1).getOperation());
+    assertEquals(className + "::fail", marks.get(1).getTaskName());
+  }
+
+  private static void callMethods(Class<?> clz) throws Exception {
+    Object wrapped = clz.getConstructor().newInstance();
+    assertEquals(42, clz.getMethod("twice", int.class).invoke(wrapped, 21));
+    assertEquals(3L, clz.getMethod("add", long.class, long.class).invoke(null, 1L, 2L));
+  }
+
+  private static List<String> methodNames(Class<?> clz) {
+    List<String> names = new ArrayList<>();
+    for (Method method : clz.getDeclaredMethods()) {
+      names.add(method.getName());
+    }
+    names.sort(null);
+    return names;
+  }
+
+  /** Renamed to {@code com.example.Wrapped} before being transformed. */
+  public static final class Wrapped {
+    public Wrapped() {}
+
+    public int twice(int x) {
+      return 2 * x;
+    }
+
+    public static long add(long a, long b) {
+      return a + b;
+    }
+
+    public static void fail() {
+      throw new IllegalStateException();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AgentOptionsTest {
+
+  @Test
+  public void parse_none() throws Exception {
+    AgentOptions options = AgentOptions.parse(null);
+
+    assertEquals(List.of(), options.includes);
+    assertEquals(List.of(), options.excludes);
+    assertFalse(options.debug);
+  }
+
+  @Test
+  public void parse_args() throws Exception {
+    AgentOptions options =
+        AgentOptions.parse("include=com.example.*, exclude=com.example.generated.*,debug");
+
+    assertEquals(List.of("com.example.*"), options.includes);
+    assertEquals(List.of("com.example.generated.*"), options.excludes);
+    assertTrue(options.debug);
+  }
+
+  @Test
+  public void parse_methodsAndOff() throws Exception {
+    AgentOptions options = AgentOptions.parse("method=run,method=call");
+
+    assertEquals(List.of("run", "call"), options.methods);
+    assertArrayEquals(new String[] {"run", "call"}, options.methodsToRewrite());
+    assertFalse(options.off);
+    assertSame(PerfMarkClassVisitor.ALL_METHODS, AgentOptions.DEFAULT.methodsToRewrite());
+    assertTrue(AgentOptions.parse("off").off);
+  }
+
+  @Test
+  public void parse_wrapAndAdaptive() throws Exception {
+    AgentOptions options = AgentOptions.parse("wrap=run,adaptive=30");
+
+    assertArrayEquals(new String[] {"run"}, options.methodsToWrap());
+    assertEquals(30, options.adaptiveSeconds);
+    assertSame(PerfMarkClassVisitor.ALL_METHODS, AgentOptions.parse("wrap").methodsToWrap());
+    assertSame(PerfMarkClassVisitor.NO_METHODS, AgentOptions.DEFAULT.methodsToWrap());
+    assertEquals(0, AgentOptions.DEFAULT.adaptiveSeconds);
+    assertFalse(AgentOptions.DEFAULT.async);
+    assertTrue(AgentOptions.parse("async").async);
+    assertFalse(AgentOptions.DEFAULT.locks);
+    assertTrue(AgentOptions.parse("locks").locks);
+    assertFalse(AgentOptions.DEFAULT.io);
+    assertTrue(AgentOptions.parse("io").io);
+  }
+
+  @Test
+  public void parse_configFile() throws Exception {
+    Path config = Files.createTempFile("perfmark-agent", ".conf");
+    try {
+      Files.write(
+          config,
+          List.of("# Only our code", "include=com.example.*", "", "exclude=com.example.Big"),
+          StandardCharsets.UTF_8);
+
+      AgentOptions options = AgentOptions.parse("config=" + config + ",include=org.other.*");
+
+      assertEquals(List.of("com.example.*", "org.other.*"), options.includes);
+      assertEquals(List.of("com.example.Big"), options.excludes);
+      assertFalse(options.debug);
+    } finally {
+      Files.delete(config);
+    }
+  }
+
+  @Test
+  public void parse_unknownOptionFails() {
+    assertThrows(IllegalArgumentException.class, () -> AgentOptions.parse("inclde=com.example"));
+    assertThrows(IllegalArgumentException.class, () -> AgentOptions.parse("include="));
+    assertThrows(IllegalArgumentException.class, () -> AgentOptions.parse("off=true"));
+    assertThrows(IllegalArgumentException.class, () -> AgentOptions.parse("adaptive=0"));
+    assertThrows(IllegalArgumentException.class, () -> AgentOptions.parse("adaptive=-1"));
+  }
+}
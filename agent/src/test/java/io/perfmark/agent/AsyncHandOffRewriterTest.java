@@ -0,0 +1,210 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import static io.perfmark.agent.RenamedClasses.define;
+import static io.perfmark.agent.RenamedClasses.renamed;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.perfmark.PerfMark;
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AsyncHandOffRewriterTest {
+
+  @Test
+  public void handOffsLinkToWorker() throws Exception {
+    PerfMark.setEnabled(true);
+    Class<?> clz = wovenHandsOff();
+    ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "hand-off"));
+    try {
+      clz.getMethod("handOff", ExecutorService.class).invoke(null, executor);
+    } finally {
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    List<String> taskNames = new ArrayList<>();
+    for (MarkList markList : Storage.read()) {
+      if (!markList.getThreadName().equals("hand-off")) {
+        continue;
+      }
+      for (int i = 0; i < markList.size(); i++) {
+        Mark mark = markList.get(i);
+        if (mark.getOperation().getOpType() == Mark.OperationType.TASK_START) {
+          taskNames.add(mark.getTaskName());
+          assertEquals(Mark.OperationType.LINK, markList.get(i + 1).getOperation().getOpType());
+          assertEquals(AsyncHooks.QUEUE_NANOS_TAG, markList.get(i + 2).getTagKey());
+          assertTrue(markList.get(i + 2).getTagFirstNumeric() >= 0);
+        }
+      }
+    }
+    assertEquals(
+        List.of(
+            "ExecutorService.execute",
+            "ExecutorService.submit",
+            "ExecutorService.submit",
+            "CompletableFuture.supplyAsync",
+            "CompletableFuture.thenApplyAsync"),
+        taskNames);
+  }
+
+  @Test
+  public void threadPoolExecuteIsWrapped() throws Exception {
+    PerfMark.setEnabled(true);
+    Class<?> clz = wovenHandsOff();
+    ExecutorService executor = Executors.newFixedThreadPool(1, r -> new Thread(r, "fixed-pool"));
+    try {
+      clz.getMethod("execute", Executor.class, Runnable.class).invoke(null, executor, (Runnable) () -> {});
+    } finally {
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    List<String> taskNames = new ArrayList<>();
+    for (MarkList markList : Storage.read()) {
+      if (markList.getThreadName().equals("fixed-pool")) {
+        for (Mark mark : markList) {
+          if (mark.getOperation().getOpType() == Mark.OperationType.TASK_START) {
+            taskNames.add(mark.getTaskName());
+          }
+        }
+      }
+    }
+    assertEquals(List.of("Executor.execute"), taskNames);
+  }
+
+  @Test
+  public void threadPoolSubclassExecuteIsNotWrapped() throws Exception {
+    Class<?> clz = wovenHandsOff();
+    // Subclasses may override afterExecute, which gets the task as it was passed to execute.
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {};
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      executor.execute(
+          () -> {
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          });
+      Runnable task = () -> {};
+      clz.getMethod("execute", Executor.class, Runnable.class).invoke(null, executor, task);
+
+      assertTrue(executor.remove(task));
+    } finally {
+      release.countDown();
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void dependentStageWaitsFromCompletion() throws Exception {
+    PerfMark.setEnabled(true);
+    Class<?> clz = wovenHandsOff();
+    ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "dependent"));
+    try {
+      CompletableFuture<Integer> upstream = new CompletableFuture<>();
+      CompletableFuture<?> stage =
+          (CompletableFuture<?>)
+              clz.getMethod("thenApply", CompletableFuture.class, Executor.class)
+                  .invoke(null, upstream, executor);
+      Thread.sleep(500);
+      assertFalse(stage.isDone());
+      upstream.complete(1);
+      assertEquals(2, stage.get());
+    } finally {
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    List<Long> queueNanos = new ArrayList<>();
+    for (MarkList markList : Storage.read()) {
+      if (!markList.getThreadName().equals("dependent")) {
+        continue;
+      }
+      for (int i = 0; i < markList.size(); i++) {
+        Mark mark = markList.get(i);
+        if (mark.getOperation().getOpType() == Mark.OperationType.TASK_START) {
+          assertEquals("CompletableFuture.thenApplyAsync", mark.getTaskName());
+          queueNanos.add(markList.get(i + 2).getTagFirstNumeric());
+        }
+      }
+    }
+    assertEquals(1, queueNanos.size());
+    // Time spent waiting on the upstream stage is not queueing.
+    assertTrue(queueNanos.get(0) < TimeUnit.MILLISECONDS.toNanos(250));
+  }
+
+  @Test
+  public void hooksKeepNulls() {
+    assertNull(AsyncHooks.wrapRunnable(null, "name"));
+  }
+
+  /** Renamed to {@code com.example.HandsOff} before being transformed. */
+  public static final class HandsOff {
+    public static void handOff(ExecutorService executor) throws Exception {
+      executor.execute(() -> {});
+      executor.submit(() -> "call").get();
+      executor.submit(() -> {}, "result").get();
+      CompletableFuture.supplyAsync(() -> 1, executor)
+          .thenApplyAsync(i -> i + 1, executor)
+          .get();
+    }
+
+    public static void execute(Executor executor, Runnable task) {
+      executor.execute(task);
+    }
+
+    public static CompletableFuture<Integer> thenApply(
+        CompletableFuture<Integer> stage, Executor executor) {
+      return stage.thenApplyAsync(i -> i + 1, executor);
+    }
+  }
+
+  private static Class<?> wovenHandsOff() throws Exception {
+    // Classes in io/perfmark never get hooks, so move it elsewhere.
+    byte[] data = renamed(HandsOff.class, "com/example/HandsOff");
+    byte[] woven =
+        new PerfMarkTransformer(null, AgentOptions.parse("async"))
+            .transform(null, "com/example/HandsOff", null, null, data);
+    assertNotNull(woven);
+    return define(woven);
+  }
+}
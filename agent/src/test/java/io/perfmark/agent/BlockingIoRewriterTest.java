@@ -0,0 +1,178 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import static io.perfmark.agent.RenamedClasses.define;
+import static io.perfmark.agent.RenamedClasses.renamed;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import io.perfmark.PerfMark;
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BlockingIoRewriterTest {
+
+  private Class<?> blockingIo;
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    PerfMark.setEnabled(true);
+    Storage.resetForThread();
+    // Classes in io/perfmark never get hooks, so move it elsewhere.
+    byte[] data = renamed(BlockingIo.class, "com/example/BlockingIo");
+    byte[] woven =
+        new PerfMarkTransformer(null, AgentOptions.parse("io"))
+            .transform(null, "com/example/BlockingIo", null, null, data);
+    assertNotNull(woven);
+    blockingIo = define(woven);
+    file = Files.createTempFile("perfmark", ".tmp");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void fileChannel() throws Exception {
+    Method method = blockingIo.getMethod("fileChannel", Path.class);
+
+    assertEquals(3, method.invoke(null, file));
+
+    List<Mark> marks = Storage.readForTest();
+    assertEquals(
+        List.of(
+            "FileChannel.write", "bytes=3",
+            "FileChannel.force",
+            "FileChannel.read", "bytes=3"),
+        describe(marks));
+  }
+
+  @Test
+  public void files() throws Exception {
+    Method method = blockingIo.getMethod("files", Path.class);
+
+    assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) method.invoke(null, file));
+
+    List<Mark> marks = Storage.readForTest();
+    assertEquals(
+        List.of(
+            "Files.write", "target=" + file, "bytes=3",
+            "Files.readAllBytes", "target=" + file, "bytes=3",
+            "Files.delete", "target=" + file),
+        describe(marks));
+  }
+
+  @Test
+  public void socketStreams() throws Exception {
+    Method method = blockingIo.getMethod("socket", Socket.class);
+    try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+        Socket accepted = server.accept()) {
+      accepted.getOutputStream().write("pong".getBytes(StandardCharsets.UTF_8));
+
+      assertEquals(4, method.invoke(null, client));
+
+      byte[] received = new byte[4];
+      assertEquals(4, accepted.getInputStream().read(received));
+      assertArrayEquals("ping".getBytes(StandardCharsets.UTF_8), received);
+
+      String remote = "target=" + client.getRemoteSocketAddress();
+      List<Mark> marks = Storage.readForTest();
+      assertEquals(
+          List.of(
+              "Socket.write", remote, "bytes=4",
+              "Socket.read", remote, "bytes=3"),
+          describe(marks));
+    }
+  }
+
+  /** Lists the task names and tags, leaving out the task ends. */
+  private static List<String> describe(List<Mark> marks) {
+    List<String> described = new ArrayList<>();
+    for (Mark mark : marks) {
+      switch (mark.getOperation()) {
+        case TASK_START_N1S1:
+          described.add(mark.getTaskName());
+          break;
+        case TAG_KEYED_N0S2:
+          described.add(mark.getTagKey() + "=" + mark.getTagStringValue());
+          break;
+        case TAG_KEYED_N1S1:
+          described.add(mark.getTagKey() + "=" + mark.getTagFirstNumeric());
+          break;
+        default:
+          break;
+      }
+    }
+    return described;
+  }
+
+  /** Renamed to {@code com.example.BlockingIo} before being transformed. */
+  public static final class BlockingIo {
+    public static int fileChannel(Path file) throws IOException {
+      try (FileChannel channel =
+          FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        channel.force(true);
+        return channel.read(ByteBuffer.allocate(8), 0);
+      }
+    }
+
+    public static byte[] files(Path file) throws IOException {
+      Files.write(file, new byte[] {1, 2, 3});
+      byte[] read = Files.readAllBytes(file);
+      Files.delete(file);
+      return read;
+    }
+
+    public static int socket(Socket socket) throws IOException {
+      OutputStream out = socket.getOutputStream();
+      out.write("ping".getBytes(StandardCharsets.UTF_8));
+      // Single bytes aren't recorded.
+      InputStream in = socket.getInputStream();
+      byte[] received = new byte[4];
+      received[0] = (byte) in.read();
+      return 1 + in.read(received, 1, 3);
+    }
+  }
+}
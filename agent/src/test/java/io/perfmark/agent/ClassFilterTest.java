@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ClassFilterTest {
+
+  @Test
+  public void noRules_includesEverything() {
+    ClassFilter filter = ClassFilter.create(List.of(), List.of());
+
+    assertTrue(filter.matches("com/example/Foo"));
+    assertTrue(filter.matches(""));
+  }
+
+  @Test
+  public void packageRules() {
+    ClassFilter filter =
+        ClassFilter.create(List.of("com.example.*"), List.of("com.example.generated."));
+
+    assertTrue(filter.matches("com/example/Foo"));
+    assertTrue(filter.matches("com/example/sub/Foo$1"));
+    assertFalse(filter.matches("com/example/generated/Foo"));
+    assertFalse(filter.matches("com/examples/Foo"));
+    assertFalse(filter.matches("com/example"));
+    assertFalse(filter.matches("org/other/Foo"));
+  }
+
+  @Test
+  public void classRules_matchNestedClasses() {
+    ClassFilter filter = ClassFilter.create(List.of("com.example.Outer"), List.of());
+
+    assertTrue(filter.matches("com/example/Outer"));
+    assertTrue(filter.matches("com/example/Outer$Inner"));
+    assertFalse(filter.matches("com/example/OuterX"));
+    assertFalse(filter.matches("com/example/Out"));
+  }
+
+  @Test
+  public void longestRuleWins() {
+    ClassFilter filter =
+        ClassFilter.create(
+            List.of("com.example.*", "com.example.internal.Keep", "com.example.Fast*"),
+            List.of("com.example.internal.*", "com.example.Outer"));
+
+    assertTrue(filter.matches("com/example/Foo"));
+    assertFalse(filter.matches("com/example/internal/Foo"));
+    assertTrue(filter.matches("com/example/internal/Keep$1"));
+    assertFalse(filter.matches("com/example/Outer$Inner"));
+    assertTrue(filter.matches("com/example/FastPath"));
+  }
+
+  @Test
+  public void excludeWinsTies() {
+    ClassFilter filter = ClassFilter.create(List.of("*"), List.of("*", "com.example.Foo"));
+
+    assertFalse(filter.matches("com/example/Bar"));
+    assertFalse(filter.matches("com/example/Foo"));
+  }
+}
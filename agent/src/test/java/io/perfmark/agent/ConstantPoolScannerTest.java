@@ -0,0 +1,88 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ConstantPoolScannerTest {
+
+  private final ConstantPoolScanner scanner =
+      new ConstantPoolScanner("io/perfmark/PerfMark", "io/perfmark/TaskCloseable");
+
+  @Test
+  public void findsPerfMarkUsers() throws Exception {
+    assertTrue(scanner.mayContain(classBytes(TransformerTestClasses.ClzCtorLambda.class)));
+    assertTrue(scanner.mayContain(classBytes(TransformerTestClasses.SomeRecord.class)));
+  }
+
+  @Test
+  public void skipsOtherClasses() throws Exception {
+    assertFalse(scanner.mayContain(classBytes(Constants.class)));
+    assertFalse(scanner.mayContain(classBytes(String.class)));
+  }
+
+  @Test
+  public void unreadableClassesMayContain() throws Exception {
+    byte[] data = classBytes(Constants.class);
+
+    assertTrue(scanner.mayContain(new byte[] {1, 2, 3}));
+    assertTrue(scanner.mayContain(Arrays.copyOf(data, 40)));
+    data[0] = 0;
+    assertTrue(scanner.mayContain(data));
+  }
+
+  @Test
+  public void transform_skipsOtherClasses() throws Exception {
+    byte[] data = classBytes(Constants.class);
+
+    assertNull(
+        new PerfMarkTransformer(null)
+            .transformInternal(
+                null, Constants.class.getName().replace('.', '/'), Constants.class, null, data));
+  }
+
+  /** Has constants of every size, but doesn't use PerfMark. */
+  @SuppressWarnings("unused")
+  private static final class Constants {
+    static final long LONG = 1234567890123L;
+    static final double DOUBLE = 1.5;
+    static final float FLOAT = 2.5f;
+    static final int INT = 1234567;
+    static final String STRING = "io/perfmark/PerfMarkNot";
+
+    Runnable lambda() {
+      return () -> System.out.println(STRING);
+    }
+  }
+
+  private static byte[] classBytes(Class<?> clz) throws IOException {
+    String resourceName = "/" + clz.getName().replace('.', '/') + ".class";
+    try (InputStream stream = clz.getResourceAsStream(resourceName)) {
+      return stream.readAllBytes();
+    }
+  }
+}
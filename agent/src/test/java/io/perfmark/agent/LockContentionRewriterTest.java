@@ -0,0 +1,282 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import static io.perfmark.agent.RenamedClasses.define;
+import static io.perfmark.agent.RenamedClasses.renamed;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import io.perfmark.PerfMark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+@RunWith(JUnit4.class)
+public class LockContentionRewriterTest {
+
+  private byte[] woven;
+  private Method synchronizedBlock;
+  private Method nested;
+  private Method lock;
+
+  @Before
+  public void setUp() throws Exception {
+    PerfMark.setEnabled(true);
+    Storage.resetForThread();
+    // Classes in io/perfmark never get hooks, so move it elsewhere.
+    byte[] data = renamed(Locking.class, "com/example/Locking");
+    woven =
+        new PerfMarkTransformer(null, AgentOptions.parse("locks"))
+            .transform(null, "com/example/Locking", null, null, data);
+    assertNotNull(woven);
+    Class<?> clz = define(woven);
+    synchronizedBlock = clz.getMethod("synchronizedBlock", Object.class);
+    nested = clz.getMethod("nested", Object.class, Object.class);
+    lock = clz.getMethod("lock", Lock.class);
+  }
+
+  @Test
+  public void uncontended_recordsNothing() throws Exception {
+    assertEquals(1, synchronizedBlock.invoke(null, new Object()));
+    assertEquals(3L, nested.invoke(null, new Object(), new Object()));
+    assertEquals(2, lock.invoke(null, new ReentrantLock()));
+    assertEquals(2, lock.invoke(null, new ReentrantLock(true)));
+    assertEquals(2, lock.invoke(null, new ReentrantReadWriteLock().readLock()));
+    assertEquals(2, lock.invoke(null, new ReentrantReadWriteLock(true).writeLock()));
+
+    MarkList marks = Storage.readForTest();
+    assertTrue(marks == null || marks.isEmpty());
+  }
+
+  @Test
+  public void contendedMonitor() throws Exception {
+    Object monitor = new Object();
+    CountDownLatch held = new CountDownLatch(1);
+    Thread holder =
+        new Thread(
+            () -> {
+              synchronized (monitor) {
+                held.countDown();
+                sleep(50);
+              }
+            });
+    holder.start();
+    held.await();
+
+    assertEquals(1, synchronizedBlock.invoke(null, monitor));
+    holder.join();
+
+    MarkList marks = Storage.readForTest();
+    assertEquals(3, marks.size());
+    assertEquals("monitorenter", marks.get(0).getTaskName());
+    assertEquals("java.lang.Object", marks.get(0).getSubTaskName());
+    assertEquals(LockHooks.BLOCKED_NANOS_TAG, marks.get(1).getTagKey());
+    assertTrue(marks.get(1).getTagFirstNumeric() >= LockHooks.MIN_BLOCKED_NANOS);
+  }
+
+  @Test
+  public void contendedNestedMonitor() throws Exception {
+    Object outer = new Object();
+    Object inner = new Object();
+    CountDownLatch held = new CountDownLatch(1);
+    Thread holder =
+        new Thread(
+            () -> {
+              synchronized (inner) {
+                held.countDown();
+                sleep(50);
+              }
+            });
+    holder.start();
+    held.await();
+
+    assertEquals(3L, nested.invoke(null, outer, inner));
+    holder.join();
+
+    MarkList marks = Storage.readForTest();
+    assertEquals(3, marks.size());
+    assertEquals("monitorenter", marks.get(0).getTaskName());
+  }
+
+  @Test
+  public void monitorHandlersComeFirst() {
+    List<Label> handlers = new ArrayList<>();
+    List<Label> releasing = new ArrayList<>();
+    new ClassReader(woven)
+        .accept(
+            new ClassVisitor(Opcodes.ASM9) {
+              @Override
+              public MethodVisitor visitMethod(
+                  int access, String name, String descriptor, String sig, String[] exceptions) {
+                if (!name.equals("nested")) {
+                  return null;
+                }
+                return new ReleasingHandlerFinder(handlers, releasing);
+              }
+            },
+            0);
+
+    // One for each monitor, ahead of the compiler's handlers.
+    assertEquals(2, releasing.size());
+    assertEquals(releasing, handlers.subList(0, 2));
+  }
+
+  @Test
+  public void contendedLock() throws Exception {
+    ReentrantLock reentrantLock = new ReentrantLock(true);
+    CountDownLatch held = new CountDownLatch(1);
+    Thread holder =
+        new Thread(
+            () -> {
+              reentrantLock.lock();
+              try {
+                held.countDown();
+                sleep(50);
+              } finally {
+                reentrantLock.unlock();
+              }
+            });
+    holder.start();
+    held.await();
+
+    assertEquals(2, lock.invoke(null, reentrantLock));
+    holder.join();
+
+    MarkList marks = Storage.readForTest();
+    assertEquals(2, marks.size());
+    assertEquals("Lock.lock", marks.get(0).getTaskName());
+    assertEquals(ReentrantLock.class.getName(), marks.get(0).getSubTaskName());
+    assertTrue(marks.get(1).getNanoTime() - marks.get(0).getNanoTime() > 0);
+  }
+
+  @Test
+  public void otherLock_isNotTried() throws Exception {
+    assertEquals(2, lock.invoke(null, new ReentrantLock() {}));
+
+    MarkList marks = Storage.readForTest();
+    assertEquals(2, marks.size());
+    assertEquals("Lock.lock", marks.get(0).getTaskName());
+  }
+
+  @Test
+  public void interruptedFairLock_staysInterrupted() {
+    Thread.currentThread().interrupt();
+    ReentrantLock fairLock = new ReentrantLock(true);
+
+    LockHooks.lock(fairLock);
+
+    assertTrue(Thread.interrupted());
+    assertTrue(fairLock.isHeldByCurrentThread());
+    fairLock.unlock();
+    // The interrupt stops the fast path, so the lock is taken the slow way.
+    assertEquals("Lock.lock", Storage.readForTest().get(0).getTaskName());
+  }
+
+  /** Finds code that only releases a monitor and rethrows, like the rewriter adds. */
+  private static final class ReleasingHandlerFinder extends MethodVisitor {
+    private final List<Label> handlers;
+    private final List<Label> releasing;
+    private Label label;
+    private int step;
+
+    ReleasingHandlerFinder(List<Label> handlers, List<Label> releasing) {
+      super(Opcodes.ASM9);
+      this.handlers = handlers;
+      this.releasing = releasing;
+    }
+
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+      handlers.add(handler);
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+      this.label = label;
+      step = 0;
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int varIndex) {
+      step = step == 0 && opcode == Opcodes.ALOAD ? 1 : -1;
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+      if (step == 1 && opcode == Opcodes.MONITOREXIT) {
+        step = 2;
+      } else if (step == 2 && opcode == Opcodes.ATHROW) {
+        releasing.add(label);
+        step = -1;
+      } else {
+        step = -1;
+      }
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Renamed to {@code com.example.Locking} before being transformed. */
+  public static final class Locking {
+    public static int synchronizedBlock(Object monitor) {
+      synchronized (monitor) {
+        return 1;
+      }
+    }
+
+    public static long nested(Object outer, Object inner) {
+      long time = 3;
+      synchronized (outer) {
+        synchronized (inner) {
+          return time;
+        }
+      }
+    }
+
+    public static int lock(Lock lock) {
+      lock.lock();
+      try {
+        return 2;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
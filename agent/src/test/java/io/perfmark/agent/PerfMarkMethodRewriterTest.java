@@ -18,6 +18,7 @@ package io.perfmark.agent;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import com.google.common.truth.Truth;
 import io.perfmark.PerfMark;
@@ -26,12 +27,15 @@ import io.perfmark.impl.MarkList;
 import io.perfmark.impl.Storage;
 import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -139,6 +143,71 @@ public class PerfMarkMethodRewriterTest {
     Truth.assertThat(start).isNotEqualTo(end);
   }
 
+  @Test
+  public void rewriteClass_onlyAddsConstants() throws Exception {
+    ClassReader reader = new ClassReader(ClzToRewrite.class.getName());
+    List<String> original = new ArrayList<>();
+    List<String> rewritten = new ArrayList<>();
+    reader.accept(new ClassVisitor(Opcodes.ASM9) {
+      @Override
+      public MethodVisitor visitMethod(
+          int access, String name, String descriptor, String signature, String[] exceptions) {
+        return new InsnRecorder(original);
+      }
+    }, 0);
+    reader.accept(new ClassVisitor(Opcodes.ASM9) {
+      @Override
+      public MethodVisitor visitMethod(
+          int access, String name, String descriptor, String signature, String[] exceptions) {
+        return new PerfMarkMethodRewriter(
+            null, null, null, "classname", name, "filename", () -> {}, new InsnRecorder(rewritten));
+      }
+    }, 0);
+
+    for (String insn : original) {
+      rewritten.remove(insn);
+    }
+    // Each tag is two constants and a static call, with nothing built at runtime.
+    Truth.assertThat(rewritten).hasSize(12);
+    for (String insn : rewritten) {
+      assertTrue(
+          insn,
+          insn.equals("ldc java.lang.String")
+              || insn.equals("invoke io/perfmark/PerfMark.attachTag"));
+    }
+  }
+
+  private static final class InsnRecorder extends MethodVisitor {
+    private final List<String> insns;
+
+    InsnRecorder(List<String> insns) {
+      super(Opcodes.ASM9);
+      this.insns = insns;
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+      insns.add("ldc " + value.getClass().getName());
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+      insns.add("type " + opcode + " " + type);
+    }
+
+    @Override
+    public void visitMethodInsn(
+        int opcode, String owner, String name, String descriptor, boolean isInterface) {
+      insns.add("invoke " + owner + "." + name);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(
+        String name, String descriptor, Handle bootstrapMethodHandle, Object... args) {
+      insns.add("indy " + name);
+    }
+  }
+
   @SuppressWarnings("UnusedMethod")
   private static final class ClzToRewrite {
     public static void task() {
@@ -18,6 +18,9 @@ package io.perfmark.agent;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
 
 import com.google.common.truth.Truth;
 import io.perfmark.PerfMark;
@@ -55,6 +58,30 @@ public class PerfMarkTransformerTest {
     assertEquals("Clz.java", file);
   }
 
+  @Test
+  public void transform_offLeavesClassesAlone() throws Exception {
+    Class<?> clz = TransformerTestClasses.ClzWithCtor.class;
+    String className = clz.getName().replace('.', '/');
+    byte[] data;
+    try (InputStream stream = clz.getResourceAsStream("/" + className + ".class")) {
+      data = stream.readAllBytes();
+    }
+
+    assertNotNull(new PerfMarkTransformer(null).transform(null, className, null, null, data));
+    assertNull(
+        new PerfMarkTransformer(null, AgentOptions.OFF).transform(null, className, clz, null, data));
+    assertNull(
+        new PerfMarkTransformer(null, AgentOptions.parse("exclude=" + clz.getName()))
+            .transform(null, className, clz, null, data));
+  }
+
+  @Test
+  public void retransform_needsInstrumentation() {
+    PerfMarkTransformer transformer = new PerfMarkTransformer(null);
+
+    assertThrows(IllegalStateException.class, () -> transformer.retransform(AgentOptions.OFF));
+  }
+
   @Test
   @Ignore
   public void transform_autoAnnotate() throws Exception {
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import static io.perfmark.agent.RenamedClasses.define;
+import static io.perfmark.agent.RenamedClasses.renamed;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PerfMarkWeaverTest {
+
+  private static final String USER = classFile(TransformerTestClasses.ClzWithCtor.class);
+  private static final String NON_USER = classFile(PerfMarkWeaverTest.class);
+
+  private Path dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("perfmark-weaver");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @Test
+  public void weaveDirectory() throws Exception {
+    Path classes = dir.resolve("classes");
+    write(classes.resolve(USER), classBytes(USER));
+    write(classes.resolve(NON_USER), classBytes(NON_USER));
+    write(classes.resolve("res/data.txt"), "hi".getBytes(StandardCharsets.UTF_8));
+    Path woven = dir.resolve("woven");
+
+    assertEquals(1, PerfMarkWeaver.weave(classes.toFile(), woven.toFile(), null));
+
+    assertFalse(Arrays.equals(classBytes(USER), Files.readAllBytes(woven.resolve(USER))));
+    assertArrayEquals(classBytes(NON_USER), Files.readAllBytes(woven.resolve(NON_USER)));
+    assertEquals("hi", Files.readString(woven.resolve("res/data.txt")));
+
+    // Weaving again, in place, leaves everything as it was.
+    byte[] wovenUser = Files.readAllBytes(woven.resolve(USER));
+    assertEquals(0, PerfMarkWeaver.weave(woven.toFile(), woven.toFile(), null));
+    assertArrayEquals(wovenUser, Files.readAllBytes(woven.resolve(USER)));
+  }
+
+  @Test
+  public void weaveDirectory_wrappedTwice() throws Exception {
+    // Classes in io/perfmark are never wrapped, so move it elsewhere.
+    Path classes = dir.resolve("classes");
+    write(classes.resolve("com/example/Foo.class"), renamed(Foo.class, "com/example/Foo"));
+    String options = "include=com.example.*,wrap";
+
+    assertEquals(1, PerfMarkWeaver.weave(classes.toFile(), classes.toFile(), options));
+    byte[] woven = Files.readAllBytes(classes.resolve("com/example/Foo.class"));
+    assertEquals(0, PerfMarkWeaver.weave(classes.toFile(), classes.toFile(), options));
+
+    byte[] wovenTwice = Files.readAllBytes(classes.resolve("com/example/Foo.class"));
+    assertArrayEquals(woven, wovenTwice);
+    Class<?> foo = define(wovenTwice);
+    assertEquals(42, foo.getMethod("twice", int.class).invoke(null, 21));
+  }
+
+  @Test
+  public void weaveDirectory_excluded() throws Exception {
+    Path classes = dir.resolve("classes");
+    write(classes.resolve(USER), classBytes(USER));
+
+    assertEquals(
+        0,
+        PerfMarkWeaver.weave(
+            classes.toFile(), dir.resolve("woven").toFile(), "exclude=io.perfmark.agent.*"));
+
+    assertArrayEquals(classBytes(USER), Files.readAllBytes(dir.resolve("woven").resolve(USER)));
+  }
+
+  @Test
+  public void weaveJar_inPlace() throws Exception {
+    Path jar = dir.resolve("app.jar");
+    try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar))) {
+      byte[] manifest = "Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8);
+      putEntry(jos, "META-INF/MANIFEST.MF", manifest);
+      putEntry(jos, "META-INF/APP.SF", new byte[] {1, 2, 3});
+      putEntry(jos, USER, classBytes(USER));
+      putEntry(jos, NON_USER, classBytes(NON_USER));
+    }
+
+    assertEquals(1, PerfMarkWeaver.weave(jar.toFile(), jar.toFile(), null));
+
+    try (JarFile jarFile = new JarFile(jar.toFile())) {
+      assertEquals("1.0", jarFile.getManifest().getMainAttributes().getValue("Manifest-Version"));
+      assertNull(jarFile.getEntry("META-INF/APP.SF"));
+      assertFalse(Arrays.equals(classBytes(USER), entryBytes(jarFile, USER)));
+      assertArrayEquals(classBytes(NON_USER), entryBytes(jarFile, NON_USER));
+    }
+    try (Stream<Path> paths = Files.list(dir)) {
+      assertEquals(1, paths.count());
+    }
+  }
+
+  /** Renamed to {@code com.example.Foo} before being woven. */
+  public static final class Foo {
+    public static int twice(int x) {
+      return x * 2;
+    }
+  }
+
+  private static void putEntry(JarOutputStream jos, String name, byte[] data) throws IOException {
+    jos.putNextEntry(new JarEntry(name));
+    jos.write(data);
+    jos.closeEntry();
+  }
+
+  private static byte[] entryBytes(JarFile jarFile, String name) throws IOException {
+    try (InputStream is = jarFile.getInputStream(jarFile.getEntry(name))) {
+      return is.readAllBytes();
+    }
+  }
+
+  private static void write(Path path, byte[] data) throws IOException {
+    Files.createDirectories(path.getParent());
+    try (OutputStream os = Files.newOutputStream(path)) {
+      os.write(data);
+    }
+  }
+
+  private static String classFile(Class<?> clz) {
+    return clz.getName().replace('.', '/') + ".class";
+  }
+
+  private static byte[] classBytes(String classFile) throws IOException {
+    try (InputStream stream = PerfMarkWeaverTest.class.getResourceAsStream("/" + classFile)) {
+      return stream.readAllBytes();
+    }
+  }
+}
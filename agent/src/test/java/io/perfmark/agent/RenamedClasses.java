@@ -0,0 +1,53 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+
+/**
+ * Loads test classes under new names.  Classes in {@code io/perfmark} are never wrapped or given
+ * hooks, so tests move them elsewhere, such as {@code com/example}, before transforming them.
+ */
+final class RenamedClasses {
+
+  /** Returns the class file of the class, with the class renamed to the internal name. */
+  static byte[] renamed(Class<?> clz, String className) throws IOException {
+    String oldName = clz.getName().replace('.', '/');
+    try (InputStream stream = clz.getResourceAsStream("/" + oldName + ".class")) {
+      ClassReader cr = new ClassReader(stream.readAllBytes());
+      ClassWriter cw = new ClassWriter(0);
+      cr.accept(new ClassRemapper(cw, new SimpleRemapper(oldName, className)), 0);
+      return cw.toByteArray();
+    }
+  }
+
+  /** Defines the class in a new loader, which delegates to the one of the tests. */
+  static Class<?> define(byte[] data) {
+    return new ClassLoader(RenamedClasses.class.getClassLoader()) {
+      Class<?> define() {
+        return defineClass(null, data, 0, data.length);
+      }
+    }.define();
+  }
+
+  private RenamedClasses() {}
+}
@@ -74,6 +74,14 @@ public class Impl {
 
   protected void linkIn(Link link) {}
 
+  protected String exportLink(Link link) {
+    return "";
+  }
+
+  protected Link importLink(String linkToken) {
+    return NO_LINK;
+  }
+
   protected void attachTag(Tag tag) {}
 
   protected void attachTag(String tagName, String tagValue) {}
@@ -401,6 +401,37 @@ public final class PerfMark {
     impl.linkIn(link);
   }
 
+  /**
+   * Turns a link into a token that can be sent to another process, such as in the headers of an
+   * RPC. The other process turns the token back into a link with {@link #importLink}, and then
+   * calls {@link #linkIn} with it. Once the traces of both processes are merged, the two tasks are
+   * connected like tasks of the same process.
+   *
+   * <p>This records an outbound link in the most recently started task, so it should be called
+   * from the task sending the request. A token may also be passed on to further processes, by
+   * exporting the imported link again.
+   *
+   * @param link a link created with {@link #linkOut}, or imported with {@link #importLink}.
+   * @return a short token that is unique across processes, or an empty string if disabled.
+   * @since 0.28.0
+   */
+  public static String exportLink(Link link) {
+    return impl.exportLink(link);
+  }
+
+  /**
+   * Turns a token made by {@link #exportLink} in another process back into a link, which can then
+   * be used with {@link #linkIn}. Tokens that are missing or malformed are ignored, and give a link
+   * that does nothing.
+   *
+   * @param linkToken the token received from another process, or {@code null}.
+   * @return a link to the task that exported the token.
+   * @since 0.28.0
+   */
+  public static Link importLink(String linkToken) {
+    return impl.importLink(linkToken);
+  }
+
   /**
    * Attaches an additional tag to the current active task. The tag provided is independent of the
    * tag used with {@link #startTask(String, Tag)} and {@link #stopTask(String, Tag)}. Unlike the
@@ -18,11 +18,13 @@ package io.perfmark;
 
 import static io.perfmark.impl.Mark.NO_TAG_ID;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import com.google.common.truth.Truth;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import io.perfmark.impl.Generator;
 import io.perfmark.impl.Mark;
+import io.perfmark.impl.RemoteLinks;
 import io.perfmark.impl.Storage;
 import java.io.IOException;
 import java.io.InputStream;
@@ -163,6 +165,43 @@ public class PerfMarkTest {
     assertEquals(expected, marks);
   }
 
+  @Test
+  public void exportLink_importLink() {
+    Storage.resetForThread();
+    PerfMark.setEnabled(true);
+    long gen = getGen();
+
+    PerfMark.startTask("client");
+    Link link = PerfMark.linkOut();
+    String token = PerfMark.exportLink(link);
+    PerfMark.stopTask();
+    PerfMark.startTask("server");
+    Link imported = PerfMark.importLink(token);
+    PerfMark.linkIn(imported);
+    PerfMark.stopTask();
+
+    assertEquals(16, token.length());
+    long remoteLinkId = RemoteLinks.fromToken(token);
+    assertEquals(remoteLinkId, imported.linkId);
+    assertTrue(RemoteLinks.isRemote(remoteLinkId));
+    assertEquals(token, PerfMark.exportLink(imported));
+    List<Mark> marks = Storage.readForTest();
+    assertEquals(Mark.link(gen, link.linkId), marks.get(1));
+    assertEquals(Mark.link(gen, remoteLinkId), marks.get(2));
+    assertEquals(Mark.link(gen, -remoteLinkId), marks.get(5));
+  }
+
+  @Test
+  public void importLink_ignoresBadTokens() {
+    PerfMark.setEnabled(true);
+
+    assertEquals(Mark.NO_LINK_ID, PerfMark.importLink(null).linkId);
+    assertEquals(Mark.NO_LINK_ID, PerfMark.importLink("").linkId);
+    assertEquals(Mark.NO_LINK_ID, PerfMark.importLink("not a link token").linkId);
+    // A local link id isn't a remote one.
+    assertEquals(Mark.NO_LINK_ID, PerfMark.importLink("0000000000000001").linkId);
+  }
+
   @Test
   public void attachTag_nullFunctionFailsSilently() {
     Storage.resetForThread();
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.impl;
+
+import java.security.SecureRandom;
+
+/**
+ * Converts links to and from tokens that can be sent to other processes. A link sent this way is
+ * recorded under a remote link id, which mixes the id of the process with the local link id, and
+ * is the same in both processes. Local link ids are counted up from 1, so they never have {@link
+ * #REMOTE_LINK_BIT} set, while remote link ids always do.
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ */
+public final class RemoteLinks {
+
+  /** Set in remote link ids, to keep them apart from local ones. */
+  public static final long REMOTE_LINK_BIT = 1L << 62;
+
+  private static final int TOKEN_LENGTH = 16;
+
+  private static final class NodeIdHolder {
+    /** Identifies this process among all others that traces may be merged with. */
+    static final long NODE_ID = new SecureRandom().nextLong();
+  }
+
+  /**
+   * Returns the remote link id of a link made in this process. Links that are already remote,
+   * such as those that arrived from another process, keep their id so they can be passed on.
+   */
+  public static long remoteLinkId(long linkId) {
+    if (isRemote(linkId)) {
+      return linkId;
+    }
+    return remoteLinkId(NodeIdHolder.NODE_ID, linkId);
+  }
+
+  static long remoteLinkId(long nodeId, long linkId) {
+    // SplitMix64, which spreads nearby link ids all over the id space.
+    long z = nodeId + linkId * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    z ^= z >>> 31;
+    return (z & (REMOTE_LINK_BIT - 1)) | REMOTE_LINK_BIT;
+  }
+
+  /** Returns if the link id, of either an outbound or inbound link, is a remote one. */
+  public static boolean isRemote(long linkId) {
+    // Long.MIN_VALUE is its own negation, and doesn't have the bit set.
+    return ((linkId < 0 ? -linkId : linkId) & REMOTE_LINK_BIT) != 0;
+  }
+
+  /** Returns the token of a remote link id, as 16 hex digits. */
+  public static String toToken(long remoteLinkId) {
+    String hex = Long.toHexString(remoteLinkId);
+    StringBuilder sb = new StringBuilder(TOKEN_LENGTH);
+    for (int i = hex.length(); i < TOKEN_LENGTH; i++) {
+      sb.append('0');
+    }
+    return sb.append(hex).toString();
+  }
+
+  /**
+   * Returns the remote link id of a token, or {@link Mark#NO_LINK_ID} if it isn't a valid token.
+   * Tokens usually come from other processes, so bad ones are ignored rather than failing.
+   */
+  public static long fromToken(String token) {
+    if (token == null || token.length() != TOKEN_LENGTH) {
+      return Mark.NO_LINK_ID;
+    }
+    long remoteLinkId;
+    try {
+      remoteLinkId = Long.parseLong(token, 16);
+    } catch (NumberFormatException e) {
+      return Mark.NO_LINK_ID;
+    }
+    if (remoteLinkId <= 0 || !isRemote(remoteLinkId)) {
+      return Mark.NO_LINK_ID;
+    }
+    return remoteLinkId;
+  }
+
+  private RemoteLinks() {}
+}
@@ -150,8 +150,35 @@ final class SecretPerfMarkImpl {
       }
       if (markRecorder0 == null) {
         markRecorder0 = new MarkRecorder();
+      } else {
+        // Mirrors marks into Flight Recorder, if the optional module is present.
+        try {
+          Class<?> clz = Class.forName("io.perfmark.jfr.SecretMarkRecorder$JfrMarkRecorder");
+          markRecorder0 =
+              clz.asSubclass(MarkRecorder.class)
+                  .getConstructor(MarkRecorder.class)
+                  .newInstance(markRecorder0);
+        } catch (Throwable t) {
+          problems[2] = t;
+        }
       }
       markRecorder = markRecorder0;
+
+      try {
+        if (logger != null) {
+          Logger localLogger = (Logger) logger;
+          for (Throwable problem : problems) {
+            if (problem == null) {
+              continue;
+            }
+            localLogger.log(Level.FINE, "Error loading MarkRecorder", problem);
+          }
+          localLogger.log(
+              Level.FINE, "Using {0}", new Object[] {markRecorder.getClass().getName()});
+        }
+      } catch (Throwable t) {
+        // ignore
+      }
     }
 
     public PerfMarkImpl(Tag key) {
@@ -538,6 +565,30 @@ final class SecretPerfMarkImpl {
       markRecorder.link(gen, -unpackLinkId(link));
     }
 
+    @Override
+    protected String exportLink(Link link) {
+      final long gen = getGen();
+      long linkId = unpackLinkId(link);
+      if (!isEnabled(gen) || linkId == Mark.NO_LINK_ID) {
+        return "";
+      }
+      long remoteLinkId = RemoteLinks.remoteLinkId(linkId);
+      markRecorder.link(gen, remoteLinkId);
+      return RemoteLinks.toToken(remoteLinkId);
+    }
+
+    @Override
+    protected Link importLink(String linkToken) {
+      if (!isEnabled(getGen())) {
+        return NO_LINK;
+      }
+      long remoteLinkId = RemoteLinks.fromToken(linkToken);
+      if (remoteLinkId == Mark.NO_LINK_ID) {
+        return NO_LINK;
+      }
+      return packLink(remoteLinkId);
+    }
+
     private static long getGen() {
       return generator.getGeneration();
     }
@@ -56,6 +56,14 @@ public final class Storage {
     return Generator.INIT_NANO_TIME;
   }
 
+  /**
+   * Returns the wall clock time, in milliseconds since the epoch, at about the same moment as
+   * {@link #getInitNanoTime()}.  Together they convert Mark times into wall clock times.
+   */
+  public static long getInitCurrentTimeMillis() {
+    return Generator.INIT_CURRENT_TIME_MILLIS;
+  }
+
   /**
    * Returns a list of {@link MarkList}s across all reachable threads.  MarkLists with no Marks may be removed.
    *
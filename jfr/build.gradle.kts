@@ -0,0 +1,26 @@
+buildscript {
+    extra.apply{
+        set("moduleName", "io.perfmark.jfr")
+    }
+}
+
+val jdkVersion = JavaVersion.VERSION_11
+
+description = "PerfMark JDK Flight Recorder Bridge"
+
+dependencies {
+    implementation(project(":perfmark-impl"))
+
+    testImplementation(project(":perfmark-api"))
+    testImplementation(project(":perfmark-java9"))
+    testImplementation(project(":perfmark-testing"))
+}
+
+tasks.named<JavaCompile>("compileJava") {
+    sourceCompatibility = jdkVersion.toString()
+    targetCompatibility = jdkVersion.toString()
+}
+
+tasks.named<Javadoc>("javadoc") {
+    exclude("io/perfmark/jfr/**")
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.perfmark.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** The Flight Recorder events written for PerfMark marks. */
+final class JfrEvents {
+
+  @Name("io.perfmark.Task")
+  @Label("PerfMark Task")
+  @Category("PerfMark")
+  @Description("A task started and stopped with PerfMark")
+  @StackTrace(false)
+  static final class TaskEvent extends Event {
+    @Label("Task Name")
+    String taskName;
+
+    @Label("Sub Task Name")
+    String subTaskName;
+
+    @Label("Tag Name")
+    String tagName;
+
+    @Label("Tag Id")
+    long tagId;
+
+    @Label("Tags")
+    @Description("Tags attached while the task was running, as name=value pairs")
+    String tags;
+  }
+
+  @Name("io.perfmark.Event")
+  @Label("PerfMark Event")
+  @Category("PerfMark")
+  @Description("An instantaneous PerfMark event")
+  @StackTrace(false)
+  static final class MarkEvent extends Event {
+    @Label("Event Name")
+    String eventName;
+
+    @Label("Sub Event Name")
+    String subEventName;
+
+    @Label("Tag Name")
+    String tagName;
+
+    @Label("Tag Id")
+    long tagId;
+  }
+
+  @Name("io.perfmark.Link")
+  @Label("PerfMark Link")
+  @Category("PerfMark")
+  @Description("One end of a link between PerfMark tasks, usually on different threads")
+  @StackTrace(false)
+  static final class LinkEvent extends Event {
+    @Label("Link Id")
+    long linkId;
+
+    @Label("Outgoing")
+    @Description("True where the link was created, false where it was linked in")
+    boolean outgoing;
+
+    @Label("Task Name")
+    @Description("The innermost task running when the link was recorded")
+    String taskName;
+  }
+
+  private JfrEvents() {
+    throw new AssertionError("nope");
+  }
+}
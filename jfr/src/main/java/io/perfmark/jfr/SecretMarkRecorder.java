@@ -0,0 +1,348 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.perfmark.jfr;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkRecorder;
+import java.util.Arrays;
+import jdk.jfr.EventType;
+
+final class SecretMarkRecorder {
+
+  /**
+   * Forwards every mark to another recorder, and mirrors it as a Flight Recorder event.  Task
+   * events begin and end when PerfMark is called, so explicit start times passed to {@code
+   * startAt} are not reflected in the recording, but they are still kept by the delegate.
+   *
+   * <p>Running tasks are only tracked while task events are enabled, which keeps the cost down when
+   * nothing is recording.  Tasks that straddle the start or end of a recording may be left out of
+   * it, or end early.
+   */
+  public static final class JfrMarkRecorder extends MarkRecorder {
+    private static final EventType taskType = EventType.getEventType(JfrEvents.TaskEvent.class);
+    private static final EventType markType = EventType.getEventType(JfrEvents.MarkEvent.class);
+    private static final EventType linkType = EventType.getEventType(JfrEvents.LinkEvent.class);
+
+    private static final LocalTasks localTasks = new LocalTasks();
+
+    private final MarkRecorder delegate;
+
+    public JfrMarkRecorder(MarkRecorder delegate) {
+      if (delegate == null) {
+        throw new NullPointerException("delegate");
+      }
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void start(long gen, String taskName, String tagName, long tagId) {
+      delegate.start(gen, taskName, tagName, tagId);
+      beginTask(gen, taskName, null, tagName, tagId);
+    }
+
+    @Override
+    public void start(long gen, String taskName) {
+      delegate.start(gen, taskName);
+      beginTask(gen, taskName, null, null, Mark.NO_TAG_ID);
+    }
+
+    @Override
+    public void start(long gen, String taskName, String subTaskName) {
+      delegate.start(gen, taskName, subTaskName);
+      beginTask(gen, taskName, subTaskName, null, Mark.NO_TAG_ID);
+    }
+
+    @Override
+    public void startAt(long gen, String taskName, String tagName, long tagId, long nanoTime) {
+      delegate.startAt(gen, taskName, tagName, tagId, nanoTime);
+      beginTask(gen, taskName, null, tagName, tagId);
+    }
+
+    @Override
+    public void startAt(long gen, String taskName, long nanoTime) {
+      delegate.startAt(gen, taskName, nanoTime);
+      beginTask(gen, taskName, null, null, Mark.NO_TAG_ID);
+    }
+
+    @Override
+    public void startAt(long gen, String taskName, String subTaskName, long nanoTime) {
+      delegate.startAt(gen, taskName, subTaskName, nanoTime);
+      beginTask(gen, taskName, subTaskName, null, Mark.NO_TAG_ID);
+    }
+
+    @Override
+    public void link(long gen, long linkId) {
+      delegate.link(gen, linkId);
+      if (!linkType.isEnabled()) {
+        return;
+      }
+      JfrEvents.LinkEvent event = new JfrEvents.LinkEvent();
+      if (event.shouldCommit()) {
+        event.linkId = Math.abs(linkId);
+        event.outgoing = linkId > 0;
+        JfrEvents.TaskEvent task = peekTask(gen);
+        if (task != null) {
+          event.taskName = task.taskName;
+        }
+        event.commit();
+      }
+    }
+
+    @Override
+    public void stop(long gen) {
+      endTask(gen);
+      delegate.stop(gen);
+    }
+
+    @Override
+    public void stop(long gen, String taskName, String tagName, long tagId) {
+      endTask(gen);
+      delegate.stop(gen, taskName, tagName, tagId);
+    }
+
+    @Override
+    public void stop(long gen, String taskName) {
+      endTask(gen);
+      delegate.stop(gen, taskName);
+    }
+
+    @Override
+    public void stop(long gen, String taskName, String subTaskName) {
+      endTask(gen);
+      delegate.stop(gen, taskName, subTaskName);
+    }
+
+    @Override
+    public void stopAt(long gen, long nanoTime) {
+      endTask(gen);
+      delegate.stopAt(gen, nanoTime);
+    }
+
+    @Override
+    public void stopAt(long gen, String taskName, String tagName, long tagId, long nanoTime) {
+      endTask(gen);
+      delegate.stopAt(gen, taskName, tagName, tagId, nanoTime);
+    }
+
+    @Override
+    public void stopAt(long gen, String taskName, long nanoTime) {
+      endTask(gen);
+      delegate.stopAt(gen, taskName, nanoTime);
+    }
+
+    @Override
+    public void stopAt(long gen, String taskName, String subTaskName, long nanoTime) {
+      endTask(gen);
+      delegate.stopAt(gen, taskName, subTaskName, nanoTime);
+    }
+
+    @Override
+    public void event(long gen, String eventName, String tagName, long tagId) {
+      delegate.event(gen, eventName, tagName, tagId);
+      commitEvent(eventName, null, tagName, tagId);
+    }
+
+    @Override
+    public void event(long gen, String eventName) {
+      delegate.event(gen, eventName);
+      commitEvent(eventName, null, null, Mark.NO_TAG_ID);
+    }
+
+    @Override
+    public void event(long gen, String eventName, String subEventName) {
+      delegate.event(gen, eventName, subEventName);
+      commitEvent(eventName, subEventName, null, Mark.NO_TAG_ID);
+    }
+
+    @Override
+    public void eventAt(long gen, String eventName, String tagName, long tagId, long nanoTime) {
+      delegate.eventAt(gen, eventName, tagName, tagId, nanoTime);
+      commitEvent(eventName, null, tagName, tagId);
+    }
+
+    @Override
+    public void eventAt(long gen, String eventName, long nanoTime) {
+      delegate.eventAt(gen, eventName, nanoTime);
+      commitEvent(eventName, null, null, Mark.NO_TAG_ID);
+    }
+
+    @Override
+    public void eventAt(long gen, String eventName, String subEventName, long nanoTime) {
+      delegate.eventAt(gen, eventName, subEventName, nanoTime);
+      commitEvent(eventName, subEventName, null, Mark.NO_TAG_ID);
+    }
+
+    @Override
+    public void attachTag(long gen, String tagName, long tagId) {
+      delegate.attachTag(gen, tagName, tagId);
+      JfrEvents.TaskEvent task = peekTask(gen);
+      if (task != null) {
+        if (tagId == Mark.NO_TAG_ID) {
+          addTag(task, tagName, null);
+        } else {
+          addTag(task, tagName, String.valueOf(tagId));
+        }
+      }
+    }
+
+    @Override
+    public void attachKeyedTag(long gen, String name, String value) {
+      delegate.attachKeyedTag(gen, name, value);
+      JfrEvents.TaskEvent task = peekTask(gen);
+      if (task != null) {
+        addTag(task, name, value);
+      }
+    }
+
+    @Override
+    public void attachKeyedTag(long gen, String name, long value0) {
+      delegate.attachKeyedTag(gen, name, value0);
+      JfrEvents.TaskEvent task = peekTask(gen);
+      if (task != null) {
+        addTag(task, name, String.valueOf(value0));
+      }
+    }
+
+    @Override
+    public void attachKeyedTag(long gen, String name, long value0, long value1) {
+      delegate.attachKeyedTag(gen, name, value0, value1);
+      JfrEvents.TaskEvent task = peekTask(gen);
+      if (task != null) {
+        addTag(task, name, value0 + ":" + value1);
+      }
+    }
+
+    private static void beginTask(
+        long gen, String taskName, String subTaskName, String tagName, long tagId) {
+      if (!taskType.isEnabled()) {
+        return;
+      }
+      JfrEvents.TaskEvent event = new JfrEvents.TaskEvent();
+      event.taskName = taskName;
+      event.subTaskName = subTaskName;
+      setTag(event, tagName, tagId);
+      event.begin();
+      localTasks.get().push(gen, event);
+    }
+
+    private static void endTask(long gen) {
+      if (!taskType.isEnabled()) {
+        return;
+      }
+      JfrEvents.TaskEvent event = localTasks.get().pop(gen);
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.commit();
+        }
+      }
+    }
+
+    /** Returns the innermost running task, or {@code null} if task events aren't enabled. */
+    private static JfrEvents.TaskEvent peekTask(long gen) {
+      return taskType.isEnabled() ? localTasks.get().peek(gen) : null;
+    }
+
+    private static void commitEvent(
+        String eventName, String subEventName, String tagName, long tagId) {
+      if (!markType.isEnabled()) {
+        return;
+      }
+      JfrEvents.MarkEvent event = new JfrEvents.MarkEvent();
+      if (event.shouldCommit()) {
+        event.eventName = eventName;
+        event.subEventName = subEventName;
+        if (tagName != null && !tagName.equals(Mark.NO_TAG_NAME)) {
+          event.tagName = tagName;
+        }
+        if (tagId != Mark.NO_TAG_ID) {
+          event.tagId = tagId;
+        }
+        event.commit();
+      }
+    }
+
+    private static void setTag(JfrEvents.TaskEvent event, String tagName, long tagId) {
+      if (tagName != null && !tagName.equals(Mark.NO_TAG_NAME)) {
+        event.tagName = tagName;
+      }
+      if (tagId != Mark.NO_TAG_ID) {
+        event.tagId = tagId;
+      }
+    }
+
+    private static void addTag(JfrEvents.TaskEvent task, String name, String value) {
+      String tag = value == null ? String.valueOf(name) : name + "=" + value;
+      task.tags = task.tags == null ? tag : task.tags + ", " + tag;
+    }
+  }
+
+  /**
+   * The tasks currently running on a thread.  Entries left over from an earlier generation, which
+   * happens when PerfMark is disabled while tasks are running, are dropped as they are found.
+   */
+  private static final class TaskStack {
+    private JfrEvents.TaskEvent[] events = new JfrEvents.TaskEvent[16];
+    private long[] gens = new long[16];
+    private int size;
+
+    void push(long gen, JfrEvents.TaskEvent event) {
+      if (size == events.length) {
+        events = Arrays.copyOf(events, size * 2);
+        gens = Arrays.copyOf(gens, size * 2);
+      }
+      events[size] = event;
+      gens[size] = gen;
+      size++;
+    }
+
+    // Nullable
+    JfrEvents.TaskEvent pop(long gen) {
+      dropStale(gen);
+      if (size == 0) {
+        return null;
+      }
+      JfrEvents.TaskEvent event = events[--size];
+      events[size] = null;
+      return event;
+    }
+
+    // Nullable
+    JfrEvents.TaskEvent peek(long gen) {
+      dropStale(gen);
+      return size == 0 ? null : events[size - 1];
+    }
+
+    private void dropStale(long gen) {
+      while (size > 0 && gens[size - 1] != gen) {
+        events[--size] = null;
+      }
+    }
+  }
+
+  private static final class LocalTasks extends ThreadLocal<TaskStack> {
+    @Override
+    protected TaskStack initialValue() {
+      return new TaskStack();
+    }
+
+    LocalTasks() {}
+  }
+
+  private SecretMarkRecorder() {}
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * Mirrors PerfMark tasks, events and links into JDK Flight Recorder events.  Adding this module to
+ * the class path is enough: PerfMark wraps its {@link io.perfmark.impl.MarkRecorder} with one that
+ * also emits {@code io.perfmark.Task}, {@code io.perfmark.Event} and {@code io.perfmark.Link}
+ * events whenever a recording has them enabled.
+ */
+package io.perfmark.jfr;
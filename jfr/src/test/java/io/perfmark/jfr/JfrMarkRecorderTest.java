@@ -0,0 +1,182 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.perfmark.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.perfmark.PerfMark;
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkRecorder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class JfrMarkRecorderTest {
+  @Test
+  public void marksBecomeEvents() throws Exception {
+    CountingMarkRecorder delegate = new CountingMarkRecorder();
+    MarkRecorder recorder = new SecretMarkRecorder.JfrMarkRecorder(delegate);
+
+    List<RecordedEvent> events;
+    try (Recording recording = startRecording()) {
+      recorder.start(1, "outer", "tag", 7);
+      recorder.start(1, "inner", "sub");
+      recorder.attachKeyedTag(1, "key", "value");
+      recorder.attachKeyedTag(1, "num", 3);
+      recorder.link(1, 5);
+      recorder.event(1, "ping");
+      recorder.stop(1);
+      recorder.link(1, -5);
+      recorder.stop(1, "outer");
+      events = stopRecording(recording);
+    }
+
+    assertEquals(9, delegate.calls);
+    assertEquals(5, events.size());
+
+    RecordedEvent inner = find(events, "io.perfmark.Task", "inner");
+    assertEquals("sub", inner.getString("subTaskName"));
+    assertEquals("key=value, num=3", inner.getString("tags"));
+    RecordedEvent outer = find(events, "io.perfmark.Task", "outer");
+    assertEquals("tag", outer.getString("tagName"));
+    assertEquals(7, outer.getLong("tagId"));
+    assertTrue(outer.getDuration().compareTo(inner.getDuration()) >= 0);
+
+    RecordedEvent ping = find(events, "io.perfmark.Event", null);
+    assertEquals("ping", ping.getString("eventName"));
+
+    List<RecordedEvent> links = findAll(events, "io.perfmark.Link");
+    assertEquals(2, links.size());
+    assertEquals(5, links.get(0).getLong("linkId"));
+    assertTrue(links.get(0).getBoolean("outgoing"));
+    assertEquals("inner", links.get(0).getString("taskName"));
+    assertFalse(links.get(1).getBoolean("outgoing"));
+    assertEquals("outer", links.get(1).getString("taskName"));
+  }
+
+  @Test
+  public void staleGenerationsAreDropped() throws Exception {
+    MarkRecorder recorder = new SecretMarkRecorder.JfrMarkRecorder(new CountingMarkRecorder());
+
+    List<RecordedEvent> events;
+    try (Recording recording = startRecording()) {
+      // Never stopped, as if PerfMark were disabled while it was running.
+      recorder.start(1, "abandoned");
+      recorder.start(2, "task");
+      recorder.stop(2);
+      recorder.stop(2);
+      events = stopRecording(recording);
+    }
+
+    assertEquals(1, events.size());
+    assertEquals("task", events.get(0).getString("taskName"));
+  }
+
+  @Test
+  public void tasksOutsideRecordingAreNotTracked() throws Exception {
+    CountingMarkRecorder delegate = new CountingMarkRecorder();
+    MarkRecorder recorder = new SecretMarkRecorder.JfrMarkRecorder(delegate);
+    recorder.start(1, "before");
+
+    List<RecordedEvent> events;
+    try (Recording recording = startRecording()) {
+      recorder.start(1, "task");
+      recorder.attachKeyedTag(1, "key", "value");
+      recorder.stop(1);
+      recorder.stop(1);
+      events = stopRecording(recording);
+    }
+
+    assertEquals(5, delegate.calls);
+    assertEquals(1, events.size());
+    assertEquals("task", events.get(0).getString("taskName"));
+    assertEquals("key=value", events.get(0).getString("tags"));
+  }
+
+  @Test
+  public void autoLoad() throws Exception {
+    List<RecordedEvent> events;
+    try (Recording recording = startRecording()) {
+      PerfMark.setEnabled(true);
+      PerfMark.startTask("hi");
+      PerfMark.stopTask("hi");
+      PerfMark.setEnabled(false);
+      events = stopRecording(recording);
+    }
+
+    assertEquals("hi", find(events, "io.perfmark.Task", "hi").getString("taskName"));
+  }
+
+  private static Recording startRecording() {
+    Recording recording = new Recording();
+    recording.enable("io.perfmark.Task");
+    recording.enable("io.perfmark.Event");
+    recording.enable("io.perfmark.Link");
+    recording.start();
+    return recording;
+  }
+
+  private static List<RecordedEvent> stopRecording(Recording recording) throws Exception {
+    recording.stop();
+    Path file = Files.createTempFile("perfmark", ".jfr");
+    try {
+      recording.dump(file);
+      return findAll(RecordingFile.readAllEvents(file), "io.perfmark.");
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static List<RecordedEvent> findAll(List<RecordedEvent> events, String typePrefix) {
+    List<RecordedEvent> found = new ArrayList<>();
+    for (RecordedEvent event : events) {
+      if (event.getEventType().getName().startsWith(typePrefix)) {
+        found.add(event);
+      }
+    }
+    return found;
+  }
+
+  private static RecordedEvent find(List<RecordedEvent> events, String type, String taskName) {
+    for (RecordedEvent event : findAll(events, type)) {
+      if (taskName == null || taskName.equals(event.getString("taskName"))) {
+        return event;
+      }
+    }
+    throw new AssertionError("no " + type + " " + taskName + " in " + events);
+  }
+
+  private static final class CountingMarkRecorder extends MarkRecorder {
+    int calls;
+
+    @Override
+    public void unimplemented() {
+      calls++;
+    }
+  }
+}
@@ -9,6 +9,7 @@ include(":perfmark-java7")
 include(":perfmark-java9")
 include(":perfmark-java15")
 include(":perfmark-java19")
+include(":perfmark-jfr")
 include(":perfmark-testing")
 include(":perfmark-tracewriter")
 include(":perfmark-traceviewer")
@@ -23,6 +24,7 @@ project(":perfmark-java7").projectDir =  File("$rootDir/java7")
 project(":perfmark-java9").projectDir =  File("$rootDir/java9")
 project(":perfmark-java15").projectDir =  File("$rootDir/java15")
 project(":perfmark-java19").projectDir =  File("$rootDir/java19")
+project(":perfmark-jfr").projectDir =  File("$rootDir/jfr")
 project(":perfmark-testing").projectDir =  File("$rootDir/testing")
 project(":perfmark-tracewriter").projectDir =  File("$rootDir/tracewriter")
 project(":perfmark-traceviewer").projectDir =  File("$rootDir/traceviewer")
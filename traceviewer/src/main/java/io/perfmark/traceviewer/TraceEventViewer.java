@@ -19,7 +19,11 @@ package io.perfmark.traceviewer;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
 import io.perfmark.tracewriter.TraceEventWriter;
+import io.perfmark.tracewriter.TraceExportOptions;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,6 +34,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -84,6 +90,24 @@ public final class TraceEventViewer {
     return path;
   }
 
+  /**
+   * Like {@link #writeTraceHtml()}, but only writes the part of the trace selected by the options.
+   *
+   * @param options how to reduce the trace.
+   * @return the Path of the written file.
+   * @throws IOException if it can't write to the destination.
+   * @since 0.28.0
+   */
+  public static Path writeTraceHtml(TraceExportOptions options) throws IOException {
+    Path path = Files.createTempFile("perfmark-trace-", ".html");
+    try (OutputStream os = Files.newOutputStream(path, TRUNCATE_EXISTING);
+        Writer w = new OutputStreamWriter(os, UTF_8)) {
+      writeTraceHtml(w, options);
+    }
+    logger.log(Level.INFO, "Wrote PerfMark Trace file://{0}", new Object[] {path.toAbsolutePath()});
+    return path;
+  }
+
   /**
    * Writes all available trace data as a single HTML file into the given writer.
    *
@@ -91,6 +115,147 @@ public final class TraceEventViewer {
    * @throws IOException if it can't write to the writer.
    */
   public static void writeTraceHtml(Writer writer) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (OutputStreamWriter w = new OutputStreamWriter(baos, UTF_8)) {
+      TraceEventWriter.writeTraceEvents(w);
+    }
+    writeTraceHtml(writer, baos.toByteArray());
+  }
+
+  /**
+   * Writes the part of the available trace data selected by the options as a single HTML file
+   * into the given writer. Use this when the whole trace is too large for the browser to load.
+   *
+   * @param writer The destination to write all HTML to.
+   * @param options how to reduce the trace.
+   * @throws IOException if it can't write to the writer.
+   * @since 0.28.0
+   */
+  public static void writeTraceHtml(Writer writer, TraceExportOptions options)
+      throws IOException {
+    long nowNanoTime = System.nanoTime();
+    writeTraceHtml(
+        writer,
+        options.apply(Storage.read(), nowNanoTime),
+        Storage.getInitNanoTime(),
+        nowNanoTime,
+        TraceEventWriter.getPid());
+  }
+
+  /**
+   * Splits the available trace data into HTML files covering consecutive, equal time slices, and
+   * writes an index page linking to them. The slices cover the time between the first and last
+   * Mark left after applying the options. Tasks crossing the edge of a slice appear in both
+   * slices.
+   *
+   * @param directory the directory to write the files to, which is created if needed.
+   * @param options how to reduce the trace, before it is split up.
+   * @param sliceCount how many HTML files to split the trace into.
+   * @return the Path of the index page.
+   * @throws IOException if it can't write to the directory.
+   * @since 0.28.0
+   */
+  public static Path writeTraceHtmlSlices(
+      Path directory, TraceExportOptions options, int sliceCount) throws IOException {
+    Path index =
+        writeTraceHtmlSlices(
+            directory,
+            Storage.read(),
+            Storage.getInitNanoTime(),
+            System.nanoTime(),
+            TraceEventWriter.getPid(),
+            options,
+            sliceCount);
+    logger.log(
+        Level.INFO, "Wrote PerfMark Trace index file://{0}", new Object[] {index.toAbsolutePath()});
+    return index;
+  }
+
+  static Path writeTraceHtmlSlices(
+      Path directory,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long nowNanoTime,
+      long pid,
+      TraceExportOptions options,
+      int sliceCount)
+      throws IOException {
+    if (sliceCount < 1) {
+      throw new IllegalArgumentException("sliceCount must be positive: " + sliceCount);
+    }
+    Files.createDirectories(directory);
+    long firstNanoTime = nowNanoTime;
+    long lastNanoTime = nowNanoTime;
+    boolean found = false;
+    for (MarkList markList : options.apply(markLists, nowNanoTime)) {
+      for (Mark mark : markList) {
+        if (mark.getOperation().getOpType() == Mark.OperationType.TAG
+            || mark.getOperation().getOpType() == Mark.OperationType.LINK) {
+          continue;
+        }
+        if (!found || mark.getNanoTime() - firstNanoTime < 0) {
+          firstNanoTime = mark.getNanoTime();
+        }
+        if (!found || mark.getNanoTime() - lastNanoTime > 0) {
+          lastNanoTime = mark.getNanoTime();
+        }
+        found = true;
+      }
+    }
+    long totalNanos = lastNanoTime - firstNanoTime;
+    long sliceNanos = totalNanos / sliceCount + (totalNanos % sliceCount != 0 ? 1 : 0);
+
+    StringBuilder index = new StringBuilder();
+    index.append("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n");
+    index.append("<title>PerfMark Trace</title>\n</head>\n<body>\n");
+    index.append("<table>\n<tr><th>Slice</th><th>From (ms)</th><th>To (ms)</th>");
+    index.append("<th>Threads</th><th>Size (bytes)</th></tr>\n");
+    for (int i = 0; i < sliceCount; i++) {
+      // Rounding up the slice size may leave the last slices empty, at the end of the trace.
+      long from = firstNanoTime + Math.min(i * sliceNanos, totalNanos);
+      long to = firstNanoTime + Math.min((i + 1) * sliceNanos, totalNanos);
+      List<MarkList> slice =
+          options.toBuilder().setTimeWindow(from, to).build().apply(markLists, nowNanoTime);
+      String fileName = String.format(Locale.ROOT, "perfmark-trace-%03d.html", i);
+      Path path = directory.resolve(fileName);
+      try (OutputStream os = Files.newOutputStream(path);
+          Writer w = new OutputStreamWriter(os, UTF_8)) {
+        writeTraceHtml(w, slice, initNanoTime, nowNanoTime, pid);
+      }
+      index.append(
+          String.format(
+              Locale.ROOT,
+              "<tr><td><a href=\"%s\">%d</a></td><td>%.3f</td><td>%.3f</td>"
+                  + "<td>%d</td><td>%d</td></tr>\n",
+              fileName,
+              i,
+              (from - initNanoTime) / 1e6,
+              (to - initNanoTime) / 1e6,
+              slice.size(),
+              Files.size(path)));
+    }
+    index.append("</table>\n</body>\n</html>\n");
+    Path indexPath = directory.resolve("index.html");
+    try (OutputStream os = Files.newOutputStream(indexPath);
+        Writer w = new OutputStreamWriter(os, UTF_8)) {
+      w.write(index.toString());
+    }
+    return indexPath;
+  }
+
+  static void writeTraceHtml(
+      Writer writer,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long nowNanoTime,
+      long pid)
+      throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    TraceEventWriter.writeTraceEvents(baos, markLists, initNanoTime, nowNanoTime, pid);
+    writeTraceHtml(writer, baos.toByteArray());
+  }
+
+  private static void writeTraceHtml(Writer writer, byte[] traceData) throws IOException {
     InputStream indexStream =
         TraceEventViewer.class.getResourceAsStream("third_party/catapult/index.html");
     if (indexStream == null) {
@@ -112,11 +277,7 @@ public final class TraceEventViewer {
     }
     String traceViewer = trimTraceViewer(readAll(traceViewerStream));
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    try (OutputStreamWriter w = new OutputStreamWriter(baos, UTF_8)) {
-      TraceEventWriter.writeTraceEvents(w);
-    }
-    byte[] traceData64 = Base64.getEncoder().encode(baos.toByteArray());
+    byte[] traceData64 = Base64.getEncoder().encode(traceData);
 
     String indexWithWebComponents = replaceIndexWebComponents(index, webComponents);
 
@@ -16,7 +16,19 @@
 
 package io.perfmark.traceviewer;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import io.perfmark.PerfMark;
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.tracewriter.TraceExportOptions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -43,4 +55,50 @@ public class TraceEventViewerTest {
     PerfMark.setEnabled(false);
     TraceEventViewer.writeTraceHtml();
   }
+
+  @Test
+  public void writeTraceHtmlSlices() throws Exception {
+    List<MarkList> markLists =
+        List.of(
+            MarkList.newBuilder()
+                .setMarkRecorderId(1)
+                .setThreadId(1)
+                .setThreadName("main")
+                .setMarks(
+                    List.of(
+                        Mark.taskStart(1, 1_000_000, "first"),
+                        Mark.taskEnd(1, 2_000_000, "first"),
+                        Mark.taskStart(1, 3_000_000, "second"),
+                        Mark.taskEnd(1, 5_000_000, "second")))
+                .build());
+    Path dir = Files.createTempDirectory("perfmark-slices");
+    try {
+      Path index =
+          TraceEventViewer.writeTraceHtmlSlices(
+              dir, markLists, 0, 6_000_000, 1, TraceExportOptions.newBuilder().build(), 2);
+
+      assertEquals(dir.resolve("index.html"), index);
+      String indexHtml = new String(Files.readAllBytes(index), UTF_8);
+      assertTrue(
+          indexHtml,
+          indexHtml.contains(
+              "<tr><td><a href=\"perfmark-trace-000.html\">0</a></td>"
+                  + "<td>1.000</td><td>3.000</td>"));
+      assertTrue(
+          indexHtml,
+          indexHtml.contains(
+              "<tr><td><a href=\"perfmark-trace-001.html\">1</a></td>"
+                  + "<td>3.000</td><td>5.000</td>"));
+      try (Stream<Path> files = Files.list(dir)) {
+        assertEquals(3, files.collect(Collectors.toList()).size());
+      }
+    } finally {
+      try (Stream<Path> files = Files.list(dir)) {
+        for (Path file : files.collect(Collectors.toList())) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(dir);
+    }
+  }
 }
@@ -1,3 +1,5 @@
+import net.ltgt.gradle.errorprone.errorprone
+
 buildscript {
     extra.apply{
         set("moduleName", "io.perfmark.tracewriter")
@@ -8,6 +10,18 @@ description = "PerfMark Tracer Output"
 
 val jdkVersion = JavaVersion.VERSION_1_8
 
+sourceSets {
+    create("jmh")
+}
+
+val jmhImplementation by configurations.getting {
+    extendsFrom(configurations.implementation.get())
+}
+
+val jmhAnnotationProcessor by configurations.getting {
+    extendsFrom(configurations.annotationProcessor.get())
+}
+
 dependencies {
     api(project(":perfmark-impl"))
     // Included because it's easy to forget
@@ -16,6 +30,11 @@ dependencies {
     implementation(project(":perfmark-api"))
     compileOnly(libs.errorprone)
     testImplementation("com.fasterxml.jackson.core:jackson-databind:2.14.2")
+
+    jmhImplementation(project(":perfmark-tracewriter"))
+    jmhImplementation(libs.junit)
+    jmhImplementation(libs.jmhcore)
+    jmhAnnotationProcessor(libs.jmhanno)
 }
 
 tasks.getByName<JavaCompile>("compileJava") {
@@ -27,4 +46,18 @@ tasks.getByName<JavaCompile>("compileJava") {
 tasks.getByName<JavaCompile>("compileTestJava") {
     sourceCompatibility = JavaVersion.VERSION_11.toString()
     targetCompatibility = JavaVersion.VERSION_11.toString()
-}
\ No newline at end of file
+}
+
+tasks.named<JavaCompile>("compileJmhJava") {
+    sourceCompatibility = JavaVersion.VERSION_11.toString()
+    targetCompatibility = JavaVersion.VERSION_11.toString()
+    options.errorprone.excludedPaths.set(".*/build/generated/sources/annotationProcessor/.*")
+}
+
+tasks.register<Test>("jmh") {
+    description = "Runs integration tests."
+    group = "stress"
+
+    testClassesDirs = sourceSets["jmh"].output.classesDirs
+    classpath = sourceSets["jmh"].runtimeClasspath
+}
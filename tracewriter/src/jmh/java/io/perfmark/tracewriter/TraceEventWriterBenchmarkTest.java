@@ -0,0 +1,149 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+@RunWith(JUnit4.class)
+public class TraceEventWriterBenchmarkTest {
+
+  @Test
+  public void traceEventWriterBenchmark() throws Exception {
+    Options options =
+        new OptionsBuilder()
+            .include(TraceEventWriterBenchmark.class.getCanonicalName())
+            .addProfiler("gc")
+            .measurementIterations(5)
+            .warmupIterations(3)
+            .forks(1)
+            .warmupTime(TimeValue.seconds(1))
+            .measurementTime(TimeValue.seconds(1))
+            .shouldFailOnError(true)
+            // This is necessary to run in the IDE, otherwise it would inherit the VM args.
+            // The heap is deliberately small, so that retaining the whole trace fails the run.
+            .jvmArgs("-da", "-Xmx512m")
+            .build();
+
+    new Runner(options).run();
+  }
+
+  @State(Scope.Benchmark)
+  public static class TraceEventWriterBenchmark {
+
+    @Param({"100", "1000"})
+    public int threads;
+
+    @Param({"1000"})
+    public int tasksPerThread;
+
+    private List<MarkList> markLists;
+    private long nowNanoTime;
+
+    @Setup
+    public void setup() {
+      markLists = new ArrayList<>(threads);
+      long nanoTime = 1000;
+      for (int thread = 0; thread < threads; thread++) {
+        List<Mark> marks = new ArrayList<>(tasksPerThread * 4);
+        for (int task = 0; task < tasksPerThread; task++) {
+          marks.add(Mark.taskStart(1, nanoTime++, "task" + (task % 100)));
+          marks.add(Mark.keyedTag(1, "index", task));
+          if (task % 10 == 0) {
+            // Even threads link out, odd threads link in to their neighbor.
+            long linkId = (thread & ~1L) * tasksPerThread + task + 1;
+            marks.add(Mark.link(1, (thread & 1) == 0 ? linkId : -linkId));
+          }
+          marks.add(Mark.taskEnd(1, nanoTime++));
+        }
+        markLists.add(
+            MarkList.newBuilder()
+                .setMarks(marks)
+                .setThreadName("thread-" + thread)
+                .setThreadId(thread)
+                .setMarkRecorderId(thread)
+                .build());
+      }
+      nowNanoTime = nanoTime;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long writeTraceEvents() throws IOException {
+      CountingWriter writer = new CountingWriter();
+      TraceEventWriter.writeTraceEvents(writer, markLists, 0, nowNanoTime, 1);
+      return writer.chars;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long writeTraceEventsParallel() throws IOException {
+      CountingWriter writer = new CountingWriter();
+      TraceEventWriter.writeTraceEventsParallel(
+          writer, markLists, 0, 0, nowNanoTime, 1, ForkJoinPool.commonPool());
+      return writer.chars;
+    }
+  }
+
+  private static final class CountingWriter extends Writer {
+    long chars;
+
+    @Override
+    public void write(int c) {
+      chars++;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      chars += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      chars += len;
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+/**
+ * A moment of a trace whose wall clock time is known. Trace times are relative to the {@code
+ * initNanoTime} the trace was written with, so traces of different processes can only be lined up
+ * by way of their anchors.
+ */
+final class ClockAnchor {
+  /** Nanoseconds since the start of the trace. */
+  final long traceNanos;
+  /** Nanoseconds since the Unix epoch, at the same moment. */
+  final long unixNanos;
+
+  ClockAnchor(long traceNanos, long unixNanos) {
+    this.traceNanos = traceNanos;
+    this.unixNanos = unixNanos;
+  }
+
+  /**
+   * Returns the anchor of a trace whose times are relative to {@code initNanoTime}, given the wall
+   * clock time at that moment.
+   *
+   * @param initCurrentTimeMillis the wall clock time at the start of the trace, as specified by
+   *     {@link System#currentTimeMillis()}
+   */
+  static ClockAnchor atTraceStart(long initCurrentTimeMillis) {
+    return new ClockAnchor(0, initCurrentTimeMillis * 1_000_000);
+  }
+
+  /** Returns the wall clock time, in nanoseconds since the epoch, of the start of the trace. */
+  long unixNanosAtTraceStart() {
+    return unixNanos - traceNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "ClockAnchor{traceNanos=" + traceNanos + ", unixNanos=" + unixNanos + "}";
+  }
+}
@@ -0,0 +1,672 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the critical path of a task, across the threads it handed work to. Tasks on the same thread
+ * are connected by their nesting, and tasks on different threads are connected by links, from the
+ * {@code linkOut()} to each {@code linkIn()} of the same link. Starting from the end of the chosen
+ * root task, the path is followed backwards, always through whichever predecessor finished last,
+ * until it reaches the start of the root task.
+ *
+ * <p>Each part of the path is either work, which is time spent inside a task on one thread, or
+ * waiting, which is the time between a {@code linkOut()} and the matching {@code linkIn()}. Links
+ * don't record when they happened, so a link is placed at the time of the Mark before it; a
+ * {@code linkIn()} is never placed before its {@code linkOut()}. Time spent inside a task counts
+ * as work even if the thread was blocked, since PerfMark can't tell the difference.
+ *
+ * <p>This class can also be run from the command line:
+ *
+ * <pre>
+ *   java io.perfmark.tracewriter.CriticalPathAnalyzer --root=TASK_NAME [--top=N] TRACE_FILE
+ * </pre>
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class CriticalPathAnalyzer {
+
+  /**
+   * Finds the critical paths of a task, using the Marks recorded so far in this process.
+   *
+   * @param rootTaskName the name of the task, including the sub task name if there is one.
+   * @return the critical path of each finished run of the task, by start time.
+   */
+  public static List<CriticalPath> analyze(String rootTaskName) {
+    return analyze(Storage.read(), System.nanoTime(), rootTaskName);
+  }
+
+  /**
+   * Finds the critical paths of a task.
+   *
+   * @param markLists the data to analyze.
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}, which is used
+   *     as the end of unfinished tasks.
+   * @param rootTaskName the name of the task, including the sub task name if there is one.
+   * @return the critical path of each finished run of the task, by start time. Runs that were
+   *     still going, or had already started when recording began, are left out.
+   */
+  public static List<CriticalPath> analyze(
+      List<? extends MarkList> markLists, long nowNanoTime, String rootTaskName) {
+    if (rootTaskName == null) {
+      throw new NullPointerException("rootTaskName");
+    }
+    GraphWalker walker = new GraphWalker(rootTaskName);
+    walker.walk(markLists, nowNanoTime);
+    List<CriticalPath> paths = walker.paths;
+    Collections.sort(paths, BY_START);
+    return Collections.unmodifiableList(paths);
+  }
+
+  /**
+   * Finds the critical paths of a task in a trace file written by {@link TraceEventWriter} or
+   * {@link PerfettoTraceWriter}, which may be gzip compressed. Unlike {@link TraceAnalyzer}, the
+   * whole trace is held in memory, since links may point anywhere in it. JSON traces only record
+   * which task a link was made in, so the waiting is less precise than with Perfetto traces.
+   *
+   * @param trace the trace file.
+   * @param rootTaskName the name of the task, including the sub task name if there is one.
+   * @return the critical path of each finished run of the task, by start time.
+   * @throws IOException if the trace can't be read.
+   */
+  public static List<CriticalPath> analyze(Path trace, String rootTaskName) throws IOException {
+    List<MarkList> markLists;
+    try (MarkListSource source = TraceAnalyzer.openTrace(trace)) {
+      markLists = source.readAll();
+    }
+    // Unfinished tasks have no end in a trace, so pretend they ended with the last Mark.
+    boolean any = false;
+    long lastNanoTime = 0;
+    for (MarkList markList : markLists) {
+      for (Mark mark : markList) {
+        switch (mark.getOperation().getOpType()) {
+          case TASK_START:
+          case TASK_END:
+          case EVENT:
+            if (!any || mark.getNanoTime() - lastNanoTime > 0) {
+              lastNanoTime = mark.getNanoTime();
+              any = true;
+            }
+            break;
+          default:
+            break;
+        }
+      }
+    }
+    return analyze(markLists, lastNanoTime, rootTaskName);
+  }
+
+  /**
+   * Runs the analyzer from the command line. This prints how the time of the root task was split
+   * across the tasks on its critical paths, and the critical path of the slowest run.
+   *
+   * @param args the flags and trace file, as described in the class docs.
+   * @throws IOException if the trace can't be read.
+   */
+  public static void main(String[] args) throws IOException {
+    String root = null;
+    int top = 20;
+    Path trace = null;
+    boolean badArgs = false;
+    for (String arg : args) {
+      if (arg.startsWith("--root=")) {
+        root = arg.substring("--root=".length());
+      } else if (arg.startsWith("--top=")) {
+        top = Integer.parseInt(arg.substring("--top=".length()));
+      } else if (arg.startsWith("--") || trace != null) {
+        badArgs = true;
+      } else {
+        trace = Paths.get(arg);
+      }
+    }
+    if (badArgs || root == null || trace == null) {
+      usage(System.err);
+      System.exit(2);
+      return;
+    }
+    Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+    writeText(out, analyze(trace, root), root, top);
+    out.flush();
+  }
+
+  private static void usage(PrintStream err) {
+    err.println("Usage: CriticalPathAnalyzer --root=TASK_NAME [--top=N] TRACE_FILE");
+  }
+
+  static void writeText(Writer writer, List<CriticalPath> paths, String root, int limit)
+      throws IOException {
+    if (paths.isEmpty()) {
+      writer.write("No finished runs of " + root + "\n");
+      return;
+    }
+    long total = 0;
+    long wait = 0;
+    CriticalPath slowest = null;
+    // Keyed by the task name, and whether it was waiting.
+    Map<String, long[]> byTask = new HashMap<>();
+    for (CriticalPath path : paths) {
+      total += path.getDurationNanos();
+      wait += path.getWaitNanos();
+      if (slowest == null || path.getDurationNanos() > slowest.getDurationNanos()) {
+        slowest = path;
+      }
+      for (Segment segment : path.getSegments()) {
+        String key = (segment.isWaiting() ? "wait " : "work ") + segment.getTaskName();
+        long[] nanos = byTask.get(key);
+        if (nanos == null) {
+          byTask.put(key, nanos = new long[1]);
+        }
+        nanos[0] += segment.getDurationNanos();
+      }
+    }
+    writer.write(
+        String.format(
+            Locale.ROOT,
+            "Critical path of %s: %d runs, mean %s, %.1f%% work, %.1f%% waiting%n%n",
+            root,
+            paths.size(),
+            TraceAnalyzer.formatNanos(total / paths.size()),
+            percent(total - wait, total),
+            percent(wait, total)));
+
+    List<Map.Entry<String, long[]>> entries = new ArrayList<>(byTask.entrySet());
+    Collections.sort(
+        entries,
+        new Comparator<Map.Entry<String, long[]>>() {
+          @Override
+          public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+            return Long.compare(b.getValue()[0], a.getValue()[0]);
+          }
+        });
+    writer.write(
+        String.format(Locale.ROOT, "%6s %10s %7s  %s%n", "Kind", "Total", "Share", "Task"));
+    for (Map.Entry<String, long[]> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+      writer.write(
+          String.format(
+              Locale.ROOT,
+              "%6s %10s %6.1f%%  %s%n",
+              entry.getKey().substring(0, 4),
+              TraceAnalyzer.formatNanos(entry.getValue()[0]),
+              percent(entry.getValue()[0], total),
+              entry.getKey().substring(5)));
+    }
+
+    writer.write(
+        String.format(
+            Locale.ROOT,
+            "%nSlowest run, %s:%n",
+            TraceAnalyzer.formatNanos(slowest.getDurationNanos())));
+    List<Segment> segments = slowest.getSegments();
+    for (Segment segment : segments.subList(0, Math.min(limit, segments.size()))) {
+      long offset = segment.getStartNanoTime() - slowest.getStartNanoTime();
+      writer.write(
+          String.format(
+              Locale.ROOT,
+              "%10s %10s %6s  %s (%s)%n",
+              "+" + TraceAnalyzer.formatNanos(offset),
+              TraceAnalyzer.formatNanos(segment.getDurationNanos()),
+              segment.isWaiting() ? "wait" : "work",
+              segment.getTaskName(),
+              segment.getThreadName()));
+    }
+    if (limit < segments.size()) {
+      writer.write("... and " + (segments.size() - limit) + " more\n");
+    }
+    writer.flush();
+  }
+
+  private static double percent(long part, long whole) {
+    return whole != 0 ? 100.0 * part / whole : 0;
+  }
+
+  private static final Comparator<CriticalPath> BY_START =
+      new Comparator<CriticalPath>() {
+        @Override
+        public int compare(CriticalPath a, CriticalPath b) {
+          return Long.compare(a.startNanoTime - b.startNanoTime, 0);
+        }
+      };
+
+  /**
+   * The critical path of one run of the root task.
+   *
+   * @since 0.28.0
+   */
+  public static final class CriticalPath {
+    private final String rootTaskName;
+    private final long startNanoTime;
+    private final long endNanoTime;
+    private final long waitNanos;
+    private final List<Segment> segments;
+
+    CriticalPath(
+        String rootTaskName, long startNanoTime, long endNanoTime, List<Segment> segments) {
+      this.rootTaskName = rootTaskName;
+      this.startNanoTime = startNanoTime;
+      this.endNanoTime = endNanoTime;
+      long waitNanos = 0;
+      for (Segment segment : segments) {
+        if (segment.isWaiting()) {
+          waitNanos += segment.getDurationNanos();
+        }
+      }
+      this.waitNanos = waitNanos;
+      this.segments = Collections.unmodifiableList(segments);
+    }
+
+    public String getRootTaskName() {
+      return rootTaskName;
+    }
+
+    /** Returns when the root task started, as specified by {@link System#nanoTime()}. */
+    public long getStartNanoTime() {
+      return startNanoTime;
+    }
+
+    /** Returns when the root task ended, as specified by {@link System#nanoTime()}. */
+    public long getEndNanoTime() {
+      return endNanoTime;
+    }
+
+    public long getDurationNanos() {
+      return endNanoTime - startNanoTime;
+    }
+
+    /** Returns the time on the path spent working inside tasks. */
+    public long getWorkNanos() {
+      return getDurationNanos() - waitNanos;
+    }
+
+    /** Returns the time on the path spent between a {@code linkOut()} and its {@code linkIn()}. */
+    public long getWaitNanos() {
+      return waitNanos;
+    }
+
+    /** Returns the parts of the path in time order. Together they cover the whole root task. */
+    public List<Segment> getSegments() {
+      return segments;
+    }
+
+    @Override
+    public String toString() {
+      return "CriticalPath{rootTaskName="
+          + rootTaskName
+          + ", durationNanos="
+          + getDurationNanos()
+          + ", waitNanos="
+          + waitNanos
+          + ", segments="
+          + segments
+          + "}";
+    }
+  }
+
+  /**
+   * A part of a critical path, spent either working in one task or waiting for a link.
+   *
+   * @since 0.28.0
+   */
+  public static final class Segment {
+    private final String taskName;
+    private final String threadName;
+    private final long threadId;
+    private final long startNanoTime;
+    private final long endNanoTime;
+    private final boolean waiting;
+
+    Segment(
+        String taskName,
+        String threadName,
+        long threadId,
+        long startNanoTime,
+        long endNanoTime,
+        boolean waiting) {
+      this.taskName = taskName;
+      this.threadName = threadName;
+      this.threadId = threadId;
+      this.startNanoTime = startNanoTime;
+      this.endNanoTime = endNanoTime;
+      this.waiting = waiting;
+    }
+
+    /**
+     * Returns the innermost task running during this segment. If waiting, this is the task that
+     * called {@code linkIn()}.
+     */
+    public String getTaskName() {
+      return taskName;
+    }
+
+    public String getThreadName() {
+      return threadName;
+    }
+
+    public long getThreadId() {
+      return threadId;
+    }
+
+    public long getStartNanoTime() {
+      return startNanoTime;
+    }
+
+    public long getEndNanoTime() {
+      return endNanoTime;
+    }
+
+    public long getDurationNanos() {
+      return endNanoTime - startNanoTime;
+    }
+
+    /** Returns {@code true} if this was the time between a link being made and being used. */
+    public boolean isWaiting() {
+      return waiting;
+    }
+
+    @Override
+    public String toString() {
+      return (waiting ? "wait " : "work ")
+          + taskName
+          + " ["
+          + startNanoTime
+          + ", "
+          + endNanoTime
+          + ") on "
+          + threadName;
+    }
+  }
+
+  /** One thread's view of a task run, kept only to name the segments. */
+  private static final class Task {
+    final String name;
+    final String threadName;
+    final long threadId;
+
+    Task(String name, String threadName, long threadId) {
+      this.name = name;
+      this.threadName = threadName;
+      this.threadId = threadId;
+    }
+  }
+
+  /**
+   * A point in time on one thread, where the task nesting changes or a link is made or used. Each
+   * point depends on the point before it on the same thread, unless no task was running between
+   * them, and a {@code linkIn()} also depends on its {@code linkOut()}.
+   */
+  private static final class Point {
+    long nanoTime;
+
+    /** The innermost task running after this point, {@code Nullable}. */
+    final Task taskAfter;
+
+    /** The point before this one on the same thread, {@code Nullable}. */
+    final Point programPred;
+
+    /** The point after this one on the same thread, {@code Nullable}. */
+    Point programNext;
+
+    /** For a {@code linkIn()}, the {@code linkOut()}s of the link, {@code Nullable}. */
+    List<Point> linkPreds;
+
+    /** For a {@code linkOut()}, the {@code linkIn()}s of the link, {@code Nullable}. */
+    List<Point> linkSuccs;
+
+    Point(long nanoTime, Task taskAfter, Point programPred) {
+      this.nanoTime = nanoTime;
+      this.taskAfter = taskAfter;
+      this.programPred = programPred;
+      if (programPred != null) {
+        programPred.programNext = this;
+      }
+    }
+  }
+
+  /**
+   * Builds the graph of points for each generation, and then follows the critical path of each run
+   * of the root task back from its end.
+   */
+  private static final class GraphWalker extends MarkListWalker {
+    private final String rootTaskName;
+    final List<CriticalPath> paths = new ArrayList<>();
+
+    private final Map<Long, Point> linkOuts = new HashMap<>();
+    private final List<Long> linkInIds = new ArrayList<>();
+    private final List<Point> linkIns = new ArrayList<>();
+    private final List<Point[]> roots = new ArrayList<>();
+
+    private final Deque<Task> tasks = new ArrayDeque<>();
+    private final Deque<Point> starts = new ArrayDeque<>();
+    private final Deque<Boolean> incompletes = new ArrayDeque<>();
+    private String threadName;
+    private long threadId;
+    private Point lastPoint;
+    private long lastNanoTime;
+    private boolean hasNanoTime;
+
+    GraphWalker(String rootTaskName) {
+      this.rootTaskName = rootTaskName;
+    }
+
+    @Override
+    protected void enterMarkList(String threadName, long threadId, long markRecorderId) {
+      this.threadName = threadName;
+      this.threadId = threadId;
+      tasks.clear();
+      starts.clear();
+      incompletes.clear();
+      lastPoint = null;
+      hasNanoTime = false;
+    }
+
+    @Override
+    protected void onTaskStart(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
+      Task task = new Task(TraceEventWriter.taskName(mark), threadName, threadId);
+      Point start = new Point(mark.getNanoTime(), task, tasks.isEmpty() ? null : lastPoint);
+      tasks.addLast(task);
+      starts.addLast(start);
+      incompletes.addLast(unmatchedStart || unmatchedEnd);
+      setLast(start, mark.getNanoTime());
+    }
+
+    @Override
+    protected void onTaskEnd(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
+      if (tasks.isEmpty()) {
+        return;
+      }
+      Task task = tasks.removeLast();
+      Point start = starts.removeLast();
+      boolean incomplete = incompletes.removeLast();
+      Point end = new Point(mark.getNanoTime(), tasks.peekLast(), lastPoint);
+      setLast(end, mark.getNanoTime());
+      if (!incomplete && task.name.equals(rootTaskName)) {
+        roots.add(new Point[] {start, end});
+      }
+    }
+
+    @Override
+    protected void onEvent(Mark mark) {
+      lastNanoTime = mark.getNanoTime();
+      hasNanoTime = true;
+    }
+
+    @Override
+    protected void onLink(Mark mark) {
+      // Links outside of any task can't be part of a path, just like in the trace viewer.
+      if (tasks.isEmpty() || !hasNanoTime) {
+        return;
+      }
+      Point point = new Point(lastNanoTime, tasks.peekLast(), lastPoint);
+      lastPoint = point;
+      if (mark.getLinkId() > 0) {
+        linkOuts.put(mark.getLinkId(), point);
+      } else {
+        linkInIds.add(-mark.getLinkId());
+        linkIns.add(point);
+      }
+    }
+
+    private void setLast(Point point, long nanoTime) {
+      lastPoint = point;
+      lastNanoTime = nanoTime;
+      hasNanoTime = true;
+    }
+
+    @Override
+    protected void exitGeneration() {
+      for (int i = 0; i < linkIns.size(); i++) {
+        Point in = linkIns.get(i);
+        Point out = linkOuts.get(linkInIds.get(i));
+        if (out == null) {
+          continue;
+        }
+        if (in.linkPreds == null) {
+          in.linkPreds = new ArrayList<>(1);
+        }
+        in.linkPreds.add(out);
+        if (out.linkSuccs == null) {
+          out.linkSuccs = new ArrayList<>(1);
+        }
+        out.linkSuccs.add(in);
+        // The linkIn() can't have happened before the linkOut(), nor after the next point.
+        if (out.nanoTime - in.nanoTime > 0) {
+          in.nanoTime = out.nanoTime;
+          if (in.programNext != null && in.nanoTime - in.programNext.nanoTime > 0) {
+            in.nanoTime = in.programNext.nanoTime;
+          }
+        }
+      }
+      for (Point[] root : roots) {
+        paths.add(followPath(root[0], root[1]));
+      }
+      linkOuts.clear();
+      linkInIds.clear();
+      linkIns.clear();
+      roots.clear();
+    }
+
+    private CriticalPath followPath(Point rootStart, Point rootEnd) {
+      Set<Point> reachable = reachableFrom(rootStart, rootEnd.nanoTime);
+      Set<Point> visited = Collections.newSetFromMap(new IdentityHashMap<Point, Boolean>());
+      List<Segment> segments = new ArrayList<>();
+      Point current = rootEnd;
+      while (current != rootStart && visited.add(current)) {
+        Point pred = null;
+        boolean viaLink = false;
+        if (current.programPred != null && reachable.contains(current.programPred)) {
+          pred = current.programPred;
+        }
+        if (current.linkPreds != null) {
+          for (Point linkPred : current.linkPreds) {
+            if (reachable.contains(linkPred)
+                && !visited.contains(linkPred)
+                && (pred == null || linkPred.nanoTime - pred.nanoTime > 0)) {
+              pred = linkPred;
+              viaLink = true;
+            }
+          }
+        }
+        if (pred == null) {
+          break;
+        }
+        if (current.nanoTime - pred.nanoTime > 0) {
+          // Waiting is charged to the task that called linkIn(), and work to the task running.
+          Task task = viaLink ? current.taskAfter : pred.taskAfter;
+          Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+          if (!viaLink
+              && last != null
+              && !last.isWaiting()
+              && last.getStartNanoTime() == current.nanoTime
+              && last.getTaskName().equals(task.name)
+              && last.getThreadId() == task.threadId) {
+            segments.set(
+                segments.size() - 1,
+                new Segment(
+                    task.name,
+                    task.threadName,
+                    task.threadId,
+                    pred.nanoTime,
+                    last.getEndNanoTime(),
+                    false));
+          } else {
+            segments.add(
+                new Segment(
+                    task.name,
+                    task.threadName,
+                    task.threadId,
+                    pred.nanoTime,
+                    current.nanoTime,
+                    viaLink));
+          }
+        }
+        current = pred;
+      }
+      Collections.reverse(segments);
+      return new CriticalPath(rootTaskName, rootStart.nanoTime, rootEnd.nanoTime, segments);
+    }
+
+    /** Finds every point that depends on the start of the root, up until the root ends. */
+    private static Set<Point> reachableFrom(Point rootStart, long endNanoTime) {
+      Set<Point> reachable = Collections.newSetFromMap(new IdentityHashMap<Point, Boolean>());
+      Deque<Point> pending = new ArrayDeque<>();
+      reachable.add(rootStart);
+      pending.add(rootStart);
+      Point point;
+      while ((point = pending.pollFirst()) != null) {
+        Point next = point.programNext;
+        if (next != null && next.nanoTime - endNanoTime <= 0 && reachable.add(next)) {
+          pending.addLast(next);
+        }
+        if (point.linkSuccs != null) {
+          for (Point succ : point.linkSuccs) {
+            if (succ.nanoTime - endNanoTime <= 0 && reachable.add(succ)) {
+              pending.addLast(succ);
+            }
+          }
+        }
+      }
+      return reachable;
+    }
+  }
+
+  private CriticalPathAnalyzer() {
+    throw new AssertionError("nope");
+  }
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Merges the task nesting of every thread into one tree, and writes it as a flame graph. Each
+ * distinct stack of task names becomes one frame, no matter how many threads or times it ran, so
+ * a trace too large to scroll through in a trace viewer still fits in one picture.
+ *
+ * <p>The tree can be written in the folded stack format, one line per stack, which other flame
+ * graph tools read, or drawn directly as a self-contained SVG. Tasks that were still running, or
+ * had already started when recording began, are included with the part of their time that was
+ * recorded. This class can also be run from the command line:
+ *
+ * <pre>
+ *   java io.perfmark.tracewriter.FlameGraph [--format=folded|svg] [--weight=self|duration]
+ *       [--title=TITLE] TRACE_FILE...
+ * </pre>
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class FlameGraph {
+
+  /**
+   * How each stack is weighted in the folded stack format.
+   *
+   * @since 0.28.0
+   */
+  public enum Weight {
+    /**
+     * The time spent in the stack, excluding nested tasks. This is what flame graph tools expect,
+     * since they add up the lines of nested stacks to get the width of each frame.
+     */
+    SELF_TIME,
+
+    /** The whole duration of the tasks of the stack, including nested tasks. */
+    DURATION,
+  }
+
+  private final Node root;
+
+  private FlameGraph(Node root) {
+    this.root = root;
+  }
+
+  /**
+   * Builds the flame graph of the Marks recorded so far in this process.
+   *
+   * @return the flame graph.
+   */
+  public static FlameGraph create() {
+    return create(Storage.read(), System.nanoTime(), ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Builds the flame graph of the given MarkLists.
+   *
+   * @param markLists the data to include.
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}, which is used
+   *     as the end of unfinished tasks.
+   * @param pool where to fold the MarkLists.
+   * @return the flame graph.
+   */
+  public static FlameGraph create(
+      List<? extends MarkList> markLists, long nowNanoTime, ForkJoinPool pool) {
+    List<MarkList> split = new ArrayList<>();
+    for (List<MarkList> generation :
+        MarkListWalker.groupMarkListsByGeneration(markLists).values()) {
+      split.addAll(generation);
+    }
+    Node root = new Node(ROOT_NAME);
+    int maxInFlight = Math.max(2, pool.getParallelism() * 4);
+    Deque<ForkJoinTask<Node>> inFlight = new ArrayDeque<>(maxInFlight);
+    for (MarkList markList : split) {
+      if (inFlight.size() == maxInFlight) {
+        root.merge(inFlight.removeFirst().join());
+      }
+      inFlight.addLast(pool.submit(new FoldingWalker(markList, nowNanoTime)));
+    }
+    while (!inFlight.isEmpty()) {
+      root.merge(inFlight.removeFirst().join());
+    }
+    return new FlameGraph(root);
+  }
+
+  /**
+   * Builds the flame graph of a trace file written by {@link TraceEventWriter} or {@link
+   * PerfettoTraceWriter}, which may be gzip compressed. The trace is read as a stream, while the
+   * MarkLists already read are folded in parallel.
+   *
+   * @param trace the trace file.
+   * @param pool where to fold the MarkLists.
+   * @return the flame graph.
+   * @throws IOException if the trace can't be read.
+   */
+  public static FlameGraph read(Path trace, ForkJoinPool pool) throws IOException {
+    Node root = new Node(ROOT_NAME);
+    read(trace, pool, root);
+    return new FlameGraph(root);
+  }
+
+  private static void read(Path trace, ForkJoinPool pool, Node into) throws IOException {
+    int maxInFlight = Math.max(2, pool.getParallelism() * 4);
+    Deque<ForkJoinTask<Node>> inFlight = new ArrayDeque<>(maxInFlight);
+    try (MarkListSource source = TraceAnalyzer.openTrace(trace)) {
+      MarkList markList;
+      while ((markList = source.nextMarkList()) != null) {
+        if (inFlight.size() == maxInFlight) {
+          into.merge(inFlight.removeFirst().join());
+        }
+        // Unfinished tasks have no end in a trace, so pretend they ended with the last Mark.
+        long now = TraceAnalyzer.lastNanoTime(markList, 0);
+        inFlight.addLast(pool.submit(new FoldingWalker(markList, now)));
+      }
+    }
+    while (!inFlight.isEmpty()) {
+      into.merge(inFlight.removeFirst().join());
+    }
+  }
+
+  /** Returns the time spent in all tasks, not counting nested tasks twice. */
+  public long getTotalNanos() {
+    return root.totalNanos;
+  }
+
+  /**
+   * Writes one line per stack, with the task names from the outermost to the innermost separated
+   * by semicolons, followed by a space and the weight in nanoseconds. Semicolons and line breaks
+   * in task names are replaced, so that each line can be split unambiguously.
+   *
+   * @param writer the destination.
+   * @param weight how to weigh each stack.
+   * @throws IOException if the writer fails.
+   */
+  public void writeFoldedStacks(Writer writer, Weight weight) throws IOException {
+    if (weight == null) {
+      throw new NullPointerException("weight");
+    }
+    StringBuilder stack = new StringBuilder();
+    for (Node child : root.sortedChildren()) {
+      writeFolded(writer, child, stack, weight);
+    }
+    writer.flush();
+  }
+
+  private static void writeFolded(Writer writer, Node node, StringBuilder stack, Weight weight)
+      throws IOException {
+    int length = stack.length();
+    if (length != 0) {
+      stack.append(';');
+    }
+    appendFoldedName(stack, node.name);
+    long value = weight == Weight.SELF_TIME ? node.selfNanos : node.totalNanos;
+    if (value > 0) {
+      writer.append(stack).append(' ').append(Long.toString(value)).append('\n');
+    }
+    for (Node child : node.sortedChildren()) {
+      writeFolded(writer, child, stack, weight);
+    }
+    stack.setLength(length);
+  }
+
+  private static void appendFoldedName(StringBuilder sb, String name) {
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c == ';') {
+        sb.append('_');
+      } else if (c == '\n' || c == '\r') {
+        sb.append(' ');
+      } else {
+        sb.append(c);
+      }
+    }
+  }
+
+  /**
+   * Draws the flame graph as an SVG image, with the outermost tasks at the bottom. Each frame is as
+   * wide as the time spent in it, and hovering over a frame shows its time and how many times it
+   * ran. Frames too narrow to see are left out.
+   *
+   * @param writer the destination.
+   * @param title the title drawn above the graph.
+   * @throws IOException if the writer fails.
+   */
+  public void writeSvg(Writer writer, String title) throws IOException {
+    int depth = visibleDepth(root, 0);
+    double height = 2 * SVG_PAD + SVG_TITLE_HEIGHT + (depth + 1) * FRAME_HEIGHT;
+    writer.write(
+        String.format(
+            Locale.ROOT,
+            "<?xml version=\"1.0\" standalone=\"no\"?>\n"
+                + "<svg version=\"1.1\" width=\"%d\" height=\"%.0f\" viewBox=\"0 0 %d %.0f\""
+                + " xmlns=\"http://www.w3.org/2000/svg\">\n"
+                + "<style>text { font-family: Verdana, sans-serif; font-size: 12px; }</style>\n"
+                + "<rect x=\"0\" y=\"0\" width=\"100%%\" height=\"100%%\" fill=\"#f8f8f8\"/>\n"
+                + "<text x=\"%d\" y=\"%d\" text-anchor=\"middle\" style=\"font-size: 16px\">",
+            SVG_WIDTH,
+            height,
+            SVG_WIDTH,
+            height,
+            SVG_WIDTH / 2,
+            SVG_PAD + 16));
+    writeXmlEscaped(writer, title != null ? title : "");
+    writer.write("</text>\n");
+    writeSvgFrame(writer, root, SVG_PAD, height - SVG_PAD - FRAME_HEIGHT, root.totalNanos);
+    writer.write("</svg>\n");
+    writer.flush();
+  }
+
+  private static void writeSvgFrame(Writer writer, Node node, double x, double y, long total)
+      throws IOException {
+    double width = frameWidth(node, total);
+    if (width < MIN_FRAME_WIDTH) {
+      return;
+    }
+    writer.write("<g><title>");
+    writeXmlEscaped(writer, node.name);
+    writer.write(
+        String.format(
+            Locale.ROOT,
+            " (%s, %.2f%%",
+            TraceAnalyzer.formatNanos(node.totalNanos),
+            total != 0 ? 100.0 * node.totalNanos / total : 0));
+    // The root isn't a task, so it never runs.
+    writer.write(node.count != 0 ? ", " + node.count + " runs)</title>" : ")</title>");
+    writer.write(
+        String.format(
+            Locale.ROOT,
+            "<rect x=\"%.1f\" y=\"%.1f\" width=\"%.1f\" height=\"%d\" fill=\"%s\" rx=\"2\"/>",
+            x,
+            y,
+            width,
+            FRAME_HEIGHT - 1,
+            color(node.name)));
+    int fits = (int) ((width - 6) / CHAR_WIDTH);
+    if (fits >= 3) {
+      String label = node.name;
+      if (label.length() > fits) {
+        label = label.substring(0, fits - 2) + "..";
+      }
+      writer.write(String.format(Locale.ROOT, "<text x=\"%.1f\" y=\"%.1f\">", x + 3, y + 11.5));
+      writeXmlEscaped(writer, label);
+      writer.write("</text>");
+    }
+    writer.write("</g>\n");
+    double childX = x;
+    for (Node child : node.sortedChildren()) {
+      writeSvgFrame(writer, child, childX, y - FRAME_HEIGHT, total);
+      childX += frameWidth(child, total);
+    }
+  }
+
+  private static double frameWidth(Node node, long total) {
+    return total != 0 ? (double) node.totalNanos / total * (SVG_WIDTH - 2 * SVG_PAD) : 0;
+  }
+
+  private int visibleDepth(Node node, int depth) {
+    int deepest = depth;
+    if (node.children != null) {
+      for (Node child : node.children.values()) {
+        if (frameWidth(child, root.totalNanos) >= MIN_FRAME_WIDTH) {
+          deepest = Math.max(deepest, visibleDepth(child, depth + 1));
+        }
+      }
+    }
+    return deepest;
+  }
+
+  /** Picks a warm color from the name, so the same task has the same color in every graph. */
+  private static String color(String name) {
+    int hash = name.hashCode() * 0x9E3779B9;
+    int red = 205 + ((hash >>> 8) & 0xFF) % 50;
+    int green = ((hash >>> 16) & 0xFF) % 230;
+    int blue = ((hash >>> 24) & 0xFF) % 55;
+    return String.format(Locale.ROOT, "rgb(%d,%d,%d)", red, green, blue);
+  }
+
+  private static void writeXmlEscaped(Writer writer, String s) throws IOException {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '&':
+          writer.write("&amp;");
+          break;
+        case '<':
+          writer.write("&lt;");
+          break;
+        case '>':
+          writer.write("&gt;");
+          break;
+        case '"':
+          writer.write("&quot;");
+          break;
+        default:
+          if (c < ' ') {
+            writer.write(' ');
+          } else {
+            writer.write(c);
+          }
+      }
+    }
+  }
+
+  /**
+   * Runs the flame graph writer from the command line, writing to standard out.
+   *
+   * @param args the flags and trace files, as described in the class docs.
+   * @throws IOException if a trace can't be read.
+   */
+  public static void main(String[] args) throws IOException {
+    String format = "folded";
+    Weight weight = Weight.SELF_TIME;
+    String title = "Flame Graph";
+    boolean badArgs = false;
+    List<Path> traces = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--format=")) {
+        format = arg.substring("--format=".length());
+        badArgs |= !format.equals("folded") && !format.equals("svg");
+      } else if (arg.equals("--weight=self")) {
+        weight = Weight.SELF_TIME;
+      } else if (arg.equals("--weight=duration")) {
+        weight = Weight.DURATION;
+      } else if (arg.startsWith("--title=")) {
+        title = arg.substring("--title=".length());
+      } else if (arg.startsWith("--")) {
+        badArgs = true;
+      } else {
+        traces.add(Paths.get(arg));
+      }
+    }
+    if (badArgs || traces.isEmpty()) {
+      usage(System.err);
+      System.exit(2);
+      return;
+    }
+
+    Node root = new Node(ROOT_NAME);
+    for (Path trace : traces) {
+      read(trace, ForkJoinPool.commonPool(), root);
+    }
+    FlameGraph flameGraph = new FlameGraph(root);
+    Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+    if (format.equals("svg")) {
+      flameGraph.writeSvg(out, title);
+    } else {
+      flameGraph.writeFoldedStacks(out, weight);
+    }
+    out.flush();
+  }
+
+  private static void usage(PrintStream err) {
+    err.println(
+        "Usage: FlameGraph [--format=folded|svg] [--weight=self|duration] [--title=TITLE]"
+            + " TRACE_FILE...");
+  }
+
+  private static final String ROOT_NAME = "all";
+  private static final int SVG_WIDTH = 1200;
+  private static final int SVG_PAD = 10;
+  private static final int SVG_TITLE_HEIGHT = 24;
+  private static final int FRAME_HEIGHT = 16;
+  private static final double MIN_FRAME_WIDTH = 0.1;
+  private static final double CHAR_WIDTH = 7;
+
+  /** All the runs of one stack of task names. */
+  private static final class Node {
+    final String name;
+
+    /** {@code Nullable} */
+    Map<String, Node> children;
+
+    long selfNanos;
+    long totalNanos;
+    long count;
+
+    Node(String name) {
+      this.name = name;
+    }
+
+    Node child(String name) {
+      if (children == null) {
+        children = new HashMap<>();
+      }
+      Node child = children.get(name);
+      if (child == null) {
+        children.put(name, child = new Node(name));
+      }
+      return child;
+    }
+
+    List<Node> sortedChildren() {
+      if (children == null) {
+        return Collections.emptyList();
+      }
+      List<Node> sorted = new ArrayList<>(children.values());
+      Collections.sort(sorted, BY_NAME);
+      return sorted;
+    }
+
+    void merge(Node other) {
+      selfNanos += other.selfNanos;
+      totalNanos += other.totalNanos;
+      count += other.count;
+      if (other.children != null) {
+        for (Node otherChild : other.children.values()) {
+          child(otherChild.name).merge(otherChild);
+        }
+      }
+    }
+
+    private static final Comparator<Node> BY_NAME =
+        new Comparator<Node>() {
+          @Override
+          public int compare(Node a, Node b) {
+            return a.name.compareTo(b.name);
+          }
+        };
+  }
+
+  /** Folds the tasks of one MarkList into a tree of its own, to be merged later. */
+  private static final class FoldingWalker extends MarkListWalker implements Callable<Node> {
+    private static final class Frame {
+      final Node node;
+      final long startNanoTime;
+      long childNanos;
+
+      Frame(Node node, long startNanoTime) {
+        this.node = node;
+        this.startNanoTime = startNanoTime;
+      }
+    }
+
+    private final MarkList markList;
+    private final long nowNanoTime;
+    private final Node root = new Node(ROOT_NAME);
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    FoldingWalker(MarkList markList, long nowNanoTime) {
+      this.markList = markList;
+      this.nowNanoTime = nowNanoTime;
+    }
+
+    @Override
+    public Node call() {
+      walkMarkList(markList, nowNanoTime);
+      return root;
+    }
+
+    @Override
+    protected void onTaskStart(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
+      Frame parent = stack.peekLast();
+      Node parentNode = parent != null ? parent.node : root;
+      Node node = parentNode.child(TraceEventWriter.taskName(mark));
+      stack.addLast(new Frame(node, mark.getNanoTime()));
+    }
+
+    @Override
+    protected void onTaskEnd(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
+      Frame frame = stack.pollLast();
+      if (frame == null) {
+        return;
+      }
+      long duration = Math.max(0, mark.getNanoTime() - frame.startNanoTime);
+      frame.node.count++;
+      frame.node.totalNanos += duration;
+      frame.node.selfNanos += Math.max(0, duration - frame.childNanos);
+      Frame parent = stack.peekLast();
+      if (parent != null) {
+        parent.childNanos += duration;
+      } else {
+        root.totalNanos += duration;
+      }
+    }
+  }
+}
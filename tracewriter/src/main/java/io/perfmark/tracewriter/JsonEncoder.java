@@ -0,0 +1,269 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Encodes JSON directly to UTF-8 bytes in a reusable buffer. Names (task names, tag keys, and the
+ * like) are usually the same few String instances over and over, so their escaped and encoded form
+ * is cached by identity. Numbers are formatted directly into the buffer.
+ *
+ * <p>The buffer is only written out by {@link #maybeFlush()} and {@link #flush()}, which callers
+ * should only invoke between whole values. This keeps multibyte characters from being split when
+ * the destination is a {@link Writer}.
+ *
+ * <p>This class is not thread safe.
+ */
+final class JsonEncoder {
+  private static final int FLUSH_THRESHOLD = 1 << 15;
+
+  /** Past this, the name cache is most likely full of one-off strings, so it gets cleared. */
+  private static final int MAX_CACHED_NAMES = 4096;
+
+  private static final byte[] HEX_TABLE = "0123456789abcdef".getBytes(UTF_8);
+
+  private static final byte[][] ESCAPES = new byte[128][];
+
+  static {
+    for (char c = 0; c < 0x20; c++) {
+      String hex = "" + (char) HEX_TABLE[c >>> 4] + (char) HEX_TABLE[c & 0xF];
+      ESCAPES[c] = ("\\u00" + hex).getBytes(UTF_8);
+    }
+    ESCAPES['\b'] = "\\b".getBytes(UTF_8);
+    ESCAPES['\t'] = "\\t".getBytes(UTF_8);
+    ESCAPES['\n'] = "\\n".getBytes(UTF_8);
+    ESCAPES['\f'] = "\\f".getBytes(UTF_8);
+    ESCAPES['\r'] = "\\r".getBytes(UTF_8);
+    ESCAPES['"'] = "\\\"".getBytes(UTF_8);
+    ESCAPES['\\'] = "\\\\".getBytes(UTF_8);
+    // See comments in GSON's JsonWriter for why these are escaped.
+    ESCAPES['<'] = "\\u003c".getBytes(UTF_8);
+    ESCAPES['>'] = "\\u003e".getBytes(UTF_8);
+    ESCAPES['&'] = "\\u0026".getBytes(UTF_8);
+    ESCAPES['='] = "\\u003d".getBytes(UTF_8);
+    ESCAPES['\''] = "\\u0027".getBytes(UTF_8);
+  }
+
+  /** {@code Nullable} */
+  private final OutputStream out;
+
+  /** {@code Nullable} */
+  private final Writer writer;
+
+  private final Map<String, byte[]> nameCache = new IdentityHashMap<>();
+
+  private byte[] buf;
+  private int pos;
+
+  /** Creates an encoder that keeps everything in memory, for use with {@link #writeEncoded}. */
+  JsonEncoder() {
+    this(null, null, 1024);
+  }
+
+  JsonEncoder(OutputStream out) {
+    this(out, null, FLUSH_THRESHOLD + 1024);
+  }
+
+  JsonEncoder(Writer writer) {
+    this(null, writer, FLUSH_THRESHOLD + 1024);
+  }
+
+  private JsonEncoder(OutputStream out, Writer writer, int initialCapacity) {
+    this.out = out;
+    this.writer = writer;
+    this.buf = new byte[initialCapacity];
+  }
+
+  /** Writes a single ASCII character, such as a brace or comma. */
+  void writeAscii(char c) {
+    assert c < 0x80;
+    ensureCapacity(1);
+    buf[pos++] = (byte) c;
+  }
+
+  /** Writes literal JSON text, without quoting or escaping. It must only contain ASCII. */
+  void writeAscii(String s) {
+    int len = s.length();
+    ensureCapacity(len);
+    for (int i = 0; i < len; i++) {
+      buf[pos++] = (byte) s.charAt(i);
+    }
+  }
+
+  /**
+   * Writes a quoted and escaped JSON string which is likely to be written again, such as a task
+   * name or tag key.
+   */
+  void writeName(String s) {
+    byte[] encoded = nameCache.get(s);
+    if (encoded == null) {
+      int start = pos;
+      writeString(s);
+      encoded = Arrays.copyOfRange(buf, start, pos);
+      if (nameCache.size() >= MAX_CACHED_NAMES) {
+        nameCache.clear();
+      }
+      nameCache.put(s, encoded);
+      return;
+    }
+    ensureCapacity(encoded.length);
+    System.arraycopy(encoded, 0, buf, pos, encoded.length);
+    pos += encoded.length;
+  }
+
+  /** Writes a quoted and escaped JSON string. */
+  void writeString(String s) {
+    int len = s.length();
+    // Escapes are at most 6 bytes per char, which is more than UTF-8 ever needs.
+    ensureCapacity(len * 6 + 2);
+    byte[] buf = this.buf;
+    int pos = this.pos;
+    buf[pos++] = '"';
+    // Chars that don't need escaping are encoded a run at a time.
+    int runStart = 0;
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        byte[] escape = ESCAPES[c];
+        if (escape != null) {
+          pos = Utf8.encode(s, runStart, i, buf, pos);
+          System.arraycopy(escape, 0, buf, pos, escape.length);
+          pos += escape.length;
+          runStart = i + 1;
+        }
+      } else if (c == '\u2028' || c == '\u2029') {
+        pos = Utf8.encode(s, runStart, i, buf, pos);
+        buf[pos++] = '\\';
+        buf[pos++] = 'u';
+        buf[pos++] = '2';
+        buf[pos++] = '0';
+        buf[pos++] = '2';
+        buf[pos++] = HEX_TABLE[c & 0xF];
+        runStart = i + 1;
+      }
+    }
+    pos = Utf8.encode(s, runStart, len, buf, pos);
+    buf[pos++] = '"';
+    this.pos = pos;
+  }
+
+  void writeLong(long value) {
+    ensureCapacity(20);
+    if (value < 0) {
+      if (value == Long.MIN_VALUE) {
+        writeAscii(Long.toString(value));
+        return;
+      }
+      buf[pos++] = '-';
+      value = -value;
+    }
+    writeDigits(value, 1);
+  }
+
+  /**
+   * Writes a nanosecond duration as microseconds, with exactly three decimal places. Unlike
+   * formatting a double, this never switches to exponent notation or loses precision.
+   */
+  void writeMicros(long nanos) {
+    ensureCapacity(21);
+    if (nanos < 0) {
+      if (nanos == Long.MIN_VALUE) {
+        // Can't be negated, but is far from any real timestamp.
+        writeAscii("-9223372036854775.808");
+        return;
+      }
+      buf[pos++] = '-';
+      nanos = -nanos;
+    }
+    writeDigits(nanos / 1000, 1);
+    buf[pos++] = '.';
+    writeDigits(nanos % 1000, 3);
+  }
+
+  /** Writes the non-negative value, left padded with zeros to at least {@code minDigits}. */
+  private void writeDigits(long value, int minDigits) {
+    int digits = 1;
+    for (long v = value / 10; v != 0; v /= 10) {
+      digits++;
+    }
+    digits = Math.max(digits, minDigits);
+    int end = pos + digits;
+    for (int i = end - 1; i >= pos; i--) {
+      buf[i] = (byte) ('0' + (value % 10));
+      value /= 10;
+    }
+    pos = end;
+  }
+
+  /** Copies the contents of an in-memory encoder, and clears it. */
+  void writeEncoded(JsonEncoder other) throws IOException {
+    if (pos + other.pos > buf.length && (out != null || writer != null)) {
+      // Avoid growing the buffer for large chunks, and just write them directly.
+      flush();
+      if (out != null) {
+        out.write(other.buf, 0, other.pos);
+      } else {
+        writer.write(new String(other.buf, 0, other.pos, UTF_8));
+      }
+    } else {
+      ensureCapacity(other.pos);
+      System.arraycopy(other.buf, 0, buf, pos, other.pos);
+      pos += other.pos;
+    }
+    other.pos = 0;
+  }
+
+  int size() {
+    return pos;
+  }
+
+  /** Writes out the buffer if it is getting full. */
+  void maybeFlush() throws IOException {
+    if (pos >= FLUSH_THRESHOLD) {
+      flush();
+    }
+  }
+
+  /** Writes out the buffer, but does not flush the underlying destination. */
+  void flush() throws IOException {
+    if (pos == 0) {
+      return;
+    }
+    if (out != null) {
+      out.write(buf, 0, pos);
+    } else if (writer != null) {
+      writer.write(new String(buf, 0, pos, UTF_8));
+    } else {
+      return;
+    }
+    pos = 0;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (pos + extra > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+    }
+  }
+}
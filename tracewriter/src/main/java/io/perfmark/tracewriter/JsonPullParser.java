@@ -0,0 +1,374 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A small pull parser for UTF-8 JSON, reading from a channel through a fixed size buffer. Only one
+ * token is looked at a time, so arbitrarily large documents can be read in bounded memory.
+ *
+ * <p>The parser is lenient about separators: commas and colons are treated like whitespace. This
+ * is enough to read well-formed documents, which is all the trace files are expected to be.
+ *
+ * <p>This class is not thread safe.
+ */
+final class JsonPullParser {
+  static final int BEGIN_OBJECT = '{';
+  static final int END_OBJECT = '}';
+  static final int BEGIN_ARRAY = '[';
+  static final int END_ARRAY = ']';
+  static final int STRING = '"';
+  static final int NUMBER = '0';
+  static final int LITERAL = 'l';
+  static final int END_DOCUMENT = -1;
+
+  private final ReadableByteChannel channel;
+  private final ByteBuffer buffer;
+  private final StringBuilder sb = new StringBuilder();
+
+  JsonPullParser(ReadableByteChannel channel) {
+    this(channel, 1 << 16);
+  }
+
+  JsonPullParser(ReadableByteChannel channel, int bufferSize) {
+    this.channel = channel;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+    buffer.flip();
+  }
+
+  /** Returns the kind of the next token, without consuming it. */
+  int peek() throws IOException {
+    while (true) {
+      if (!buffer.hasRemaining() && !fill()) {
+        return END_DOCUMENT;
+      }
+      int b = buffer.get(buffer.position());
+      switch (b) {
+        case ' ':
+        case '\t':
+        case '\n':
+        case '\r':
+        case ',':
+        case ':':
+          buffer.get();
+          continue;
+        case '{':
+        case '}':
+        case '[':
+        case ']':
+        case '"':
+          return b;
+        case '-':
+        case '0':
+        case '1':
+        case '2':
+        case '3':
+        case '4':
+        case '5':
+        case '6':
+        case '7':
+        case '8':
+        case '9':
+          return NUMBER;
+        case 't':
+        case 'f':
+        case 'n':
+          return LITERAL;
+        default:
+          throw new IOException("Unexpected character '" + (char) b + "'");
+      }
+    }
+  }
+
+  void beginObject() throws IOException {
+    expect(BEGIN_OBJECT);
+  }
+
+  void endObject() throws IOException {
+    expect(END_OBJECT);
+  }
+
+  void beginArray() throws IOException {
+    expect(BEGIN_ARRAY);
+  }
+
+  void endArray() throws IOException {
+    expect(END_ARRAY);
+  }
+
+  /** Returns true if the current object or array has more members. */
+  boolean hasNext() throws IOException {
+    int token = peek();
+    return token != END_OBJECT && token != END_ARRAY && token != END_DOCUMENT;
+  }
+
+  /** Reads a string, which may also be an object member name. */
+  String nextString() throws IOException {
+    expect(STRING);
+    sb.setLength(0);
+    while (true) {
+      int b = nextByte();
+      if (b == '"') {
+        return sb.toString();
+      } else if (b == '\\') {
+        readEscape();
+      } else if (b >= 0) {
+        sb.append((char) b);
+      } else if ((b & 0xE0) == 0xC0) {
+        sb.append((char) (((b & 0x1F) << 6) | continuation()));
+      } else if ((b & 0xF0) == 0xE0) {
+        int c = (b & 0x0F) << 12;
+        c |= continuation() << 6;
+        c |= continuation();
+        sb.append((char) c);
+      } else if ((b & 0xF8) == 0xF0) {
+        int cp = (b & 0x07) << 18;
+        cp |= continuation() << 12;
+        cp |= continuation() << 6;
+        cp |= continuation();
+        sb.appendCodePoint(cp);
+      } else {
+        throw new IOException("Bad UTF-8");
+      }
+    }
+  }
+
+  long nextLong() throws IOException {
+    return nextDecimal(0);
+  }
+
+  /**
+   * Reads a number, scaled by {@code 10^scale} and rounded to a whole number. For example, a
+   * timestamp in microseconds can be read as nanoseconds with a scale of 3, without the loss of
+   * precision of going through a double.
+   */
+  long nextDecimal(int scale) throws IOException {
+    readNumber();
+    return parseDecimal(sb, scale);
+  }
+
+  /** Reads a number as it was written. */
+  String nextNumber() throws IOException {
+    readNumber();
+    return sb.toString();
+  }
+
+  /** Reads {@code true}, {@code false}, or {@code null}, returning null for the latter. */
+  Boolean nextLiteral() throws IOException {
+    if (peek() != LITERAL) {
+      throw new IOException("Expected a literal");
+    }
+    switch (nextByte()) {
+      case 't':
+        expectBytes("rue");
+        return Boolean.TRUE;
+      case 'f':
+        expectBytes("alse");
+        return Boolean.FALSE;
+      default:
+        expectBytes("ull");
+        return null;
+    }
+  }
+
+  /** Skips the next value, including everything nested inside of it. */
+  void skipValue() throws IOException {
+    int depth = 0;
+    do {
+      switch (peek()) {
+        case BEGIN_OBJECT:
+        case BEGIN_ARRAY:
+          buffer.get();
+          depth++;
+          break;
+        case END_OBJECT:
+        case END_ARRAY:
+          buffer.get();
+          depth--;
+          break;
+        case STRING:
+          nextString();
+          break;
+        case NUMBER:
+          readNumber();
+          break;
+        case LITERAL:
+          nextLiteral();
+          break;
+        case END_DOCUMENT:
+          throw new EOFException();
+        default:
+          throw new AssertionError();
+      }
+    } while (depth > 0);
+  }
+
+  static long parseDecimal(CharSequence number, int scale) throws IOException {
+    // Fast path for plain numbers, like the ones TraceEventWriter writes.
+    int len = number.length();
+    int i = 0;
+    boolean negative = false;
+    if (len > 0 && number.charAt(0) == '-') {
+      negative = true;
+      i++;
+    }
+    long value = 0;
+    int digits = 0;
+    int fractionDigits = -1;
+    for (; i < len; i++) {
+      char c = number.charAt(i);
+      if (c >= '0' && c <= '9') {
+        if (fractionDigits >= 0) {
+          if (fractionDigits == scale) {
+            break;
+          }
+          fractionDigits++;
+        }
+        if (++digits > 18) {
+          break;
+        }
+        value = value * 10 + (c - '0');
+      } else if (c == '.' && fractionDigits < 0) {
+        fractionDigits = 0;
+      } else {
+        break;
+      }
+    }
+    int missingDigits = scale - Math.max(fractionDigits, 0);
+    if (i == len && digits > 0 && digits + missingDigits <= 18) {
+      for (int f = 0; f < missingDigits; f++) {
+        value *= 10;
+      }
+      return negative ? -value : value;
+    }
+    try {
+      return new BigDecimal(number.toString())
+          .movePointRight(scale)
+          .setScale(0, RoundingMode.HALF_EVEN)
+          .longValueExact();
+    } catch (NumberFormatException | ArithmeticException e) {
+      throw new IOException("Bad number " + number, e);
+    }
+  }
+
+  private void readNumber() throws IOException {
+    if (peek() != NUMBER) {
+      throw new IOException("Expected a number");
+    }
+    sb.setLength(0);
+    while (buffer.hasRemaining() || fill()) {
+      byte b = buffer.get(buffer.position());
+      if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+        sb.append((char) b);
+        buffer.get();
+      } else {
+        break;
+      }
+    }
+  }
+
+  private void readEscape() throws IOException {
+    int b = nextByte();
+    switch (b) {
+      case '"':
+      case '\\':
+      case '/':
+        sb.append((char) b);
+        return;
+      case 'b':
+        sb.append('\b');
+        return;
+      case 'f':
+        sb.append('\f');
+        return;
+      case 'n':
+        sb.append('\n');
+        return;
+      case 'r':
+        sb.append('\r');
+        return;
+      case 't':
+        sb.append('\t');
+        return;
+      case 'u':
+        int c = 0;
+        for (int i = 0; i < 4; i++) {
+          c = (c << 4) | Character.digit(nextByte(), 16);
+        }
+        if (c < 0) {
+          throw new IOException("Bad unicode escape");
+        }
+        // Surrogate pairs come as two escapes, which are appended one after the other.
+        sb.append((char) c);
+        return;
+      default:
+        throw new IOException("Bad escape '" + (char) b + "'");
+    }
+  }
+
+  private int continuation() throws IOException {
+    int b = nextByte();
+    if ((b & 0xC0) != 0x80) {
+      throw new IOException("Bad UTF-8");
+    }
+    return b & 0x3F;
+  }
+
+  private void expect(int token) throws IOException {
+    int actual = peek();
+    if (actual != token) {
+      String found = actual == END_DOCUMENT ? "end of input" : "'" + (char) actual + "'";
+      throw new IOException("Expected '" + (char) token + "' but found " + found);
+    }
+    buffer.get();
+  }
+
+  private void expectBytes(String s) throws IOException {
+    for (int i = 0; i < s.length(); i++) {
+      if (nextByte() != s.charAt(i)) {
+        throw new IOException("Bad literal");
+      }
+    }
+  }
+
+  /** Returns the next byte, sign extended as usual. */
+  private byte nextByte() throws IOException {
+    if (!buffer.hasRemaining() && !fill()) {
+      throw new EOFException();
+    }
+    return buffer.get();
+  }
+
+  private boolean fill() throws IOException {
+    buffer.clear();
+    try {
+      int n;
+      do {
+        n = channel.read(buffer);
+      } while (n == 0);
+      return n > 0;
+    } finally {
+      buffer.flip();
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative durations, with buckets that grow exponentially. Each power of two is
+ * split into 16 buckets, so percentiles are within about 3% of the true value, and the whole range
+ * of longs fits in under a thousand buckets. Only the buckets up to the largest value are kept.
+ *
+ * <p>This class is not thread safe.
+ */
+final class LogHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private long[] counts = new long[SUB_BUCKETS];
+  private long totalCount;
+  private long min = Long.MAX_VALUE;
+  private long max = Long.MIN_VALUE;
+
+  void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    int index = bucketIndex(value);
+    if (index >= counts.length) {
+      counts = Arrays.copyOf(counts, Math.max(index + 1, counts.length * 2));
+    }
+    counts[index]++;
+    totalCount++;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  void merge(LogHistogram other) {
+    if (other.counts.length > counts.length) {
+      counts = Arrays.copyOf(counts, other.counts.length);
+    }
+    for (int i = 0; i < other.counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  long count() {
+    return totalCount;
+  }
+
+  /** Returns the largest value recorded, or 0 if there are no values. */
+  long max() {
+    return totalCount != 0 ? max : 0;
+  }
+
+  /**
+   * Returns the value at the given percentile, such as 99 for the p99.
+   *
+   * @param percentile between 0 and 100.
+   * @return the middle of the bucket holding that value, or 0 if there are no values.
+   */
+  long valueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(percentile / 100 * totalCount);
+    rank = Math.max(1, Math.min(totalCount, rank));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        long lower = bucketLowerBound(i);
+        long upper = bucketLowerBound(i + 1) - 1;
+        long middle = lower + (upper - lower) / 2;
+        return Math.max(min, Math.min(max, middle));
+      }
+    }
+    return max;
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = (index >>> SUB_BUCKET_BITS) - 1;
+    long lower = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+    // The bucket past the last one would overflow.
+    return lower < 0 ? Long.MAX_VALUE : lower;
+  }
+}
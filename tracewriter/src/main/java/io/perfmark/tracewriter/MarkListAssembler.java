@@ -0,0 +1,235 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rebuilds MarkLists from the events of a trace, one thread at a time. This undoes what {@link
+ * MarkListWalker} does when writing: the fake starts and ends it makes up for unmatched tasks are
+ * dropped, and task args are turned back into tag Marks.
+ *
+ * <p>Generations aren't written to traces, but the walker writes each generation in turn, so
+ * returning to a MarkList already seen means the next generation has started. Generations are
+ * numbered in the order they are found, rather than with their original values.
+ */
+final class MarkListAssembler {
+  static final String UNKNOWN_START = "unknownStart";
+  static final String UNFINISHED = "unfinished";
+
+  private final Set<Long> markListsInGeneration = new HashSet<>();
+
+  /** For each open task, whether its end will be one made up by the walker. */
+  private final Deque<Boolean> fakeEnds = new ArrayDeque<>();
+
+  private long generation;
+  private List<Mark> marks;
+  private long markRecorderId;
+  private long threadId;
+  private String threadName;
+
+  boolean hasMarkList() {
+    return marks != null;
+  }
+
+  long currentMarkRecorderId() {
+    return markRecorderId;
+  }
+
+  /**
+   * Starts collecting Marks for a new MarkList.
+   *
+   * @return the MarkList that was being collected before, or {@code null} if there was none or it
+   *     was empty.
+   */
+  MarkList startMarkList(long markRecorderId, long threadId, String threadName) {
+    MarkList previous = finishMarkList();
+    if (!markListsInGeneration.add(markRecorderId)) {
+      generation++;
+      markListsInGeneration.clear();
+      markListsInGeneration.add(markRecorderId);
+    }
+    this.marks = new ArrayList<>();
+    this.markRecorderId = markRecorderId;
+    this.threadId = threadId;
+    this.threadName = threadName;
+    return previous;
+  }
+
+  /**
+   * Finishes the current MarkList.
+   *
+   * @return the MarkList, or {@code null} if there was none or it was empty.
+   */
+  MarkList finishMarkList() {
+    List<Mark> finished = marks;
+    marks = null;
+    fakeEnds.clear();
+    if (finished == null || finished.isEmpty()) {
+      return null;
+    }
+    return MarkList.newBuilder()
+        .setMarks(finished)
+        .setMarkRecorderId(markRecorderId)
+        .setThreadId(threadId)
+        .setThreadName(threadName)
+        .build();
+  }
+
+  /** The category is the one written by the walker, or {@code null}. */
+  void taskStart(long nanoTime, String name, String category) {
+    if (UNKNOWN_START.equals(category)) {
+      fakeEnds.addLast(false);
+      return;
+    }
+    fakeEnds.addLast(UNFINISHED.equals(category));
+    marks.add(Mark.taskStart(generation, nanoTime, name));
+  }
+
+  /** The name is {@code Nullable}. */
+  void taskEnd(long nanoTime, String name) {
+    Boolean fakeEnd = fakeEnds.pollLast();
+    if (fakeEnd != null && fakeEnd) {
+      return;
+    }
+    if (name == null) {
+      marks.add(Mark.taskEnd(generation, nanoTime));
+    } else {
+      marks.add(Mark.taskEnd(generation, nanoTime, name));
+    }
+  }
+
+  /** The tag name and id are {@code Nullable}. */
+  void event(long nanoTime, String name, String tagName, Long tagId) {
+    if (tagName == null && tagId == null) {
+      marks.add(Mark.event(generation, nanoTime, name));
+    } else {
+      marks.add(
+          Mark.event(
+              generation,
+              nanoTime,
+              name,
+              tagName != null ? tagName : Mark.NO_TAG_NAME,
+              tagId != null ? tagId : Mark.NO_TAG_ID));
+    }
+  }
+
+  /**
+   * Adds a tag from an arg of a task. The unkeyed tags are written with the names "tag" and "id",
+   * and keyed tags with two numbers as {@code "first:second"}, so those are turned back into the
+   * Marks they most likely came from.
+   */
+  void tag(String key, Object value) {
+    if (value instanceof Long) {
+      long number = (Long) value;
+      if ("id".equals(key)) {
+        marks.add(Mark.tag(generation, number));
+      } else {
+        marks.add(Mark.keyedTag(generation, key, number));
+      }
+      return;
+    }
+    String string = String.valueOf(value);
+    if ("tag".equals(key)) {
+      marks.add(Mark.tag(generation, string));
+      return;
+    }
+    int colon = string.indexOf(':');
+    if (colon > 0 && isLong(string, 0, colon) && isLong(string, colon + 1, string.length())) {
+      marks.add(
+          Mark.keyedTag(
+              generation,
+              key,
+              Long.parseLong(string.substring(0, colon)),
+              Long.parseLong(string.substring(colon + 1))));
+      return;
+    }
+    marks.add(Mark.keyedTag(generation, key, string));
+  }
+
+  void link(long linkId) {
+    marks.add(Mark.link(generation, linkId));
+  }
+
+  /**
+   * Adds a link to the latest task that started at the given time, after its tags and links. This
+   * is for formats that write links apart from the task they belong to.
+   *
+   * @return false if there is no such task.
+   */
+  boolean linkAt(long taskStartNanoTime, long linkId) {
+    return insertLink(marks, taskStartNanoTime, linkId);
+  }
+
+  /**
+   * Adds a link to an already finished MarkList, like {@link #linkAt}.
+   *
+   * @return the MarkList with the link, or {@code null} if there is no such task.
+   */
+  static MarkList withLinkAt(MarkList markList, long taskStartNanoTime, long linkId) {
+    List<Mark> marks = new ArrayList<>(markList);
+    if (!insertLink(marks, taskStartNanoTime, linkId)) {
+      return null;
+    }
+    return markList.toBuilder().setMarks(marks).build();
+  }
+
+  private static boolean insertLink(List<Mark> marks, long taskStartNanoTime, long linkId) {
+    for (int i = marks.size() - 1; i >= 0; i--) {
+      Mark mark = marks.get(i);
+      if (mark.getOperation().getOpType() == Mark.OperationType.TASK_START
+          && mark.getNanoTime() == taskStartNanoTime) {
+        int pos = i + 1;
+        // Links already added stay first, so links come back in the order they were read.
+        while (pos < marks.size() && isTagOrLink(marks.get(pos))) {
+          pos++;
+        }
+        marks.add(pos, Mark.link(mark.getGeneration(), linkId));
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isTagOrLink(Mark mark) {
+    return mark.getOperation().getOpType() == Mark.OperationType.TAG
+        || mark.getOperation().getOpType() == Mark.OperationType.LINK;
+  }
+
+  private static boolean isLong(String s, int start, int end) {
+    if (start < end && s.charAt(start) == '-') {
+      start++;
+    }
+    if (start == end || end - start > 18) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import io.perfmark.impl.MarkList;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/** Something MarkLists can be read from one at a time, such as a trace file. */
+interface MarkListSource extends Closeable {
+  /**
+   * Reads the next MarkList.
+   *
+   * @return the next MarkList, or {@code null} if there are no more.
+   * @throws IOException if the MarkList can't be read.
+   */
+  MarkList nextMarkList() throws IOException;
+
+  /**
+   * Reads all the remaining MarkLists. Since they are all held in memory anyway, this may keep
+   * parts of the trace that {@link #nextMarkList} has to drop, such as links between threads.
+   *
+   * @return the MarkLists, in the order they were read.
+   * @throws IOException if a MarkList can't be read.
+   */
+  List<MarkList> readAll() throws IOException;
+
+  /**
+   * Returns the wall clock time of the start of the trace, which Mark times are relative to. Since
+   * the clock anchor may be anywhere in the trace, this is only known once it has all been read.
+   *
+   * @return the nanoseconds since the Unix epoch, or {@code null} if the trace doesn't say, or
+   *     hasn't all been read yet. {@code Nullable}
+   */
+  Long getTraceStartUnixNanos();
+
+  /**
+   * Returns the pid of the process the trace was written by.
+   *
+   * @return the pid, or {@code -1} if the trace doesn't say.
+   */
+  long getPid();
+}
@@ -40,28 +40,35 @@ class MarkListWalker {
     for (Map.Entry<Long, List<MarkList>> entry : generationToMarkLists.entrySet()) {
       enterGeneration(entry.getKey());
       for (MarkList markList : entry.getValue()) {
-        enterMarkList(
-            markList.getThreadName(), markList.getThreadId(), markList.getMarkRecorderId());
-        Deque<Mark> fakeStarts = new ArrayDeque<>();
-        Deque<Mark> fakeEnds = new ArrayDeque<>();
-        Set<Mark> unmatchedPairMarks =
-            Collections.newSetFromMap(new IdentityHashMap<Mark, Boolean>());
-        createFakes(fakeStarts, fakeEnds, unmatchedPairMarks, markList, nowNanoTime);
-        for (Mark mark : fakeStarts) {
-          onTaskStart(mark, true, false);
-        }
-        for (Mark mark : markList) {
-          onRealMark(mark, unmatchedPairMarks);
-        }
-        for (Mark mark : fakeEnds) {
-          onTaskEnd(mark, false, true);
-        }
-        exitMarkList();
+        walkMarkList(markList, nowNanoTime);
       }
       exitGeneration();
     }
   }
 
+  /**
+   * Walks a single MarkList, which should only contain Marks of one generation. This does not call
+   * {@link #enterGeneration} or {@link #exitGeneration}, so that MarkLists of the same generation
+   * can be walked independently of each other.
+   */
+  final void walkMarkList(MarkList markList, long nowNanoTime) {
+    enterMarkList(markList.getThreadName(), markList.getThreadId(), markList.getMarkRecorderId());
+    Deque<Mark> fakeStarts = new ArrayDeque<>();
+    Deque<Mark> fakeEnds = new ArrayDeque<>();
+    Set<Mark> unmatchedPairMarks = Collections.newSetFromMap(new IdentityHashMap<Mark, Boolean>());
+    createFakes(fakeStarts, fakeEnds, unmatchedPairMarks, markList, nowNanoTime);
+    for (Mark mark : fakeStarts) {
+      onTaskStart(mark, true, false);
+    }
+    for (Mark mark : markList) {
+      onRealMark(mark, unmatchedPairMarks);
+    }
+    for (Mark mark : fakeEnds) {
+      onTaskEnd(mark, false, true);
+    }
+    exitMarkList();
+  }
+
   protected void enterGeneration(long generation) {}
 
   protected void exitGeneration() {}
@@ -103,7 +110,7 @@ class MarkListWalker {
 
   protected void onAttachTag(Mark mark) {}
 
-  private static Map<Long, List<MarkList>> groupMarkListsByGeneration(
+  static Map<Long, List<MarkList>> groupMarkListsByGeneration(
       List<? extends MarkList> markLists) {
     Map<Long, List<MarkList>> generationToMarkLists = new TreeMap<>();
     for (MarkList markList : markLists) {
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.perfmark.tracewriter;
+
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Writes the PerfMark results as OpenTelemetry spans, in the OTLP JSON encoding. Each matched
+ * task start and stop becomes a span, nested tasks become child spans, tags become span
+ * attributes, and events become span events. A link is written on the span that linked it in,
+ * pointing at the span that created it. The format is defined by {@code ExportTraceServiceRequest}
+ * at <a href="https://opentelemetry.io/docs/specs/otlp/#json-protobuf-encoding">...</a>
+ *
+ * <p>Each call writes one request on a single line, so several exports can be appended to the
+ * same JSON Lines file, as the OpenTelemetry file exporter does. Top level tasks start a new
+ * trace. Span and trace ids are derived from the process, thread and start time of each task, so
+ * exporting overlapping data twice produces the same ids for the same tasks.
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class OtlpJsonWriter {
+
+  private static final Logger logger = Logger.getLogger(OtlpJsonWriter.class.getName());
+
+  static final String DEFAULT_SERVICE_NAME = "perfmark";
+  static final String SCOPE_NAME = "io.perfmark";
+  static final int SPAN_KIND_INTERNAL = 1;
+
+  /**
+   * Writes spans to the home directory, in the same location as {@link
+   * TraceEventWriter#writeTraceEvents()}.
+   *
+   * @throws IOException if there is an error writing to the file.
+   * @return the path used to create the span file.
+   */
+  @CanIgnoreReturnValue
+  public static Path writeSpans() throws IOException {
+    Path p =
+        TraceEventWriter.pickNextDest(
+            TraceEventWriter.guessDirectory(), "perfmark-spans-%03d.otlp.jsonl");
+    try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(p))) {
+      writeSpans(os);
+    }
+    logger.info("Wrote spans to " + p);
+    return p;
+  }
+
+  /**
+   * Writes all recorded tasks as OTLP JSON spans to the given destination.
+   *
+   * @param destination the destination for the JSON data.
+   * @throws IOException if there are errors building the spans, or can't write to the
+   *     destination.
+   */
+  public static void writeSpans(OutputStream destination) throws IOException {
+    writeSpans(
+        destination,
+        Storage.read(),
+        Storage.getInitNanoTime(),
+        Storage.getInitCurrentTimeMillis(),
+        System.nanoTime(),
+        TraceEventWriter.getPid(),
+        DEFAULT_SERVICE_NAME);
+  }
+
+  /**
+   * Writes the tasks of the given mark lists as OTLP JSON spans, followed by a newline.
+   *
+   * @param destination the destination for the JSON data.
+   * @param markLists the data to use to build the spans
+   * @param initNanoTime the time PerfMark classes were first loaded as specified by {@link
+   *     System#nanoTime()}
+   * @param initCurrentTimeMillis the wall clock time at {@code initNanoTime}, as specified by
+   *     {@link System#currentTimeMillis()}
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}.
+   * @param pid the PID of the current process.
+   * @param serviceName the {@code service.name} resource attribute of the spans.
+   * @throws IOException if there are errors building the spans, or can't write to the
+   *     destination.
+   */
+  public static void writeSpans(
+      OutputStream destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long initCurrentTimeMillis,
+      long nowNanoTime,
+      long pid,
+      String serviceName)
+      throws IOException {
+    SpanWalker walker = new SpanWalker(mix(pid * 0x9E3779B97F4A7C15L + initCurrentTimeMillis));
+    walker.walk(markLists, nowNanoTime);
+    long unixNanoOffset = initCurrentTimeMillis * 1_000_000 - initNanoTime;
+
+    JsonEncoder json = new JsonEncoder(destination);
+    json.writeAscii("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+    writeAttribute(json, "service.name", serviceName, true);
+    writeAttribute(json, "process.pid", pid, false);
+    json.writeAscii("]},\"scopeSpans\":[{\"scope\":{\"name\":");
+    json.writeString(SCOPE_NAME);
+    json.writeAscii("},\"spans\":[");
+    boolean first = true;
+    for (Span span : walker.spans) {
+      first = TraceEventWriter.maybeAddComma(json, first);
+      writeSpan(json, span, walker.linkOuts, unixNanoOffset);
+      json.maybeFlush();
+    }
+    json.writeAscii("]}]}]}\n");
+    json.flush();
+    destination.flush();
+  }
+
+  private static void writeSpan(
+      JsonEncoder json, Span span, Map<Long, Span> linkOuts, long unixNanoOffset) {
+    json.writeAscii("{\"traceId\":\"");
+    writeHex(json, span.traceIdHigh);
+    writeHex(json, span.traceIdLow);
+    json.writeAscii("\",\"spanId\":\"");
+    writeHex(json, span.spanId);
+    json.writeAscii('"');
+    if (span.parentSpanId != 0) {
+      json.writeAscii(",\"parentSpanId\":\"");
+      writeHex(json, span.parentSpanId);
+      json.writeAscii('"');
+    }
+    json.writeAscii(",\"name\":");
+    json.writeName(span.name);
+    json.writeAscii(",\"kind\":");
+    json.writeLong(SPAN_KIND_INTERNAL);
+    json.writeAscii(",\"startTimeUnixNano\":");
+    writeUnixNanos(json, span.startNanoTime + unixNanoOffset);
+    json.writeAscii(",\"endTimeUnixNano\":");
+    writeUnixNanos(json, span.endNanoTime + unixNanoOffset);
+
+    json.writeAscii(",\"attributes\":[");
+    writeAttribute(json, "thread.name", span.threadName, true);
+    writeAttribute(json, "thread.id", span.threadId, false);
+    if (span.unknownStart) {
+      json.writeAscii(",{\"key\":\"perfmark.unknown_start\",\"value\":{\"boolValue\":true}}");
+    }
+    if (span.unfinished) {
+      json.writeAscii(",{\"key\":\"perfmark.unfinished\",\"value\":{\"boolValue\":true}}");
+    }
+    writeAttributes(json, span.attributes, false);
+    json.writeAscii(']');
+
+    if (!span.events.isEmpty()) {
+      json.writeAscii(",\"events\":[");
+      boolean first = true;
+      for (SpanEvent event : span.events) {
+        first = TraceEventWriter.maybeAddComma(json, first);
+        json.writeAscii("{\"timeUnixNano\":");
+        writeUnixNanos(json, event.nanoTime + unixNanoOffset);
+        json.writeAscii(",\"name\":");
+        json.writeName(event.name);
+        json.writeAscii(",\"attributes\":[");
+        writeAttributes(json, event.attributes, true);
+        json.writeAscii("]}");
+      }
+      json.writeAscii(']');
+    }
+
+    boolean first = true;
+    for (long linkId : span.linkIns) {
+      Span from = linkOuts.get(linkId);
+      if (from == null) {
+        logger.fine("Link not created by any task");
+        continue;
+      }
+      json.writeAscii(first ? ",\"links\":[" : ",");
+      first = false;
+      json.writeAscii("{\"traceId\":\"");
+      writeHex(json, from.traceIdHigh);
+      writeHex(json, from.traceIdLow);
+      json.writeAscii("\",\"spanId\":\"");
+      writeHex(json, from.spanId);
+      json.writeAscii("\",\"attributes\":[");
+      writeAttribute(json, "perfmark.link_id", linkId, true);
+      json.writeAscii("]}");
+    }
+    if (!first) {
+      json.writeAscii(']');
+    }
+    json.writeAscii('}');
+  }
+
+  private static void writeAttributes(JsonEncoder json, TraceEvent.TagMap tags, boolean first) {
+    for (Map.Entry<String, Object> tag : tags.entrySet()) {
+      if (tag.getValue() instanceof String) {
+        writeAttribute(json, tag.getKey(), (String) tag.getValue(), first);
+      } else if (tag.getValue() instanceof Long) {
+        writeAttribute(json, tag.getKey(), (Long) tag.getValue(), first);
+      } else {
+        throw new UnsupportedOperationException("Unknown type " + tag.getValue());
+      }
+      first = false;
+    }
+  }
+
+  private static void writeAttribute(JsonEncoder json, String key, String value, boolean first) {
+    json.writeAscii(first ? "{\"key\":" : ",{\"key\":");
+    json.writeName(key);
+    json.writeAscii(",\"value\":{\"stringValue\":");
+    json.writeString(value);
+    json.writeAscii("}}");
+  }
+
+  private static void writeAttribute(JsonEncoder json, String key, long value, boolean first) {
+    json.writeAscii(first ? "{\"key\":" : ",{\"key\":");
+    json.writeName(key);
+    // 64 bit integers are written as strings in the JSON encoding of protobuf.
+    json.writeAscii(",\"value\":{\"intValue\":\"");
+    json.writeLong(value);
+    json.writeAscii("\"}}");
+  }
+
+  private static void writeUnixNanos(JsonEncoder json, long unixNanos) {
+    json.writeAscii('"');
+    json.writeLong(unixNanos);
+    json.writeAscii('"');
+  }
+
+  private static void writeHex(JsonEncoder json, long value) {
+    String hex = Long.toHexString(value);
+    for (int i = hex.length(); i < 16; i++) {
+      json.writeAscii('0');
+    }
+    json.writeAscii(hex);
+  }
+
+  /** The SplitMix64 finalizer, which spreads similar inputs over unrelated ids. */
+  static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  private static final class Span {
+    final long traceIdHigh;
+    final long traceIdLow;
+    final long spanId;
+    final long parentSpanId;
+    final String name;
+    final String threadName;
+    final long threadId;
+    final long startNanoTime;
+    final boolean unknownStart;
+    long endNanoTime;
+    boolean unfinished;
+    TraceEvent.TagMap attributes = TraceEvent.TagMap.EMPTY;
+    final List<SpanEvent> events = new ArrayList<>(0);
+    final List<Long> linkIns = new ArrayList<>(0);
+
+    Span(
+        long traceIdHigh,
+        long traceIdLow,
+        long spanId,
+        long parentSpanId,
+        String name,
+        String threadName,
+        long threadId,
+        long startNanoTime,
+        boolean unknownStart) {
+      this.traceIdHigh = traceIdHigh;
+      this.traceIdLow = traceIdLow;
+      this.spanId = spanId;
+      this.parentSpanId = parentSpanId;
+      this.name = name;
+      this.threadName = threadName;
+      this.threadId = threadId;
+      this.startNanoTime = startNanoTime;
+      this.unknownStart = unknownStart;
+    }
+  }
+
+  private static final class SpanEvent {
+    final long nanoTime;
+    final String name;
+    final TraceEvent.TagMap attributes;
+
+    SpanEvent(long nanoTime, String name, TraceEvent.TagMap attributes) {
+      this.nanoTime = nanoTime;
+      this.name = name;
+      this.attributes = attributes;
+    }
+  }
+
+  private static final class SpanWalker extends MarkListWalker {
+    private final long seed;
+
+    /** Finished spans, in the order they ended. */
+    final List<Span> spans = new ArrayList<>();
+    /** The span that created each link, by link id. */
+    final Map<Long, Span> linkOuts = new HashMap<>();
+
+    private final Deque<Span> spanStack = new ArrayDeque<>();
+    private final TaskNames taskNames = new TaskNames();
+    private String threadName;
+    private long threadId;
+    private long markRecorderId;
+
+    SpanWalker(long seed) {
+      this.seed = seed;
+    }
+
+    @Override
+    protected void enterMarkList(String threadName, long threadId, long markRecorderId) {
+      this.threadName = threadName;
+      this.threadId = threadId;
+      this.markRecorderId = markRecorderId;
+    }
+
+    @Override
+    protected void exitMarkList() {
+      spanStack.clear();
+      super.exitMarkList();
+    }
+
+    @Override
+    protected void onTaskStart(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
+      Span parent = spanStack.peekLast();
+      long spanId =
+          mix(mix(seed + markRecorderId) + mark.getNanoTime() * 31 + spanStack.size());
+      if (spanId == 0) {
+        // Zero means no span.
+        spanId = 1;
+      }
+      long traceIdHigh;
+      long traceIdLow;
+      if (parent != null) {
+        traceIdHigh = parent.traceIdHigh;
+        traceIdLow = parent.traceIdLow;
+      } else {
+        traceIdHigh = mix(seed ^ spanId);
+        traceIdLow = spanId;
+      }
+      spanStack.addLast(
+          new Span(
+              traceIdHigh,
+              traceIdLow,
+              spanId,
+              parent != null ? parent.spanId : 0,
+              taskNames.taskName(mark),
+              threadName,
+              threadId,
+              mark.getNanoTime(),
+              unmatchedStart));
+    }
+
+    @Override
+    protected void onTaskEnd(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
+      Span span = spanStack.pollLast();
+      if (span == null) {
+        logger.fine("Task end without a start");
+        return;
+      }
+      span.endNanoTime = mark.getNanoTime();
+      span.unfinished = unmatchedEnd;
+      spans.add(span);
+    }
+
+    @Override
+    protected void onAttachTag(Mark mark) {
+      Span span = spanStack.peekLast();
+      if (span == null) {
+        logger.fine("Tag not associated with any task");
+        return;
+      }
+      span.attributes = TraceEventWriter.withTag(span.attributes, mark);
+    }
+
+    @Override
+    protected void onEvent(Mark mark) {
+      Span span = spanStack.peekLast();
+      if (span == null) {
+        logger.fine("Event not associated with any task");
+        return;
+      }
+      TraceEvent.TagMap attributes = TraceEvent.TagMap.EMPTY;
+      switch (mark.getOperation()) {
+        case EVENT_N2S2:
+        case EVENT_N2S3:
+          attributes =
+              attributes.withUnkeyed(mark.getTagStringValue(), mark.getTagFirstNumeric());
+          break;
+        default:
+          break;
+      }
+      span.events.add(new SpanEvent(mark.getNanoTime(), taskNames.taskName(mark), attributes));
+    }
+
+    @Override
+    protected void onLink(Mark mark) {
+      Span span = spanStack.peekLast();
+      if (span == null) {
+        logger.fine("Link not associated with any task");
+        return;
+      }
+      if (mark.getLinkId() > 0) {
+        linkOuts.put(mark.getLinkId(), span);
+      } else if (mark.getLinkId() < 0) {
+        span.linkIns.add(-mark.getLinkId());
+      }
+    }
+  }
+
+  private OtlpJsonWriter() {
+    throw new AssertionError("nope");
+  }
+}
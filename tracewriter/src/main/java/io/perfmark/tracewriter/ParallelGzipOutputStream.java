@@ -0,0 +1,329 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip output stream that compresses on multiple threads, in the same way as <a
+ * href="https://zlib.net/pigz/">pigz</a>. The input is split into blocks which are deflated
+ * independently on the given executor, each primed with the end of the previous block as a
+ * dictionary. The blocks are then written in order as a single, ordinary gzip member, readable by
+ * {@link java.util.zip.GZIPInputStream} or any other gzip reader.
+ *
+ * <p>This class is not thread safe, but the compression itself happens on the executor.
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class ParallelGzipOutputStream extends FilterOutputStream {
+  private static final int BLOCK_SIZE = 1 << 17;
+  private static final int DICTIONARY_SIZE = 1 << 15;
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int OS_UNKNOWN = 255;
+
+  private final int level;
+  private final Executor executor;
+  private final int maxInFlight;
+  private final Deque<FutureTask<byte[]>> inFlight = new ArrayDeque<>();
+  private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+  private final CRC32 crc = new CRC32();
+
+  private byte[] block = new byte[BLOCK_SIZE];
+  private int blockLength;
+
+  /** {@code Nullable} */
+  private byte[] dictionary;
+
+  private long totalIn;
+  private boolean closed;
+
+  /**
+   * Creates a stream compressing at the default level.
+   *
+   * @param out the stream to write the compressed data to.
+   * @param executor where to compress blocks. Using a direct executor compresses on the calling
+   *     thread.
+   */
+  public ParallelGzipOutputStream(OutputStream out, Executor executor) throws IOException {
+    this(out, Deflater.DEFAULT_COMPRESSION, executor);
+  }
+
+  /**
+   * Creates a stream compressing at the given level.
+   *
+   * @param out the stream to write the compressed data to.
+   * @param level the compression level, from {@link Deflater#NO_COMPRESSION} to {@link
+   *     Deflater#BEST_COMPRESSION}, or {@link Deflater#DEFAULT_COMPRESSION}.
+   * @param executor where to compress blocks. Using a direct executor compresses on the calling
+   *     thread.
+   */
+  public ParallelGzipOutputStream(OutputStream out, int level, Executor executor)
+      throws IOException {
+    super(out);
+    checkLevel(level);
+    if (executor == null) {
+      throw new NullPointerException("executor");
+    }
+    this.level = level;
+    this.executor = executor;
+    // Enough to keep every compressing thread busy while the oldest block is being written out.
+    this.maxInFlight = 2 * parallelism(executor);
+    writeHeader();
+  }
+
+  static void checkLevel(int level) {
+    if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+        && level != Deflater.DEFAULT_COMPRESSION) {
+      throw new IllegalArgumentException("bad level " + level);
+    }
+  }
+
+  /**
+   * Returns how many blocks the executor can compress at once, as far as can be told. Executors
+   * that aren't pools are assumed to run on a thread per core.
+   */
+  private static int parallelism(Executor executor) {
+    int processors = Runtime.getRuntime().availableProcessors();
+    if (executor instanceof ForkJoinPool) {
+      return ((ForkJoinPool) executor).getParallelism();
+    } else if (executor instanceof ThreadPoolExecutor) {
+      int maxPoolSize = ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+      return Math.max(1, Math.min(processors, maxPoolSize));
+    }
+    return processors;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (closed) {
+      throw new IOException("closed");
+    }
+    if (blockLength == block.length) {
+      submitBlock(false);
+    }
+    block[blockLength++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("closed");
+    }
+    if ((off | len | (b.length - (off + len))) < 0) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      if (blockLength == block.length) {
+        submitBlock(false);
+      }
+      int n = Math.min(len, block.length - blockLength);
+      System.arraycopy(b, off, block, blockLength, n);
+      blockLength += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Compresses and writes out everything written so far, and then flushes the underlying stream.
+   * Flushing often makes the compression worse.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (closed) {
+      throw new IOException("closed");
+    }
+    if (blockLength != 0) {
+      submitBlock(false);
+    }
+    while (!inFlight.isEmpty()) {
+      writeOldest();
+    }
+    out.flush();
+  }
+
+  /** Writes the remaining data and the gzip trailer, and then closes the underlying stream. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      submitBlock(true);
+      while (!inFlight.isEmpty()) {
+        writeOldest();
+      }
+      writeTrailer();
+      out.flush();
+    } finally {
+      closed = true;
+      for (FutureTask<byte[]> task : inFlight) {
+        task.cancel(false);
+      }
+      inFlight.clear();
+      Deflater deflater;
+      while ((deflater = deflaters.poll()) != null) {
+        deflater.end();
+      }
+      out.close();
+    }
+  }
+
+  private void submitBlock(boolean last) throws IOException {
+    if (closed) {
+      throw new IOException("closed");
+    }
+    crc.update(block, 0, blockLength);
+    totalIn += blockLength;
+    final byte[] input = block;
+    final int inputLength = blockLength;
+    final byte[] dict = dictionary;
+    final boolean finish = last;
+    // Back-references may reach up to 32KiB into the previous block, so keep a copy of its end.
+    if (!last) {
+      dictionary = nextDictionary(dict, input, inputLength);
+    }
+    FutureTask<byte[]> task =
+        new FutureTask<>(
+            new Callable<byte[]>() {
+              @Override
+              public byte[] call() {
+                return compress(input, inputLength, dict, finish);
+              }
+            });
+    if (inFlight.size() >= maxInFlight) {
+      writeOldest();
+    }
+    inFlight.addLast(task);
+    executor.execute(task);
+    block = new byte[BLOCK_SIZE];
+    blockLength = 0;
+  }
+
+  private static byte[] nextDictionary(byte[] previous, byte[] input, int inputLength) {
+    if (inputLength >= DICTIONARY_SIZE || previous == null) {
+      int dictLength = Math.min(DICTIONARY_SIZE, inputLength);
+      return Arrays.copyOfRange(input, inputLength - dictLength, inputLength);
+    }
+    // A small block, such as from a flush, so the end of the block before is still in reach.
+    int fromPrevious = Math.min(previous.length, DICTIONARY_SIZE - inputLength);
+    byte[] dict = new byte[fromPrevious + inputLength];
+    System.arraycopy(previous, previous.length - fromPrevious, dict, 0, fromPrevious);
+    System.arraycopy(input, 0, dict, fromPrevious, inputLength);
+    return dict;
+  }
+
+  private byte[] compress(byte[] input, int inputLength, byte[] dict, boolean finish) {
+    Deflater deflater = deflaters.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level, /* nowrap= */ true);
+    }
+    try {
+      if (dict != null) {
+        deflater.setDictionary(dict);
+      }
+      deflater.setInput(input, 0, inputLength);
+      byte[] output = new byte[inputLength + (inputLength >>> 3) + 64];
+      int outputLength = 0;
+      if (finish) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          if (outputLength == output.length) {
+            output = Arrays.copyOf(output, output.length * 2);
+          }
+          outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+        }
+      } else {
+        // A sync flush ends the block on a byte boundary, without marking it as the last one, so
+        // the next block can be appended directly.
+        while (true) {
+          if (outputLength == output.length) {
+            output = Arrays.copyOf(output, output.length * 2);
+          }
+          int n =
+              deflater.deflate(
+                  output, outputLength, output.length - outputLength, Deflater.SYNC_FLUSH);
+          outputLength += n;
+          if (outputLength < output.length) {
+            break;
+          }
+        }
+      }
+      return outputLength == output.length ? output : Arrays.copyOf(output, outputLength);
+    } finally {
+      deflater.reset();
+      deflaters.add(deflater);
+    }
+  }
+
+  private void writeOldest() throws IOException {
+    FutureTask<byte[]> task = inFlight.removeFirst();
+    byte[] compressed;
+    try {
+      compressed = task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+    out.write(compressed);
+  }
+
+  private void writeHeader() throws IOException {
+    byte[] header = new byte[10];
+    header[0] = (byte) GZIP_MAGIC;
+    header[1] = (byte) (GZIP_MAGIC >>> 8);
+    header[2] = Deflater.DEFLATED;
+    // Flags, modification time, and extra flags are all left as 0.
+    header[9] = (byte) OS_UNKNOWN;
+    out.write(header);
+  }
+
+  private void writeTrailer() throws IOException {
+    byte[] trailer = new byte[8];
+    writeIntLe(trailer, 0, (int) crc.getValue());
+    writeIntLe(trailer, 4, (int) totalIn);
+    out.write(trailer);
+  }
+
+  private static void writeIntLe(byte[] buf, int offset, int value) {
+    buf[offset] = (byte) value;
+    buf[offset + 1] = (byte) (value >>> 8);
+    buf[offset + 2] = (byte) (value >>> 16);
+    buf[offset + 3] = (byte) (value >>> 24);
+  }
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static io.perfmark.tracewriter.PerfettoTraceWriter.BUILTIN_CLOCK_BOOTTIME;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.BUILTIN_CLOCK_REALTIME;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.CLOCK_ID;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.CLOCK_SNAPSHOT_CLOCKS;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.CLOCK_TIMESTAMP;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.DEBUG_ANNOTATION_INT_VALUE;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.DEBUG_ANNOTATION_NAME_IID;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.DEBUG_ANNOTATION_STRING_VALUE;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.INTERNED_DATA_DEBUG_ANNOTATION_NAMES;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.INTERNED_DATA_EVENT_NAMES;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.INTERNED_IID;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.INTERNED_NAME;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.PACKET_CLOCK_SNAPSHOT;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.PACKET_INTERNED_DATA;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.PACKET_SEQUENCE_FLAGS;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.PACKET_TIMESTAMP;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.PACKET_TRACK_DESCRIPTOR;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.PACKET_TRACK_EVENT;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.PROCESS_DESCRIPTOR_PID;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.SEQ_INCREMENTAL_STATE_CLEARED;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.THREAD_DESCRIPTOR_THREAD_NAME;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.THREAD_DESCRIPTOR_TID;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACE_PACKET;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACK_DESCRIPTOR_NAME;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACK_DESCRIPTOR_PROCESS;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACK_DESCRIPTOR_THREAD;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACK_DESCRIPTOR_UUID;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACK_EVENT_CATEGORIES;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACK_EVENT_DEBUG_ANNOTATIONS;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACK_EVENT_FLOW_IDS;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACK_EVENT_NAME_IID;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACK_EVENT_TERMINATING_FLOW_IDS;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACK_EVENT_TRACK_UUID;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TRACK_EVENT_TYPE;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TYPE_INSTANT;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TYPE_SLICE_BEGIN;
+import static io.perfmark.tracewriter.PerfettoTraceWriter.TYPE_SLICE_END;
+
+import io.perfmark.impl.MarkList;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads traces written by {@link PerfettoTraceWriter} back into MarkLists. Packets are read from
+ * the trace one at a time, so only the MarkList being built is held in memory, no matter how large
+ * the trace is.
+ *
+ * <p>Unlike {@link TraceEventReader}, links are kept with the task they were made in, so every
+ * link is read back. Times are relative to the start of the trace, and generations are renumbered.
+ *
+ * <p>This class is not thread safe.
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class PerfettoTraceReader implements MarkListSource {
+
+  /**
+   * Reads a trace from a file, which may be gzip compressed.
+   *
+   * @param path the trace file.
+   * @return a reader, which must be closed.
+   * @throws IOException if the file can't be opened.
+   */
+  public static PerfettoTraceReader open(Path path) throws IOException {
+    return new PerfettoTraceReader(TraceEventReader.openMaybeGzipped(path));
+  }
+
+  /**
+   * Reads a trace from a channel. The channel is closed when the reader is.
+   *
+   * @param channel the uncompressed trace data.
+   * @return a reader, which must be closed.
+   */
+  public static PerfettoTraceReader create(ReadableByteChannel channel) {
+    return new PerfettoTraceReader(channel);
+  }
+
+  // Fields PerfettoTraceWriter doesn't write, but other tools may.
+  private static final int TRACK_EVENT_NAME = 23;
+  private static final int DEBUG_ANNOTATION_NAME = 10;
+
+  private static final long THREAD_TRACK_BIT = 1L << 62;
+
+  private static final class ThreadTrack {
+    final long tid;
+    final String name;
+
+    ThreadTrack(long tid, String name) {
+      this.tid = tid;
+      this.name = name;
+    }
+  }
+
+  private final ReadableByteChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+  private final MarkListAssembler assembler = new MarkListAssembler();
+
+  private final Map<Long, String> eventNames = new HashMap<>();
+  private final Map<Long, String> annotationNames = new HashMap<>();
+  private final Map<Long, ThreadTrack> threadTracks = new HashMap<>();
+
+  private final List<String> argKeys = new ArrayList<>();
+  private final List<Object> argValues = new ArrayList<>();
+  private final List<Long> linkIds = new ArrayList<>();
+
+  private byte[] packet = new byte[256];
+  private long currentTrackUuid;
+  private long pid = -1;
+  /** {@code Nullable} */
+  private Long traceStartUnixNanos;
+  private boolean done;
+
+  private PerfettoTraceReader(ReadableByteChannel channel) {
+    this.channel = channel;
+    buffer.flip();
+  }
+
+  /**
+   * Reads the next MarkList from the trace.
+   *
+   * @return the next MarkList, or {@code null} if there are no more.
+   * @throws IOException if the trace can't be read or isn't valid.
+   */
+  @Override
+  public MarkList nextMarkList() throws IOException {
+    while (!done) {
+      int length = readPacket();
+      if (length < 0) {
+        done = true;
+        return assembler.finishMarkList();
+      }
+      MarkList finished = onPacket(new ProtoReader(packet, 0, length));
+      if (finished != null) {
+        return finished;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reads all the remaining MarkLists. This holds them all in memory, which is only a good idea for
+   * small traces.
+   *
+   * @return the MarkLists, in the order they appear in the trace.
+   * @throws IOException if the trace can't be read or isn't valid.
+   */
+  @Override
+  public List<MarkList> readAll() throws IOException {
+    List<MarkList> markLists = new ArrayList<>();
+    MarkList markList;
+    while ((markList = nextMarkList()) != null) {
+      markLists.add(markList);
+    }
+    return markLists;
+  }
+
+  @Override
+  public Long getTraceStartUnixNanos() {
+    return traceStartUnixNanos;
+  }
+
+  /**
+   * Returns the pid of the first process track. Traces that were merged have several of them, in
+   * which case this is the first.
+   */
+  @Override
+  public long getPid() {
+    return pid;
+  }
+
+  @Override
+  public void close() throws IOException {
+    done = true;
+    channel.close();
+  }
+
+  /** Returns a finished MarkList, if the packet started a new one. */
+  private MarkList onPacket(ProtoReader reader) throws IOException {
+    long timestamp = 0;
+    long flags = 0;
+    ProtoReader internedData = null;
+    ProtoReader trackEvent = null;
+    ProtoReader trackDescriptor = null;
+    while (reader.next()) {
+      switch (reader.fieldNumber()) {
+        case PACKET_TIMESTAMP:
+          timestamp = reader.readVarint();
+          break;
+        case PACKET_SEQUENCE_FLAGS:
+          flags |= reader.readVarint();
+          break;
+        case PACKET_INTERNED_DATA:
+          internedData = reader.readMessage();
+          break;
+        case PACKET_TRACK_EVENT:
+          trackEvent = reader.readMessage();
+          break;
+        case PACKET_TRACK_DESCRIPTOR:
+          trackDescriptor = reader.readMessage();
+          break;
+        case PACKET_CLOCK_SNAPSHOT:
+          onClockSnapshot(reader.readMessage());
+          break;
+        default:
+          reader.skip();
+          break;
+      }
+    }
+    if ((flags & SEQ_INCREMENTAL_STATE_CLEARED) != 0) {
+      eventNames.clear();
+      annotationNames.clear();
+    }
+    if (internedData != null) {
+      onInternedData(internedData);
+    }
+    if (trackDescriptor != null) {
+      onTrackDescriptor(trackDescriptor);
+    }
+    if (trackEvent != null) {
+      return onTrackEvent(trackEvent, timestamp);
+    }
+    return null;
+  }
+
+  /**
+   * Reads the wall clock time of the trace from a snapshot that has both it and the default trace
+   * clock, which track event timestamps are on.
+   */
+  private void onClockSnapshot(ProtoReader reader) throws IOException {
+    Long bootTime = null;
+    Long realTime = null;
+    while (reader.next()) {
+      if (reader.fieldNumber() != CLOCK_SNAPSHOT_CLOCKS) {
+        reader.skip();
+        continue;
+      }
+      ProtoReader clock = reader.readMessage();
+      long clockId = 0;
+      long timestamp = 0;
+      while (clock.next()) {
+        switch (clock.fieldNumber()) {
+          case CLOCK_ID:
+            clockId = clock.readVarint();
+            break;
+          case CLOCK_TIMESTAMP:
+            timestamp = clock.readVarint();
+            break;
+          default:
+            clock.skip();
+            break;
+        }
+      }
+      if (clockId == BUILTIN_CLOCK_BOOTTIME) {
+        bootTime = timestamp;
+      } else if (clockId == BUILTIN_CLOCK_REALTIME) {
+        realTime = timestamp;
+      }
+    }
+    if (traceStartUnixNanos == null && bootTime != null && realTime != null) {
+      traceStartUnixNanos = new ClockAnchor(bootTime, realTime).unixNanosAtTraceStart();
+    }
+  }
+
+  private void onInternedData(ProtoReader reader) throws IOException {
+    while (reader.next()) {
+      switch (reader.fieldNumber()) {
+        case INTERNED_DATA_EVENT_NAMES:
+          intern(eventNames, reader.readMessage());
+          break;
+        case INTERNED_DATA_DEBUG_ANNOTATION_NAMES:
+          intern(annotationNames, reader.readMessage());
+          break;
+        default:
+          reader.skip();
+          break;
+      }
+    }
+  }
+
+  private static void intern(Map<Long, String> names, ProtoReader reader) throws IOException {
+    long iid = 0;
+    String name = null;
+    while (reader.next()) {
+      switch (reader.fieldNumber()) {
+        case INTERNED_IID:
+          iid = reader.readVarint();
+          break;
+        case INTERNED_NAME:
+          name = reader.readString();
+          break;
+        default:
+          reader.skip();
+          break;
+      }
+    }
+    if (name != null) {
+      names.put(iid, name);
+    }
+  }
+
+  private void onTrackDescriptor(ProtoReader reader) throws IOException {
+    long uuid = 0;
+    String trackName = null;
+    ProtoReader thread = null;
+    while (reader.next()) {
+      switch (reader.fieldNumber()) {
+        case TRACK_DESCRIPTOR_UUID:
+          uuid = reader.readVarint();
+          break;
+        case TRACK_DESCRIPTOR_NAME:
+          trackName = reader.readString();
+          break;
+        case TRACK_DESCRIPTOR_THREAD:
+          thread = reader.readMessage();
+          break;
+        case TRACK_DESCRIPTOR_PROCESS:
+          onProcessDescriptor(reader.readMessage());
+          break;
+        default:
+          reader.skip();
+          break;
+      }
+    }
+    if (thread == null) {
+      return;
+    }
+    long tid = 0;
+    String threadName = trackName;
+    while (thread.next()) {
+      switch (thread.fieldNumber()) {
+        case THREAD_DESCRIPTOR_TID:
+          tid = thread.readVarint();
+          break;
+        case THREAD_DESCRIPTOR_THREAD_NAME:
+          threadName = thread.readString();
+          break;
+        default:
+          thread.skip();
+          break;
+      }
+    }
+    threadTracks.put(uuid, new ThreadTrack(tid, threadName != null ? threadName : ""));
+  }
+
+  private void onProcessDescriptor(ProtoReader reader) throws IOException {
+    while (reader.next()) {
+      if (reader.fieldNumber() == PROCESS_DESCRIPTOR_PID && pid == -1) {
+        pid = reader.readVarint();
+      } else {
+        reader.skip();
+      }
+    }
+  }
+
+  private MarkList onTrackEvent(ProtoReader reader, long timestamp) throws IOException {
+    long type = 0;
+    long trackUuid = 0;
+    String name = null;
+    String category = null;
+    argKeys.clear();
+    argValues.clear();
+    linkIds.clear();
+    while (reader.next()) {
+      switch (reader.fieldNumber()) {
+        case TRACK_EVENT_TYPE:
+          type = reader.readVarint();
+          break;
+        case TRACK_EVENT_TRACK_UUID:
+          trackUuid = reader.readVarint();
+          break;
+        case TRACK_EVENT_NAME_IID:
+          name = eventNames.get(reader.readVarint());
+          break;
+        case TRACK_EVENT_NAME:
+          name = reader.readString();
+          break;
+        case TRACK_EVENT_CATEGORIES:
+          category = reader.readString();
+          break;
+        case TRACK_EVENT_DEBUG_ANNOTATIONS:
+          onDebugAnnotation(reader.readMessage());
+          break;
+        case TRACK_EVENT_FLOW_IDS:
+          linkIds.add(reader.readFixed64());
+          break;
+        case TRACK_EVENT_TERMINATING_FLOW_IDS:
+          linkIds.add(-reader.readFixed64());
+          break;
+        default:
+          reader.skip();
+          break;
+      }
+    }
+    if (type != TYPE_SLICE_BEGIN && type != TYPE_SLICE_END && type != TYPE_INSTANT) {
+      return null;
+    }
+    MarkList finished = null;
+    if (!assembler.hasMarkList() || trackUuid != currentTrackUuid) {
+      finished = startMarkList(trackUuid);
+    }
+    if (name == null) {
+      name = MarkListWalker.UNKNOWN_TASK_NAME;
+    }
+    if (type == TYPE_SLICE_BEGIN) {
+      assembler.taskStart(timestamp, name, category);
+      addTags();
+      addLinks();
+    } else if (type == TYPE_SLICE_END) {
+      addTags();
+      assembler.taskEnd(timestamp, null);
+    } else if (!linkIds.isEmpty() && argKeys.isEmpty() && name.equals("link")) {
+      // Links made after the task start was written are put on an instant of their own.
+      addLinks();
+    } else {
+      String tagName = null;
+      Long tagId = null;
+      for (int i = 0; i < argKeys.size(); i++) {
+        Object value = argValues.get(i);
+        if (argKeys.get(i).equals("tag") && value instanceof String) {
+          tagName = (String) value;
+        } else if (argKeys.get(i).equals("id") && value instanceof Long) {
+          tagId = (Long) value;
+        }
+      }
+      assembler.event(timestamp, name, tagName, tagId);
+    }
+    return finished;
+  }
+
+  private MarkList startMarkList(long trackUuid) {
+    currentTrackUuid = trackUuid;
+    ThreadTrack thread = threadTracks.get(trackUuid);
+    if (thread == null) {
+      return assembler.startMarkList(trackUuid, trackUuid, String.valueOf(trackUuid));
+    }
+    long markRecorderId = trackUuid;
+    if ((trackUuid & THREAD_TRACK_BIT) != 0) {
+      // Undo the offset PerfettoTraceWriter adds to keep thread tracks apart.
+      markRecorderId = (trackUuid & ~THREAD_TRACK_BIT) - 1;
+    }
+    return assembler.startMarkList(markRecorderId, thread.tid, thread.name);
+  }
+
+  private void onDebugAnnotation(ProtoReader reader) throws IOException {
+    String name = null;
+    Object value = null;
+    while (reader.next()) {
+      switch (reader.fieldNumber()) {
+        case DEBUG_ANNOTATION_NAME_IID:
+          name = annotationNames.get(reader.readVarint());
+          break;
+        case DEBUG_ANNOTATION_NAME:
+          name = reader.readString();
+          break;
+        case DEBUG_ANNOTATION_INT_VALUE:
+          value = reader.readVarint();
+          break;
+        case DEBUG_ANNOTATION_STRING_VALUE:
+          value = reader.readString();
+          break;
+        default:
+          reader.skip();
+          break;
+      }
+    }
+    if (name != null && value != null) {
+      argKeys.add(name);
+      argValues.add(value);
+    }
+  }
+
+  private void addTags() {
+    for (int i = 0; i < argKeys.size(); i++) {
+      assembler.tag(argKeys.get(i), argValues.get(i));
+    }
+  }
+
+  private void addLinks() {
+    for (Long linkId : linkIds) {
+      assembler.link(linkId);
+    }
+  }
+
+  /**
+   * Reads the next packet of the trace into {@link #packet}.
+   *
+   * @return the length of the packet, or -1 at the end of the trace.
+   */
+  private int readPacket() throws IOException {
+    while (true) {
+      if (!buffer.hasRemaining() && !fill()) {
+        return -1;
+      }
+      long tag = readRawVarint();
+      long length;
+      if (tag == ((TRACE_PACKET << 3) | ProtoReader.WIRETYPE_LENGTH_DELIMITED)) {
+        length = readRawVarint();
+      } else if ((tag & 7) == ProtoReader.WIRETYPE_LENGTH_DELIMITED) {
+        skipBytes(readRawVarint());
+        continue;
+      } else {
+        throw new IOException("Not a trace, found field " + (tag >>> 3));
+      }
+      if (length < 0 || length > Integer.MAX_VALUE - 8) {
+        throw new IOException("Bad packet length " + length);
+      }
+      int len = (int) length;
+      if (packet.length < len) {
+        packet = new byte[Math.max(len, packet.length * 2)];
+      }
+      int read = 0;
+      while (read < len) {
+        if (!buffer.hasRemaining() && !fill()) {
+          throw new EOFException();
+        }
+        int n = Math.min(len - read, buffer.remaining());
+        buffer.get(packet, read, n);
+        read += n;
+      }
+      return len;
+    }
+  }
+
+  private void skipBytes(long count) throws IOException {
+    while (count > 0) {
+      if (!buffer.hasRemaining() && !fill()) {
+        throw new EOFException();
+      }
+      int n = (int) Math.min(count, buffer.remaining());
+      buffer.position(buffer.position() + n);
+      count -= n;
+    }
+  }
+
+  private long readRawVarint() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!buffer.hasRemaining() && !fill()) {
+        throw new EOFException();
+      }
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  private boolean fill() throws IOException {
+    buffer.clear();
+    try {
+      int n;
+      do {
+        n = channel.read(buffer);
+      } while (n == 0);
+      return n > 0;
+    } finally {
+      buffer.flip();
+    }
+  }
+}
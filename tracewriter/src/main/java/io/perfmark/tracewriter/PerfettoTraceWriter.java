@@ -0,0 +1,608 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Writes the PerfMark results to a Perfetto protobuf trace, usable by the <a
+ * href="https://ui.perfetto.dev/">Perfetto UI</a> and trace processor. The format is defined by
+ * the {@code TracePacket} and {@code TrackEvent} protos at <a
+ * href="https://perfetto.dev/docs/reference/trace-packet-proto">...</a>
+ *
+ * <p>Compared to {@link TraceEventWriter}, the output is much smaller and faster to load, since
+ * task and tag names are interned, and each thread is described once by a track descriptor.
+ * Links are written as flows, using the link id as the flow id.
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class PerfettoTraceWriter {
+
+  private static final Logger logger = Logger.getLogger(PerfettoTraceWriter.class.getName());
+
+  /**
+   * Writes trace events the home directory, in the same location as {@link
+   * TraceEventWriter#writeTraceEvents()}.
+   *
+   * @throws IOException if there is an error writing to the file.
+   * @return the path used to create the trace file.
+   */
+  @CanIgnoreReturnValue
+  public static Path writeTraceEvents() throws IOException {
+    Path p =
+        TraceEventWriter.pickNextDest(
+            TraceEventWriter.guessDirectory(), "perfmark-trace-%03d.perfetto-trace");
+    try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(p))) {
+      writeTraceEvents(os);
+    }
+    logger.info("Wrote trace to " + p);
+    return p;
+  }
+
+  /**
+   * Writes all trace events in Perfetto protobuf format to the given destination.
+   *
+   * @param destination the destination for the protobuf data.
+   * @throws IOException if there are errors building the trace, or can't write to the destination.
+   */
+  public static void writeTraceEvents(OutputStream destination) throws IOException {
+    writeTraceEvents(
+        destination,
+        Storage.read(),
+        Storage.getInitNanoTime(),
+        Storage.getInitCurrentTimeMillis(),
+        System.nanoTime(),
+        TraceEventWriter.getPid());
+  }
+
+  /**
+   * Writes the trace events gathered from {@link Storage#read()}. This method is not API stable. It
+   * will be eventually.
+   *
+   * <p>The wall clock time of the trace isn't known, so it has no clock snapshot, and {@link
+   * TraceMerger} lines it up with other traces by their first events. See {@link
+   * #writeTraceEvents(OutputStream, List, long, long, long, long)}.
+   *
+   * @param destination the destination for the protobuf data.
+   * @param markLists the data to use to build the trace
+   * @param initNanoTime the time PerfMark classes were first loaded as specified by {@link
+   *     System#nanoTime()}
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}.
+   * @param pid the PID of the current process.
+   * @throws IOException if there are errors building the trace, or can't write to the destination.
+   */
+  public static void writeTraceEvents(
+      OutputStream destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long nowNanoTime,
+      long pid)
+      throws IOException {
+    writeTraceEvents(destination, markLists, initNanoTime, nowNanoTime, pid, null);
+  }
+
+  /**
+   * Writes the trace events like {@link #writeTraceEvents(OutputStream, List, long, long, long)},
+   * along with a clock snapshot of the wall clock time at {@code initNanoTime}, which lets {@link
+   * TraceMerger} line up traces of different processes.
+   *
+   * @param destination the destination for the protobuf data.
+   * @param markLists the data to use to build the trace
+   * @param initNanoTime the time the trace times are relative to, as specified by {@link
+   *     System#nanoTime()}
+   * @param initCurrentTimeMillis the wall clock time at {@code initNanoTime}, as specified by
+   *     {@link System#currentTimeMillis()}
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}.
+   * @param pid the PID of the current process.
+   * @throws IOException if there are errors building the trace, or can't write to the destination.
+   */
+  public static void writeTraceEvents(
+      OutputStream destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long initCurrentTimeMillis,
+      long nowNanoTime,
+      long pid)
+      throws IOException {
+    writeTraceEvents(
+        destination,
+        markLists,
+        initNanoTime,
+        nowNanoTime,
+        pid,
+        ClockAnchor.atTraceStart(initCurrentTimeMillis));
+  }
+
+  /** @param anchor the anchor of the trace, or {@code null}. {@code Nullable} */
+  private static void writeTraceEvents(
+      OutputStream destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long nowNanoTime,
+      long pid,
+      ClockAnchor anchor)
+      throws IOException {
+    try {
+      PerfettoWalker walker = new PerfettoWalker(destination, pid, initNanoTime);
+      if (anchor != null) {
+        walker.writeClockSnapshot(anchor);
+      }
+      walker.writeProcessTrack(null);
+      walker.walk(markLists, nowNanoTime);
+      walker.flush();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    destination.flush();
+  }
+
+  /**
+   * Writes the MarkLists of several processes into a single trace, each under its own pid and
+   * process name. The times of each process are relative to its own initNanoTime, which lines
+   * them up with the others.
+   *
+   * @param anchor the anchor of the combined trace, or {@code null}. {@code Nullable}
+   */
+  static void writeProcesses(
+      OutputStream destination, List<TraceMerger.Process> processes, ClockAnchor anchor)
+      throws IOException {
+    try {
+      boolean first = true;
+      for (TraceMerger.Process process : processes) {
+        // Each walker clears the interned strings of the sequence before writing its own.
+        PerfettoWalker walker =
+            new PerfettoWalker(destination, process.pid, process.initNanoTime);
+        if (first && anchor != null) {
+          walker.writeClockSnapshot(anchor);
+        }
+        first = false;
+        walker.writeProcessTrack(process.name);
+        walker.walk(process.markLists, process.nowNanoTime);
+        walker.flush();
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    destination.flush();
+  }
+
+  // Field numbers and enum values, from perfetto/protos/perfetto/trace/...
+  static final int TRACE_PACKET = 1;
+
+  static final int PACKET_CLOCK_SNAPSHOT = 6;
+  static final int PACKET_TIMESTAMP = 8;
+  static final int PACKET_TRUSTED_PACKET_SEQUENCE_ID = 10;
+  static final int PACKET_TRACK_EVENT = 11;
+  static final int PACKET_INTERNED_DATA = 12;
+  static final int PACKET_SEQUENCE_FLAGS = 13;
+  static final int PACKET_TRACK_DESCRIPTOR = 60;
+
+  static final int SEQ_INCREMENTAL_STATE_CLEARED = 1;
+  static final int SEQ_NEEDS_INCREMENTAL_STATE = 2;
+
+  static final int TRACK_DESCRIPTOR_UUID = 1;
+  static final int TRACK_DESCRIPTOR_NAME = 2;
+  static final int TRACK_DESCRIPTOR_PROCESS = 3;
+  static final int TRACK_DESCRIPTOR_THREAD = 4;
+  static final int TRACK_DESCRIPTOR_PARENT_UUID = 5;
+
+  static final int PROCESS_DESCRIPTOR_PID = 1;
+  static final int PROCESS_DESCRIPTOR_PROCESS_NAME = 6;
+
+  static final int THREAD_DESCRIPTOR_PID = 1;
+  static final int THREAD_DESCRIPTOR_TID = 2;
+  static final int THREAD_DESCRIPTOR_THREAD_NAME = 5;
+
+  static final int TRACK_EVENT_DEBUG_ANNOTATIONS = 4;
+  static final int TRACK_EVENT_TYPE = 9;
+  static final int TRACK_EVENT_NAME_IID = 10;
+  static final int TRACK_EVENT_TRACK_UUID = 11;
+  static final int TRACK_EVENT_CATEGORIES = 22;
+  static final int TRACK_EVENT_FLOW_IDS = 47;
+  static final int TRACK_EVENT_TERMINATING_FLOW_IDS = 48;
+
+  static final int TYPE_SLICE_BEGIN = 1;
+  static final int TYPE_SLICE_END = 2;
+  static final int TYPE_INSTANT = 3;
+
+  static final int DEBUG_ANNOTATION_NAME_IID = 1;
+  static final int DEBUG_ANNOTATION_INT_VALUE = 4;
+  static final int DEBUG_ANNOTATION_STRING_VALUE = 6;
+
+  static final int INTERNED_DATA_EVENT_NAMES = 2;
+  static final int INTERNED_DATA_DEBUG_ANNOTATION_NAMES = 3;
+
+  static final int CLOCK_SNAPSHOT_CLOCKS = 1;
+  static final int CLOCK_ID = 1;
+  static final int CLOCK_TIMESTAMP = 2;
+
+  static final int BUILTIN_CLOCK_REALTIME = 1;
+  static final int BUILTIN_CLOCK_BOOTTIME = 6;
+
+  static final int INTERNED_IID = 1;
+  static final int INTERNED_NAME = 2;
+
+  /** All packets are written on a single sequence, so they share the interned strings. */
+  static final int SEQUENCE_ID = 1;
+
+  private static final int FLUSH_THRESHOLD = 1 << 16;
+
+  private static final class PerfettoWalker extends MarkListWalker {
+
+    private static final class TaskStart {
+      /**
+       * The begin packet's track event, held back until the next non-tag Mark so that tags and
+       * links can still be added to it. {@code Nullable}
+       */
+      PendingEvent pendingEvent;
+
+      /** Tags that arrived after the begin event was written. {@code Nullable} */
+      TraceEvent.TagMap lateArgs;
+
+      TaskStart(PendingEvent pendingEvent) {
+        this.pendingEvent = pendingEvent;
+      }
+    }
+
+    private static final class PendingEvent {
+      final long timestamp;
+      final String name;
+      final String category;
+      TraceEvent.TagMap args = TraceEvent.TagMap.EMPTY;
+      final List<Long> flowIds = new ArrayList<>(0);
+      final List<Long> terminatingFlowIds = new ArrayList<>(0);
+
+      PendingEvent(long timestamp, String name, String category) {
+        this.timestamp = timestamp;
+        this.name = name;
+        this.category = category;
+      }
+    }
+
+    private final OutputStream destination;
+    private final long pid;
+    private final long initNanoTime;
+
+    private final ProtoWriter out = new ProtoWriter(FLUSH_THRESHOLD * 2);
+    private final ProtoWriter packet = new ProtoWriter();
+    private final ProtoWriter trackEvent = new ProtoWriter();
+    private final ProtoWriter internedData = new ProtoWriter();
+    private final ProtoWriter scratch = new ProtoWriter();
+    private final ProtoWriter nestedScratch = new ProtoWriter();
+
+    private final Map<String, Long> eventNameIids = new HashMap<>();
+    private final Map<String, Long> annotationNameIids = new HashMap<>();
+    private final Set<Long> describedTracks = new HashSet<>();
+    private final Deque<TaskStart> taskStack = new ArrayDeque<>();
+
+    private boolean firstPacket = true;
+    private long currentTrackUuid;
+    private long lastTimestamp;
+
+    PerfettoWalker(OutputStream destination, long pid, long initNanoTime) {
+      this.destination = destination;
+      this.pid = pid;
+      this.initNanoTime = initNanoTime;
+    }
+
+    /**
+     * Writes the clock anchor as a snapshot of the default trace clock, and the wall clock. Track
+     * event timestamps are on the default clock, so this says when they happened.
+     */
+    void writeClockSnapshot(ClockAnchor anchor) {
+      ProtoWriter snapshot = nestedScratch;
+      ProtoWriter clock = scratch;
+      clock.writeVarint(CLOCK_ID, BUILTIN_CLOCK_BOOTTIME);
+      clock.writeVarint(CLOCK_TIMESTAMP, anchor.traceNanos);
+      snapshot.writeMessage(CLOCK_SNAPSHOT_CLOCKS, clock);
+      clock.reset();
+      clock.writeVarint(CLOCK_ID, BUILTIN_CLOCK_REALTIME);
+      clock.writeVarint(CLOCK_TIMESTAMP, anchor.unixNanos);
+      snapshot.writeMessage(CLOCK_SNAPSHOT_CLOCKS, clock);
+      clock.reset();
+      packet.writeMessage(PACKET_CLOCK_SNAPSHOT, snapshot);
+      nestedScratch.reset();
+      emitPacket();
+    }
+
+    /** @param processName the name to show for the process, or {@code null}. */
+    void writeProcessTrack(String processName) {
+      ProtoWriter process = scratch;
+      process.writeVarint(PROCESS_DESCRIPTOR_PID, (int) pid);
+      if (processName != null) {
+        process.writeString(PROCESS_DESCRIPTOR_PROCESS_NAME, processName);
+      }
+      ProtoWriter descriptor = nestedScratch;
+      descriptor.writeVarint(TRACK_DESCRIPTOR_UUID, processTrackUuid());
+      descriptor.writeMessage(TRACK_DESCRIPTOR_PROCESS, process);
+      scratch.reset();
+      packet.writeMessage(PACKET_TRACK_DESCRIPTOR, descriptor);
+      nestedScratch.reset();
+      emitPacket();
+    }
+
+    @Override
+    protected void enterMarkList(String threadName, long threadId, long markRecorderId) {
+      currentTrackUuid = threadTrackUuid(markRecorderId);
+      lastTimestamp = 0;
+      // MarkLists are split up by generation, so the same thread may be visited more than once.
+      if (!describedTracks.add(markRecorderId)) {
+        return;
+      }
+      ProtoWriter thread = scratch;
+      thread.writeVarint(THREAD_DESCRIPTOR_PID, (int) pid);
+      thread.writeVarint(THREAD_DESCRIPTOR_TID, (int) threadId);
+      thread.writeString(THREAD_DESCRIPTOR_THREAD_NAME, threadName);
+      ProtoWriter descriptor = nestedScratch;
+      descriptor.writeVarint(TRACK_DESCRIPTOR_UUID, currentTrackUuid);
+      descriptor.writeVarint(TRACK_DESCRIPTOR_PARENT_UUID, processTrackUuid());
+      descriptor.writeString(TRACK_DESCRIPTOR_NAME, threadName);
+      descriptor.writeMessage(TRACK_DESCRIPTOR_THREAD, thread);
+      scratch.reset();
+      packet.writeMessage(PACKET_TRACK_DESCRIPTOR, descriptor);
+      nestedScratch.reset();
+      emitPacket();
+    }
+
+    @Override
+    protected void exitMarkList() {
+      flushPendingStart();
+      taskStack.clear();
+      super.exitMarkList();
+    }
+
+    @Override
+    protected void onTaskStart(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
+      assert !(unmatchedStart && unmatchedEnd);
+      flushPendingStart();
+      String category = null;
+      if (unmatchedStart) {
+        category = "unknownStart";
+      } else if (unmatchedEnd) {
+        category = "unfinished";
+      }
+      long timestamp = timestamp(mark);
+      taskStack.add(
+          new TaskStart(
+              new PendingEvent(timestamp, TraceEventWriter.taskName(mark), category)));
+    }
+
+    @Override
+    protected void onTaskEnd(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
+      assert !(unmatchedStart && unmatchedEnd);
+      flushPendingStart();
+      TaskStart taskStart = taskStack.pollLast();
+      trackEvent.writeVarint(TRACK_EVENT_TYPE, TYPE_SLICE_END);
+      trackEvent.writeVarint(TRACK_EVENT_TRACK_UUID, currentTrackUuid);
+      if (taskStart != null && taskStart.lateArgs != null) {
+        writeDebugAnnotations(taskStart.lateArgs);
+      }
+      writeTrackEvent(timestamp(mark));
+    }
+
+    @Override
+    protected void onAttachTag(Mark mark) {
+      TaskStart taskStart = taskStack.peekLast();
+      if (taskStart == null) {
+        logger.fine("Tag not associated with any task");
+        return;
+      }
+      if (taskStart.pendingEvent != null) {
+        PendingEvent pendingEvent = taskStart.pendingEvent;
+        pendingEvent.args = TraceEventWriter.withTag(pendingEvent.args, mark);
+      } else {
+        TraceEvent.TagMap args =
+            taskStart.lateArgs != null ? taskStart.lateArgs : TraceEvent.TagMap.EMPTY;
+        taskStart.lateArgs = TraceEventWriter.withTag(args, mark);
+      }
+    }
+
+    @Override
+    protected void onEvent(Mark mark) {
+      flushPendingStart();
+      PendingEvent event = new PendingEvent(timestamp(mark), TraceEventWriter.taskName(mark), null);
+      switch (mark.getOperation()) {
+        case EVENT_N2S2:
+        case EVENT_N2S3:
+          event.args = event.args.withUnkeyed(mark.getTagStringValue(), mark.getTagFirstNumeric());
+          break;
+        default:
+          break;
+      }
+      writeEvent(TYPE_INSTANT, event);
+    }
+
+    @Override
+    protected void onLink(Mark mark) {
+      TaskStart taskStart = taskStack.peekLast();
+      if (taskStart == null) {
+        logger.fine("Link not associated with any task");
+        return;
+      }
+      // Link ids are unique within a process, so they can be used directly as flow ids, which
+      // means links don't need to be paired up before writing them.
+      PendingEvent event = taskStart.pendingEvent;
+      boolean attachToStart = event != null;
+      if (!attachToStart) {
+        event = new PendingEvent(lastTimestamp, "link", null);
+      }
+      if (mark.getLinkId() > 0) {
+        event.flowIds.add(mark.getLinkId());
+      } else if (mark.getLinkId() < 0) {
+        event.terminatingFlowIds.add(-mark.getLinkId());
+      }
+      if (!attachToStart) {
+        writeEvent(TYPE_INSTANT, event);
+      }
+    }
+
+    private void flushPendingStart() {
+      TaskStart taskStart = taskStack.peekLast();
+      if (taskStart != null && taskStart.pendingEvent != null) {
+        PendingEvent pendingEvent = taskStart.pendingEvent;
+        taskStart.pendingEvent = null;
+        writeEvent(TYPE_SLICE_BEGIN, pendingEvent);
+      }
+    }
+
+    private void writeEvent(int type, PendingEvent event) {
+      trackEvent.writeVarint(TRACK_EVENT_TYPE, type);
+      trackEvent.writeVarint(TRACK_EVENT_TRACK_UUID, currentTrackUuid);
+      trackEvent.writeVarint(TRACK_EVENT_NAME_IID, eventNameIid(event.name));
+      if (event.category != null) {
+        trackEvent.writeString(TRACK_EVENT_CATEGORIES, event.category);
+      }
+      writeDebugAnnotations(event.args);
+      for (Long flowId : event.flowIds) {
+        trackEvent.writeFixed64(TRACK_EVENT_FLOW_IDS, flowId);
+      }
+      for (Long flowId : event.terminatingFlowIds) {
+        trackEvent.writeFixed64(TRACK_EVENT_TERMINATING_FLOW_IDS, flowId);
+      }
+      writeTrackEvent(event.timestamp);
+    }
+
+    private void writeDebugAnnotations(TraceEvent.TagMap args) {
+      for (Map.Entry<String, Object> arg : args.entrySet()) {
+        ProtoWriter annotation = scratch;
+        annotation.writeVarint(DEBUG_ANNOTATION_NAME_IID, annotationNameIid(arg.getKey()));
+        if (arg.getValue() instanceof String) {
+          annotation.writeString(DEBUG_ANNOTATION_STRING_VALUE, (String) arg.getValue());
+        } else if (arg.getValue() instanceof Long) {
+          annotation.writeVarint(DEBUG_ANNOTATION_INT_VALUE, (Long) arg.getValue());
+        } else {
+          throw new UnsupportedOperationException("Unknown type " + arg.getValue());
+        }
+        trackEvent.writeMessage(TRACK_EVENT_DEBUG_ANNOTATIONS, annotation);
+        annotation.reset();
+      }
+    }
+
+    private void writeTrackEvent(long timestamp) {
+      packet.writeVarint(PACKET_TIMESTAMP, timestamp);
+      if (internedData.size() != 0) {
+        packet.writeMessage(PACKET_INTERNED_DATA, internedData);
+        internedData.reset();
+      }
+      packet.writeVarint(PACKET_SEQUENCE_FLAGS, SEQ_NEEDS_INCREMENTAL_STATE);
+      packet.writeMessage(PACKET_TRACK_EVENT, trackEvent);
+      trackEvent.reset();
+      emitPacket();
+    }
+
+    private long eventNameIid(String name) {
+      return intern(eventNameIids, INTERNED_DATA_EVENT_NAMES, name);
+    }
+
+    private long annotationNameIid(String name) {
+      return intern(annotationNameIids, INTERNED_DATA_DEBUG_ANNOTATION_NAMES, name);
+    }
+
+    /**
+     * Returns the interned id of the string, adding it to the interned data of the packet being
+     * built if it hasn't been seen before.
+     */
+    private long intern(Map<String, Long> iids, int internedDataField, String value) {
+      Long iid = iids.get(value);
+      if (iid != null) {
+        return iid;
+      }
+      // Interned ids must be non-zero.
+      iid = (long) iids.size() + 1;
+      iids.put(value, iid);
+      nestedScratch.writeVarint(INTERNED_IID, iid);
+      nestedScratch.writeString(INTERNED_NAME, value);
+      internedData.writeMessage(internedDataField, nestedScratch);
+      nestedScratch.reset();
+      return iid;
+    }
+
+    private void emitPacket() {
+      packet.writeVarint(PACKET_TRUSTED_PACKET_SEQUENCE_ID, SEQUENCE_ID);
+      if (firstPacket) {
+        packet.writeVarint(PACKET_SEQUENCE_FLAGS, SEQ_INCREMENTAL_STATE_CLEARED);
+        firstPacket = false;
+      }
+      out.writeMessage(TRACE_PACKET, packet);
+      packet.reset();
+      if (out.size() >= FLUSH_THRESHOLD) {
+        try {
+          out.writeTo(destination);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        out.reset();
+      }
+    }
+
+    @Override
+    protected void exitGeneration() {
+      super.exitGeneration();
+      flush();
+    }
+
+    /** Writes out the packets built so far, such as those of a trace with no MarkLists. */
+    void flush() {
+      try {
+        out.writeTo(destination);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      out.reset();
+    }
+
+    private long timestamp(Mark mark) {
+      long timestamp = mark.getNanoTime() - initNanoTime;
+      lastTimestamp = timestamp;
+      return timestamp;
+    }
+
+    private long processTrackUuid() {
+      return pid + 1;
+    }
+
+    private static long threadTrackUuid(long markRecorderId) {
+      // Keep thread tracks away from the process track uuid.
+      return (markRecorderId + 1) | (1L << 62);
+    }
+  }
+
+  private PerfettoTraceWriter() {
+    throw new AssertionError("nope");
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal Protocol Buffer decoder, the counterpart of {@link ProtoWriter}. It reads the fields of
+ * one message out of a byte array. Nested messages are read by calling {@link #readMessage}, which
+ * returns a reader over just that message, without copying.
+ *
+ * <p>This class is not thread safe.
+ */
+final class ProtoReader {
+  static final int WIRETYPE_VARINT = 0;
+  static final int WIRETYPE_FIXED64 = 1;
+  static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  static final int WIRETYPE_FIXED32 = 5;
+
+  private final byte[] buf;
+  private int pos;
+  private final int limit;
+  private int tag;
+
+  ProtoReader(byte[] buf, int offset, int length) {
+    this.buf = buf;
+    this.pos = offset;
+    this.limit = offset + length;
+  }
+
+  /**
+   * Moves to the next field.
+   *
+   * @return false if there are no more fields.
+   */
+  boolean next() throws IOException {
+    if (pos >= limit) {
+      return false;
+    }
+    tag = (int) readRawVarint();
+    return true;
+  }
+
+  int fieldNumber() {
+    return tag >>> 3;
+  }
+
+  int wireType() {
+    return tag & 7;
+  }
+
+  long readVarint() throws IOException {
+    checkWireType(WIRETYPE_VARINT);
+    return readRawVarint();
+  }
+
+  long readFixed64() throws IOException {
+    checkWireType(WIRETYPE_FIXED64);
+    checkRemaining(8);
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value |= (buf[pos++] & 0xFFL) << (8 * i);
+    }
+    return value;
+  }
+
+  String readString() throws IOException {
+    int length = readLength();
+    String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+    pos += length;
+    return value;
+  }
+
+  ProtoReader readMessage() throws IOException {
+    int length = readLength();
+    ProtoReader message = new ProtoReader(buf, pos, length);
+    pos += length;
+    return message;
+  }
+
+  /** Skips the value of the current field. */
+  void skip() throws IOException {
+    switch (wireType()) {
+      case WIRETYPE_VARINT:
+        readRawVarint();
+        return;
+      case WIRETYPE_FIXED64:
+        checkRemaining(8);
+        pos += 8;
+        return;
+      case WIRETYPE_LENGTH_DELIMITED:
+        int length = readLength();
+        pos += length;
+        return;
+      case WIRETYPE_FIXED32:
+        checkRemaining(4);
+        pos += 4;
+        return;
+      default:
+        throw new IOException("Unsupported wire type " + wireType());
+    }
+  }
+
+  private int readLength() throws IOException {
+    checkWireType(WIRETYPE_LENGTH_DELIMITED);
+    long length = readRawVarint();
+    if (length < 0 || length > limit - pos) {
+      throw new IOException("Truncated message");
+    }
+    return (int) length;
+  }
+
+  private long readRawVarint() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      checkRemaining(1);
+      byte b = buf[pos++];
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  private void checkWireType(int wireType) throws IOException {
+    if (wireType() != wireType) {
+      throw new IOException("Field " + fieldNumber() + " has wire type " + wireType());
+    }
+  }
+
+  private void checkRemaining(int bytes) throws IOException {
+    if (limit - pos < bytes) {
+      throw new IOException("Truncated message");
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A minimal Protocol Buffer encoder. It only knows the wire format, and not any schema, so callers
+ * are responsible for using the right field numbers and types. Nested messages are built in a
+ * separate ProtoWriter and then copied in with {@link #writeMessage}, since the length prefix has
+ * to be known before the body.
+ *
+ * <p>This class is not thread safe.
+ */
+final class ProtoWriter {
+  private static final int WIRETYPE_VARINT = 0;
+  private static final int WIRETYPE_FIXED64 = 1;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+  private byte[] buf;
+  private int pos;
+
+  ProtoWriter() {
+    this(256);
+  }
+
+  ProtoWriter(int initialCapacity) {
+    this.buf = new byte[initialCapacity];
+  }
+
+  @CanIgnoreReturnValue
+  ProtoWriter writeVarint(int fieldNumber, long value) {
+    writeTag(fieldNumber, WIRETYPE_VARINT);
+    writeRawVarint(value);
+    return this;
+  }
+
+  @CanIgnoreReturnValue
+  ProtoWriter writeFixed64(int fieldNumber, long value) {
+    writeTag(fieldNumber, WIRETYPE_FIXED64);
+    ensureCapacity(8);
+    for (int i = 0; i < 8; i++) {
+      buf[pos++] = (byte) (value >>> (8 * i));
+    }
+    return this;
+  }
+
+  @CanIgnoreReturnValue
+  ProtoWriter writeString(int fieldNumber, String value) {
+    writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+    int utf8Length = Utf8.encodedLength(value);
+    writeRawVarint(utf8Length);
+    writeRawUtf8(value, utf8Length);
+    return this;
+  }
+
+  @CanIgnoreReturnValue
+  ProtoWriter writeMessage(int fieldNumber, ProtoWriter message) {
+    writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+    writeRawVarint(message.pos);
+    ensureCapacity(message.pos);
+    System.arraycopy(message.buf, 0, buf, pos, message.pos);
+    pos += message.pos;
+    return this;
+  }
+
+  int size() {
+    return pos;
+  }
+
+  void reset() {
+    pos = 0;
+  }
+
+  void writeTo(OutputStream os) throws IOException {
+    os.write(buf, 0, pos);
+  }
+
+  private void writeTag(int fieldNumber, int wireType) {
+    writeRawVarint(((long) fieldNumber << 3) | wireType);
+  }
+
+  private void writeRawVarint(long value) {
+    ensureCapacity(10);
+    while ((value & ~0x7FL) != 0) {
+      buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buf[pos++] = (byte) value;
+  }
+
+  private void writeRawUtf8(String s, int utf8Length) {
+    ensureCapacity(utf8Length);
+    pos = Utf8.encode(s, 0, s.length(), buf, pos);
+  }
+
+  private void ensureCapacity(int extra) {
+    if (pos + extra > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+    }
+  }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * Writes gzipped trace event JSON files from a dedicated background thread. Callers only hand off
+ * a request (or a snapshot of the MarkLists), and never wait for compression or disk I/O. If a
+ * write is already pending, further requests are dropped rather than queued.
+ *
+ * <p>Each write produces a new file named like {@code perfmark-trace-007.json.gz}, continuing from
+ * the highest numbered file already in the directory. After each write, older files are deleted
+ * according to the configured retention limits.
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class RotatingTraceWriter implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(RotatingTraceWriter.class.getName());
+
+  private static final String FILE_FORMAT = "perfmark-trace-%03d.json.gz";
+  private static final Pattern FILE_PATTERN = Pattern.compile("perfmark-trace-(\\d+)\\.json\\.gz");
+
+  /** Asks the writer thread to read the MarkLists from {@link Storage} itself. */
+  private static final Snapshot READ_STORAGE = new Snapshot(null, 0, null, 0);
+
+  /** Wakes up the writer thread so it can notice it has been closed. */
+  private static final Snapshot STOP = new Snapshot(null, 0, null, 0);
+
+  private static final Executor DIRECT =
+      new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          command.run();
+        }
+      };
+
+  private final Path directory;
+  private final long periodNanos;
+  private final long maxFileBytes;
+  private final int maxFiles;
+  private final long maxAgeMillis;
+  private final long maxTotalBytes;
+  private final int compressionLevel;
+  private final long pid;
+
+  private final BlockingQueue<Snapshot> pending = new ArrayBlockingQueue<>(1);
+  private final Thread thread;
+
+  private volatile boolean closed;
+  private int nextFileIndex = -1;
+
+  private RotatingTraceWriter(Builder builder) {
+    this.directory = builder.directory;
+    this.periodNanos = builder.periodNanos;
+    this.maxFileBytes = builder.maxFileBytes;
+    this.maxFiles = builder.maxFiles;
+    this.maxAgeMillis = builder.maxAgeMillis;
+    this.maxTotalBytes = builder.maxTotalBytes;
+    this.compressionLevel = builder.compressionLevel;
+    this.pid = TraceEventWriter.getPid();
+    this.thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                runLoop();
+              }
+            },
+            "perfmark-trace-writer");
+    thread.setDaemon(true);
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * Asks for the current contents of {@link Storage} to be written. The MarkLists are read on the
+   * writer thread.
+   *
+   * @return {@code true} if the request was accepted, or {@code false} if a write is already
+   *     pending or the writer is closed.
+   */
+  @CanIgnoreReturnValue
+  public boolean requestWrite() {
+    return !closed && pending.offer(READ_STORAGE);
+  }
+
+  /**
+   * Hands off an already taken snapshot of MarkLists, such as from {@link Storage#read()}, to be
+   * written. The wall clock time of the snapshot isn't known, so the trace has no clock anchor. See
+   * {@link #submit(List, long, long, long)}.
+   *
+   * @param markLists the data to use to build the trace.
+   * @param initNanoTime the time PerfMark classes were first loaded as specified by {@link
+   *     System#nanoTime()}
+   * @param nowNanoTime the time the snapshot was taken as specified by {@link System#nanoTime()}.
+   * @return {@code true} if the snapshot was accepted, or {@code false} if a write is already
+   *     pending or the writer is closed.
+   */
+  @CanIgnoreReturnValue
+  public boolean submit(List<? extends MarkList> markLists, long initNanoTime, long nowNanoTime) {
+    return submit(markLists, initNanoTime, null, nowNanoTime);
+  }
+
+  /**
+   * Hands off an already taken snapshot of MarkLists to be written, like {@link #submit(List, long,
+   * long)}, along with the wall clock time at {@code initNanoTime}.
+   *
+   * @param markLists the data to use to build the trace.
+   * @param initNanoTime the time the trace times are relative to, as specified by {@link
+   *     System#nanoTime()}
+   * @param initCurrentTimeMillis the wall clock time at {@code initNanoTime}, as specified by
+   *     {@link System#currentTimeMillis()}
+   * @param nowNanoTime the time the snapshot was taken as specified by {@link System#nanoTime()}.
+   * @return {@code true} if the snapshot was accepted, or {@code false} if a write is already
+   *     pending or the writer is closed.
+   */
+  @CanIgnoreReturnValue
+  public boolean submit(
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long initCurrentTimeMillis,
+      long nowNanoTime) {
+    return submit(
+        markLists, initNanoTime, ClockAnchor.atTraceStart(initCurrentTimeMillis), nowNanoTime);
+  }
+
+  private boolean submit(
+      List<? extends MarkList> markLists, long initNanoTime, ClockAnchor anchor, long nowNanoTime) {
+    if (markLists == null) {
+      throw new NullPointerException("markLists");
+    }
+    return !closed && pending.offer(new Snapshot(markLists, initNanoTime, anchor, nowNanoTime));
+  }
+
+  /**
+   * Stops the writer thread, after it finishes any write in progress or pending. Periodic writes
+   * are not made after closing.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    // If this doesn't fit, there is already something pending that will wake up the thread.
+    pending.offer(STOP);
+    if (Thread.currentThread() == thread) {
+      return;
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        thread.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void runLoop() {
+    long nextPeriodic = System.nanoTime() + periodNanos;
+    while (true) {
+      Snapshot snapshot;
+      try {
+        if (closed) {
+          snapshot = pending.poll();
+        } else if (periodNanos > 0) {
+          long waitNanos = Math.max(0, nextPeriodic - System.nanoTime());
+          snapshot = pending.poll(waitNanos, TimeUnit.NANOSECONDS);
+        } else {
+          snapshot = pending.take();
+        }
+      } catch (InterruptedException e) {
+        logger.log(Level.FINE, "Interrupted, stopping", e);
+        return;
+      }
+      if (snapshot == STOP || (snapshot == null && closed)) {
+        if (closed && pending.isEmpty()) {
+          return;
+        }
+        continue;
+      }
+      if (snapshot == null || snapshot == READ_STORAGE) {
+        snapshot =
+            new Snapshot(
+                Storage.read(),
+                Storage.getInitNanoTime(),
+                ClockAnchor.atTraceStart(Storage.getInitCurrentTimeMillis()),
+                System.nanoTime());
+      }
+      if (periodNanos > 0) {
+        nextPeriodic = System.nanoTime() + periodNanos;
+      }
+      try {
+        write(snapshot);
+      } catch (IOException | RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to write trace", e);
+      }
+    }
+  }
+
+  private void write(Snapshot snapshot) throws IOException {
+    if (nextFileIndex == -1) {
+      Files.createDirectories(directory);
+      nextFileIndex = highestFileIndex(directory) + 1;
+    }
+    Path path = directory.resolve(String.format(FILE_FORMAT, nextFileIndex++));
+    boolean done = false;
+    try (FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      ChannelOutputStream cos = new ChannelOutputStream(channel, maxFileBytes);
+      // Compress on this thread, so that background writes don't compete for every core.
+      try (OutputStream gzos = new ParallelGzipOutputStream(cos, compressionLevel, DIRECT)) {
+        TraceEventWriter.writeTraceEvents(
+            gzos,
+            snapshot.markLists,
+            snapshot.initNanoTime,
+            snapshot.nowNanoTime,
+            pid,
+            snapshot.anchor);
+      }
+      done = true;
+    } catch (FileTooLargeException e) {
+      // A truncated file can't be read by trace viewers, so it isn't worth keeping.
+      logger.warning("Trace exceeded " + maxFileBytes + " bytes, dropping " + path);
+    } finally {
+      if (!done) {
+        Files.deleteIfExists(path);
+      }
+    }
+    if (done) {
+      logger.fine("Wrote trace to " + path);
+      applyRetention(path);
+    }
+  }
+
+  private void applyRetention(Path newest) throws IOException {
+    List<TraceFile> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path path : stream) {
+        if (path.equals(newest) || !FILE_PATTERN.matcher(path.getFileName().toString()).matches()) {
+          continue;
+        }
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        files.add(new TraceFile(path, attrs.lastModifiedTime().toMillis(), attrs.size()));
+      }
+    }
+    // Newest first, so that the oldest are at the end of the list and are removed first.
+    Collections.sort(
+        files,
+        new Comparator<TraceFile>() {
+          @Override
+          public int compare(TraceFile a, TraceFile b) {
+            int cmp = Long.compare(b.lastModifiedMillis, a.lastModifiedMillis);
+            if (cmp != 0) {
+              return cmp;
+            }
+            return b.path.getFileName().compareTo(a.path.getFileName());
+          }
+        });
+    long totalBytes = Files.size(newest);
+    long oldestAllowedMillis =
+        maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+    int kept = 1;
+    for (TraceFile file : files) {
+      boolean keep =
+          (maxFiles <= 0 || kept < maxFiles)
+              && (maxTotalBytes <= 0 || totalBytes + file.size <= maxTotalBytes)
+              && file.lastModifiedMillis >= oldestAllowedMillis;
+      if (keep) {
+        kept++;
+        totalBytes += file.size;
+      } else {
+        try {
+          Files.deleteIfExists(file.path);
+        } catch (IOException e) {
+          logger.log(Level.FINE, "Unable to delete " + file.path, e);
+        }
+      }
+    }
+  }
+
+  private static int highestFileIndex(Path directory) throws IOException {
+    int highest = -1;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path path : stream) {
+        Matcher matcher = FILE_PATTERN.matcher(path.getFileName().toString());
+        if (matcher.matches()) {
+          try {
+            highest = Math.max(highest, Integer.parseInt(matcher.group(1)));
+          } catch (NumberFormatException e) {
+            // Too big to be one of ours.
+          }
+        }
+      }
+    }
+    return highest;
+  }
+
+  private static final class Snapshot {
+    /** {@code Nullable} */
+    final List<? extends MarkList> markLists;
+
+    final long initNanoTime;
+
+    /** {@code Nullable} */
+    final ClockAnchor anchor;
+
+    final long nowNanoTime;
+
+    Snapshot(
+        List<? extends MarkList> markLists,
+        long initNanoTime,
+        ClockAnchor anchor,
+        long nowNanoTime) {
+      this.markLists = markLists;
+      this.initNanoTime = initNanoTime;
+      this.anchor = anchor;
+      this.nowNanoTime = nowNanoTime;
+    }
+  }
+
+  private static final class TraceFile {
+    final Path path;
+    final long lastModifiedMillis;
+    final long size;
+
+    TraceFile(Path path, long lastModifiedMillis, long size) {
+      this.path = path;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.size = size;
+    }
+  }
+
+  private static final class FileTooLargeException extends IOException {
+    private static final long serialVersionUID = 0;
+
+    FileTooLargeException(long maxBytes) {
+      super("exceeded " + maxBytes + " bytes");
+    }
+  }
+
+  /** Buffers writes in a direct buffer, so the channel doesn't need to copy them again. */
+  private static final class ChannelOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final long maxBytes;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long written;
+
+    ChannelOutputStream(FileChannel channel, long maxBytes) {
+      this.channel = channel;
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (!buffer.hasRemaining()) {
+        drain();
+      }
+      buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (!buffer.hasRemaining()) {
+          drain();
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.put(b, off, n);
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+      drain();
+    }
+
+    private void drain() throws IOException {
+      buffer.flip();
+      written += buffer.remaining();
+      if (maxBytes > 0 && written > maxBytes) {
+        buffer.clear();
+        throw new FileTooLargeException(maxBytes);
+      }
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+
+  /** Configures and starts a {@link RotatingTraceWriter}. */
+  public static final class Builder {
+    private Path directory;
+    private long periodNanos;
+    private long maxFileBytes;
+    private int maxFiles;
+    private long maxAgeMillis;
+    private long maxTotalBytes;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private Builder() {}
+
+    /**
+     * Sets the directory to write traces to. By default, this is the same directory used by {@link
+     * TraceEventWriter#writeTraceEvents()}.
+     */
+    @CanIgnoreReturnValue
+    public Builder setDirectory(Path directory) {
+      if (directory == null) {
+        throw new NullPointerException("directory");
+      }
+      this.directory = directory;
+      return this;
+    }
+
+    /**
+     * Sets how often traces are written on their own. Each explicit request resets the period. If
+     * zero, the default, traces are only written when requested.
+     */
+    @CanIgnoreReturnValue
+    public Builder setPeriod(long period, TimeUnit unit) {
+      this.periodNanos = checkNonNegative(unit.toNanos(period), "period");
+      return this;
+    }
+
+    /**
+     * Sets the largest a single compressed trace file may be. Traces that would be larger are
+     * dropped. If zero, the default, there is no limit.
+     */
+    @CanIgnoreReturnValue
+    public Builder setMaxFileBytes(long maxFileBytes) {
+      this.maxFileBytes = checkNonNegative(maxFileBytes, "maxFileBytes");
+      return this;
+    }
+
+    /** Sets how many trace files to keep. If zero, the default, there is no limit. */
+    @CanIgnoreReturnValue
+    public Builder setMaxFiles(int maxFiles) {
+      this.maxFiles = (int) checkNonNegative(maxFiles, "maxFiles");
+      return this;
+    }
+
+    /**
+     * Sets how long trace files are kept, based on their modification time. If zero, the default,
+     * there is no limit.
+     */
+    @CanIgnoreReturnValue
+    public Builder setMaxAge(long maxAge, TimeUnit unit) {
+      this.maxAgeMillis = checkNonNegative(unit.toMillis(maxAge), "maxAge");
+      return this;
+    }
+
+    /**
+     * Sets how many bytes all the trace files together may take up. The most recent file is always
+     * kept. If zero, the default, there is no limit.
+     */
+    @CanIgnoreReturnValue
+    public Builder setMaxTotalBytes(long maxTotalBytes) {
+      this.maxTotalBytes = checkNonNegative(maxTotalBytes, "maxTotalBytes");
+      return this;
+    }
+
+    /**
+     * Sets the gzip compression level, from {@link Deflater#NO_COMPRESSION} to {@link
+     * Deflater#BEST_COMPRESSION}. Lower levels are faster, but make larger files.
+     */
+    @CanIgnoreReturnValue
+    public Builder setCompressionLevel(int compressionLevel) {
+      if ((compressionLevel < Deflater.NO_COMPRESSION
+              || compressionLevel > Deflater.BEST_COMPRESSION)
+          && compressionLevel != Deflater.DEFAULT_COMPRESSION) {
+        throw new IllegalArgumentException("bad compression level " + compressionLevel);
+      }
+      this.compressionLevel = compressionLevel;
+      return this;
+    }
+
+    /**
+     * Creates the writer and starts its thread.
+     *
+     * @throws IOException if the default directory can't be determined.
+     */
+    public RotatingTraceWriter build() throws IOException {
+      if (directory == null) {
+        directory = TraceEventWriter.guessDirectory();
+      }
+      RotatingTraceWriter writer = new RotatingTraceWriter(this);
+      writer.thread.start();
+      return writer;
+    }
+
+    private static long checkNonNegative(long value, String name) {
+      if (value < 0) {
+        throw new IllegalArgumentException(name + " must be non-negative: " + value);
+      }
+      return value;
+    }
+  }
+}
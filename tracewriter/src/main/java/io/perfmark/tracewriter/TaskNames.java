@@ -0,0 +1,70 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.perfmark.tracewriter;
+
+import io.perfmark.impl.Mark;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Joins task and sub task names, giving back the same String for the same pair each time, so that
+ * {@link JsonEncoder#writeName} finds it in its cache. Names are usually constants, so pairs are
+ * looked up by identity. Not thread safe.
+ */
+final class TaskNames {
+  private static final int MAX_CACHED_NAMES = 4096;
+
+  private final Map<String, Map<String, String>> joined = new IdentityHashMap<>();
+  private int size;
+
+  /** Like {@link TraceEventWriter#taskName}, but reuses the joined names. */
+  String taskName(Mark mark) {
+    switch (mark.getOperation()) {
+      case TASK_START_N1S2:
+      case TASK_END_N1S2:
+      case EVENT_N1S2:
+      case EVENT_N2S3:
+        return join(mark.getTaskName(), mark.getSubTaskName());
+      default:
+        return TraceEventWriter.taskName(mark);
+    }
+  }
+
+  private String join(String taskName, String subTaskName) {
+    Map<String, String> bySubTaskName = joined.get(taskName);
+    if (bySubTaskName == null) {
+      bySubTaskName = new IdentityHashMap<>();
+      joined.put(taskName, bySubTaskName);
+    }
+    String name = bySubTaskName.get(subTaskName);
+    if (name != null) {
+      return name;
+    }
+    name = taskName + '.' + subTaskName;
+    // Sub task names that aren't constants would otherwise be kept forever.
+    if (size >= MAX_CACHED_NAMES) {
+      joined.clear();
+      bySubTaskName.clear();
+      joined.put(taskName, bySubTaskName);
+      size = 0;
+    }
+    bySubTaskName.put(subTaskName, name);
+    size++;
+    return name;
+  }
+}
@@ -0,0 +1,716 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.Storage;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Summarizes how long each task took, grouped by task name. For each name, this reports how many
+ * times the task ran, the total and self time (i.e. excluding nested tasks), and the distribution
+ * of durations. Tasks that were still running, or had already started when recording began, are
+ * counted separately, since their durations aren't known.
+ *
+ * <p>MarkLists are analyzed in parallel, and trace files are read as a stream, so large traces can
+ * be summarized without loading them into a trace viewer. This class can also be run from the
+ * command line:
+ *
+ * <pre>
+ *   java io.perfmark.tracewriter.TraceAnalyzer [--sort=total|self|count|mean|p99|max]
+ *       [--top=N] [--format=text|csv|json] TRACE_FILE...
+ * </pre>
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class TraceAnalyzer {
+
+  /**
+   * Analyzes the Marks recorded so far in this process.
+   *
+   * @return the report.
+   */
+  public static Report analyze() {
+    return analyze(Storage.read(), System.nanoTime(), ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Analyzes the given MarkLists.
+   *
+   * @param markLists the data to analyze.
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}, which is used
+   *     as the end of unfinished tasks.
+   * @param pool where to analyze the MarkLists.
+   * @return the report.
+   */
+  public static Report analyze(
+      List<? extends MarkList> markLists, long nowNanoTime, ForkJoinPool pool) {
+    List<MarkList> split = new ArrayList<>();
+    for (List<MarkList> generation :
+        MarkListWalker.groupMarkListsByGeneration(markLists).values()) {
+      split.addAll(generation);
+    }
+    final Iterator<MarkList> it = split.iterator();
+    MarkListSource source =
+        new MarkListSource() {
+          @Override
+          public MarkList nextMarkList() {
+            return it.hasNext() ? it.next() : null;
+          }
+
+          @Override
+          public List<MarkList> readAll() {
+            List<MarkList> rest = new ArrayList<>();
+            while (it.hasNext()) {
+              rest.add(it.next());
+            }
+            return rest;
+          }
+
+          @Override
+          public Long getTraceStartUnixNanos() {
+            return null;
+          }
+
+          @Override
+          public long getPid() {
+            return -1;
+          }
+
+          @Override
+          public void close() {}
+        };
+    Map<String, Accumulator> stats = new HashMap<>();
+    try {
+      accumulate(source, nowNanoTime, pool, stats);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return new Report(stats);
+  }
+
+  /**
+   * Analyzes a trace file written by {@link TraceEventWriter} or {@link PerfettoTraceWriter}, which
+   * may be gzip compressed. The trace is read as a stream, while the MarkLists already read are
+   * analyzed in parallel.
+   *
+   * @param trace the trace file.
+   * @param pool where to analyze the MarkLists.
+   * @return the report.
+   * @throws IOException if the trace can't be read.
+   */
+  public static Report analyze(Path trace, ForkJoinPool pool) throws IOException {
+    Map<String, Accumulator> stats = new HashMap<>();
+    try (MarkListSource source = openTrace(trace)) {
+      accumulate(source, null, pool, stats);
+    }
+    return new Report(stats);
+  }
+
+  /** Opens a trace file, picking the reader by looking at the first byte of the trace. */
+  static MarkListSource openTrace(Path trace) throws IOException {
+    int first;
+    try (ReadableByteChannel channel = TraceEventReader.openMaybeGzipped(trace)) {
+      ByteBuffer buf = ByteBuffer.allocate(1);
+      do {
+        buf.clear();
+        first = channel.read(buf) == -1 ? -1 : buf.get(0);
+      } while (first == ' ' || first == '\t' || first == '\n' || first == '\r');
+    }
+    if (first == '{' || first == '[') {
+      return TraceEventReader.open(trace);
+    }
+    return PerfettoTraceReader.open(trace);
+  }
+
+  /**
+   * Reads MarkLists from the source, and analyzes them on the pool. Only a bounded number of them
+   * are in flight at once, so that the source is never read far ahead.
+   *
+   * @param nowNanoTime the end of unfinished tasks, or {@code null} to use the last Mark of each
+   *     MarkList.
+   */
+  private static void accumulate(
+      MarkListSource source, Long nowNanoTime, ForkJoinPool pool, Map<String, Accumulator> into)
+      throws IOException {
+    int maxInFlight = Math.max(2, pool.getParallelism() * 4);
+    Deque<ForkJoinTask<Map<String, Accumulator>>> inFlight = new ArrayDeque<>(maxInFlight);
+    MarkList markList;
+    while ((markList = source.nextMarkList()) != null) {
+      if (inFlight.size() == maxInFlight) {
+        merge(into, inFlight.removeFirst().join());
+      }
+      inFlight.addLast(pool.submit(new StatsWalker(markList, nowNanoTime)));
+    }
+    while (!inFlight.isEmpty()) {
+      merge(into, inFlight.removeFirst().join());
+    }
+  }
+
+  private static void merge(Map<String, Accumulator> into, Map<String, Accumulator> from) {
+    for (Map.Entry<String, Accumulator> entry : from.entrySet()) {
+      Accumulator existing = into.get(entry.getKey());
+      if (existing == null) {
+        into.put(entry.getKey(), entry.getValue());
+      } else {
+        existing.merge(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Runs the analyzer from the command line.
+   *
+   * @param args the flags and trace files, as described in the class docs.
+   * @throws IOException if a trace can't be read.
+   */
+  public static void main(String[] args) throws IOException {
+    Comparator<TaskStats> order = BY_TOTAL;
+    boolean badArgs = false;
+    int top = 50;
+    String format = "text";
+    List<Path> traces = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--sort=")) {
+        order = comparatorFor(arg.substring("--sort=".length()));
+      } else if (arg.startsWith("--top=")) {
+        top = Integer.parseInt(arg.substring("--top=".length()));
+      } else if (arg.startsWith("--format=")) {
+        format = arg.substring("--format=".length());
+      } else if (arg.startsWith("--")) {
+        badArgs = true;
+      } else {
+        traces.add(Paths.get(arg));
+      }
+    }
+    if (badArgs || order == null || traces.isEmpty() || !isFormat(format)) {
+      usage(System.err);
+      System.exit(2);
+      return;
+    }
+
+    Map<String, Accumulator> stats = new HashMap<>();
+    for (Path trace : traces) {
+      try (MarkListSource source = openTrace(trace)) {
+        accumulate(source, null, ForkJoinPool.commonPool(), stats);
+      }
+    }
+    Report report = new Report(stats).sortedBy(order);
+    Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+    if (format.equals("csv")) {
+      report.writeCsv(out);
+    } else if (format.equals("json")) {
+      report.writeJson(out);
+    } else {
+      report.writeText(out, top);
+    }
+    out.flush();
+  }
+
+  private static boolean isFormat(String format) {
+    return format.equals("text") || format.equals("csv") || format.equals("json");
+  }
+
+  private static void usage(PrintStream err) {
+    err.println(
+        "Usage: TraceAnalyzer [--sort=total|self|count|mean|p99|max] [--top=N]"
+            + " [--format=text|csv|json] TRACE_FILE...");
+  }
+
+  private static final Comparator<TaskStats> BY_TOTAL =
+      new Comparator<TaskStats>() {
+        @Override
+        public int compare(TaskStats a, TaskStats b) {
+          return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+        }
+      };
+
+  /** {@code Nullable} */
+  private static Comparator<TaskStats> comparatorFor(final String sort) {
+    switch (sort) {
+      case "total":
+        return BY_TOTAL;
+      case "self":
+      case "count":
+      case "mean":
+      case "p99":
+      case "max":
+        return new Comparator<TaskStats>() {
+          @Override
+          public int compare(TaskStats a, TaskStats b) {
+            return Double.compare(sortKey(b, sort), sortKey(a, sort));
+          }
+        };
+      default:
+        return null;
+    }
+  }
+
+  private static double sortKey(TaskStats stats, String sort) {
+    switch (sort) {
+      case "self":
+        return stats.getSelfNanos();
+      case "count":
+        return stats.getCount();
+      case "mean":
+        return stats.getMeanNanos();
+      case "p99":
+        return stats.getPercentileNanos(99);
+      case "max":
+        return stats.getMaxNanos();
+      default:
+        throw new AssertionError(sort);
+    }
+  }
+
+  /**
+   * The durations of all the tasks with one name.
+   *
+   * @since 0.28.0
+   */
+  public static final class TaskStats {
+    private final String name;
+    private final long count;
+    private final long incompleteCount;
+    private final long totalNanos;
+    private final long selfNanos;
+    private final double sumOfSquares;
+    private final LogHistogram histogram;
+
+    TaskStats(Accumulator accumulator) {
+      this.name = accumulator.name;
+      this.count = accumulator.histogram.count();
+      this.incompleteCount = accumulator.incompleteCount;
+      this.totalNanos = accumulator.totalNanos;
+      this.selfNanos = accumulator.selfNanos;
+      this.sumOfSquares = accumulator.sumOfSquares;
+      this.histogram = accumulator.histogram;
+    }
+
+    /** Returns the task name, including the sub task name if there is one. */
+    public String getName() {
+      return name;
+    }
+
+    /** Returns how many times the task ran to completion. */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns how many times the task was still running at the end, or had already started at
+     * the beginning. These are not included in any of the durations.
+     */
+    public long getIncompleteCount() {
+      return incompleteCount;
+    }
+
+    /** Returns the sum of the durations. */
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    /** Returns the sum of the durations, excluding the time spent in nested tasks. */
+    public long getSelfNanos() {
+      return selfNanos;
+    }
+
+    public double getMeanNanos() {
+      return count != 0 ? (double) totalNanos / count : 0;
+    }
+
+    public double getStandardDeviationNanos() {
+      if (count < 2) {
+        return 0;
+      }
+      double mean = getMeanNanos();
+      double variance = (sumOfSquares - count * mean * mean) / (count - 1);
+      return Math.sqrt(Math.max(0, variance));
+    }
+
+    /**
+     * Returns the duration at the given percentile. Durations are kept in buckets, so this is
+     * accurate to about 3%.
+     *
+     * @param percentile between 0 and 100, such as 99 for the p99.
+     */
+    public long getPercentileNanos(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("bad percentile " + percentile);
+      }
+      return histogram.valueAtPercentile(percentile);
+    }
+
+    public long getMaxNanos() {
+      return histogram.max();
+    }
+
+    @Override
+    public String toString() {
+      return "TaskStats{name="
+          + name
+          + ", count="
+          + count
+          + ", totalNanos="
+          + totalNanos
+          + ", selfNanos="
+          + selfNanos
+          + "}";
+    }
+  }
+
+  /**
+   * The durations of every task, by task name.
+   *
+   * @since 0.28.0
+   */
+  public static final class Report {
+    private final List<TaskStats> taskStats;
+
+    Report(Map<String, Accumulator> stats) {
+      List<TaskStats> taskStats = new ArrayList<>(stats.size());
+      for (Accumulator accumulator : stats.values()) {
+        taskStats.add(new TaskStats(accumulator));
+      }
+      Collections.sort(taskStats, BY_TOTAL);
+      this.taskStats = Collections.unmodifiableList(taskStats);
+    }
+
+    private Report(List<TaskStats> taskStats) {
+      this.taskStats = Collections.unmodifiableList(taskStats);
+    }
+
+    /** Returns the stats for each task name, by default with the largest total time first. */
+    public List<TaskStats> getTaskStats() {
+      return taskStats;
+    }
+
+    /**
+     * Returns a copy of this report, with the task stats in a different order.
+     *
+     * @param order how to sort the task stats.
+     * @return the sorted report.
+     */
+    public Report sortedBy(Comparator<? super TaskStats> order) {
+      List<TaskStats> sorted = new ArrayList<>(taskStats);
+      Collections.sort(sorted, order);
+      return new Report(sorted);
+    }
+
+    /**
+     * Writes the report as a table, meant for people to read.
+     *
+     * @param writer the destination.
+     * @param limit the most task names to include.
+     * @throws IOException if the writer fails.
+     */
+    public void writeText(Writer writer, int limit) throws IOException {
+      List<TaskStats> shown = taskStats.subList(0, Math.min(limit, taskStats.size()));
+      int nameWidth = "Task".length();
+      for (TaskStats stats : shown) {
+        nameWidth = Math.max(nameWidth, Math.min(MAX_NAME_WIDTH, stats.getName().length()));
+      }
+      String rowFormat = "%-" + nameWidth + "s %10s %10s %10s %10s %10s %10s %10s %10s%n";
+      writer.write(
+          String.format(
+              Locale.ROOT,
+              rowFormat,
+              "Task",
+              "Count",
+              "Total",
+              "Self",
+              "Mean",
+              "p50",
+              "p90",
+              "p99",
+              "Max"));
+      for (TaskStats stats : shown) {
+        String name = stats.getName();
+        if (name.length() > nameWidth) {
+          name = name.substring(0, nameWidth - 3) + "...";
+        }
+        writer.write(
+            String.format(
+                Locale.ROOT,
+                rowFormat,
+                name,
+                stats.getCount(),
+                formatNanos(stats.getTotalNanos()),
+                formatNanos(stats.getSelfNanos()),
+                formatNanos((long) stats.getMeanNanos()),
+                formatNanos(stats.getPercentileNanos(50)),
+                formatNanos(stats.getPercentileNanos(90)),
+                formatNanos(stats.getPercentileNanos(99)),
+                formatNanos(stats.getMaxNanos())));
+      }
+      if (shown.size() < taskStats.size()) {
+        writer.write("... and " + (taskStats.size() - shown.size()) + " more\n");
+      }
+      writer.flush();
+    }
+
+    /**
+     * Writes the report as CSV, with all times in nanoseconds.
+     *
+     * @param writer the destination.
+     * @throws IOException if the writer fails.
+     */
+    public void writeCsv(Writer writer) throws IOException {
+      writer.write(
+          "name,count,incomplete,totalNanos,selfNanos,meanNanos,stddevNanos,p50Nanos,p90Nanos,"
+              + "p99Nanos,maxNanos\n");
+      for (TaskStats stats : taskStats) {
+        String name = stats.getName();
+        if (name.indexOf(',') != -1 || name.indexOf('"') != -1 || name.indexOf('\n') != -1) {
+          name = '"' + name.replace("\"", "\"\"") + '"';
+        }
+        writer.write(name);
+        for (long value : values(stats)) {
+          writer.write(',');
+          writer.write(Long.toString(value));
+        }
+        writer.write('\n');
+      }
+      writer.flush();
+    }
+
+    /**
+     * Writes the report as a JSON object, with all times in nanoseconds.
+     *
+     * @param writer the destination.
+     * @throws IOException if the writer fails.
+     */
+    public void writeJson(Writer writer) throws IOException {
+      JsonEncoder json = new JsonEncoder(writer);
+      json.writeAscii("{\"tasks\":[");
+      boolean first = true;
+      for (TaskStats stats : taskStats) {
+        first = TraceEventWriter.maybeAddComma(json, first);
+        json.writeAscii("{\"name\":");
+        json.writeString(stats.getName());
+        long[] values = values(stats);
+        for (int i = 0; i < values.length; i++) {
+          json.writeAscii(",\"");
+          json.writeAscii(JSON_FIELDS[i]);
+          json.writeAscii("\":");
+          json.writeLong(values[i]);
+        }
+        json.writeAscii('}');
+        json.maybeFlush();
+      }
+      json.writeAscii("]}");
+      json.flush();
+    }
+
+    private static final String[] JSON_FIELDS = {
+      "count",
+      "incomplete",
+      "totalNanos",
+      "selfNanos",
+      "meanNanos",
+      "stddevNanos",
+      "p50Nanos",
+      "p90Nanos",
+      "p99Nanos",
+      "maxNanos",
+    };
+
+    private static long[] values(TaskStats stats) {
+      return new long[] {
+        stats.getCount(),
+        stats.getIncompleteCount(),
+        stats.getTotalNanos(),
+        stats.getSelfNanos(),
+        Math.round(stats.getMeanNanos()),
+        Math.round(stats.getStandardDeviationNanos()),
+        stats.getPercentileNanos(50),
+        stats.getPercentileNanos(90),
+        stats.getPercentileNanos(99),
+        stats.getMaxNanos(),
+      };
+    }
+
+    private static final int MAX_NAME_WIDTH = 60;
+  }
+
+  static String formatNanos(long nanos) {
+    if (nanos < 1000) {
+      return nanos + "ns";
+    } else if (nanos < 1_000_000) {
+      return String.format(Locale.ROOT, "%.1fus", nanos / 1e3);
+    } else if (nanos < 1_000_000_000) {
+      return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+    } else {
+      return String.format(Locale.ROOT, "%.2fs", nanos / 1e9);
+    }
+  }
+
+  /**
+   * Returns the time of the latest Mark that has one. Unfinished tasks have no end in a trace, so
+   * this is used as their end instead.
+   *
+   * @param ifNone the time to return if no Mark has a time.
+   */
+  static long lastNanoTime(MarkList markList, long ifNone) {
+    boolean found = false;
+    long last = ifNone;
+    for (Mark mark : markList) {
+      switch (mark.getOperation().getOpType()) {
+        case TASK_START:
+        case TASK_END:
+        case EVENT:
+          if (!found || mark.getNanoTime() - last > 0) {
+            last = mark.getNanoTime();
+            found = true;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return last;
+  }
+
+  /** The mutable counterpart of {@link TaskStats}, filled in while walking. */
+  static final class Accumulator {
+    final String name;
+    final LogHistogram histogram = new LogHistogram();
+    long incompleteCount;
+    long totalNanos;
+    long selfNanos;
+    double sumOfSquares;
+
+    Accumulator(String name) {
+      this.name = name;
+    }
+
+    void record(long durationNanos, long selfNanos) {
+      histogram.record(durationNanos);
+      this.totalNanos += durationNanos;
+      this.selfNanos += selfNanos;
+      this.sumOfSquares += (double) durationNanos * durationNanos;
+    }
+
+    void merge(Accumulator other) {
+      histogram.merge(other.histogram);
+      incompleteCount += other.incompleteCount;
+      totalNanos += other.totalNanos;
+      selfNanos += other.selfNanos;
+      sumOfSquares += other.sumOfSquares;
+    }
+  }
+
+  private static final class StatsWalker extends MarkListWalker
+      implements Callable<Map<String, Accumulator>> {
+
+    private static final class Frame {
+      final String name;
+      final long startNanoTime;
+      final boolean incomplete;
+      long childNanos;
+
+      Frame(String name, long startNanoTime, boolean incomplete) {
+        this.name = name;
+        this.startNanoTime = startNanoTime;
+        this.incomplete = incomplete;
+      }
+    }
+
+    private final MarkList markList;
+
+    /** {@code Nullable} */
+    private final Long nowNanoTime;
+
+    private final Map<String, Accumulator> stats = new HashMap<>();
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    StatsWalker(MarkList markList, Long nowNanoTime) {
+      this.markList = markList;
+      this.nowNanoTime = nowNanoTime;
+    }
+
+    @Override
+    public Map<String, Accumulator> call() {
+      walkMarkList(markList, nowNanoTime != null ? nowNanoTime : lastNanoTime(markList, 0));
+      return stats;
+    }
+
+    @Override
+    protected void exitMarkList() {
+      stack.clear();
+      super.exitMarkList();
+    }
+
+    @Override
+    protected void onTaskStart(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
+      stack.addLast(
+          new Frame(
+              TraceEventWriter.taskName(mark), mark.getNanoTime(), unmatchedStart || unmatchedEnd));
+    }
+
+    @Override
+    protected void onTaskEnd(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
+      Frame frame = stack.pollLast();
+      if (frame == null) {
+        return;
+      }
+      long duration = Math.max(0, mark.getNanoTime() - frame.startNanoTime);
+      Frame parent = stack.peekLast();
+      if (parent != null) {
+        parent.childNanos += duration;
+      }
+      Accumulator accumulator = stats.get(frame.name);
+      if (accumulator == null) {
+        stats.put(frame.name, accumulator = new Accumulator(frame.name));
+      }
+      if (frame.incomplete) {
+        accumulator.incompleteCount++;
+      } else {
+        accumulator.record(duration, Math.max(0, duration - frame.childNanos));
+      }
+    }
+  }
+
+  private TraceAnalyzer() {
+    throw new AssertionError("nope");
+  }
+}
@@ -0,0 +1,684 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the task durations of two traces, such as one from the current build and one from a
+ * candidate build recorded under the same load. For each task name, this reports how the count,
+ * mean and p99 changed, and flags the changes that are unlikely to be noise:
+ *
+ * <ul>
+ *   <li>The mean is compared with Welch's t-test, which doesn't assume both traces have the same
+ *       variance.
+ *   <li>The p99 comes from bucketed histograms, so it is only flagged when it moved by at least a
+ *       whole bucket, and both traces have at least 100 runs of the task.
+ *   <li>The count is compared as if the runs were Poisson distributed, which only makes sense if
+ *       both traces cover the same amount of time.
+ * </ul>
+ *
+ * <p>A change must also be at least the minimum relative change, so that tiny but consistent
+ * differences in busy tasks aren't flagged. This class can also be run from the command line,
+ * and exits with status 1 if any task regressed:
+ *
+ * <pre>
+ *   java io.perfmark.tracewriter.TraceDiff [--alpha=0.01] [--min-change=0.05]
+ *       [--format=text|json] [--top=N] BASELINE_TRACE CANDIDATE_TRACE
+ * </pre>
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class TraceDiff {
+  /** The default significance level. */
+  public static final double DEFAULT_ALPHA = 0.01;
+
+  /** The default minimum relative change, i.e. 5%. */
+  public static final double DEFAULT_MIN_CHANGE = 0.05;
+
+  static final int MIN_TAIL_COUNT = 100;
+
+  /** The width of a histogram bucket relative to its values, i.e. the resolution of the p99. */
+  private static final double TAIL_RESOLUTION = 1.0 / 16;
+
+  private final double alpha;
+  private final double minChange;
+  private final List<TaskDiff> taskDiffs;
+
+  private TraceDiff(double alpha, double minChange, List<TaskDiff> taskDiffs) {
+    this.alpha = alpha;
+    this.minChange = minChange;
+    this.taskDiffs = Collections.unmodifiableList(taskDiffs);
+  }
+
+  /**
+   * Compares two reports with the default significance level and minimum change.
+   *
+   * @param baseline the report to compare against.
+   * @param candidate the report that may have regressed.
+   * @return the differences.
+   */
+  public static TraceDiff compare(TraceAnalyzer.Report baseline, TraceAnalyzer.Report candidate) {
+    return compare(baseline, candidate, DEFAULT_ALPHA, DEFAULT_MIN_CHANGE);
+  }
+
+  /**
+   * Compares two reports. The reports can come from {@link TraceAnalyzer#analyze} of a snapshot or
+   * of a trace file.
+   *
+   * @param baseline the report to compare against.
+   * @param candidate the report that may have regressed.
+   * @param alpha the significance level, such as 0.01. The lower it is, the fewer false positives,
+   *     but the more real changes are missed.
+   * @param minChange the smallest relative change to flag, such as 0.05 for 5%.
+   * @return the differences.
+   */
+  public static TraceDiff compare(
+      TraceAnalyzer.Report baseline,
+      TraceAnalyzer.Report candidate,
+      double alpha,
+      double minChange) {
+    if (!(alpha > 0 && alpha < 1)) {
+      throw new IllegalArgumentException("bad alpha " + alpha);
+    }
+    if (!(minChange >= 0)) {
+      throw new IllegalArgumentException("bad minChange " + minChange);
+    }
+    Map<String, TaskDiff> byName = new TreeMap<>();
+    for (TraceAnalyzer.TaskStats stats : baseline.getTaskStats()) {
+      byName.put(stats.getName(), new TaskDiff(stats, null));
+    }
+    for (TraceAnalyzer.TaskStats stats : candidate.getTaskStats()) {
+      TaskDiff existing = byName.get(stats.getName());
+      byName.put(stats.getName(), new TaskDiff(existing != null ? existing.baseline : null, stats));
+    }
+    List<TaskDiff> taskDiffs = new ArrayList<>(byName.size());
+    for (TaskDiff taskDiff : byName.values()) {
+      taskDiff.flag(alpha, minChange);
+      taskDiffs.add(taskDiff);
+    }
+    Collections.sort(taskDiffs, BY_IMPORTANCE);
+    return new TraceDiff(alpha, minChange, taskDiffs);
+  }
+
+  /** Returns the differences of every task name, with the regressions first. */
+  public List<TaskDiff> getTaskDiffs() {
+    return taskDiffs;
+  }
+
+  /** Returns the differences of the tasks whose mean or p99 got significantly worse. */
+  public List<TaskDiff> getRegressions() {
+    List<TaskDiff> regressions = new ArrayList<>();
+    for (TaskDiff taskDiff : taskDiffs) {
+      if (taskDiff.isRegression()) {
+        regressions.add(taskDiff);
+      }
+    }
+    return Collections.unmodifiableList(regressions);
+  }
+
+  /**
+   * Writes a summary of the significant changes, meant for people to read.
+   *
+   * @param writer the destination.
+   * @param limit the most task names to include.
+   * @throws IOException if the writer fails.
+   */
+  public void writeText(Writer writer, int limit) throws IOException {
+    int regressions = 0;
+    int improvements = 0;
+    List<TaskDiff> changed = new ArrayList<>();
+    for (TaskDiff taskDiff : taskDiffs) {
+      if (taskDiff.isRegression()) {
+        regressions++;
+      } else if (taskDiff.isImprovement()) {
+        improvements++;
+      }
+      if (!taskDiff.getFlags().isEmpty()) {
+        changed.add(taskDiff);
+      }
+    }
+    writer.write(
+        String.format(
+            Locale.ROOT,
+            "%d regressions and %d improvements among %d tasks (alpha=%s, min change=%.1f%%)%n",
+            regressions,
+            improvements,
+            taskDiffs.size(),
+            alpha,
+            minChange * 100));
+    List<TaskDiff> shown = changed.subList(0, Math.min(limit, changed.size()));
+    if (!shown.isEmpty()) {
+      String rowFormat = "%-40s %17s %23s %23s  %s%n";
+      writer.write(String.format(Locale.ROOT, rowFormat, "Task", "Count", "Mean", "p99", "Flags"));
+      for (TaskDiff taskDiff : shown) {
+        String name = taskDiff.getName();
+        if (name.length() > 40) {
+          name = name.substring(0, 37) + "...";
+        }
+        TraceAnalyzer.TaskStats base = taskDiff.baseline;
+        TraceAnalyzer.TaskStats cand = taskDiff.candidate;
+        long baseCount = base != null ? base.getCount() : 0;
+        long candCount = cand != null ? cand.getCount() : 0;
+        writer.write(
+            String.format(
+                Locale.ROOT,
+                rowFormat,
+                name,
+                baseCount + " -> " + candCount,
+                change(
+                    base != null ? (long) base.getMeanNanos() : 0,
+                    cand != null ? (long) cand.getMeanNanos() : 0),
+                change(
+                    base != null ? base.getPercentileNanos(99) : 0,
+                    cand != null ? cand.getPercentileNanos(99) : 0),
+                flagString(taskDiff.getFlags(), ",")));
+      }
+    }
+    if (shown.size() < changed.size()) {
+      writer.write("... and " + (changed.size() - shown.size()) + " more\n");
+    }
+    writer.flush();
+  }
+
+  private static String change(long before, long after) {
+    String s = TraceAnalyzer.formatNanos(before) + " -> " + TraceAnalyzer.formatNanos(after);
+    if (before != 0) {
+      s += String.format(Locale.ROOT, " %+.0f%%", 100.0 * (after - before) / before);
+    }
+    return s;
+  }
+
+  /**
+   * Writes every difference as a JSON object, with all times in nanoseconds. Relative changes are
+   * {@code null} where the baseline is zero.
+   *
+   * @param writer the destination.
+   * @throws IOException if the writer fails.
+   */
+  public void writeJson(Writer writer) throws IOException {
+    JsonEncoder json = new JsonEncoder(writer);
+    json.writeAscii("{\"alpha\":");
+    json.writeAscii(formatDouble(alpha));
+    json.writeAscii(",\"minChange\":");
+    json.writeAscii(formatDouble(minChange));
+    json.writeAscii(",\"regressions\":");
+    json.writeLong(getRegressions().size());
+    json.writeAscii(",\"tasks\":[");
+    boolean first = true;
+    for (TaskDiff taskDiff : taskDiffs) {
+      first = TraceEventWriter.maybeAddComma(json, first);
+      json.writeAscii("{\"name\":");
+      json.writeString(taskDiff.getName());
+      writeJsonStats(json, "baseline", taskDiff.baseline);
+      writeJsonStats(json, "candidate", taskDiff.candidate);
+      json.writeAscii(",\"countChange\":");
+      json.writeAscii(formatDouble(taskDiff.getCountChange()));
+      json.writeAscii(",\"meanChange\":");
+      json.writeAscii(formatDouble(taskDiff.getMeanChange()));
+      json.writeAscii(",\"p99Change\":");
+      json.writeAscii(formatDouble(taskDiff.getP99Change()));
+      json.writeAscii(",\"countPValue\":");
+      json.writeAscii(formatDouble(taskDiff.getCountPValue()));
+      json.writeAscii(",\"meanPValue\":");
+      json.writeAscii(formatDouble(taskDiff.getMeanPValue()));
+      json.writeAscii(",\"flags\":[");
+      json.writeAscii(flagString(taskDiff.getFlags(), "\"", "\",\"", "\""));
+      json.writeAscii("]}");
+      json.maybeFlush();
+    }
+    json.writeAscii("]}");
+    json.flush();
+  }
+
+  private static void writeJsonStats(
+      JsonEncoder json, String name, TraceAnalyzer.TaskStats stats) {
+    json.writeAscii(",\"");
+    json.writeAscii(name);
+    json.writeAscii("\":");
+    if (stats == null) {
+      json.writeAscii("null");
+      return;
+    }
+    json.writeAscii("{\"count\":");
+    json.writeLong(stats.getCount());
+    json.writeAscii(",\"meanNanos\":");
+    json.writeLong(Math.round(stats.getMeanNanos()));
+    json.writeAscii(",\"stddevNanos\":");
+    json.writeLong(Math.round(stats.getStandardDeviationNanos()));
+    json.writeAscii(",\"p99Nanos\":");
+    json.writeLong(stats.getPercentileNanos(99));
+    json.writeAscii('}');
+  }
+
+  private static String formatDouble(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return "null";
+    }
+    return Double.toString(value);
+  }
+
+  private static String flagString(List<Flag> flags, String separator) {
+    return flagString(flags, "", separator, "");
+  }
+
+  private static String flagString(List<Flag> flags, String prefix, String separator, String end) {
+    if (flags.isEmpty()) {
+      return "";
+    }
+    StringBuilder sb = new StringBuilder(prefix);
+    for (int i = 0; i < flags.size(); i++) {
+      if (i != 0) {
+        sb.append(separator);
+      }
+      sb.append(flags.get(i).name().toLowerCase(Locale.ROOT));
+    }
+    return sb.append(end).toString();
+  }
+
+  /**
+   * Runs the comparison from the command line.
+   *
+   * @param args the flags and trace files, as described in the class docs.
+   * @throws IOException if a trace can't be read.
+   */
+  public static void main(String[] args) throws IOException {
+    double alpha = DEFAULT_ALPHA;
+    double minChange = DEFAULT_MIN_CHANGE;
+    String format = "text";
+    int top = 50;
+    boolean badArgs = false;
+    List<String> traces = new ArrayList<>();
+    try {
+      for (String arg : args) {
+        if (arg.startsWith("--alpha=")) {
+          alpha = Double.parseDouble(arg.substring("--alpha=".length()));
+        } else if (arg.startsWith("--min-change=")) {
+          minChange = Double.parseDouble(arg.substring("--min-change=".length()));
+        } else if (arg.startsWith("--top=")) {
+          top = Integer.parseInt(arg.substring("--top=".length()));
+        } else if (arg.startsWith("--format=")) {
+          format = arg.substring("--format=".length());
+          badArgs |= !format.equals("text") && !format.equals("json");
+        } else if (arg.startsWith("--")) {
+          badArgs = true;
+        } else {
+          traces.add(arg);
+        }
+      }
+    } catch (NumberFormatException e) {
+      badArgs = true;
+    }
+    if (badArgs || traces.size() != 2 || !(alpha > 0 && alpha < 1) || !(minChange >= 0)) {
+      usage(System.err);
+      System.exit(2);
+      return;
+    }
+
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    TraceDiff diff =
+        compare(
+            TraceAnalyzer.analyze(Paths.get(traces.get(0)), pool),
+            TraceAnalyzer.analyze(Paths.get(traces.get(1)), pool),
+            alpha,
+            minChange);
+    Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+    if (format.equals("json")) {
+      diff.writeJson(out);
+    } else {
+      diff.writeText(out, top);
+    }
+    out.flush();
+    if (!diff.getRegressions().isEmpty()) {
+      System.exit(1);
+    }
+  }
+
+  private static void usage(PrintStream err) {
+    err.println(
+        "Usage: TraceDiff [--alpha=0.01] [--min-change=0.05] [--format=text|json] [--top=N]"
+            + " BASELINE_TRACE CANDIDATE_TRACE");
+  }
+
+  /**
+   * A significant change of one task.
+   *
+   * @since 0.28.0
+   */
+  public enum Flag {
+    /** The task only ran in the candidate. */
+    ADDED,
+    /** The task only ran in the baseline. */
+    REMOVED,
+    /** The mean duration got longer. */
+    MEAN_REGRESSION,
+    /** The mean duration got shorter. */
+    MEAN_IMPROVEMENT,
+    /** The p99 duration got longer. */
+    P99_REGRESSION,
+    /** The p99 duration got shorter. */
+    P99_IMPROVEMENT,
+    /** The task ran more or fewer times. */
+    COUNT_CHANGE,
+  }
+
+  /**
+   * How one task changed between the baseline and the candidate.
+   *
+   * @since 0.28.0
+   */
+  public static final class TaskDiff {
+    /** {@code Nullable} */
+    final TraceAnalyzer.TaskStats baseline;
+
+    /** {@code Nullable} */
+    final TraceAnalyzer.TaskStats candidate;
+
+    private double countPValue = 1;
+    private double meanPValue = 1;
+    private final List<Flag> flags = new ArrayList<>();
+
+    TaskDiff(TraceAnalyzer.TaskStats baseline, TraceAnalyzer.TaskStats candidate) {
+      this.baseline = baseline;
+      this.candidate = candidate;
+    }
+
+    private void flag(double alpha, double minChange) {
+      if (baseline == null || baseline.getCount() == 0) {
+        if (candidate != null && candidate.getCount() != 0) {
+          flags.add(Flag.ADDED);
+        }
+        return;
+      }
+      if (candidate == null || candidate.getCount() == 0) {
+        flags.add(Flag.REMOVED);
+        return;
+      }
+      meanPValue =
+          welchPValue(
+              baseline.getMeanNanos(),
+              baseline.getStandardDeviationNanos(),
+              baseline.getCount(),
+              candidate.getMeanNanos(),
+              candidate.getStandardDeviationNanos(),
+              candidate.getCount());
+      double meanChange = getMeanChange();
+      if (meanPValue < alpha && Math.abs(meanChange) >= minChange) {
+        flags.add(meanChange > 0 ? Flag.MEAN_REGRESSION : Flag.MEAN_IMPROVEMENT);
+      }
+      double p99Change = getP99Change();
+      if (baseline.getCount() >= MIN_TAIL_COUNT
+          && candidate.getCount() >= MIN_TAIL_COUNT
+          && Math.abs(p99Change) >= Math.max(minChange, TAIL_RESOLUTION)) {
+        flags.add(p99Change > 0 ? Flag.P99_REGRESSION : Flag.P99_IMPROVEMENT);
+      }
+      long before = baseline.getCount();
+      long after = candidate.getCount();
+      countPValue = normalTwoTailedPValue((after - before) / Math.sqrt((double) before + after));
+      if (countPValue < alpha && Math.abs(getCountChange()) >= minChange) {
+        flags.add(Flag.COUNT_CHANGE);
+      }
+    }
+
+    public String getName() {
+      return baseline != null ? baseline.getName() : candidate.getName();
+    }
+
+    /** Returns the stats of the baseline, or {@code null} if the task didn't run in it. */
+    public TraceAnalyzer.TaskStats getBaseline() {
+      return baseline;
+    }
+
+    /** Returns the stats of the candidate, or {@code null} if the task didn't run in it. */
+    public TraceAnalyzer.TaskStats getCandidate() {
+      return candidate;
+    }
+
+    /** Returns the relative change in count, such as 0.1 for 10% more, or NaN if not known. */
+    public double getCountChange() {
+      return relativeChange(
+          baseline != null ? baseline.getCount() : 0, candidate != null ? candidate.getCount() : 0);
+    }
+
+    /** Returns the relative change of the mean, such as 0.1 for 10% slower, or NaN if not known. */
+    public double getMeanChange() {
+      return relativeChange(
+          baseline != null ? baseline.getMeanNanos() : 0,
+          candidate != null ? candidate.getMeanNanos() : 0);
+    }
+
+    /** Returns the relative change of the p99, such as 0.1 for 10% slower, or NaN if not known. */
+    public double getP99Change() {
+      return relativeChange(
+          baseline != null ? baseline.getPercentileNanos(99) : 0,
+          candidate != null ? candidate.getPercentileNanos(99) : 0);
+    }
+
+    /** Returns how likely a change in count at least this large is, if nothing changed. */
+    public double getCountPValue() {
+      return countPValue;
+    }
+
+    /** Returns how likely a change in mean at least this large is, if nothing changed. */
+    public double getMeanPValue() {
+      return meanPValue;
+    }
+
+    /** Returns the significant changes, which is empty if nothing changed. */
+    public List<Flag> getFlags() {
+      return Collections.unmodifiableList(flags);
+    }
+
+    /** Returns {@code true} if the mean or p99 significantly increased. */
+    public boolean isRegression() {
+      return flags.contains(Flag.MEAN_REGRESSION) || flags.contains(Flag.P99_REGRESSION);
+    }
+
+    /** Returns {@code true} if the mean or p99 significantly decreased, without regressing. */
+    public boolean isImprovement() {
+      return !isRegression()
+          && (flags.contains(Flag.MEAN_IMPROVEMENT) || flags.contains(Flag.P99_IMPROVEMENT));
+    }
+
+    @Override
+    public String toString() {
+      return "TaskDiff{name="
+          + getName()
+          + ", meanChange="
+          + getMeanChange()
+          + ", p99Change="
+          + getP99Change()
+          + ", flags="
+          + flags
+          + "}";
+    }
+  }
+
+  private static double relativeChange(double before, double after) {
+    return before != 0 ? (after - before) / before : Double.NaN;
+  }
+
+  /** Regressions first, then improvements, then other changes, each by baseline total time. */
+  private static final Comparator<TaskDiff> BY_IMPORTANCE =
+      new Comparator<TaskDiff>() {
+        @Override
+        public int compare(TaskDiff a, TaskDiff b) {
+          int result = Integer.compare(rank(a), rank(b));
+          if (result != 0) {
+            return result;
+          }
+          return Long.compare(totalNanos(b), totalNanos(a));
+        }
+
+        private int rank(TaskDiff taskDiff) {
+          if (taskDiff.isRegression()) {
+            return 0;
+          } else if (taskDiff.isImprovement()) {
+            return 1;
+          } else if (!taskDiff.flags.isEmpty()) {
+            return 2;
+          }
+          return 3;
+        }
+
+        private long totalNanos(TaskDiff taskDiff) {
+          TraceAnalyzer.TaskStats stats =
+              taskDiff.baseline != null ? taskDiff.baseline : taskDiff.candidate;
+          return stats.getTotalNanos();
+        }
+      };
+
+  /**
+   * Returns the two-tailed p-value of Welch's t-test, i.e. how likely means at least this far apart
+   * are if both samples come from distributions with the same mean.
+   */
+  static double welchPValue(
+      double mean1, double stddev1, long count1, double mean2, double stddev2, long count2) {
+    if (count1 < 2 || count2 < 2) {
+      return 1;
+    }
+    double v1 = stddev1 * stddev1 / count1;
+    double v2 = stddev2 * stddev2 / count2;
+    if (v1 + v2 == 0) {
+      return mean1 == mean2 ? 1 : 0;
+    }
+    double t = (mean2 - mean1) / Math.sqrt(v1 + v2);
+    double df = (v1 + v2) * (v1 + v2) / (v1 * v1 / (count1 - 1) + v2 * v2 / (count2 - 1));
+    return studentTwoTailedPValue(t, df);
+  }
+
+  /** Returns the probability of a Student's t variable being at least {@code |t|} from zero. */
+  static double studentTwoTailedPValue(double t, double df) {
+    if (df > 1000) {
+      // Close enough to normal, and the continued fraction converges slowly for large df.
+      return normalTwoTailedPValue(t);
+    }
+    return regularizedIncompleteBeta(df / (df + t * t), df / 2, 0.5);
+  }
+
+  /** Returns the probability of a standard normal variable being at least {@code |z|} from zero. */
+  static double normalTwoTailedPValue(double z) {
+    if (Double.isNaN(z)) {
+      return 1;
+    }
+    return erfc(Math.abs(z) / Math.sqrt(2));
+  }
+
+  /** The complementary error function for {@code x >= 0}, accurate to about 1e-7. */
+  private static double erfc(double x) {
+    double t = 1 / (1 + 0.5 * x);
+    double poly = 0;
+    for (int i = ERFC_COEFFICIENTS.length - 1; i >= 0; i--) {
+      poly = poly * t + ERFC_COEFFICIENTS[i];
+    }
+    return t * Math.exp(-x * x + poly);
+  }
+
+  private static final double[] ERFC_COEFFICIENTS = {
+    -1.26551223,
+    1.00002368,
+    0.37409196,
+    0.09678418,
+    -0.18628806,
+    0.27886807,
+    -1.13520398,
+    1.48851587,
+    -0.82215223,
+    0.17087277,
+  };
+
+  static double regularizedIncompleteBeta(double x, double a, double b) {
+    if (x <= 0) {
+      return 0;
+    } else if (x >= 1) {
+      return 1;
+    }
+    double front =
+        Math.exp(
+            logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log1p(-x));
+    // The continued fraction converges quickly only on one side of the mean, so flip if needed.
+    if (x < (a + 1) / (a + b + 2)) {
+      return front * betaContinuedFraction(x, a, b) / a;
+    }
+    return 1 - front * betaContinuedFraction(1 - x, b, a) / b;
+  }
+
+  /** Evaluates the continued fraction of the incomplete beta function with Lentz's method. */
+  private static double betaContinuedFraction(double x, double a, double b) {
+    final double tiny = 1e-300;
+    double c = 1;
+    double d = 1 - (a + b) * x / (a + 1);
+    d = 1 / (Math.abs(d) < tiny ? tiny : d);
+    double result = d;
+    for (int m = 1; m <= 300; m++) {
+      int m2 = 2 * m;
+      double aa = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+      d = 1 + aa * d;
+      d = 1 / (Math.abs(d) < tiny ? tiny : d);
+      c = 1 + aa / c;
+      c = Math.abs(c) < tiny ? tiny : c;
+      result *= d * c;
+      aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+      d = 1 + aa * d;
+      d = 1 / (Math.abs(d) < tiny ? tiny : d);
+      c = 1 + aa / c;
+      c = Math.abs(c) < tiny ? tiny : c;
+      double delta = d * c;
+      result *= delta;
+      if (Math.abs(delta - 1) < 1e-12) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  /** The Lanczos approximation of the log of the gamma function, for {@code x > 0}. */
+  private static double logGamma(double x) {
+    double[] coefficients = {
+      76.18009172947146,
+      -86.50532032941677,
+      24.01409824083091,
+      -1.231739572450155,
+      0.1208650973866179e-2,
+      -0.5395239384953e-5,
+    };
+    double y = x;
+    double tmp = x + 5.5;
+    tmp -= (x + 0.5) * Math.log(tmp);
+    double series = 1.000000000190015;
+    for (double coefficient : coefficients) {
+      series += coefficient / ++y;
+    }
+    return -tmp + Math.log(2.5066282746310005 * series / x);
+  }
+}
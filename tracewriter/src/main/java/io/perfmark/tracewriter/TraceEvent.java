@@ -39,13 +39,16 @@ final class TraceEvent implements Cloneable {
   @SuppressWarnings("unused")
   String name;
 
+  /** If the name is built for this event alone, and isn't worth caching when encoded. */
+  boolean oneOffName;
+
   /** {@code Nullable} */
   @SuppressWarnings("unused")
   String categories;
 
   /** {@code Nullable} */
   @SuppressWarnings("unused")
-  Double traceClockMicros;
+  Long traceClockNanos;
 
   /** {@code Nullable} */
   @SuppressWarnings("unused")
@@ -73,6 +76,14 @@ final class TraceEvent implements Cloneable {
     }
     TraceEvent other = clone();
     other.name = name;
+    other.oneOffName = false;
+    return other;
+  }
+
+  /** Like {@link #name}, but for a name made just for this event, such as from concatenation. */
+  TraceEvent oneOffName(String name) {
+    TraceEvent other = name(name);
+    other.oneOffName = true;
     return other;
   }
 
@@ -106,9 +117,9 @@ final class TraceEvent implements Cloneable {
     return other;
   }
 
-  strictfp TraceEvent traceClockNanos(long traceClockNanos) {
+  TraceEvent traceClockNanos(long traceClockNanos) {
     TraceEvent other = clone();
-    other.traceClockMicros = traceClockNanos / 1000.0;
+    other.traceClockNanos = traceClockNanos;
     return other;
   }
 
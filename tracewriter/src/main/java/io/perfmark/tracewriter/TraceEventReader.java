@@ -0,0 +1,507 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import io.perfmark.impl.MarkList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads traces written by {@link TraceEventWriter} back into MarkLists. The trace is parsed as a
+ * stream, one MarkList at a time, so only the MarkList being built is held in memory, no matter
+ * how large the trace is.
+ *
+ * <p>The MarkLists are rebuilt as closely as the trace allows. Times are relative to the start of
+ * the trace, and generations are renumbered. Links are written when their two halves are paired
+ * up, which may be long after the MarkList of the first half was written. Such halves can't be put
+ * back without holding every MarkList until the end, so only links belonging to the MarkList
+ * being read are kept, unless all of them are read with {@link #readAll}.
+ *
+ * <p>Traces from other tools can also be read, as long as the events of each thread are together.
+ * Threads without a {@code thread_name} event are named after their tid.
+ *
+ * <p>This class is not thread safe.
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class TraceEventReader implements MarkListSource {
+
+  private static final Logger logger = Logger.getLogger(TraceEventReader.class.getName());
+
+  /**
+   * Reads a trace from a file, which may be gzip compressed.
+   *
+   * @param path the trace file.
+   * @return a reader, which must be closed.
+   * @throws IOException if the file can't be opened.
+   */
+  public static TraceEventReader open(Path path) throws IOException {
+    return new TraceEventReader(openMaybeGzipped(path));
+  }
+
+  /**
+   * Reads a trace from a channel. The channel is closed when the reader is.
+   *
+   * @param channel the uncompressed trace data.
+   * @return a reader, which must be closed.
+   */
+  public static TraceEventReader create(ReadableByteChannel channel) {
+    return new TraceEventReader(channel);
+  }
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+
+  static ReadableByteChannel openMaybeGzipped(Path path) throws IOException {
+    FileChannel fc = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      ByteBuffer magic = ByteBuffer.allocate(2);
+      while (magic.hasRemaining() && fc.read(magic) != -1) {}
+      fc.position(0);
+      if (magic.position() == 2
+          && ((magic.get(0) & 0xFF) | (magic.get(1) & 0xFF) << 8) == GZIP_MAGIC) {
+        return Channels.newChannel(new GZIPInputStream(Channels.newInputStream(fc), 1 << 16));
+      }
+      return fc;
+    } catch (IOException | RuntimeException e) {
+      fc.close();
+      throw e;
+    }
+  }
+
+  private final ReadableByteChannel channel;
+  private final JsonPullParser parser;
+  private final MarkListAssembler assembler = new MarkListAssembler();
+  private final Event event = new Event();
+
+  /** Links read before the start of their task, as pairs of start time and link id. */
+  private final List<long[]> pendingLinks = new ArrayList<>();
+
+  /**
+   * Links of MarkLists already read, as triples of tid, start time and link id, or {@code null} if
+   * they are dropped.
+   */
+  private List<long[]> strayLinks;
+
+  private long currentTid;
+  private long pid = -1;
+  /** {@code Nullable} */
+  private Long traceStartUnixNanos;
+  private boolean inObject;
+  private boolean started;
+  private boolean done;
+  private long droppedLinks;
+
+  private TraceEventReader(ReadableByteChannel channel) {
+    this.channel = channel;
+    this.parser = new JsonPullParser(channel);
+  }
+
+  /**
+   * Reads the next MarkList from the trace.
+   *
+   * @return the next MarkList, or {@code null} if there are no more.
+   * @throws IOException if the trace can't be read or isn't valid.
+   */
+  @Override
+  public MarkList nextMarkList() throws IOException {
+    if (!started) {
+      started = true;
+      findTraceEvents();
+    }
+    while (!done) {
+      if (!parser.hasNext()) {
+        done = true;
+        readTrailer();
+        dropPendingLinks();
+        if (droppedLinks != 0 && strayLinks == null) {
+          logger.fine("Dropped " + droppedLinks + " links of MarkLists already read");
+        }
+        return assembler.finishMarkList();
+      }
+      MarkList finished = readEvent();
+      if (finished != null) {
+        return finished;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reads all the remaining MarkLists. This holds them all in memory, which is only a good idea for
+   * small traces. Since every MarkList is at hand, links between them are kept too.
+   *
+   * @return the MarkLists, in the order they appear in the trace.
+   * @throws IOException if the trace can't be read or isn't valid.
+   */
+  @Override
+  public List<MarkList> readAll() throws IOException {
+    strayLinks = new ArrayList<>();
+    List<MarkList> markLists = new ArrayList<>();
+    MarkList markList;
+    while ((markList = nextMarkList()) != null) {
+      markLists.add(markList);
+    }
+    for (long[] link : strayLinks) {
+      // A thread may have a MarkList per generation, so look for the one with the task.
+      for (int i = markLists.size() - 1; i >= 0; i--) {
+        if (markLists.get(i).getThreadId() != link[0]) {
+          continue;
+        }
+        MarkList linked = MarkListAssembler.withLinkAt(markLists.get(i), link[1], link[2]);
+        if (linked != null) {
+          markLists.set(i, linked);
+          droppedLinks--;
+          break;
+        }
+      }
+    }
+    strayLinks = null;
+    if (droppedLinks != 0) {
+      logger.fine("Dropped " + droppedLinks + " links without a matching task");
+    }
+    return markLists;
+  }
+
+  @Override
+  public Long getTraceStartUnixNanos() {
+    return traceStartUnixNanos;
+  }
+
+  /**
+   * Returns the pid of the first event that has one. Traces that were merged have events of
+   * several processes, in which case this is the first of them.
+   */
+  @Override
+  public long getPid() {
+    return pid;
+  }
+
+  @Override
+  public void close() throws IOException {
+    done = true;
+    channel.close();
+  }
+
+  /** Moves to the start of the event array, which may be the whole document. */
+  private void findTraceEvents() throws IOException {
+    if (parser.peek() == JsonPullParser.BEGIN_ARRAY) {
+      parser.beginArray();
+      return;
+    }
+    parser.beginObject();
+    inObject = true;
+    while (parser.hasNext()) {
+      String key = parser.nextString();
+      if (key.equals("traceEvents")) {
+        parser.beginArray();
+        return;
+      } else if (key.equals("metadata")) {
+        readMetadata();
+      } else {
+        parser.skipValue();
+      }
+    }
+    done = true;
+  }
+
+  /** Reads what comes after the event array, which may have the metadata. */
+  private void readTrailer() throws IOException {
+    if (!inObject) {
+      return;
+    }
+    parser.endArray();
+    while (parser.hasNext()) {
+      if (parser.nextString().equals("metadata")) {
+        readMetadata();
+      } else {
+        parser.skipValue();
+      }
+    }
+  }
+
+  /** Reads the clock anchor written by {@link TraceEventWriter}, skipping everything else. */
+  private void readMetadata() throws IOException {
+    if (parser.peek() != JsonPullParser.BEGIN_OBJECT) {
+      parser.skipValue();
+      return;
+    }
+    parser.beginObject();
+    while (parser.hasNext()) {
+      if (!parser.nextString().equals("perfmarkClock")
+          || parser.peek() != JsonPullParser.BEGIN_OBJECT) {
+        parser.skipValue();
+        continue;
+      }
+      Long traceNanos = null;
+      Long unixNanos = null;
+      parser.beginObject();
+      while (parser.hasNext()) {
+        String key = parser.nextString();
+        if (key.equals("traceNanos")) {
+          traceNanos = parser.nextLong();
+        } else if (key.equals("unixNanos")) {
+          unixNanos = parser.nextLong();
+        } else {
+          parser.skipValue();
+        }
+      }
+      parser.endObject();
+      if (traceNanos != null && unixNanos != null) {
+        traceStartUnixNanos = new ClockAnchor(traceNanos, unixNanos).unixNanosAtTraceStart();
+      }
+    }
+    parser.endObject();
+  }
+
+  /** Returns a finished MarkList, if the event started a new one. */
+  private MarkList readEvent() throws IOException {
+    Event e = event;
+    e.read(parser);
+    if (pid == -1 && e.pid != null) {
+      pid = e.pid;
+    }
+    if (e.phase == null) {
+      return null;
+    }
+    switch (e.phase) {
+      case "M":
+        if ("thread_name".equals(e.name)) {
+          long markRecorderId = e.markListId != null ? e.markListId : e.tid;
+          String threadName = e.threadName != null ? e.threadName : String.valueOf(e.tid);
+          currentTid = e.tid;
+          dropPendingLinks();
+          return assembler.startMarkList(markRecorderId, e.tid, threadName);
+        }
+        return null;
+      case "s":
+      case "t":
+        if (e.linkId != null && e.ts != null && assembler.hasMarkList() && currentTid == e.tid) {
+          long linkId = e.phase.equals("s") ? e.linkId : -e.linkId;
+          if (!assembler.linkAt(e.ts, linkId)) {
+            // The task start may still be held back by the writer, waiting for more tags.
+            pendingLinks.add(new long[] {e.ts, linkId});
+          }
+        } else if (e.linkId != null && e.ts != null) {
+          // Flows point at the task the link was made in, so only links of this MarkList fit.
+          long linkId = e.phase.equals("s") ? e.linkId : -e.linkId;
+          dropLink(e.tid, e.ts, linkId);
+        }
+        return null;
+      case "B":
+      case "E":
+      case "i":
+      case "I":
+        break;
+      default:
+        return null;
+    }
+    if (e.ts == null) {
+      return null;
+    }
+    MarkList finished = null;
+    if (!assembler.hasMarkList() || currentTid != e.tid) {
+      // A trace from elsewhere, without the metadata events.
+      dropPendingLinks();
+      finished = assembler.startMarkList(e.tid, e.tid, String.valueOf(e.tid));
+    }
+    currentTid = e.tid;
+    String name = e.name != null ? e.name : MarkListWalker.UNKNOWN_TASK_NAME;
+    switch (e.phase) {
+      case "B":
+        assembler.taskStart(e.ts, name, e.category);
+        addTags(e);
+        addPendingLinks(e.ts);
+        break;
+      case "E":
+        addTags(e);
+        assembler.taskEnd(e.ts, e.name);
+        break;
+      default:
+        assembler.event(e.ts, name, e.tagName, e.tagId);
+        break;
+    }
+    return finished;
+  }
+
+  private void addPendingLinks(long taskStartNanoTime) {
+    for (Iterator<long[]> it = pendingLinks.iterator(); it.hasNext(); ) {
+      long[] link = it.next();
+      if (link[0] == taskStartNanoTime && assembler.linkAt(link[0], link[1])) {
+        it.remove();
+      }
+    }
+  }
+
+  private void dropPendingLinks() {
+    for (long[] link : pendingLinks) {
+      dropLink(currentTid, link[0], link[1]);
+    }
+    pendingLinks.clear();
+  }
+
+  private void dropLink(long tid, long taskStartNanoTime, long linkId) {
+    droppedLinks++;
+    if (strayLinks != null) {
+      strayLinks.add(new long[] {tid, taskStartNanoTime, linkId});
+    }
+  }
+
+  private void addTags(Event e) {
+    for (int i = 0; i < e.argKeys.size(); i++) {
+      assembler.tag(e.argKeys.get(i), e.argValues.get(i));
+    }
+  }
+
+  /** The parts of a trace event that are needed, reused for each event to save garbage. */
+  private static final class Event {
+    /** {@code Nullable} */
+    String phase;
+    /** {@code Nullable} */
+    String name;
+    /** {@code Nullable} */
+    String category;
+    /** {@code Nullable} */
+    Long ts;
+    /** {@code Nullable} */
+    Long pid;
+
+    long tid;
+
+    final List<String> argKeys = new ArrayList<>();
+    final List<Object> argValues = new ArrayList<>();
+
+    /** From the args, in the events that have them. {@code Nullable} */
+    String threadName;
+    /** {@code Nullable} */
+    Long markListId;
+    /** {@code Nullable} */
+    Long linkId;
+    /** {@code Nullable} */
+    String tagName;
+    /** {@code Nullable} */
+    Long tagId;
+
+    void read(JsonPullParser parser) throws IOException {
+      phase = name = category = threadName = tagName = null;
+      ts = pid = markListId = linkId = tagId = null;
+      tid = 0;
+      argKeys.clear();
+      argValues.clear();
+
+      parser.beginObject();
+      while (parser.hasNext()) {
+        String key = parser.nextString();
+        switch (key) {
+          case "ph":
+            phase = parser.nextString();
+            break;
+          case "name":
+            name = parser.nextString();
+            break;
+          case "cat":
+            category = parser.nextString();
+            break;
+          case "ts":
+            // Microseconds, with up to nanosecond precision.
+            ts = parser.nextDecimal(3);
+            break;
+          case "tid":
+            tid = parser.nextLong();
+            break;
+          case "pid":
+            if (parser.peek() == JsonPullParser.NUMBER) {
+              pid = parser.nextLong();
+            } else {
+              parser.skipValue();
+            }
+            break;
+          case "args":
+            readArgs(parser);
+            break;
+          default:
+            parser.skipValue();
+            break;
+        }
+      }
+      parser.endObject();
+
+      for (int i = 0; i < argKeys.size(); i++) {
+        String argKey = argKeys.get(i);
+        Object value = argValues.get(i);
+        if (value instanceof String) {
+          if (argKey.equals("name")) {
+            threadName = (String) value;
+          } else if (argKey.equals("tag")) {
+            tagName = (String) value;
+          }
+        } else if (value instanceof Long) {
+          if (argKey.equals("markListId")) {
+            markListId = (Long) value;
+          } else if (argKey.equals("linkid")) {
+            linkId = (Long) value;
+          } else if (argKey.equals("id")) {
+            tagId = (Long) value;
+          }
+        }
+      }
+    }
+
+    private void readArgs(JsonPullParser parser) throws IOException {
+      if (parser.peek() != JsonPullParser.BEGIN_OBJECT) {
+        parser.skipValue();
+        return;
+      }
+      parser.beginObject();
+      while (parser.hasNext()) {
+        String key = parser.nextString();
+        switch (parser.peek()) {
+          case JsonPullParser.STRING:
+            argKeys.add(key);
+            argValues.add(parser.nextString());
+            break;
+          case JsonPullParser.NUMBER:
+            String number = parser.nextNumber();
+            argKeys.add(key);
+            try {
+              argValues.add(Long.parseLong(number));
+            } catch (NumberFormatException e) {
+              // Not a whole number, which PerfMark never writes, so keep it as it was.
+              argValues.add(number);
+            }
+            break;
+          default:
+            parser.skipValue();
+            break;
+        }
+      }
+      parser.endObject();
+    }
+  }
+}
@@ -16,16 +16,15 @@
 
 package io.perfmark.tracewriter;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import io.perfmark.impl.Mark;
 import io.perfmark.impl.MarkList;
+import io.perfmark.impl.RemoteLinks;
 import io.perfmark.impl.Storage;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.io.Writer;
 import java.lang.reflect.Method;
 import java.nio.file.Files;
@@ -35,12 +34,19 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 /**
  * Writes the PerfMark results to a "Trace Event" JSON file usable by the Chromium Profiler
@@ -56,6 +62,56 @@ public final class TraceEventWriter {
 
   private static final Logger logger = Logger.getLogger(TraceEventWriter.class.getName());
 
+  private static final Executor DIRECT =
+      new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          command.run();
+        }
+      };
+
+  private static final ThreadFactory COMPRESSOR_THREADS =
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "perfmark-trace-compressor");
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+
+  private static final long COMPRESSOR_KEEP_ALIVE_SECONDS = 30;
+
+  /** Holds the compressor pool, so that it is only created once a trace is written. */
+  private static final class Compressor {
+    static final Executor EXECUTOR = newCompressor();
+
+    /**
+     * Compresses on threads of its own, rather than the common pool, so that waiting on the blocks
+     * neither holds up other work in the pool nor waits behind it. The threads are shared between
+     * dumps, and exit when idle. With a single core there is nothing to gain, so the calling thread
+     * compresses instead.
+     */
+    private static Executor newCompressor() {
+      int threads = Runtime.getRuntime().availableProcessors();
+      if (threads < 2) {
+        return DIRECT;
+      }
+      ThreadPoolExecutor executor =
+          new ThreadPoolExecutor(
+              threads,
+              threads,
+              COMPRESSOR_KEEP_ALIVE_SECONDS,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(),
+              COMPRESSOR_THREADS);
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+
+    private Compressor() {}
+  }
+
   /**
    * Writes trace events the home directory. By default, it prefers the location in {@code
    * $XDG_DATA_HOME/perfmark} environment variable. If unset, it attempts to use {@code
@@ -72,11 +128,33 @@ public final class TraceEventWriter {
    */
   @CanIgnoreReturnValue
   public static Path writeTraceEvents() throws IOException {
-    Path p = pickNextDest(guessDirectory());
+    return writeTraceEvents(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Writes trace events to the home directory like {@link #writeTraceEvents()}, but compressed at
+   * the given level. Lower levels are faster, and higher levels make smaller files.
+   *
+   * @param compressionLevel the compression level, from {@link Deflater#NO_COMPRESSION} to {@link
+   *     Deflater#BEST_COMPRESSION}, or {@link Deflater#DEFAULT_COMPRESSION}.
+   * @throws IOException if there is an error writing to the file.
+   * @return the path used to create the trace file.
+   * @since 0.28.0
+   */
+  @CanIgnoreReturnValue
+  public static Path writeTraceEvents(int compressionLevel) throws IOException {
+    ParallelGzipOutputStream.checkLevel(compressionLevel);
+    Path p = pickNextDest(guessDirectory(), "perfmark-trace-%03d.json.gz");
     try (OutputStream os = Files.newOutputStream(p);
-        OutputStream gzos = new GZIPOutputStream(os);
-        Writer osw = new OutputStreamWriter(gzos, UTF_8)) {
-      writeTraceEvents(osw);
+        OutputStream gzos =
+            new ParallelGzipOutputStream(os, compressionLevel, Compressor.EXECUTOR)) {
+      writeTraceEvents(
+          gzos,
+          Storage.read(),
+          Storage.getInitNanoTime(),
+          Storage.getInitCurrentTimeMillis(),
+          System.nanoTime(),
+          getPid());
     }
     logger.info("Wrote trace to " + p);
     return p;
@@ -90,13 +168,22 @@ public final class TraceEventWriter {
    */
   public static void writeTraceEvents(Writer destination) throws IOException {
     writeTraceEvents(
-        destination, Storage.read(), Storage.getInitNanoTime(), System.nanoTime(), getPid());
+        destination,
+        Storage.read(),
+        Storage.getInitNanoTime(),
+        Storage.getInitCurrentTimeMillis(),
+        System.nanoTime(),
+        getPid());
   }
 
   /**
    * Writes the trace events gathered from {@link Storage#read()}. This method is not API stable. It
    * will be eventually.
    *
+   * <p>The wall clock time of the trace isn't known, so it has no clock anchor, and {@link
+   * TraceMerger} lines it up with other traces by their first events. See {@link
+   * #writeTraceEvents(Writer, List, long, long, long, long)}.
+   *
    * @param destination the destination for the JSON data.
    * @param markLists the data to use to build the trace event JSON
    * @param initNanoTime the time PerfMark classes were first loaded as specified by {@link
@@ -112,97 +199,405 @@ public final class TraceEventWriter {
       long nowNanoTime,
       long pid)
       throws IOException {
-    List<TraceEvent> traceEvents = new ArrayList<>();
-    new TraceEventWalker(traceEvents, pid, initNanoTime).walk(markLists, nowNanoTime);
-    writeTraceEventObject(destination, traceEvents);
+    writeTraceEvents(
+        new JsonEncoder(destination), markLists, initNanoTime, nowNanoTime, pid, null);
   }
 
-  private static void writeTraceEventObject(Writer dest, List<TraceEvent> events)
+  /**
+   * Writes the trace events like {@link #writeTraceEvents(Writer, List, long, long, long)}, along
+   * with the wall clock time at {@code initNanoTime}, which lets {@link TraceMerger} line up traces
+   * of different processes.
+   *
+   * @param destination the destination for the JSON data.
+   * @param markLists the data to use to build the trace event JSON
+   * @param initNanoTime the time the trace times are relative to, as specified by {@link
+   *     System#nanoTime()}
+   * @param initCurrentTimeMillis the wall clock time at {@code initNanoTime}, as specified by
+   *     {@link System#currentTimeMillis()}
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}.
+   * @param pid the PID of the current process.
+   * @throws IOException if there are errors build the JSON, or can't write to the destination.
+   * @since 0.28.0
+   */
+  public static void writeTraceEvents(
+      Writer destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long initCurrentTimeMillis,
+      long nowNanoTime,
+      long pid)
       throws IOException {
-    dest.write('{');
-    writeString(dest, "traceEvents");
-    dest.write(":[");
-    boolean firstEvent = true;
-    for (TraceEvent evt : events) {
-      firstEvent = maybeAddComment(dest, firstEvent);
-      dest.write('{');
-      boolean firstField = true;
-      if (evt.phase != null) {
-        writeString(dest, "ph");
-        dest.write(":");
-        writeString(dest, evt.phase);
-        firstField = false;
-      }
-      if (evt.name != null) {
-        firstField = maybeAddComment(dest, firstField);
-        writeString(dest, "name");
-        dest.write(":");
-        writeString(dest, evt.name);
-      }
-      if (evt.categories != null) {
-        firstField = maybeAddComment(dest, firstField);
-        writeString(dest, "cat");
-        dest.write(":");
-        writeString(dest, evt.categories);
-      }
-      if (evt.traceClockMicros != null) {
-        firstField = maybeAddComment(dest, firstField);
-        writeString(dest, "ts");
-        dest.write(":");
-        dest.write(evt.traceClockMicros.toString());
-      }
-      if (evt.pid != null) {
-        firstField = maybeAddComment(dest, firstField);
-        writeString(dest, "pid");
-        dest.write(":");
-        dest.write(evt.pid.toString());
+    writeTraceEvents(
+        new JsonEncoder(destination),
+        markLists,
+        initNanoTime,
+        nowNanoTime,
+        pid,
+        ClockAnchor.atTraceStart(initCurrentTimeMillis));
+  }
+
+  /**
+   * Writes the trace events like {@link #writeTraceEvents(Writer, List, long, long, long)}, but as
+   * UTF-8 encoded bytes. This avoids the overhead of encoding the JSON as characters first.
+   *
+   * @param destination the destination for the JSON data.
+   * @param markLists the data to use to build the trace event JSON
+   * @param initNanoTime the time PerfMark classes were first loaded as specified by {@link
+   *     System#nanoTime()}
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}.
+   * @param pid the PID of the current process.
+   * @throws IOException if there are errors build the JSON, or can't write to the destination.
+   * @since 0.28.0
+   */
+  public static void writeTraceEvents(
+      OutputStream destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long nowNanoTime,
+      long pid)
+      throws IOException {
+    writeTraceEvents(
+        new JsonEncoder(destination), markLists, initNanoTime, nowNanoTime, pid, null);
+  }
+
+  /**
+   * Writes the trace events like {@link #writeTraceEvents(Writer, List, long, long, long, long)},
+   * but as UTF-8 encoded bytes.
+   *
+   * @param destination the destination for the JSON data.
+   * @param markLists the data to use to build the trace event JSON
+   * @param initNanoTime the time the trace times are relative to, as specified by {@link
+   *     System#nanoTime()}
+   * @param initCurrentTimeMillis the wall clock time at {@code initNanoTime}, as specified by
+   *     {@link System#currentTimeMillis()}
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}.
+   * @param pid the PID of the current process.
+   * @throws IOException if there are errors build the JSON, or can't write to the destination.
+   * @since 0.28.0
+   */
+  public static void writeTraceEvents(
+      OutputStream destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long initCurrentTimeMillis,
+      long nowNanoTime,
+      long pid)
+      throws IOException {
+    writeTraceEvents(
+        new JsonEncoder(destination),
+        markLists,
+        initNanoTime,
+        nowNanoTime,
+        pid,
+        ClockAnchor.atTraceStart(initCurrentTimeMillis));
+  }
+
+  /** @param anchor the anchor of the trace, or {@code null}. {@code Nullable} */
+  static void writeTraceEvents(
+      OutputStream destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long nowNanoTime,
+      long pid,
+      ClockAnchor anchor)
+      throws IOException {
+    writeTraceEvents(
+        new JsonEncoder(destination), markLists, initNanoTime, nowNanoTime, pid, anchor);
+  }
+
+  private static void writeTraceEvents(
+      JsonEncoder destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long nowNanoTime,
+      long pid,
+      ClockAnchor anchor)
+      throws IOException {
+    destination.writeAscii("{\"traceEvents\":[");
+    try {
+      new TraceEventWalker(destination, pid, initNanoTime, false).walk(markLists, nowNanoTime);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    destination.writeAscii(']');
+    writeMetadata(destination, anchor);
+    destination.writeAscii('}');
+    destination.flush();
+  }
+
+  /**
+   * Writes the clock anchor, if there is one, as trace metadata. This comes after the events so
+   * that readers looking for the start of the events don't have to skip over it.
+   *
+   * @param anchor the anchor of the trace, or {@code null} to not write any. {@code Nullable}
+   */
+  static void writeMetadata(JsonEncoder destination, ClockAnchor anchor) {
+    if (anchor == null) {
+      return;
+    }
+    destination.writeAscii(",\"metadata\":{\"perfmarkClock\":{\"traceNanos\":");
+    destination.writeLong(anchor.traceNanos);
+    destination.writeAscii(",\"unixNanos\":");
+    destination.writeLong(anchor.unixNanos);
+    destination.writeAscii("}}");
+  }
+
+  /**
+   * Writes the trace events like {@link #writeTraceEvents(Writer, List, long, long, long, long)},
+   * but encodes each MarkList concurrently on the given pool. Links between threads are paired up
+   * afterwards, as the encoded MarkLists are written to the destination in order. The output
+   * contains the same events, though link events may appear at a different position in the array.
+   *
+   * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+   * without notice.
+   *
+   * @param destination the destination for the JSON data.
+   * @param markLists the data to use to build the trace event JSON
+   * @param initNanoTime the time the trace times are relative to, as specified by {@link
+   *     System#nanoTime()}
+   * @param initCurrentTimeMillis the wall clock time at {@code initNanoTime}, as specified by
+   *     {@link System#currentTimeMillis()}
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}.
+   * @param pid the PID of the current process.
+   * @param pool the pool to encode the MarkLists on.
+   * @throws IOException if there are errors build the JSON, or can't write to the destination.
+   * @since 0.28.0
+   */
+  public static void writeTraceEventsParallel(
+      Writer destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long initCurrentTimeMillis,
+      long nowNanoTime,
+      long pid,
+      ForkJoinPool pool)
+      throws IOException {
+    writeTraceEventsParallel(
+        new JsonEncoder(destination),
+        markLists,
+        initNanoTime,
+        nowNanoTime,
+        pid,
+        ClockAnchor.atTraceStart(initCurrentTimeMillis),
+        pool);
+  }
+
+  /**
+   * Writes the trace events like {@link #writeTraceEventsParallel(Writer, List, long, long, long,
+   * long, ForkJoinPool)}, but as UTF-8 encoded bytes.
+   *
+   * @param destination the destination for the JSON data.
+   * @param markLists the data to use to build the trace event JSON
+   * @param initNanoTime the time the trace times are relative to, as specified by {@link
+   *     System#nanoTime()}
+   * @param initCurrentTimeMillis the wall clock time at {@code initNanoTime}, as specified by
+   *     {@link System#currentTimeMillis()}
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}.
+   * @param pid the PID of the current process.
+   * @param pool the pool to encode the MarkLists on.
+   * @throws IOException if there are errors build the JSON, or can't write to the destination.
+   * @since 0.28.0
+   */
+  public static void writeTraceEventsParallel(
+      OutputStream destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long initCurrentTimeMillis,
+      long nowNanoTime,
+      long pid,
+      ForkJoinPool pool)
+      throws IOException {
+    writeTraceEventsParallel(
+        new JsonEncoder(destination),
+        markLists,
+        initNanoTime,
+        nowNanoTime,
+        pid,
+        ClockAnchor.atTraceStart(initCurrentTimeMillis),
+        pool);
+  }
+
+  private static void writeTraceEventsParallel(
+      JsonEncoder destination,
+      List<? extends MarkList> markLists,
+      long initNanoTime,
+      long nowNanoTime,
+      long pid,
+      ClockAnchor anchor,
+      ForkJoinPool pool)
+      throws IOException {
+    destination.writeAscii("{\"traceEvents\":[");
+    // Encoded chunks are written in order, but only a bounded number of them are in flight at once
+    // so that the whole trace is never held in memory.
+    int maxInFlight = Math.max(2, pool.getParallelism() * 4);
+    TraceEventWalker merger = new TraceEventWalker(destination, pid, initNanoTime, false);
+    try {
+      for (Map.Entry<Long, List<MarkList>> entry :
+          MarkListWalker.groupMarkListsByGeneration(markLists).entrySet()) {
+        merger.enterGeneration(entry.getKey());
+        Deque<ForkJoinTask<EncodedMarkList>> inFlight = new ArrayDeque<>(maxInFlight);
+        for (MarkList markList : entry.getValue()) {
+          if (inFlight.size() == maxInFlight) {
+            merger.emitEncoded(inFlight.removeFirst().join());
+          }
+          inFlight.addLast(
+              pool.submit(new MarkListEncoder(markList, pid, initNanoTime, nowNanoTime)));
+        }
+        while (!inFlight.isEmpty()) {
+          merger.emitEncoded(inFlight.removeFirst().join());
+        }
+        merger.exitGeneration();
       }
-      if (evt.tid != null) {
-        firstField = maybeAddComment(dest, firstField);
-        writeString(dest, "tid");
-        dest.write(":");
-        dest.write(evt.tid.toString());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    destination.writeAscii(']');
+    writeMetadata(destination, anchor);
+    destination.writeAscii('}');
+    destination.flush();
+  }
+
+  /**
+   * Writes the MarkLists of several processes into a single trace, each under its own pid and
+   * process name. The times of each process are relative to its own initNanoTime, which lines
+   * them up with the others.
+   *
+   * @param anchor the anchor of the combined trace, or {@code null}. {@code Nullable}
+   */
+  static void writeProcesses(
+      OutputStream destination, List<TraceMerger.Process> processes, ClockAnchor anchor)
+      throws IOException {
+    JsonEncoder json = new JsonEncoder(destination);
+    json.writeAscii("{\"traceEvents\":[");
+    TraceEventWalker previous = null;
+    try {
+      for (TraceMerger.Process process : processes) {
+        TraceEventWalker walker =
+            new TraceEventWalker(json, process.pid, process.initNanoTime, false);
+        if (previous != null) {
+          walker.continueFrom(previous);
+        }
+        walker.writeProcessName(process.name);
+        walker.walk(process.markLists, process.nowNanoTime);
+        previous = walker;
       }
-      if (evt.id != null) {
-        firstField = maybeAddComment(dest, firstField);
-        writeString(dest, "id");
-        dest.write(":");
-        dest.write(evt.id.toString());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    json.writeAscii(']');
+    writeMetadata(json, anchor);
+    json.writeAscii('}');
+    json.flush();
+  }
+
+  /** The JSON of a single MarkList, along with the links it has yet to be paired with. */
+  private static final class EncodedMarkList {
+    final JsonEncoder json;
+    final List<TraceEventWalker.LinkTuple> links;
+
+    EncodedMarkList(JsonEncoder json, List<TraceEventWalker.LinkTuple> links) {
+      this.json = json;
+      this.links = links;
+    }
+  }
+
+  private static final class MarkListEncoder implements Callable<EncodedMarkList> {
+    private final MarkList markList;
+    private final long pid;
+    private final long initNanoTime;
+    private final long nowNanoTime;
+
+    MarkListEncoder(MarkList markList, long pid, long initNanoTime, long nowNanoTime) {
+      this.markList = markList;
+      this.pid = pid;
+      this.initNanoTime = initNanoTime;
+      this.nowNanoTime = nowNanoTime;
+    }
+
+    @Override
+    public EncodedMarkList call() {
+      JsonEncoder chunk = new JsonEncoder();
+      TraceEventWalker walker = new TraceEventWalker(chunk, pid, initNanoTime, true);
+      walker.walkMarkList(markList, nowNanoTime);
+      return new EncodedMarkList(chunk, walker.deferredLinks);
+    }
+  }
+
+  private static void writeTraceEvent(JsonEncoder dest, TraceEvent evt) {
+    dest.writeAscii('{');
+    boolean firstField = true;
+    if (evt.phase != null) {
+      dest.writeAscii("\"ph\":");
+      dest.writeName(evt.phase);
+      firstField = false;
+    }
+    if (evt.name != null) {
+      firstField = maybeAddComma(dest, firstField);
+      dest.writeAscii("\"name\":");
+      if (evt.oneOffName) {
+        dest.writeString(evt.name);
+      } else {
+        dest.writeName(evt.name);
       }
-      if (evt.args != null && !evt.args.isEmpty()) {
-        firstField = maybeAddComment(dest, firstField);
-        writeString(dest, "args");
-        dest.write(":{");
-        boolean firstTag = true;
-        for (Map.Entry<String, Object> arg : evt.args.entrySet()) {
-          firstTag = maybeAddComment(dest, firstTag);
-          writeString(dest, arg.getKey());
-          dest.write(":");
-          if (arg.getValue() instanceof String) {
-            writeString(dest, (String) arg.getValue());
-          } else if (arg.getValue() instanceof Long) {
-            dest.write(arg.getValue().toString());
-          } else {
-            throw new UnsupportedOperationException("Unknown type " + arg.getValue());
-          }
+    }
+    if (evt.categories != null) {
+      firstField = maybeAddComma(dest, firstField);
+      dest.writeAscii("\"cat\":");
+      dest.writeName(evt.categories);
+    }
+    if (evt.traceClockNanos != null) {
+      firstField = maybeAddComma(dest, firstField);
+      dest.writeAscii("\"ts\":");
+      dest.writeMicros(evt.traceClockNanos);
+    }
+    if (evt.pid != null) {
+      firstField = maybeAddComma(dest, firstField);
+      dest.writeAscii("\"pid\":");
+      dest.writeLong(evt.pid);
+    }
+    if (evt.tid != null) {
+      firstField = maybeAddComma(dest, firstField);
+      dest.writeAscii("\"tid\":");
+      dest.writeLong(evt.tid);
+    }
+    if (evt.id != null) {
+      firstField = maybeAddComma(dest, firstField);
+      dest.writeAscii("\"id\":");
+      dest.writeLong(evt.id);
+    }
+    if (evt.args != null && !evt.args.isEmpty()) {
+      firstField = maybeAddComma(dest, firstField);
+      dest.writeAscii("\"args\":{");
+      boolean firstTag = true;
+      for (Map.Entry<String, Object> arg : evt.args.entrySet()) {
+        firstTag = maybeAddComma(dest, firstTag);
+        dest.writeName(arg.getKey());
+        dest.writeAscii(':');
+        if (arg.getValue() instanceof String) {
+          dest.writeString((String) arg.getValue());
+        } else if (arg.getValue() instanceof Long) {
+          dest.writeLong((Long) arg.getValue());
+        } else {
+          throw new UnsupportedOperationException("Unknown type " + arg.getValue());
         }
-        dest.write('}');
       }
-      dest.write('}');
+      dest.writeAscii('}');
     }
-    dest.write("]");
-    dest.write('}');
+    dest.writeAscii('}');
   }
 
-  private static boolean maybeAddComment(Writer writer, boolean firstOf) throws IOException {
+  static boolean maybeAddComma(JsonEncoder dest, boolean firstOf) {
     if (!firstOf) {
-      writer.append(',');
+      dest.writeAscii(',');
     }
     return false;
   }
 
-  private static Path pickNextDest(Path dir) throws IOException {
-    String fmt = "perfmark-trace-%03d.json.gz";
+  /**
+   * Finds the first file name, made by formatting {@code fmt} with an increasing number, that
+   * doesn't exist yet in the directory.
+   */
+  static Path pickNextDest(Path dir, String fmt) throws IOException {
     int lo;
     int hi = 0;
     while (true) {
@@ -232,7 +627,7 @@ public final class TraceEventWriter {
     return dir.resolve(String.format(fmt, hi));
   }
 
-  private static Path guessDirectory() throws IOException {
+  static Path guessDirectory() throws IOException {
     final String PERFMARK_TRACE_DIR = "perfmark";
     final String sep = File.separator;
 
@@ -280,7 +675,12 @@ public final class TraceEventWriter {
     }
   }
 
-  private static long getPid() {
+  /**
+   * Returns the PID of the current process, as written into traces, or -1 if it can't be found.
+   *
+   * @since 0.28.0
+   */
+  public static long getPid() {
     List<Throwable> errors = new ArrayList<>(0);
     Level level = Level.FINE;
     try {
@@ -323,82 +723,89 @@ public final class TraceEventWriter {
     return -1;
   }
 
+  /**
+   * Walks the MarkLists and writes each trace event to the destination as soon as it is known.
+   * Only the open task stack of the current thread and the not-yet-paired links of the current
+   * generation are kept in memory.
+   */
   private static final class TraceEventWalker extends MarkListWalker {
 
     private static final class TaskStart {
       final Mark mark;
-      final int traceEventIdx;
 
-      TaskStart(Mark mark, int traceEventIdx) {
+      /**
+       * The begin event, held back until the next non-tag Mark so that tags can still be added to
+       * it. {@code Nullable}
+       */
+      TraceEvent pendingEvent;
+
+      /**
+       * Tags that arrived after the begin event was written. These are put on the end event
+       * instead, which trace viewers merge with the begin event args. {@code Nullable}
+       */
+      TraceEvent.TagMap lateArgs;
+
+      TaskStart(Mark mark, TraceEvent pendingEvent) {
         this.mark = mark;
-        this.traceEventIdx = traceEventIdx;
+        this.pendingEvent = pendingEvent;
       }
     }
 
     private long uniqueLinkPairId = 1;
     private long currentThreadId = -1;
     private long currentMarkListId = -1;
+    private boolean firstEvent = true;
     private final Deque<TaskStart> taskStack = new ArrayDeque<>();
-    private final Map<Long, LinkTuple> linkIdToLinkOut = new LinkedHashMap<>();
-    private final List<LinkTuple> linkIdToLinkIn = new ArrayList<>();
+    private final Map<Long, LinkTuple> unpairedLinkOuts = new HashMap<>();
+    private final Map<Long, LinkTuple> unpairedLinkIns = new HashMap<>();
+    private final TaskNames taskNames = new TaskNames();
+
+    /**
+     * Links seen in the order they were walked, if pairing is left to a later merge. {@code
+     * Nullable}
+     */
+    final List<LinkTuple> deferredLinks;
 
     private final long pid;
     private final long initNanoTime;
-    private final List<TraceEvent> traceEvents;
+    private final JsonEncoder destination;
 
-    TraceEventWalker(List<TraceEvent> traceEvents, long pid, long initNanoTime) {
+    TraceEventWalker(JsonEncoder destination, long pid, long initNanoTime, boolean deferLinks) {
       this.pid = pid;
       this.initNanoTime = initNanoTime;
-      this.traceEvents = traceEvents;
+      this.destination = destination;
+      this.deferredLinks = deferLinks ? new ArrayList<LinkTuple>() : null;
+    }
+
+    /**
+     * Picks up where another walker writing to the same destination left off, so that the events
+     * are separated properly and link pairs get distinct ids.
+     */
+    void continueFrom(TraceEventWalker previous) {
+      firstEvent = previous.firstEvent;
+      uniqueLinkPairId = previous.uniqueLinkPairId;
+    }
+
+    void writeProcessName(String processName) {
+      emit(
+          TraceEvent.EVENT
+              .name("process_name")
+              .phase("M")
+              .pid(pid)
+              .args(TraceEvent.TagMap.EMPTY.withKeyed("name", processName)));
     }
 
     @Override
     protected void enterGeneration(long generation) {
-      linkIdToLinkOut.clear();
-      linkIdToLinkIn.clear();
+      unpairedLinkOuts.clear();
+      unpairedLinkIns.clear();
     }
 
     @Override
     protected void exitGeneration() {
-      for (LinkTuple linkIn : linkIdToLinkIn) {
-        long inLinkId = linkIn.link.getLinkId();
-        long outLinkId = -inLinkId;
-        LinkTuple linkOut = linkIdToLinkOut.get(outLinkId);
-        if (linkOut == null) {
-          // TODO: log?
-          continue;
-        }
-        if (linkOut.markRecorderId == linkIn.markRecorderId) {
-          // continue;
-        }
-        // The name must be the same to match links together.
-        String name =
-            "link("
-                + taskName(linkOut.lastTaskStart)
-                + " -> "
-                + taskName(linkIn.lastTaskStart)
-                + ")";
-        long localUniqueLinkPairId = uniqueLinkPairId++;
-        traceEvents.add(
-            TraceEvent.EVENT
-                .name(name)
-                .tid(linkOut.threadId)
-                .pid(pid)
-                .phase("s")
-                .id(localUniqueLinkPairId)
-                .args(TraceEvent.TagMap.EMPTY.withKeyed("linkid", linkOut.link.getLinkId()))
-                .traceClockNanos(linkOut.lastTaskStart.getNanoTime() - initNanoTime));
-
-        traceEvents.add(
-            TraceEvent.EVENT
-                .name(name)
-                .tid(linkIn.threadId)
-                .pid(pid)
-                .phase("t")
-                .id(localUniqueLinkPairId)
-                .args(TraceEvent.TagMap.EMPTY.withKeyed("linkid", linkOut.link.getLinkId()))
-                .traceClockNanos(linkIn.lastTaskStart.getNanoTime() - initNanoTime));
-      }
+      // Links that never found their other half can't be drawn.
+      unpairedLinkOuts.clear();
+      unpairedLinkIns.clear();
       super.exitGeneration();
     }
 
@@ -406,7 +813,7 @@ public final class TraceEventWriter {
     protected void enterMarkList(String threadName, long threadId, long markListId) {
       currentThreadId = threadId;
       currentMarkListId = markListId;
-      traceEvents.add(
+      emit(
           TraceEvent.EVENT
               .name("thread_name")
               .phase("M")
@@ -418,9 +825,17 @@ public final class TraceEventWriter {
               .tid(currentThreadId));
     }
 
+    @Override
+    protected void exitMarkList() {
+      flushPendingStart();
+      taskStack.clear();
+      super.exitMarkList();
+    }
+
     @Override
     protected void onTaskStart(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
       assert !(unmatchedStart && unmatchedEnd);
+      flushPendingStart();
       List<String> categories = Collections.emptyList();
       if (unmatchedStart) {
         categories = Collections.singletonList("unknownStart");
@@ -429,28 +844,27 @@ public final class TraceEventWriter {
       }
       TraceEvent traceEvent =
           TraceEvent.EVENT
-              .name(taskName(mark))
+              .name(taskNames.taskName(mark))
               .phase("B")
               .pid(pid)
               .categories(categories)
               .tid(currentThreadId)
               .traceClockNanos(mark.getNanoTime() - initNanoTime);
-      traceEvents.add(traceEvent);
-      taskStack.add(new TaskStart(mark, traceEvents.size() - 1));
+      taskStack.add(new TaskStart(mark, traceEvent));
     }
 
     @Override
     @SuppressWarnings("ReferenceEquality") // For checking if it's an empty end mark
     protected void onTaskEnd(Mark mark, boolean unmatchedStart, boolean unmatchedEnd) {
       assert !(unmatchedStart && unmatchedEnd);
+      flushPendingStart();
       List<String> categories = Collections.emptyList();
       if (unmatchedStart) {
         categories = Collections.singletonList("unknownStart");
       } else if (unmatchedEnd) {
         categories = Collections.singletonList("unfinished");
       }
-      // TODO: maybe copy the args from the start task
-      taskStack.pollLast();
+      TaskStart taskStart = taskStack.pollLast();
       TraceEvent traceEvent =
           TraceEvent.EVENT
               .phase("E")
@@ -458,15 +872,17 @@ public final class TraceEventWriter {
               .categories(categories)
               .tid(currentThreadId)
               .traceClockNanos(mark.getNanoTime() - initNanoTime);
-      String name = taskName(mark);
+      String name = taskNames.taskName(mark);
       if (name != MarkListWalker.UNKNOWN_TASK_NAME) {
         traceEvent = traceEvent.name(name);
       }
-      traceEvents.add(traceEvent);
+      if (taskStart != null && taskStart.lateArgs != null) {
+        traceEvent = traceEvent.args(taskStart.lateArgs);
+      }
+      emit(traceEvent);
     }
 
     @Override
-    @SuppressWarnings("LabelledBreakTarget") // Breaks are actually a good thing.
     protected void onAttachTag(Mark mark) {
       if (taskStack.isEmpty()) {
         // In a mark list of only links (i.e. no starts or ends) it's possible there are no tasks
@@ -475,51 +891,19 @@ public final class TraceEventWriter {
         return;
       }
       TaskStart taskStart = taskStack.peekLast();
-      TraceEvent taskEvent = traceEvents.get(taskStart.traceEventIdx);
-      TraceEvent.TagMap args = taskEvent.args();
-      {
-        switch (mark.getOperation()) {
-          case TAG_N0S1:
-            args = args.withUnkeyed(mark.getTagStringValue(), Mark.NO_TAG_ID);
-            break;
-          case TAG_N1S0:
-            args = args.withUnkeyed(Mark.NO_TAG_NAME, mark.getTagFirstNumeric());
-            break;
-          case TAG_N1S1:
-            args = args.withUnkeyed(mark.getTagStringValue(), mark.getTagFirstNumeric());
-            break;
-          case TAG_KEYED_N0S2:
-            args = args.withKeyed(mark.getTagKey(), mark.getTagStringValue());
-            break;
-          case TAG_KEYED_N1S1:
-            args = args.withKeyed(mark.getTagKey(), mark.getTagFirstNumeric());
-            break;
-          case TAG_KEYED_N2S1:
-            args =
-                args.withKeyed(
-                    mark.getTagKey(), mark.getTagFirstNumeric(), mark.getTagSecondNumeric());
-            break;
-          case NONE:
-          case TASK_START_N1S1:
-          case TASK_START_N1S2:
-          case TASK_END_N1S0:
-          case TASK_END_N1S1:
-          case TASK_END_N1S2:
-          case EVENT_N1S1:
-          case EVENT_N1S2:
-          case EVENT_N2S2:
-          case EVENT_N2S3:
-          case LINK:
-            break;
-          default:
-            throw new AssertionError(mark.getOperation());
-        }
+      if (taskStart.pendingEvent != null) {
+        TraceEvent taskEvent = taskStart.pendingEvent;
+        taskStart.pendingEvent = taskEvent.args(withTag(taskEvent.args(), mark));
+      } else {
+        TraceEvent.TagMap args =
+            taskStart.lateArgs != null ? taskStart.lateArgs : TraceEvent.TagMap.EMPTY;
+        taskStart.lateArgs = withTag(args, mark);
       }
-      traceEvents.set(taskStart.traceEventIdx, taskEvent.args(args));
     }
 
     @Override
     protected void onEvent(Mark mark) {
+      flushPendingStart();
       TraceEvent.TagMap tagMap = TraceEvent.TagMap.EMPTY;
       {
         switch (mark.getOperation()) {
@@ -550,24 +934,30 @@ public final class TraceEventWriter {
       }
       TraceEvent traceEvent =
           TraceEvent.EVENT
-              .name(taskName(mark))
+              .name(taskNames.taskName(mark))
               .phase("i")
               .pid(pid)
               .args(tagMap)
               .tid(currentThreadId)
               .traceClockNanos(mark.getNanoTime() - initNanoTime);
-      traceEvents.add(traceEvent);
+      emit(traceEvent);
     }
 
+    /**
+     * Only the parts of the link needed to draw it are kept, rather than the Marks, since links may
+     * wait until the end of the generation to be paired.
+     */
     static final class LinkTuple {
-      final Mark lastTaskStart;
-      final Mark link;
+      final String lastTaskName;
+      final long lastTaskNanoTime;
+      final long linkId;
       final long threadId;
       final long markRecorderId;
 
       LinkTuple(Mark lastTaskStart, Mark link, long threadId, long markRecorderId) {
-        this.lastTaskStart = lastTaskStart;
-        this.link = link;
+        this.lastTaskName = taskName(lastTaskStart);
+        this.lastTaskNanoTime = lastTaskStart.getNanoTime();
+        this.linkId = link.getLinkId();
         this.threadId = threadId;
         this.markRecorderId = markRecorderId;
       }
@@ -583,16 +973,154 @@ public final class TraceEventWriter {
       }
       LinkTuple linkTuple =
           new LinkTuple(taskStack.peekLast().mark, mark, currentThreadId, currentMarkListId);
-      if (mark.getLinkId() > 0) {
-        LinkTuple old = linkIdToLinkOut.put(mark.getLinkId(), linkTuple);
-        assert old == null;
-      } else if (mark.getLinkId() < 0) {
-        linkIdToLinkIn.add(linkTuple);
+      if (deferredLinks != null) {
+        deferredLinks.add(linkTuple);
+      } else {
+        pairLink(linkTuple);
       }
     }
+
+    /**
+     * Writes out an already encoded MarkList, and then pairs its links with those of the MarkLists
+     * written before it. Pairing the links in walk order means the same pairs are found as if the
+     * MarkLists had been walked by this walker.
+     */
+    void emitEncoded(EncodedMarkList encoded) {
+      if (encoded.json.size() != 0) {
+        try {
+          firstEvent = maybeAddComma(destination, firstEvent);
+          destination.writeEncoded(encoded.json);
+          destination.maybeFlush();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      for (LinkTuple linkTuple : encoded.links) {
+        pairLink(linkTuple);
+      }
+    }
+
+    private void pairLink(LinkTuple linkTuple) {
+      if (RemoteLinks.isRemote(linkTuple.linkId)) {
+        emitRemoteLink(linkTuple);
+        return;
+      }
+      // Only the first linkIn() of a Link has an effect, so each outbound link pairs with at most
+      // one inbound link.  Once paired, neither half needs to be remembered.
+      if (linkTuple.linkId > 0) {
+        LinkTuple linkIn = unpairedLinkIns.remove(-linkTuple.linkId);
+        if (linkIn != null) {
+          emitLinkPair(linkTuple, linkIn);
+        } else {
+          LinkTuple old = unpairedLinkOuts.put(linkTuple.linkId, linkTuple);
+          assert old == null;
+        }
+      } else if (linkTuple.linkId < 0) {
+        LinkTuple linkOut = unpairedLinkOuts.remove(-linkTuple.linkId);
+        if (linkOut != null) {
+          emitLinkPair(linkOut, linkTuple);
+        } else if (!unpairedLinkIns.containsKey(linkTuple.linkId)) {
+          unpairedLinkIns.put(linkTuple.linkId, linkTuple);
+        }
+      }
+    }
+
+    private void emitLinkPair(LinkTuple linkOut, LinkTuple linkIn) {
+      // The name must be the same to match links together.
+      String name = "link(" + linkOut.lastTaskName + " -> " + linkIn.lastTaskName + ")";
+      long localUniqueLinkPairId = uniqueLinkPairId++;
+      emit(
+          TraceEvent.EVENT
+              .oneOffName(name)
+              .tid(linkOut.threadId)
+              .pid(pid)
+              .phase("s")
+              .id(localUniqueLinkPairId)
+              .args(TraceEvent.TagMap.EMPTY.withKeyed("linkid", linkOut.linkId))
+              .traceClockNanos(linkOut.lastTaskNanoTime - initNanoTime));
+
+      emit(
+          TraceEvent.EVENT
+              .oneOffName(name)
+              .tid(linkIn.threadId)
+              .pid(pid)
+              .phase("t")
+              .id(localUniqueLinkPairId)
+              .args(TraceEvent.TagMap.EMPTY.withKeyed("linkid", linkOut.linkId))
+              .traceClockNanos(linkIn.lastTaskNanoTime - initNanoTime));
+    }
+
+    /**
+     * Writes half of a link that crosses processes. The other half is in the trace of the other
+     * process, so it can't be paired up here. Instead both halves use the remote link id as the
+     * flow id, and a common name, which connects them once the traces are merged.
+     */
+    private void emitRemoteLink(LinkTuple linkTuple) {
+      long remoteLinkId = Math.abs(linkTuple.linkId);
+      emit(
+          TraceEvent.EVENT
+              .name("remote link")
+              .tid(linkTuple.threadId)
+              .pid(pid)
+              .phase(linkTuple.linkId > 0 ? "s" : "t")
+              .id(remoteLinkId)
+              .args(TraceEvent.TagMap.EMPTY.withKeyed("linkid", remoteLinkId))
+              .traceClockNanos(linkTuple.lastTaskNanoTime - initNanoTime));
+    }
+
+    /** Writes out the begin event of the innermost task, if it hasn't been already. */
+    private void flushPendingStart() {
+      TaskStart taskStart = taskStack.peekLast();
+      if (taskStart != null && taskStart.pendingEvent != null) {
+        TraceEvent pendingEvent = taskStart.pendingEvent;
+        taskStart.pendingEvent = null;
+        emit(pendingEvent);
+      }
+    }
+
+    private void emit(TraceEvent traceEvent) {
+      try {
+        firstEvent = maybeAddComma(destination, firstEvent);
+        writeTraceEvent(destination, traceEvent);
+        destination.maybeFlush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  static TraceEvent.TagMap withTag(TraceEvent.TagMap args, Mark mark) {
+    switch (mark.getOperation()) {
+      case TAG_N0S1:
+        return args.withUnkeyed(mark.getTagStringValue(), Mark.NO_TAG_ID);
+      case TAG_N1S0:
+        return args.withUnkeyed(Mark.NO_TAG_NAME, mark.getTagFirstNumeric());
+      case TAG_N1S1:
+        return args.withUnkeyed(mark.getTagStringValue(), mark.getTagFirstNumeric());
+      case TAG_KEYED_N0S2:
+        return args.withKeyed(mark.getTagKey(), mark.getTagStringValue());
+      case TAG_KEYED_N1S1:
+        return args.withKeyed(mark.getTagKey(), mark.getTagFirstNumeric());
+      case TAG_KEYED_N2S1:
+        return args.withKeyed(
+            mark.getTagKey(), mark.getTagFirstNumeric(), mark.getTagSecondNumeric());
+      case NONE:
+      case TASK_START_N1S1:
+      case TASK_START_N1S2:
+      case TASK_END_N1S0:
+      case TASK_END_N1S1:
+      case TASK_END_N1S2:
+      case EVENT_N1S1:
+      case EVENT_N1S2:
+      case EVENT_N2S2:
+      case EVENT_N2S3:
+      case LINK:
+        return args;
+    }
+    throw new AssertionError(mark.getOperation());
   }
 
-  private static String taskName(Mark mark) {
+  static String taskName(Mark mark) {
     switch (mark.getOperation()) {
       case TASK_END_N1S0:
         return MarkListWalker.UNKNOWN_TASK_NAME;
@@ -618,52 +1146,4 @@ public final class TraceEventWriter {
     }
     throw new AssertionError(mark.getOperation());
   }
-
-  private static final String HEX_TABLE = "0123456789abcdef";
-
-  private static void writeString(Writer writer, String s) throws IOException {
-    writer.write('"');
-    // See comments in GSON's JsonWriter for where this table comes from.
-    for (int i = 0; i < s.length(); i++) {
-      char c = s.charAt(i);
-      if (c == '\b') {
-        writer.write("\\b");
-      } else if (c == '\t') {
-        writer.write("\\t");
-      } else if (c == '\n') {
-        writer.write("\\n");
-      } else if (c == '\f') {
-        writer.write("\\f");
-      } else if (c == '\r') {
-        writer.write("\\r");
-      } else if (c < 0x10) {
-        writer.write("\\u000");
-        writer.write(HEX_TABLE.charAt(c));
-      } else if (c < 0x20) {
-        writer.write("\\u001");
-        writer.write(HEX_TABLE.charAt(c - 0x10));
-      } else if (c == '"') {
-        writer.write("\\\"");
-      } else if (c == '\\') {
-        writer.write("\\\\");
-      } else if (c == '\u2028') {
-        writer.write("\\u2028");
-      } else if (c == '\u2029') {
-        writer.write("\\u2029");
-      } else if (c == '<') {
-        writer.write("\\u003c");
-      } else if (c == '>') {
-        writer.write("\\u003e");
-      } else if (c == '&') {
-        writer.write("\\u0026");
-      } else if (c == '=') {
-        writer.write("\\u003d");
-      } else if (c == '\'') {
-        writer.write("\\u0027");
-      } else {
-        writer.write(c);
-      }
-    }
-    writer.write('"');
-  }
 }
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.perfmark.tracewriter;
+
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Reduces recorded MarkLists to a smaller trace, for traces too large to view in full. The trace
+ * can be limited to a time window and to matching threads, and short tasks can be merged
+ * together.
+ *
+ * <p>Tasks crossing the edges of the time window are cut at the edges. With a minimum task
+ * duration, each run of neighbouring tasks shorter than it is replaced by a single task named like
+ * "12 tasks, 3.4&micro;s", which gives the number of tasks and their total duration. Links
+ * inside merged tasks are kept on the merged task, but their tags, events and subtasks are
+ * dropped.
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class TraceExportOptions {
+
+  private final boolean hasTimeWindow;
+  private final long fromNanoTime;
+  private final long toNanoTime;
+  /** {@code Nullable} */
+  private final Pattern threadNamePattern;
+  private final long minTaskDurationNanos;
+
+  private TraceExportOptions(Builder builder) {
+    this.hasTimeWindow = builder.hasTimeWindow;
+    this.fromNanoTime = builder.fromNanoTime;
+    this.toNanoTime = builder.toNanoTime;
+    this.threadNamePattern = builder.threadNamePattern;
+    this.minTaskDurationNanos = builder.minTaskDurationNanos;
+  }
+
+  /** Returns a builder of options that keep the whole trace. */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Returns a builder starting with the values of these options. */
+  public Builder toBuilder() {
+    Builder builder = new Builder();
+    builder.hasTimeWindow = hasTimeWindow;
+    builder.fromNanoTime = fromNanoTime;
+    builder.toNanoTime = toNanoTime;
+    builder.threadNamePattern = threadNamePattern;
+    builder.minTaskDurationNanos = minTaskDurationNanos;
+    return builder;
+  }
+
+  /**
+   * Applies these options to the given MarkLists. The results have matching task starts and ends,
+   * with unfinished tasks ending at {@code nowNanoTime}.
+   *
+   * @param markLists the recorded MarkLists, such as from {@link io.perfmark.impl.Storage#read()}.
+   * @param nowNanoTime the current time as specified by {@link System#nanoTime()}.
+   * @return the reduced MarkLists, leaving out any that have no Marks left.
+   */
+  public List<MarkList> apply(List<? extends MarkList> markLists, long nowNanoTime) {
+    List<MarkList> result = new ArrayList<>();
+    for (MarkList markList : markLists) {
+      if (threadNamePattern != null
+          && !threadNamePattern.matcher(String.valueOf(markList.getThreadName())).find()) {
+        continue;
+      }
+      Map<Long, List<Mark>> generationToMarks = new LinkedHashMap<>();
+      for (Mark mark : markList) {
+        List<Mark> marks = generationToMarks.get(mark.getGeneration());
+        if (marks == null) {
+          generationToMarks.put(mark.getGeneration(), marks = new ArrayList<>());
+        }
+        marks.add(mark);
+      }
+      List<Mark> trimmed = new ArrayList<>();
+      for (Map.Entry<Long, List<Mark>> entry : generationToMarks.entrySet()) {
+        emit(entry.getKey(), buildTree(entry.getValue(), nowNanoTime), trimmed);
+      }
+      if (!trimmed.isEmpty()) {
+        result.add(markList.toBuilder().setMarks(trimmed).build());
+      }
+    }
+    return result;
+  }
+
+  /** A task, with its children, or a single tag, event or link. */
+  private static final class Node {
+    final Mark mark;
+    /** {@code Nullable}, non-null for tasks. */
+    final List<Node> children;
+    /** {@code Nullable}, non-null for tasks. */
+    Mark end;
+
+    Node(Mark mark, List<Node> children) {
+      this.mark = mark;
+      this.children = children;
+    }
+  }
+
+  /**
+   * Nests the Marks of one generation into tasks. Ends without a start get a start at the earliest
+   * time in the list, and starts without an end get an end at {@code nowNanoTime}, like {@link
+   * MarkListWalker} does.
+   */
+  private static List<Node> buildTree(List<Mark> marks, long nowNanoTime) {
+    long firstNanoTime = nowNanoTime;
+    for (Mark mark : marks) {
+      if (isTimed(mark) && mark.getNanoTime() - firstNanoTime < 0) {
+        firstNanoTime = mark.getNanoTime();
+      }
+    }
+    List<Node> roots = new ArrayList<>();
+    Deque<Node> taskStack = new ArrayDeque<>();
+    for (Mark mark : marks) {
+      switch (mark.getOperation().getOpType()) {
+        case TASK_START:
+          Node task = new Node(mark, new ArrayList<Node>());
+          (taskStack.isEmpty() ? roots : taskStack.peekLast().children).add(task);
+          taskStack.addLast(task);
+          continue;
+        case TASK_END:
+          if (!taskStack.isEmpty()) {
+            taskStack.pollLast().end = mark;
+          } else {
+            Node fakeStart = new Node(startFor(mark, firstNanoTime), roots);
+            fakeStart.end = mark;
+            roots = new ArrayList<>();
+            roots.add(fakeStart);
+          }
+          continue;
+        case TAG:
+        case EVENT:
+        case LINK:
+          (taskStack.isEmpty() ? roots : taskStack.peekLast().children).add(new Node(mark, null));
+          continue;
+        case NONE:
+          break;
+      }
+      throw new AssertionError(mark.getOperation());
+    }
+    while (!taskStack.isEmpty()) {
+      Node task = taskStack.pollLast();
+      task.end = endFor(task.mark, nowNanoTime);
+    }
+    return roots;
+  }
+
+  private void emit(long generation, List<Node> nodes, List<Mark> out) {
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      if (node.children == null) {
+        if (node.mark.getOperation().getOpType() != Mark.OperationType.EVENT
+            || inWindow(node.mark.getNanoTime())) {
+          out.add(node.mark);
+        }
+        continue;
+      }
+      if (!inWindow(node)) {
+        continue;
+      }
+      if (isShort(node)) {
+        int lastShort = i;
+        int count = 1;
+        for (int k = i + 1; k < nodes.size(); k++) {
+          Node next = nodes.get(k);
+          if (next.children == null) {
+            // Events and links between short tasks don't break up a run, but tags do, since
+            // they belong to the enclosing task.
+            if (next.mark.getOperation().getOpType() == Mark.OperationType.TAG) {
+              break;
+            }
+          } else if (inWindow(next) && isShort(next)) {
+            lastShort = k;
+            count++;
+          } else {
+            break;
+          }
+        }
+        if (count > 1) {
+          emitMerged(generation, nodes.subList(i, lastShort + 1), count, out);
+          i = lastShort;
+          continue;
+        }
+      }
+      out.add(clip(node.mark));
+      emit(generation, node.children, out);
+      out.add(clip(node.end));
+    }
+  }
+
+  private void emitMerged(long generation, List<Node> run, int count, List<Mark> out) {
+    long start = Long.MAX_VALUE;
+    long end = Long.MIN_VALUE;
+    long totalNanos = 0;
+    for (Node node : run) {
+      if (node.children == null) {
+        continue;
+      }
+      if (start == Long.MAX_VALUE) {
+        start = clip(node.mark.getNanoTime());
+      }
+      end = clip(node.end.getNanoTime());
+      totalNanos += node.end.getNanoTime() - node.mark.getNanoTime();
+    }
+    String name = String.format(Locale.ROOT, "%d tasks, %.1f\u00b5s", count, totalNanos / 1000.0);
+    out.add(Mark.taskStart(generation, start, name));
+    for (Node node : run) {
+      addLinks(node, out);
+    }
+    out.add(Mark.taskEnd(generation, end, name));
+  }
+
+  private static void addLinks(Node node, List<Mark> out) {
+    if (node.children == null) {
+      if (node.mark.getOperation().getOpType() == Mark.OperationType.LINK) {
+        out.add(node.mark);
+      }
+      return;
+    }
+    for (Node child : node.children) {
+      addLinks(child, out);
+    }
+  }
+
+  private boolean isShort(Node task) {
+    return task.end.getNanoTime() - task.mark.getNanoTime() < minTaskDurationNanos;
+  }
+
+  private boolean inWindow(Node task) {
+    return !hasTimeWindow
+        || (task.end.getNanoTime() - fromNanoTime >= 0
+            && task.mark.getNanoTime() - toNanoTime <= 0);
+  }
+
+  private boolean inWindow(long nanoTime) {
+    return !hasTimeWindow || (nanoTime - fromNanoTime >= 0 && nanoTime - toNanoTime <= 0);
+  }
+
+  private long clip(long nanoTime) {
+    if (hasTimeWindow) {
+      if (nanoTime - fromNanoTime < 0) {
+        return fromNanoTime;
+      } else if (nanoTime - toNanoTime > 0) {
+        return toNanoTime;
+      }
+    }
+    return nanoTime;
+  }
+
+  /** Moves a task start or end into the time window. */
+  private Mark clip(Mark mark) {
+    long nanoTime = clip(mark.getNanoTime());
+    if (nanoTime == mark.getNanoTime()) {
+      return mark;
+    }
+    switch (mark.getOperation()) {
+      case TASK_START_N1S1:
+        return Mark.taskStart(mark.getGeneration(), nanoTime, mark.getTaskName());
+      case TASK_START_N1S2:
+        return Mark.taskStart(
+            mark.getGeneration(), nanoTime, mark.getTaskName(), mark.getSubTaskName());
+      case TASK_END_N1S0:
+        return Mark.taskEnd(mark.getGeneration(), nanoTime);
+      case TASK_END_N1S1:
+        return Mark.taskEnd(mark.getGeneration(), nanoTime, mark.getTaskName());
+      case TASK_END_N1S2:
+        return Mark.taskEnd(
+            mark.getGeneration(), nanoTime, mark.getTaskName(), mark.getSubTaskName());
+      default:
+        throw new AssertionError(mark.getOperation());
+    }
+  }
+
+  private static Mark startFor(Mark end, long nanoTime) {
+    switch (end.getOperation()) {
+      case TASK_END_N1S0:
+        return Mark.taskStart(end.getGeneration(), nanoTime, MarkListWalker.UNKNOWN_TASK_NAME);
+      case TASK_END_N1S1:
+        return Mark.taskStart(end.getGeneration(), nanoTime, end.getTaskName());
+      case TASK_END_N1S2:
+        return Mark.taskStart(
+            end.getGeneration(), nanoTime, end.getTaskName(), end.getSubTaskName());
+      default:
+        throw new AssertionError(end.getOperation());
+    }
+  }
+
+  private static Mark endFor(Mark start, long nanoTime) {
+    switch (start.getOperation()) {
+      case TASK_START_N1S1:
+        return Mark.taskEnd(start.getGeneration(), nanoTime, start.getTaskName());
+      case TASK_START_N1S2:
+        return Mark.taskEnd(
+            start.getGeneration(), nanoTime, start.getTaskName(), start.getSubTaskName());
+      default:
+        throw new AssertionError(start.getOperation());
+    }
+  }
+
+  private static boolean isTimed(Mark mark) {
+    switch (mark.getOperation().getOpType()) {
+      case TASK_START:
+      case TASK_END:
+      case EVENT:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /** Configures a {@link TraceExportOptions}. */
+  public static final class Builder {
+    private boolean hasTimeWindow;
+    private long fromNanoTime;
+    private long toNanoTime;
+    private Pattern threadNamePattern;
+    private long minTaskDurationNanos;
+
+    private Builder() {}
+
+    /**
+     * Only keeps the part of the trace between the two times, as specified by {@link
+     * System#nanoTime()}.
+     */
+    @CanIgnoreReturnValue
+    public Builder setTimeWindow(long fromNanoTime, long toNanoTime) {
+      if (toNanoTime - fromNanoTime < 0) {
+        throw new IllegalArgumentException(
+            "time window ends before it starts: " + fromNanoTime + " > " + toNanoTime);
+      }
+      this.hasTimeWindow = true;
+      this.fromNanoTime = fromNanoTime;
+      this.toNanoTime = toNanoTime;
+      return this;
+    }
+
+    /** Removes the time window, so the whole trace is kept. */
+    @CanIgnoreReturnValue
+    public Builder clearTimeWindow() {
+      this.hasTimeWindow = false;
+      this.fromNanoTime = 0;
+      this.toNanoTime = 0;
+      return this;
+    }
+
+    /**
+     * Only keeps threads whose name contains a match of the pattern. If {@code null}, the default,
+     * all threads are kept.
+     */
+    @CanIgnoreReturnValue
+    public Builder setThreadNamePattern(Pattern threadNamePattern) {
+      this.threadNamePattern = threadNamePattern;
+      return this;
+    }
+
+    /**
+     * Merges runs of tasks shorter than this into a single task. If zero, the default, tasks are
+     * never merged.
+     */
+    @CanIgnoreReturnValue
+    public Builder setMinTaskDuration(long duration, TimeUnit unit) {
+      long nanos = unit.toNanos(duration);
+      if (nanos < 0) {
+        throw new IllegalArgumentException("minTaskDuration must be non-negative: " + duration);
+      }
+      this.minTaskDurationNanos = nanos;
+      return this;
+    }
+
+    public TraceExportOptions build() {
+      return new TraceExportOptions(this);
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.RemoteLinks;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Combines traces from several JVMs, on one host or many, into a single trace. Each JVM gets its
+ * own pid, named after its trace file, and the clocks are lined up using the clock anchors that
+ * {@link TraceEventWriter} and {@link PerfettoTraceWriter} record. Traces without an anchor, such
+ * as those written by older versions, are lined up by their starts instead. Links sent between
+ * the JVMs with {@code PerfMark.exportLink} connect their tasks in the merged trace.
+ *
+ * <p>Hosts' wall clocks are only as close as their clock synchronization, so tasks of different
+ * hosts may appear a little out of order.
+ *
+ * <p>This code is <strong>NOT</strong> API stable, and may be removed in the future, or changed
+ * without notice.
+ *
+ * @since 0.28.0
+ */
+public final class TraceMerger {
+
+  private static final Logger logger = Logger.getLogger(TraceMerger.class.getName());
+
+  /** Ids of each trace are moved this far apart, so they don't collide with those of others. */
+  private static final int ID_SHIFT = 40;
+
+  /** The format of the merged trace. */
+  public enum Format {
+    /** The JSON format written by {@link TraceEventWriter}. */
+    TRACE_EVENT_JSON,
+    /** The protobuf format written by {@link PerfettoTraceWriter}. */
+    PERFETTO,
+  }
+
+  /**
+   * Merges trace files written by {@link TraceEventWriter} or {@link PerfettoTraceWriter}, which
+   * may be gzip compressed, into one trace.
+   *
+   * @param traces the trace files, one per JVM.
+   * @param destination where to write the merged trace.
+   * @param format the format of the merged trace.
+   * @throws IOException if a trace can't be read, or the destination can't be written to.
+   */
+  public static void merge(List<Path> traces, OutputStream destination, Format format)
+      throws IOException {
+    List<Trace> read = new ArrayList<>(traces.size());
+    for (Path trace : traces) {
+      try (MarkListSource source = TraceAnalyzer.openTrace(trace)) {
+        List<MarkList> markLists = source.readAll();
+        read.add(
+            new Trace(
+                String.valueOf(trace.getFileName()),
+                markLists,
+                source.getPid(),
+                source.getTraceStartUnixNanos()));
+      }
+    }
+    write(read, destination, format);
+  }
+
+  /** A trace as read, before it is lined up with the others. */
+  static final class Trace {
+    final String name;
+    final List<MarkList> markLists;
+    final long pid;
+    /** {@code Nullable} */
+    final Long startUnixNanos;
+
+    Trace(String name, List<MarkList> markLists, long pid, Long startUnixNanos) {
+      this.name = name;
+      this.markLists = markLists;
+      this.pid = pid;
+      this.startUnixNanos = startUnixNanos;
+    }
+  }
+
+  /** A trace lined up with the others, ready to be written as one process of the merged trace. */
+  static final class Process {
+    final String name;
+    final List<MarkList> markLists;
+    final long pid;
+    /** The time the merged trace starts at, on the clock of this trace. */
+    final long initNanoTime;
+    final long nowNanoTime;
+
+    Process(
+        String name, List<MarkList> markLists, long pid, long initNanoTime, long nowNanoTime) {
+      this.name = name;
+      this.markLists = markLists;
+      this.pid = pid;
+      this.initNanoTime = initNanoTime;
+      this.nowNanoTime = nowNanoTime;
+    }
+  }
+
+  static void write(List<Trace> traces, OutputStream destination, Format format)
+      throws IOException {
+    // The merged trace starts with the earliest of the traces.
+    Long mergedStartUnixNanos = null;
+    for (Trace trace : traces) {
+      if (trace.startUnixNanos != null
+          && (mergedStartUnixNanos == null || mergedStartUnixNanos - trace.startUnixNanos > 0)) {
+        mergedStartUnixNanos = trace.startUnixNanos;
+      }
+    }
+    List<Process> processes = new ArrayList<>(traces.size());
+    Set<Long> pids = new HashSet<>();
+    for (int i = 0; i < traces.size(); i++) {
+      Trace trace = traces.get(i);
+      long initNanoTime = 0;
+      if (trace.startUnixNanos != null) {
+        initNanoTime = mergedStartUnixNanos - trace.startUnixNanos;
+      } else {
+        logger.warning(trace.name + " has no clock anchor, so it is lined up by its start");
+      }
+      // Several JVMs may have had the same pid, if they ran in containers or on different hosts.
+      long pid = trace.pid != -1 ? trace.pid : 1;
+      while (!pids.add(pid)) {
+        pid++;
+      }
+      List<MarkList> markLists = withIdOffset(trace.markLists, (long) i << ID_SHIFT);
+      long nowNanoTime = 0;
+      for (MarkList markList : markLists) {
+        long last = TraceAnalyzer.lastNanoTime(markList, nowNanoTime);
+        if (last - nowNanoTime > 0) {
+          nowNanoTime = last;
+        }
+      }
+      processes.add(new Process(trace.name, markLists, pid, initNanoTime, nowNanoTime));
+    }
+    ClockAnchor anchor =
+        mergedStartUnixNanos != null ? new ClockAnchor(0, mergedStartUnixNanos) : null;
+    switch (format) {
+      case TRACE_EVENT_JSON:
+        TraceEventWriter.writeProcesses(destination, processes, anchor);
+        return;
+      case PERFETTO:
+        PerfettoTraceWriter.writeProcesses(destination, processes, anchor);
+        return;
+    }
+    throw new AssertionError(format);
+  }
+
+  /**
+   * Moves the MarkRecorder and link ids of a trace out of the way of the other traces. Each trace
+   * numbers them from the same place. Remote links are left alone, since they are meant to match
+   * up with the other half in another trace.
+   */
+  private static List<MarkList> withIdOffset(List<MarkList> markLists, long offset) {
+    if (offset == 0) {
+      return markLists;
+    }
+    List<MarkList> result = new ArrayList<>(markLists.size());
+    for (MarkList markList : markLists) {
+      List<Mark> marks = new ArrayList<>(markList.size());
+      for (Mark mark : markList) {
+        long linkId =
+            mark.getOperation() == Mark.Operation.LINK ? mark.getLinkId() : Mark.NO_LINK_ID;
+        if (linkId != Mark.NO_LINK_ID && linkId != 0 && !RemoteLinks.isRemote(linkId)) {
+          marks.add(
+              Mark.link(mark.getGeneration(), linkId > 0 ? linkId + offset : linkId - offset));
+        } else {
+          marks.add(mark);
+        }
+      }
+      result.add(
+          markList
+              .toBuilder()
+              .setMarkRecorderId(markList.getMarkRecorderId() + offset)
+              .setMarks(marks)
+              .build());
+    }
+    return result;
+  }
+
+  /**
+   * Merges the traces given on the command line.
+   *
+   * @param args the command line arguments.
+   * @throws IOException if a trace can't be read, or the output can't be written.
+   */
+  public static void main(String[] args) throws IOException {
+    Format format = Format.TRACE_EVENT_JSON;
+    Path output = null;
+    List<Path> traces = new ArrayList<>();
+    boolean badArgs = false;
+    for (String arg : args) {
+      if (arg.equals("--format=json")) {
+        format = Format.TRACE_EVENT_JSON;
+      } else if (arg.equals("--format=perfetto")) {
+        format = Format.PERFETTO;
+      } else if (arg.startsWith("--output=")) {
+        output = Paths.get(arg.substring("--output=".length()));
+      } else if (arg.startsWith("--")) {
+        badArgs = true;
+      } else {
+        traces.add(Paths.get(arg));
+      }
+    }
+    if (badArgs || output == null || traces.isEmpty()) {
+      usage(System.err);
+      System.exit(2);
+      return;
+    }
+    try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(output))) {
+      merge(traces, os, format);
+    }
+    logger.info("Wrote merged trace to " + output);
+  }
+
+  private static void usage(PrintStream err) {
+    err.println("Usage: TraceMerger --output=FILE [--format=json|perfetto] TRACE_FILE...");
+  }
+
+  private TraceMerger() {
+    throw new AssertionError("nope");
+  }
+}
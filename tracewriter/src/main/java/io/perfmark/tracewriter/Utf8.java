@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+/**
+ * Encodes Strings as UTF-8 directly into byte arrays, without the intermediate array that {@link
+ * String#getBytes} makes. Unpaired surrogates are replaced with {@code '?'}, just like {@code
+ * String.getBytes()} and {@code OutputStreamWriter}.
+ */
+final class Utf8 {
+
+  /** The most bytes one char can take. A surrogate pair takes 4, which is 2 per char. */
+  static final int MAX_BYTES_PER_CHAR = 3;
+
+  /**
+   * Encodes the chars from {@code start} to {@code end} into the buffer, which must have room for
+   * {@link #MAX_BYTES_PER_CHAR} bytes per char.
+   *
+   * @return the position in the buffer after the last byte written.
+   */
+  static int encode(String s, int start, int end, byte[] buf, int pos) {
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        buf[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        buf[pos++] = (byte) (0xC0 | (c >>> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < end
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        buf[pos++] = (byte) (0xF0 | (cp >>> 18));
+        buf[pos++] = (byte) (0x80 | ((cp >>> 12) & 0x3F));
+        buf[pos++] = (byte) (0x80 | ((cp >>> 6) & 0x3F));
+        buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        buf[pos++] = '?';
+      } else {
+        buf[pos++] = (byte) (0xE0 | (c >>> 12));
+        buf[pos++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+        buf[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    return pos;
+  }
+
+  /** Returns how many bytes {@link #encode} would write for the whole String. */
+  static int encodedLength(String s) {
+    int len = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        len += 1;
+      } else if (c < 0x800) {
+        len += 2;
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < s.length()
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        len += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        len += 1;
+      } else {
+        len += 3;
+      }
+    }
+    return len;
+  }
+
+  private Utf8() {}
+}
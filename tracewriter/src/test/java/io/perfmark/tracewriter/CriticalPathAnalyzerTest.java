@@ -0,0 +1,182 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static io.perfmark.tracewriter.TestMarkLists.markList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CriticalPathAnalyzerTest {
+  @Test
+  public void analyze_followsLinks() {
+    List<CriticalPathAnalyzer.CriticalPath> paths =
+        CriticalPathAnalyzer.analyze(pipeline(), 2000, "request");
+
+    assertEquals(1, paths.size());
+    CriticalPathAnalyzer.CriticalPath path = paths.get(0);
+    assertEquals(1000, path.getDurationNanos());
+    assertEquals(200, path.getWaitNanos());
+    assertEquals(800, path.getWorkNanos());
+    assertEquals(
+        List.of(
+            "work request [0, 100) on main",
+            "wait process [100, 300) on worker",
+            "work process [300, 400) on worker",
+            "work compute [400, 650) on worker",
+            "work await [650, 800) on main",
+            "work request [800, 1000) on main"),
+        describe(path));
+  }
+
+  @Test
+  public void analyze_busyThreadIsNotWaiting() {
+    // The link arrives while the thread is still busy with other work, so the path stays on it.
+    List<MarkList> markLists =
+        List.of(
+            markList(
+                1,
+                Mark.taskStart(1, 0, "request"),
+                Mark.taskStart(1, 10, "send"),
+                Mark.link(1, 5),
+                Mark.taskEnd(1, 20),
+                Mark.taskStart(1, 20, "local"),
+                Mark.taskEnd(1, 500),
+                Mark.taskStart(1, 500, "receive"),
+                Mark.link(1, -6),
+                Mark.taskEnd(1, 510),
+                Mark.taskEnd(1, 600)),
+            markList(
+                2,
+                Mark.taskStart(1, 30, "remote"),
+                Mark.link(1, -5),
+                Mark.link(1, 6),
+                Mark.taskEnd(1, 100)));
+
+    CriticalPathAnalyzer.CriticalPath path =
+        CriticalPathAnalyzer.analyze(markLists, 1000, "request").get(0);
+
+    assertEquals(0, path.getWaitNanos());
+    assertEquals(
+        List.of(
+            "work request [0, 10) on thread-1",
+            "work send [10, 20) on thread-1",
+            "work local [20, 500) on thread-1",
+            "work receive [500, 510) on thread-1",
+            "work request [510, 600) on thread-1"),
+        describe(path));
+  }
+
+  @Test
+  public void analyze_ignoresUnfinishedAndUnrelated() {
+    List<MarkList> markLists =
+        List.of(
+            markList(
+                1,
+                Mark.taskStart(1, 0, "request"),
+                Mark.link(1, 1),
+                Mark.taskEnd(1, 100),
+                Mark.taskStart(1, 200, "request")),
+            // Started before the request, so it can't be on its critical path.
+            markList(2, Mark.taskStart(1, 0, "other"), Mark.link(1, 9), Mark.taskEnd(1, 50)),
+            markList(3, Mark.taskStart(1, 60, "later"), Mark.link(1, -9), Mark.taskEnd(1, 70)));
+
+    List<CriticalPathAnalyzer.CriticalPath> paths =
+        CriticalPathAnalyzer.analyze(markLists, 1000, "request");
+
+    assertEquals(1, paths.size());
+    assertEquals(List.of("work request [0, 100) on thread-1"), describe(paths.get(0)));
+  }
+
+  @Test
+  public void analyze_traceFiles() throws Exception {
+    Path json = Files.createTempFile("perfmark-trace", ".json");
+    Path perfetto = Files.createTempFile("perfmark-trace", ".perfetto-trace");
+    try {
+      try (OutputStream os = Files.newOutputStream(json)) {
+        TraceEventWriter.writeTraceEvents(os, pipeline(), 0, 2000, 1);
+      }
+      try (OutputStream os = Files.newOutputStream(perfetto)) {
+        PerfettoTraceWriter.writeTraceEvents(os, pipeline(), 0, 2000, 1);
+      }
+
+      for (Path trace : List.of(json, perfetto)) {
+        List<CriticalPathAnalyzer.CriticalPath> paths =
+            CriticalPathAnalyzer.analyze(trace, "request");
+
+        assertEquals(1, paths.size());
+        assertEquals(200, paths.get(0).getWaitNanos());
+        StringWriter text = new StringWriter();
+        CriticalPathAnalyzer.writeText(text, paths, "request", 10);
+        assertTrue(
+            text.toString(),
+            text.toString()
+                .startsWith("Critical path of request: 1 runs, mean 1.0us, 80.0% work"));
+      }
+    } finally {
+      Files.delete(json);
+      Files.delete(perfetto);
+    }
+  }
+
+  /** A request that hands work to another thread and waits for the result. */
+  private static List<MarkList> pipeline() {
+    return List.of(
+        markList(
+            1,
+            1,
+            "main",
+            Mark.taskStart(1, 0, "request"),
+            Mark.taskStart(1, 100, "submit"),
+            Mark.link(1, 1),
+            Mark.taskEnd(1, 150),
+            Mark.taskStart(1, 200, "await"),
+            Mark.link(1, -2),
+            Mark.taskEnd(1, 800),
+            Mark.taskEnd(1, 1000)),
+        markList(
+            2,
+            2,
+            "worker",
+            Mark.taskStart(1, 300, "process"),
+            Mark.link(1, -1),
+            Mark.taskStart(1, 400, "compute"),
+            Mark.taskEnd(1, 650),
+            Mark.link(1, 2),
+            Mark.taskEnd(1, 700)));
+  }
+
+  private static List<String> describe(CriticalPathAnalyzer.CriticalPath path) {
+    List<String> described = new ArrayList<>();
+    for (CriticalPathAnalyzer.Segment segment : path.getSegments()) {
+      described.add(segment.toString());
+    }
+    return described;
+  }
+}
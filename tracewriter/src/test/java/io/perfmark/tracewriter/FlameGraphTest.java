@@ -0,0 +1,136 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static io.perfmark.tracewriter.TestMarkLists.markList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FlameGraphTest {
+  @Test
+  public void writeFoldedStacks_mergesThreads() throws Exception {
+    FlameGraph flameGraph = create(markLists(), 5000);
+
+    assertEquals(
+        "a 1400\n" + "a;b 400\n" + "a;b;c 200\n" + "x_y 50\n",
+        folded(flameGraph, FlameGraph.Weight.SELF_TIME));
+    assertEquals(
+        "a 2000\n" + "a;b 600\n" + "a;b;c 200\n" + "x_y 50\n",
+        folded(flameGraph, FlameGraph.Weight.DURATION));
+    assertEquals(2050, flameGraph.getTotalNanos());
+  }
+
+  @Test
+  public void writeFoldedStacks_unfinishedTasks() throws Exception {
+    List<MarkList> markLists =
+        List.of(markList(1, Mark.taskEnd(1, 100, "early"), Mark.taskStart(1, 300, "late")));
+
+    // Only the recorded part of each task counts, which is nothing for the early one.
+    assertEquals("late 200\n", folded(create(markLists, 500), FlameGraph.Weight.SELF_TIME));
+  }
+
+  @Test
+  public void writeSvg() throws Exception {
+    StringWriter svg = new StringWriter();
+    create(markLists(), 5000).writeSvg(svg, "<title>");
+
+    String s = svg.toString();
+    assertTrue(s, s.startsWith("<?xml"));
+    assertTrue(s, s.endsWith("</svg>\n"));
+    assertTrue(s, s.contains("&lt;title&gt;"));
+    assertTrue(s, s.contains("<title>a (2.0us, 97.56%, 2 runs)</title>"));
+    assertTrue(s, s.contains("<title>x;y (50ns, 2.44%, 1 runs)</title>"));
+    assertFalse(s.contains("NaN"));
+  }
+
+  @Test
+  public void read_traceFile() throws Exception {
+    Path trace = Files.createTempFile("perfmark-trace", ".json");
+    try {
+      try (OutputStream os = Files.newOutputStream(trace)) {
+        TraceEventWriter.writeTraceEvents(os, markLists(), 0, 5000, 1);
+      }
+      ForkJoinPool pool = new ForkJoinPool(2);
+      FlameGraph flameGraph;
+      try {
+        flameGraph = FlameGraph.read(trace, pool);
+      } finally {
+        pool.shutdown();
+      }
+
+      assertEquals(
+          "a 1400\n" + "a;b 400\n" + "a;b;c 200\n" + "x_y 50\n",
+          folded(flameGraph, FlameGraph.Weight.SELF_TIME));
+    } finally {
+      Files.delete(trace);
+    }
+  }
+
+  private static List<MarkList> markLists() {
+    List<MarkList> markLists = new ArrayList<>();
+    markLists.add(
+        markList(
+            1,
+            Mark.taskStart(1, 1000, "a"),
+            Mark.taskStart(1, 1100, "b"),
+            Mark.taskStart(1, 1200, "c"),
+            Mark.taskEnd(1, 1400),
+            Mark.taskEnd(1, 1500),
+            Mark.taskEnd(1, 2000),
+            Mark.taskStart(1, 2000, "x;y"),
+            Mark.taskEnd(1, 2050)));
+    markLists.add(
+        markList(
+            2,
+            Mark.taskStart(1, 3000, "a"),
+            Mark.taskStart(1, 3100, "b"),
+            Mark.taskEnd(1, 3300),
+            Mark.taskEnd(1, 4000)));
+    return markLists;
+  }
+
+  private static FlameGraph create(List<MarkList> markLists, long nowNanoTime) {
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      return FlameGraph.create(markLists, nowNanoTime, pool);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static String folded(FlameGraph flameGraph, FlameGraph.Weight weight)
+      throws Exception {
+    StringWriter writer = new StringWriter();
+    flameGraph.writeFoldedStacks(writer, weight);
+    return writer.toString();
+  }
+}
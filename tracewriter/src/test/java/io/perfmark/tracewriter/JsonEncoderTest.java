@@ -0,0 +1,95 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class JsonEncoderTest {
+  @Test
+  public void writeString_escapes() throws Exception {
+    assertEquals("\"a\\\"b\\\\c\"", encodeString("a\"b\\c"));
+    assertEquals("\"\\b\\t\\n\\f\\r\\u0001\\u001f\"", encodeString("\b\t\n\f\r\u0001\u001f"));
+    assertEquals("\"\\u003c\\u003e\\u0026\\u003d\\u0027\"", encodeString("<>&='"));
+    assertEquals("\"\\u2028\\u2029\"", encodeString("\u2028\u2029"));
+  }
+
+  @Test
+  public void writeString_utf8() throws Exception {
+    String s = "\u00e9\u65e5\ud83d\ude00";
+    assertEquals("\"" + s + "\"", encodeString(s));
+    // Unpaired surrogates can't be encoded.
+    assertEquals("\"a?b\"", encodeString("a\ud800b"));
+    assertEquals("\"?\\n\"", encodeString("\ud83d\n"));
+    // Escapes in between multibyte characters.
+    assertEquals(
+        "\"\u00e9\\\"\u65e5\\u2028\ud83d\ude00\"",
+        encodeString("\u00e9\"\u65e5\u2028\ud83d\ude00"));
+  }
+
+  @Test
+  public void writeName_cached() throws Exception {
+    String name = "na\"me";
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    JsonEncoder encoder = new JsonEncoder(baos);
+    encoder.writeName(name);
+    encoder.writeAscii(',');
+    encoder.writeName(name);
+    encoder.flush();
+
+    assertEquals("\"na\\\"me\",\"na\\\"me\"", baos.toString(StandardCharsets.UTF_8.name()));
+  }
+
+  @Test
+  public void writeNumbers() throws Exception {
+    StringWriter sw = new StringWriter();
+    JsonEncoder encoder = new JsonEncoder(sw);
+    encoder.writeLong(0);
+    encoder.writeAscii(',');
+    encoder.writeLong(-1234567890123L);
+    encoder.writeAscii(',');
+    encoder.writeLong(Long.MIN_VALUE);
+    encoder.writeAscii(',');
+    encoder.writeMicros(0);
+    encoder.writeAscii(',');
+    encoder.writeMicros(1005);
+    encoder.writeAscii(',');
+    encoder.writeMicros(-20);
+    encoder.writeAscii(',');
+    encoder.writeMicros(12345678901234L);
+    encoder.flush();
+
+    assertEquals(
+        "0,-1234567890123,-9223372036854775808,0.000,1.005,-0.020,12345678901.234",
+        sw.toString());
+  }
+
+  private static String encodeString(String s) throws Exception {
+    StringWriter sw = new StringWriter();
+    JsonEncoder encoder = new JsonEncoder(sw);
+    encoder.writeString(s);
+    encoder.flush();
+    return sw.toString();
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.perfmark.tracewriter;
+
+import static io.perfmark.tracewriter.TestMarkLists.markList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class OtlpJsonWriterTest {
+  private static final long INIT_NANO_TIME = 1000;
+  private static final long INIT_MILLIS = 1_700_000_000_000L;
+
+  @Test
+  public void writeSpans() throws Exception {
+    String json = write(markLists());
+
+    assertTrue(
+        json,
+        json.startsWith(
+            "{\"resourceSpans\":[{\"resource\":{\"attributes\":["
+                + "{\"key\":\"service.name\",\"value\":{\"stringValue\":\"svc\"}},"
+                + "{\"key\":\"process.pid\",\"value\":{\"intValue\":\"42\"}}]},"
+                + "\"scopeSpans\":[{\"scope\":{\"name\":\"io.perfmark\"},\"spans\":["));
+    assertTrue(json, json.endsWith("]}]}]}\n"));
+    assertEquals(1, json.split("\n").length);
+
+    List<String> spans = spans(json);
+    assertEquals(4, spans.size());
+    // Spans are written as they end.
+    String child = spans.get(0);
+    String parent = spans.get(1);
+    String next = spans.get(2);
+    String worker = spans.get(3);
+
+    assertTrue(child, child.contains("\"name\":\"child.sub\""));
+    assertEquals(field(parent, "spanId"), field(child, "parentSpanId"));
+    assertEquals(field(parent, "traceId"), field(child, "traceId"));
+    assertTrue(child, child.contains("\"startTimeUnixNano\":\"1700000000000000100\""));
+    assertTrue(child, child.contains("\"endTimeUnixNano\":\"1700000000000000200\""));
+    assertTrue(child, child.contains("{\"key\":\"key\",\"value\":{\"stringValue\":\"value\"}}"));
+    assertTrue(
+        child,
+        child.contains(
+            "\"events\":[{\"timeUnixNano\":\"1700000000000000150\",\"name\":\"ping\","
+                + "\"attributes\":[]}]"));
+
+    assertTrue(
+        parent,
+        parent.contains(
+            "{\"key\":\"thread.name\",\"value\":{\"stringValue\":\"main\"}},"
+                + "{\"key\":\"thread.id\",\"value\":{\"intValue\":\"1\"}}"));
+    assertTrue(parent, !parent.contains("parentSpanId"));
+    assertTrue(next, !field(next, "traceId").equals(field(parent, "traceId")));
+    assertTrue(next, next.contains("\"perfmark.unfinished\",\"value\":{\"boolValue\":true}"));
+    assertTrue(next, next.contains("\"endTimeUnixNano\":\"1700000000000000500\""));
+
+    // The worker was linked in from the child span.
+    assertTrue(
+        worker,
+        worker.contains(
+            "\"links\":[{\"traceId\":\"" + field(child, "traceId") + "\",\"spanId\":\""
+                + field(child, "spanId") + "\",\"attributes\":["
+                + "{\"key\":\"perfmark.link_id\",\"value\":{\"intValue\":\"7\"}}]}]"));
+    assertEquals(32, field(worker, "traceId").length());
+    assertEquals(16, field(worker, "spanId").length());
+  }
+
+  @Test
+  public void writeSpans_stableIds() throws Exception {
+    List<MarkList> fewer = new ArrayList<>(markLists());
+    fewer.remove(1);
+
+    List<String> all = spans(write(markLists()));
+    List<String> some = spans(write(fewer));
+
+    assertEquals(field(all.get(1), "spanId"), field(some.get(1), "spanId"));
+    assertEquals(field(all.get(1), "traceId"), field(some.get(1), "traceId"));
+  }
+
+  private static List<MarkList> markLists() {
+    return List.of(
+        markList(
+            1,
+            1,
+            "main",
+            Mark.taskStart(1, 1000, "parent"),
+            Mark.taskStart(1, 1100, "child", "sub"),
+            Mark.keyedTag(1, "key", "value"),
+            Mark.event(1, 1150, "ping"),
+            Mark.link(1, 7),
+            Mark.taskEnd(1, 1200, "child", "sub"),
+            Mark.taskEnd(1, 1300, "parent"),
+            Mark.taskStart(1, 1400, "next")),
+        markList(
+            2,
+            2,
+            "worker",
+            Mark.taskStart(1, 1250, "work"),
+            Mark.link(1, -7),
+            Mark.taskEnd(1, 1350, "work")));
+  }
+
+  private static String write(List<MarkList> markLists) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OtlpJsonWriter.writeSpans(out, markLists, INIT_NANO_TIME, INIT_MILLIS, 1500, 42, "svc");
+    return new String(out.toByteArray(), UTF_8);
+  }
+
+  /** Splits the span objects apart, relying on each one starting with its trace id. */
+  private static List<String> spans(String json) {
+    List<String> spans = new ArrayList<>();
+    String body = json.substring(json.indexOf("\"spans\":[") + "\"spans\":[".length());
+    for (String span : body.split(",(?=\\{\"traceId\":\"[0-9a-f]{32}\",\"spanId\")")) {
+      spans.add(span);
+    }
+    return spans;
+  }
+
+  private static String field(String span, String name) {
+    Matcher matcher = Pattern.compile("^\\{.*?\"" + name + "\":\"([0-9a-f]+)\"").matcher(span);
+    assertTrue(span, matcher.find());
+    return matcher.group(1);
+  }
+}
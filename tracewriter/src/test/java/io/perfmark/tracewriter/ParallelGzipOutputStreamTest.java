@@ -0,0 +1,105 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ParallelGzipOutputStreamTest {
+  @Test
+  public void roundTrip() throws Exception {
+    byte[] data = sampleData(1_000_000);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (ParallelGzipOutputStream gzos = new ParallelGzipOutputStream(baos, pool)) {
+      // Uneven writes, to cross block boundaries at odd places.
+      for (int off = 0; off < data.length; off += 7777) {
+        gzos.write(data, off, Math.min(7777, data.length - off));
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    assertArrayEquals(data, gunzip(baos.toByteArray()));
+  }
+
+  @Test
+  public void roundTrip_flushesAndLevels() throws Exception {
+    byte[] data = sampleData(300_000);
+    for (int level = Deflater.DEFAULT_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      try (ParallelGzipOutputStream gzos =
+          new ParallelGzipOutputStream(baos, level, Runnable::run)) {
+        for (int i = 0; i < data.length; i++) {
+          gzos.write(data[i]);
+          if (i % 50_000 == 0) {
+            gzos.flush();
+          }
+        }
+      }
+
+      assertArrayEquals(data, gunzip(baos.toByteArray()));
+    }
+  }
+
+  @Test
+  public void empty() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    new ParallelGzipOutputStream(baos, Runnable::run).close();
+
+    assertArrayEquals(new byte[0], gunzip(baos.toByteArray()));
+  }
+
+  @Test
+  public void writeAfterClose_fails() throws Exception {
+    ParallelGzipOutputStream gzos =
+        new ParallelGzipOutputStream(new ByteArrayOutputStream(), Runnable::run);
+    gzos.close();
+
+    assertThrows(IOException.class, () -> gzos.write(1));
+    assertThrows(IOException.class, () -> gzos.write(new byte[1], 0, 1));
+  }
+
+  private static byte[] sampleData(int size) {
+    // Somewhat compressible, like trace JSON.
+    Random random = new Random(1);
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return data;
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws Exception {
+    try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return is.readAllBytes();
+    }
+  }
+}
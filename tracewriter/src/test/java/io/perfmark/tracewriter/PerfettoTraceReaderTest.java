@@ -0,0 +1,104 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PerfettoTraceReaderTest {
+  @Test
+  public void roundTrip() throws Exception {
+    List<MarkList> markLists = new ArrayList<>();
+    markLists.add(
+        MarkList.newBuilder()
+            .setMarkRecorderId(9)
+            .setThreadId(99)
+            .setThreadName("Billy")
+            .setMarks(
+                List.of(
+                    Mark.taskStart(1, 2345, "task"),
+                    Mark.keyedTag(1, "hello", "world"),
+                    Mark.link(1, 7),
+                    Mark.taskStart(1, 2346, "child"),
+                    Mark.taskEnd(1, 2347),
+                    Mark.keyedTag(1, "late", 5),
+                    Mark.link(1, 8),
+                    Mark.event(1, 2348, "event", "eventTag", 6),
+                    Mark.taskEnd(1, 2349),
+                    Mark.taskStart(2, 2350, "unfinished")))
+            .build());
+    markLists.add(
+        MarkList.newBuilder()
+            .setMarkRecorderId(10)
+            .setThreadId(100)
+            .setThreadName("Bobby")
+            .setMarks(
+                List.of(
+                    Mark.taskStart(1, 2400, "other"),
+                    Mark.link(1, -7),
+                    Mark.taskEnd(1, 2401)))
+            .build());
+    byte[] trace = write(markLists, 1234, 9999);
+
+    List<MarkList> read;
+    try (PerfettoTraceReader reader =
+        PerfettoTraceReader.create(Channels.newChannel(new ByteArrayInputStream(trace)))) {
+      read = reader.readAll();
+    }
+
+    assertArrayEquals(trace, write(read, 0, 9999 - 1234));
+    assertEquals(3, read.size());
+    MarkList first = read.get(0);
+    assertEquals("Billy", first.getThreadName());
+    assertEquals(99, first.getThreadId());
+    assertEquals(9, first.getMarkRecorderId());
+    assertEquals(
+        List.of(
+            Mark.taskStart(0, 2345 - 1234, "task"),
+            Mark.keyedTag(0, "hello", "world"),
+            Mark.link(0, 7),
+            Mark.taskStart(0, 2346 - 1234, "child"),
+            Mark.taskEnd(0, 2347 - 1234),
+            Mark.link(0, 8),
+            Mark.event(0, 2348 - 1234, "event", "eventTag", 6),
+            // Late tags are written on the end of the task, so that is where they come back.
+            Mark.keyedTag(0, "late", 5),
+            Mark.taskEnd(0, 2349 - 1234)),
+        first);
+    assertEquals(Mark.link(0, -7), read.get(1).get(1));
+    assertEquals(List.of(Mark.taskStart(1, 2350 - 1234, "unfinished")), read.get(2));
+  }
+
+  private static byte[] write(List<MarkList> markLists, long initNanoTime, long nowNanoTime)
+      throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PerfettoTraceWriter.writeTraceEvents(baos, markLists, initNanoTime, nowNanoTime, 1);
+    return baos.toByteArray();
+  }
+}
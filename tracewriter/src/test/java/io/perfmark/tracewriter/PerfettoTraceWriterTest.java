@@ -0,0 +1,216 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static org.junit.Assert.assertEquals;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PerfettoTraceWriterTest {
+  @Test
+  public void writeAndParse() throws Exception {
+    List<MarkList> markLists =
+        List.of(
+            MarkList.newBuilder()
+                .setMarkRecorderId(9)
+                .setThreadId(99)
+                .setThreadName("Billy")
+                .setMarks(
+                    List.of(
+                        Mark.taskStart(1, 2345, "task"),
+                        Mark.keyedTag(1, "hello", "world"),
+                        Mark.taskStart(1, 2346, "child"),
+                        Mark.taskEnd(1, 2347, "child"),
+                        Mark.keyedTag(1, "late", 5),
+                        Mark.taskEnd(1, 2348, "task")))
+                .build());
+
+    List<Message> packets = parse(markLists);
+
+    // Process track, thread track, then the four slice events.
+    assertEquals(6, packets.size());
+    Message thread = packets.get(1).message(60).message(4);
+    assertEquals(100, thread.varint(1));
+    assertEquals(99, thread.varint(2));
+    assertEquals("Billy", thread.string(5));
+
+    Map<Long, String> eventNames = new HashMap<>();
+    Map<Long, String> annotationNames = new HashMap<>();
+    List<String> summary = new ArrayList<>();
+    for (Message packet : packets) {
+      assertEquals(1, packet.varint(10));
+      Message interned = packet.message(12);
+      if (interned != null) {
+        for (Message name : interned.messages(2)) {
+          eventNames.put(name.varint(1), name.string(2));
+        }
+        for (Message name : interned.messages(3)) {
+          annotationNames.put(name.varint(1), name.string(2));
+        }
+      }
+      Message event = packet.message(11);
+      if (event == null) {
+        continue;
+      }
+      StringBuilder sb = new StringBuilder();
+      sb.append(packet.varint(8)).append(' ').append(event.varint(9));
+      if (event.has(10)) {
+        sb.append(' ').append(eventNames.get(event.varint(10)));
+      }
+      for (Message annotation : event.messages(4)) {
+        sb.append(' ').append(annotationNames.get(annotation.varint(1))).append('=');
+        sb.append(annotation.has(6) ? annotation.string(6) : annotation.varint(4));
+      }
+      summary.add(sb.toString());
+    }
+
+    assertEquals(
+        List.of("1111 1 task hello=world", "1112 1 child", "1113 2", "1114 2 late=5"), summary);
+  }
+
+  @Test
+  public void writeAndParse_links() throws Exception {
+    List<MarkList> markLists =
+        List.of(
+            MarkList.newBuilder()
+                .setMarkRecorderId(9)
+                .setThreadId(99)
+                .setThreadName("Billy")
+                .setMarks(
+                    List.of(
+                        Mark.taskStart(1, 2345, "out"),
+                        Mark.link(1, 5),
+                        Mark.taskEnd(1, 2347, "out")))
+                .build(),
+            MarkList.newBuilder()
+                .setMarkRecorderId(10)
+                .setThreadId(100)
+                .setThreadName("Bobby")
+                .setMarks(
+                    List.of(
+                        Mark.taskStart(1, 2350, "in"),
+                        Mark.link(1, -5),
+                        Mark.taskEnd(1, 2352, "in")))
+                .build());
+
+    List<Long> flowIds = new ArrayList<>();
+    List<Long> terminatingFlowIds = new ArrayList<>();
+    for (Message packet : parse(markLists)) {
+      Message event = packet.message(11);
+      if (event != null) {
+        flowIds.addAll(event.fixed64s(47));
+        terminatingFlowIds.addAll(event.fixed64s(48));
+      }
+    }
+
+    assertEquals(List.of(5L), flowIds);
+    assertEquals(List.of(5L), terminatingFlowIds);
+  }
+
+  private static List<Message> parse(List<MarkList> markLists) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PerfettoTraceWriter.writeTraceEvents(baos, markLists, 1234, 5678, 100);
+    return new Message(ByteBuffer.wrap(baos.toByteArray())).messages(1);
+  }
+
+  /** A tiny decoder, just enough to check the structure of the written trace. */
+  private static final class Message {
+    private final Map<Integer, List<Object>> fields = new HashMap<>();
+
+    Message(ByteBuffer buf) {
+      buf.order(ByteOrder.LITTLE_ENDIAN);
+      while (buf.hasRemaining()) {
+        long tag = readVarint(buf);
+        int field = (int) (tag >>> 3);
+        Object value;
+        switch ((int) (tag & 7)) {
+          case 0:
+            value = readVarint(buf);
+            break;
+          case 1:
+            value = buf.getLong();
+            break;
+          case 2:
+            byte[] b = new byte[(int) readVarint(buf)];
+            buf.get(b);
+            value = b;
+            break;
+          default:
+            throw new AssertionError("bad wire type " + tag);
+        }
+        fields.computeIfAbsent(field, k -> new ArrayList<>()).add(value);
+      }
+    }
+
+    boolean has(int field) {
+      return fields.containsKey(field);
+    }
+
+    long varint(int field) {
+      return (Long) fields.get(field).get(0);
+    }
+
+    String string(int field) {
+      return new String((byte[]) fields.get(field).get(0), StandardCharsets.UTF_8);
+    }
+
+    Message message(int field) {
+      List<Message> messages = messages(field);
+      return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    List<Message> messages(int field) {
+      List<Message> messages = new ArrayList<>();
+      for (Object o : fields.getOrDefault(field, List.of())) {
+        messages.add(new Message(ByteBuffer.wrap((byte[]) o)));
+      }
+      return messages;
+    }
+
+    List<Long> fixed64s(int field) {
+      List<Long> values = new ArrayList<>();
+      for (Object o : fields.getOrDefault(field, List.of())) {
+        values.add((Long) o);
+      }
+      return values;
+    }
+
+    private static long readVarint(ByteBuffer buf) {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = buf.get();
+        value |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+    }
+  }
+}
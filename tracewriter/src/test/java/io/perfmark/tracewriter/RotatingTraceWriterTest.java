@@ -0,0 +1,126 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static io.perfmark.tracewriter.TestMarkLists.markList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RotatingTraceWriterTest {
+
+  private Path dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("perfmark-test");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : files.collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(dir);
+  }
+
+  @Test
+  public void rotatesFiles() throws Exception {
+    Files.write(dir.resolve("perfmark-trace-004.json.gz"), new byte[0]);
+    Files.write(dir.resolve("unrelated.txt"), new byte[0]);
+    RotatingTraceWriter writer =
+        RotatingTraceWriter.newBuilder().setDirectory(dir).setMaxFiles(2).build();
+    try {
+      for (int i = 0; i < 3; i++) {
+        submitWhenReady(writer);
+      }
+    } finally {
+      writer.close();
+    }
+
+    assertEquals(
+        List.of("perfmark-trace-006.json.gz", "perfmark-trace-007.json.gz", "unrelated.txt"),
+        listFiles());
+    Path newest = dir.resolve(listFiles().get(1));
+    try (InputStream is = new GZIPInputStream(Files.newInputStream(newest))) {
+      String json = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+      assertTrue(json, json.startsWith("{\"traceEvents\":[") && json.contains("\"name\":\"task\""));
+    }
+  }
+
+  @Test
+  public void dropsFilesTooLarge() throws Exception {
+    RotatingTraceWriter writer =
+        RotatingTraceWriter.newBuilder().setDirectory(dir).setMaxFileBytes(10).build();
+    try {
+      submitWhenReady(writer);
+    } finally {
+      writer.close();
+    }
+
+    assertEquals(List.of(), listFiles());
+  }
+
+  @Test
+  public void closedRejectsWrites() throws Exception {
+    RotatingTraceWriter writer = RotatingTraceWriter.newBuilder().setDirectory(dir).build();
+    writer.close();
+
+    assertEquals(false, writer.requestWrite());
+    assertEquals(false, writer.submit(markLists(), 0, 10000));
+  }
+
+  private List<String> listFiles() throws Exception {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList());
+    }
+  }
+
+  private static void submitWhenReady(RotatingTraceWriter writer) throws Exception {
+    while (!writer.submit(markLists(), 0, 10000)) {
+      Thread.sleep(1);
+    }
+  }
+
+  private static List<MarkList> markLists() {
+    List<Mark> marks = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      marks.add(Mark.taskStart(1, 1000 + i * 2, "task"));
+      marks.add(Mark.taskEnd(1, 1001 + i * 2, "task"));
+    }
+    return List.of(markList(1, 1, "thread", marks));
+  }
+}
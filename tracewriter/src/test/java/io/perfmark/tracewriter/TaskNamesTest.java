@@ -0,0 +1,51 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.perfmark.tracewriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import io.perfmark.impl.Mark;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TaskNamesTest {
+  @Test
+  public void taskName_reusesJoinedNames() {
+    TaskNames taskNames = new TaskNames();
+
+    String start = taskNames.taskName(Mark.taskStart(1, 10, "task", "sub"));
+    String end = taskNames.taskName(Mark.taskEnd(1, 20, "task", "sub"));
+
+    assertEquals("task.sub", start);
+    assertSame(start, end);
+    assertNotSame(start, new TaskNames().taskName(Mark.taskStart(1, 10, "task", "sub")));
+  }
+
+  @Test
+  public void taskName_noSubTask() {
+    String name = "task";
+
+    assertSame(name, new TaskNames().taskName(Mark.taskStart(1, 10, name)));
+    assertSame(
+        MarkListWalker.UNKNOWN_TASK_NAME, new TaskNames().taskName(Mark.taskEnd(1, 20)));
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.util.List;
+
+/** Builds the MarkLists that tests hand to the writers and analyzers. */
+final class TestMarkLists {
+
+  /** Returns the marks of thread {@code id}, recorded by recorder {@code id}. */
+  static MarkList markList(long id, Mark... marks) {
+    return markList(id, id, "thread-" + id, List.of(marks));
+  }
+
+  /** Returns the marks of the given thread. */
+  static MarkList markList(long markRecorderId, long threadId, String threadName, Mark... marks) {
+    return markList(markRecorderId, threadId, threadName, List.of(marks));
+  }
+
+  /** Returns the marks of the given thread. */
+  static MarkList markList(
+      long markRecorderId, long threadId, String threadName, List<Mark> marks) {
+    return MarkList.newBuilder()
+        .setMarkRecorderId(markRecorderId)
+        .setThreadId(threadId)
+        .setThreadName(threadName)
+        .setMarks(marks)
+        .build();
+  }
+
+  private TestMarkLists() {}
+}
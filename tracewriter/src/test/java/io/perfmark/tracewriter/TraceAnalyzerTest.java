@@ -0,0 +1,192 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static io.perfmark.tracewriter.TestMarkLists.markList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TraceAnalyzerTest {
+  @Test
+  public void analyze_selfTime() {
+    List<MarkList> markLists = new ArrayList<>();
+    for (int thread = 0; thread < 10; thread++) {
+      markLists.add(
+          markList(
+              thread,
+              Mark.taskStart(1, 1000, "parent"),
+              Mark.taskStart(1, 1100, "child", "sub"),
+              Mark.taskEnd(1, 1300),
+              Mark.taskStart(1, 1400, "child", "sub"),
+              Mark.taskEnd(1, 1500),
+              Mark.taskEnd(1, 2000),
+              // Never ends, so it is only counted as incomplete.
+              Mark.taskStart(1, 2100, "parent")));
+    }
+
+    Map<String, TraceAnalyzer.TaskStats> stats = byName(analyze(markLists, 5000));
+
+    TraceAnalyzer.TaskStats parent = stats.get("parent");
+    assertEquals(10, parent.getCount());
+    assertEquals(10, parent.getIncompleteCount());
+    assertEquals(10 * 1000, parent.getTotalNanos());
+    assertEquals(10 * (1000 - 300), parent.getSelfNanos());
+    TraceAnalyzer.TaskStats child = stats.get("child.sub");
+    assertEquals(20, child.getCount());
+    assertEquals(20 * 150, child.getTotalNanos());
+    assertEquals(child.getTotalNanos(), child.getSelfNanos());
+    assertEquals(150, child.getMeanNanos(), 0);
+    // The sample standard deviation, so slightly more than 50.
+    assertEquals(51.3, child.getStandardDeviationNanos(), 0.1);
+    assertEquals(200, child.getMaxNanos());
+  }
+
+  @Test
+  public void analyze_percentiles() {
+    List<Mark> marks = new ArrayList<>();
+    for (int i = 1; i <= 1000; i++) {
+      marks.add(Mark.taskStart(1, 0, "task"));
+      marks.add(Mark.taskEnd(1, i * 1000L));
+    }
+
+    TraceAnalyzer.TaskStats stats =
+        analyze(List.of(markList(1, marks.toArray(new Mark[0]))), 0).getTaskStats().get(0);
+
+    assertEquals(500_000, stats.getPercentileNanos(50), 500_000 * 0.03);
+    assertEquals(900_000, stats.getPercentileNanos(90), 900_000 * 0.03);
+    assertEquals(990_000, stats.getPercentileNanos(99), 990_000 * 0.03);
+    assertEquals(1_000_000, stats.getMaxNanos());
+  }
+
+  @Test
+  public void analyze_traceFiles() throws Exception {
+    List<MarkList> markLists =
+        List.of(
+            markList(
+                1,
+                Mark.taskStart(1, 1000, "a"),
+                Mark.taskStart(1, 1500, "b"),
+                Mark.taskEnd(1, 1600),
+                Mark.taskEnd(1, 3000)),
+            markList(2, Mark.taskStart(1, 1000, "b"), Mark.taskEnd(1, 1100)));
+    Path json = Files.createTempFile("perfmark-trace", ".json");
+    Path perfetto = Files.createTempFile("perfmark-trace", ".perfetto-trace");
+    try {
+      try (OutputStream os = Files.newOutputStream(json)) {
+        TraceEventWriter.writeTraceEvents(os, markLists, 0, 5000, 1);
+      }
+      try (OutputStream os = Files.newOutputStream(perfetto)) {
+        PerfettoTraceWriter.writeTraceEvents(os, markLists, 0, 5000, 1);
+      }
+
+      for (Path trace : List.of(json, perfetto)) {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        TraceAnalyzer.Report report;
+        try {
+          report = TraceAnalyzer.analyze(trace, pool);
+        } finally {
+          pool.shutdown();
+        }
+        List<TraceAnalyzer.TaskStats> tasks = report.getTaskStats();
+        assertEquals("a", tasks.get(0).getName());
+        assertEquals(2000, tasks.get(0).getTotalNanos());
+        assertEquals(1900, tasks.get(0).getSelfNanos());
+        assertEquals("b", tasks.get(1).getName());
+        assertEquals(2, tasks.get(1).getCount());
+        assertEquals(200, tasks.get(1).getTotalNanos());
+      }
+    } finally {
+      Files.delete(json);
+      Files.delete(perfetto);
+    }
+  }
+
+  @Test
+  public void writeReports() throws Exception {
+    TraceAnalyzer.Report report =
+        analyze(
+                List.of(
+                    markList(
+                        1,
+                        Mark.taskStart(1, 0, "fast"),
+                        Mark.taskEnd(1, 10),
+                        Mark.taskStart(1, 10, "slow, \"quoted\""),
+                        Mark.taskEnd(1, 2_000_010))),
+                0)
+            .sortedBy(Comparator.comparing(TraceAnalyzer.TaskStats::getName));
+
+    StringWriter csv = new StringWriter();
+    report.writeCsv(csv);
+    assertEquals(
+        "name,count,incomplete,totalNanos,selfNanos,meanNanos,stddevNanos,p50Nanos,p90Nanos,"
+            + "p99Nanos,maxNanos\n"
+            + "fast,1,0,10,10,10,0,10,10,10,10\n"
+            + "\"slow, \"\"quoted\"\"\",1,0,2000000,2000000,2000000,0,2000000,2000000,2000000,"
+            + "2000000\n",
+        csv.toString());
+
+    StringWriter json = new StringWriter();
+    report.writeJson(json);
+    assertTrue(
+        json.toString(),
+        json.toString()
+            .startsWith(
+                "{\"tasks\":[{\"name\":\"fast\",\"count\":1,\"incomplete\":0,\"totalNanos\":10,"));
+
+    StringWriter text = new StringWriter();
+    report.writeText(text, 1);
+    String[] lines = text.toString().split("\n");
+    assertEquals(3, lines.length);
+    assertTrue(lines[0], lines[0].startsWith("Task "));
+    assertTrue(lines[1], lines[1].startsWith("fast ") && lines[1].endsWith("10ns"));
+    assertEquals("... and 1 more", lines[2]);
+  }
+
+  private static TraceAnalyzer.Report analyze(List<MarkList> markLists, long nowNanoTime) {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      return TraceAnalyzer.analyze(markLists, nowNanoTime, pool);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static Map<String, TraceAnalyzer.TaskStats> byName(TraceAnalyzer.Report report) {
+    Map<String, TraceAnalyzer.TaskStats> byName = new HashMap<>();
+    for (TraceAnalyzer.TaskStats stats : report.getTaskStats()) {
+      byName.put(stats.getName(), stats);
+    }
+    return byName;
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TraceDiffTest {
+  @Test
+  public void pValues() {
+    assertEquals(0.07339, TraceDiff.studentTwoTailedPValue(2.0, 10), 1e-5);
+    assertEquals(0.05001, TraceDiff.studentTwoTailedPValue(-2.228, 10), 1e-5);
+    assertEquals(0.05, TraceDiff.normalTwoTailedPValue(1.96), 1e-4);
+    // t = 2.236 with 18 degrees of freedom.
+    assertEquals(0.03825, TraceDiff.welchPValue(10, 2, 10, 12, 2, 10), 1e-5);
+    assertEquals(1, TraceDiff.welchPValue(10, 0, 10, 10, 0, 10), 0);
+    assertEquals(1, TraceDiff.welchPValue(10, 2, 1, 12, 2, 10), 0);
+  }
+
+  @Test
+  public void compare_flagsSignificantChanges() {
+    List<Mark> baseline = new ArrayList<>();
+    List<Mark> candidate = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      long jitter = (i % 10) * 10;
+      addTask(baseline, "steady", 1000 + jitter);
+      addTask(candidate, "steady", 1000 + (9 - i % 10) * 10);
+      addTask(baseline, "slower", 1000 + jitter);
+      addTask(candidate, "slower", 1500 + jitter);
+      addTask(baseline, "faster", 2000 + jitter);
+      addTask(candidate, "faster", 1000 + jitter);
+      addTask(baseline, "busier", 100);
+      addTask(candidate, "busier", 100);
+      addTask(candidate, "busier", 100);
+      addTask(baseline, "removed", 100);
+      addTask(candidate, "added", 100);
+    }
+
+    TraceDiff diff = TraceDiff.compare(analyze(baseline), analyze(candidate));
+
+    Map<String, TraceDiff.TaskDiff> byName = new HashMap<>();
+    for (TraceDiff.TaskDiff taskDiff : diff.getTaskDiffs()) {
+      byName.put(taskDiff.getName(), taskDiff);
+    }
+    assertEquals(List.of(), byName.get("steady").getFlags());
+    assertEquals(
+        List.of(TraceDiff.Flag.MEAN_REGRESSION, TraceDiff.Flag.P99_REGRESSION),
+        byName.get("slower").getFlags());
+    assertEquals(500.0 / 1045, byName.get("slower").getMeanChange(), 1e-9);
+    assertEquals(
+        List.of(TraceDiff.Flag.MEAN_IMPROVEMENT, TraceDiff.Flag.P99_IMPROVEMENT),
+        byName.get("faster").getFlags());
+    assertEquals(List.of(TraceDiff.Flag.COUNT_CHANGE), byName.get("busier").getFlags());
+    assertEquals(1.0, byName.get("busier").getCountChange(), 0);
+    assertEquals(List.of(TraceDiff.Flag.REMOVED), byName.get("removed").getFlags());
+    assertEquals(List.of(TraceDiff.Flag.ADDED), byName.get("added").getFlags());
+    assertEquals("slower", diff.getTaskDiffs().get(0).getName());
+    assertEquals(1, diff.getRegressions().size());
+  }
+
+  @Test
+  public void compare_smallChangesAreNotFlagged() {
+    List<Mark> baseline = new ArrayList<>();
+    List<Mark> candidate = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      addTask(baseline, "task", 1000 + i % 2);
+      // Consistently 2% slower, which is significant but too small to matter.
+      addTask(candidate, "task", 1020 + i % 2);
+    }
+
+    TraceDiff.TaskDiff taskDiff =
+        TraceDiff.compare(analyze(baseline), analyze(candidate)).getTaskDiffs().get(0);
+
+    assertTrue(taskDiff.getMeanPValue() < 1e-6);
+    assertEquals(List.of(), taskDiff.getFlags());
+  }
+
+  @Test
+  public void writeReports() throws Exception {
+    List<Mark> baseline = new ArrayList<>();
+    List<Mark> candidate = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      addTask(baseline, "slower", 1000 + i % 10);
+      addTask(candidate, "slower", 2000 + i % 10);
+      addTask(baseline, "removed", 100);
+    }
+    TraceDiff diff = TraceDiff.compare(analyze(baseline), analyze(candidate));
+
+    StringWriter text = new StringWriter();
+    diff.writeText(text, 10);
+    String[] lines = text.toString().split("\n");
+    assertEquals(
+        "1 regressions and 0 improvements among 2 tasks (alpha=0.01, min change=5.0%)", lines[0]);
+    assertTrue(lines[2], lines[2].startsWith("slower "));
+    assertTrue(lines[2], lines[2].endsWith("+100%  mean_regression,p99_regression"));
+    assertTrue(lines[3], lines[3].endsWith("removed"));
+
+    StringWriter json = new StringWriter();
+    diff.writeJson(json);
+    assertTrue(
+        json.toString(),
+        json.toString()
+            .startsWith(
+                "{\"alpha\":0.01,\"minChange\":0.05,\"regressions\":1,\"tasks\":["
+                    + "{\"name\":\"slower\",\"baseline\":{\"count\":200,\"meanNanos\":1005,"));
+    assertTrue(
+        json.toString(),
+        json.toString()
+            .endsWith(
+                "\"candidate\":null,\"countChange\":-1.0,\"meanChange\":-1.0,\"p99Change\":-1.0,"
+                    + "\"countPValue\":1.0,\"meanPValue\":1.0,"
+                    + "\"flags\":[\"removed\"]}]}"));
+  }
+
+  private static void addTask(List<Mark> marks, String name, long durationNanos) {
+    long start = marks.isEmpty() ? 0 : marks.get(marks.size() - 1).getNanoTime();
+    marks.add(Mark.taskStart(1, start, name));
+    marks.add(Mark.taskEnd(1, start + durationNanos));
+  }
+
+  private static TraceAnalyzer.Report analyze(List<Mark> marks) {
+    MarkList markList =
+        MarkList.newBuilder()
+            .setMarkRecorderId(1)
+            .setThreadId(1)
+            .setThreadName("thread")
+            .setMarks(marks)
+            .build();
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      return TraceAnalyzer.analyze(List.of(markList), 0, pool);
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
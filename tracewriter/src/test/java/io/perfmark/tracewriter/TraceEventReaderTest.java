@@ -0,0 +1,221 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static io.perfmark.tracewriter.TestMarkLists.markList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TraceEventReaderTest {
+  @Test
+  public void roundTrip() throws Exception {
+    List<MarkList> markLists = markLists();
+    byte[] json = write(markLists, 1234, 9999);
+
+    List<MarkList> read;
+    try (TraceEventReader reader = TraceEventReader.create(channel(json))) {
+      read = reader.readAll();
+      assertNull(reader.nextMarkList());
+    }
+
+    // Times come back relative to the start of the trace.
+    assertEquals(new String(json, StandardCharsets.UTF_8), writeString(read, 0, 9999 - 1234));
+    assertEquals(3, read.size());
+    MarkList first = read.get(0);
+    assertEquals("Billy", first.getThreadName());
+    assertEquals(99, first.getThreadId());
+    assertEquals(9, first.getMarkRecorderId());
+    assertEquals(Mark.taskStart(0, 2345 - 1234, "task"), first.get(0));
+    assertEquals(Mark.keyedTag(0, "hello", "world"), first.get(1));
+    assertEquals(Mark.keyedTag(0, "pair", 3, 4), first.get(2));
+    assertEquals(Mark.link(0, 7), first.get(3));
+    // Tags of the task the link was made in come first.
+    assertEquals(Mark.tag(0, "unkeyed"), first.get(5));
+    assertEquals(Mark.tag(0, 8), first.get(6));
+    assertEquals(Mark.link(0, -7), first.get(7));
+    // The same MarkList again starts the next generation.
+    assertEquals(1, read.get(2).get(0).getGeneration());
+  }
+
+  @Test
+  public void readAll_keepsLinksBetweenThreads() throws Exception {
+    List<MarkList> markLists =
+        List.of(
+            markList(
+                1,
+                1,
+                "sender",
+                Mark.taskStart(1, 10, "send"),
+                Mark.link(1, 5),
+                Mark.taskEnd(1, 20)),
+            markList(
+                2,
+                2,
+                "receiver",
+                Mark.taskStart(1, 30, "receive"),
+                Mark.link(1, -5),
+                Mark.taskEnd(1, 40)));
+    byte[] json = write(markLists, 0, 100);
+
+    // The link is paired while writing the receiver, after the sender was written.
+    try (TraceEventReader reader = TraceEventReader.create(channel(json))) {
+      assertEquals(2, reader.nextMarkList().size());
+      assertEquals(3, reader.nextMarkList().size());
+    }
+    try (TraceEventReader reader = TraceEventReader.create(channel(json))) {
+      List<MarkList> read = reader.readAll();
+      assertEquals(Mark.link(0, 5), read.get(0).get(1));
+      assertEquals(Mark.link(0, -5), read.get(1).get(1));
+    }
+  }
+
+  @Test
+  public void roundTrip_oneByteAtATime() throws Exception {
+    byte[] json = write(markLists(), 0, 9999);
+    ReadableByteChannel channel = channel(json);
+    ReadableByteChannel slowChannel =
+        new ReadableByteChannel() {
+          @Override
+          public int read(ByteBuffer dst) throws IOException {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            int n = channel.read(one);
+            if (n > 0) {
+              dst.put(one.array(), 0, 1);
+            }
+            return n;
+          }
+
+          @Override
+          public boolean isOpen() {
+            return channel.isOpen();
+          }
+
+          @Override
+          public void close() throws IOException {
+            channel.close();
+          }
+        };
+
+    List<MarkList> read;
+    try (TraceEventReader reader = TraceEventReader.create(slowChannel)) {
+      read = reader.readAll();
+    }
+
+    assertEquals(new String(json, StandardCharsets.UTF_8), writeString(read, 0, 9999));
+  }
+
+  @Test
+  public void open_gzip() throws Exception {
+    byte[] json = write(markLists(), 0, 9999);
+    Path file = Files.createTempFile("perfmark-trace", ".json.gz");
+    try {
+      try (GZIPOutputStream gzip = new GZIPOutputStream(Files.newOutputStream(file))) {
+        gzip.write(json);
+      }
+      try (TraceEventReader reader = TraceEventReader.open(file)) {
+        assertEquals(3, reader.readAll().size());
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void otherTraces() throws Exception {
+    String json =
+        "[{\"name\": \"a\", \"ph\": \"B\", \"ts\": 1.5, \"pid\": 1, \"tid\": 5,"
+            + " \"args\": {\"x\": 2.5}},"
+            + "{\"ph\": \"E\", \"ts\": 3, \"pid\": 1, \"tid\": 5, \"extra\": [true, null, {}]},"
+            + "{\"name\": \"\\u00e9\\ud83d\\ude00\", \"ph\": \"i\", \"ts\": 4, \"tid\": 6},"
+            + "{\"name\": \"c\", \"ph\": \"X\", \"ts\": 4, \"dur\": 1, \"tid\": 6}]";
+
+    List<MarkList> read;
+    try (TraceEventReader reader =
+        TraceEventReader.create(channel(json.getBytes(StandardCharsets.UTF_8)))) {
+      read = reader.readAll();
+    }
+
+    assertEquals(2, read.size());
+    assertEquals("5", read.get(0).getThreadName());
+    assertEquals(
+        List.of(
+            Mark.taskStart(0, 1500, "a"), Mark.keyedTag(0, "x", "2.5"), Mark.taskEnd(0, 3000)),
+        read.get(0));
+    assertEquals(List.of(Mark.event(0, 4000, "\u00e9\ud83d\ude00")), read.get(1));
+  }
+
+  private static List<MarkList> markLists() {
+    List<MarkList> markLists = new ArrayList<>();
+    markLists.add(
+        markList(
+            9,
+            99,
+            "Billy",
+            Mark.taskStart(1, 2345, "task"),
+            Mark.keyedTag(1, "hello", "world"),
+            Mark.keyedTag(1, "pair", 3, 4),
+            Mark.link(1, 7),
+            Mark.taskStart(1, 2346, "child", "sub"),
+            Mark.link(1, -7),
+            Mark.tag(1, "unkeyed", 8),
+            Mark.event(1, 2347, "event", "eventTag", 6),
+            Mark.taskEnd(1, 2348),
+            Mark.keyedTag(1, "late", "quote\"d\n"),
+            Mark.taskEnd(1, 2349, "task"),
+            // Unmatched, so the walker makes up a start and an end.
+            Mark.taskEnd(2, 2350, "early"),
+            Mark.taskStart(2, 2351, "late")));
+    markLists.add(
+        markList(10, 100, "Bobby", Mark.taskStart(1, 2400, "other"), Mark.taskEnd(1, 2401)));
+    return markLists;
+  }
+
+  private static byte[] write(List<MarkList> markLists, long initNanoTime, long nowNanoTime)
+      throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    TraceEventWriter.writeTraceEvents(baos, markLists, initNanoTime, nowNanoTime, 1);
+    return baos.toByteArray();
+  }
+
+  private static String writeString(List<MarkList> markLists, long initNanoTime, long nowNanoTime)
+      throws Exception {
+    return new String(write(markLists, initNanoTime, nowNanoTime), StandardCharsets.UTF_8);
+  }
+
+  private static ReadableByteChannel channel(byte[] data) {
+    return Channels.newChannel(new ByteArrayInputStream(data));
+  }
+}
@@ -25,10 +25,14 @@ import io.perfmark.impl.Mark;
 import io.perfmark.impl.MarkList;
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -81,6 +85,169 @@ public class TraceEventWriterTest {
     assertEquals(expected, map);
   }
 
+  @Test
+  public void writeAndParse_tagAfterChildTask() throws Exception {
+    List<MarkList> markLists =
+        List.of(
+            MarkList.newBuilder()
+                .setMarkRecorderId(9)
+                .setThreadId(99)
+                .setThreadName("Billy")
+                .setMarks(
+                    List.of(
+                        Mark.taskStart(1, 2345, "parent"),
+                        Mark.keyedTag(1, "early", "tag"),
+                        Mark.taskStart(1, 2346, "child"),
+                        Mark.taskEnd(1, 2347, "child"),
+                        Mark.keyedTag(1, "late", "tag"),
+                        Mark.taskEnd(1, 2348, "parent")))
+                .build());
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (var osw = new OutputStreamWriter(baos, StandardCharsets.UTF_8)) {
+      TraceEventWriter.writeTraceEvents(osw, markLists, 1234, 5678, 100);
+    }
+    TestTraceObject map =
+        new ObjectMapper().readValue(baos.toByteArray(), new TypeReference<>() {});
+
+    assertEquals(5, map.traceEvents.size());
+    TestTraceEvent parentStart = map.traceEvents.get(1);
+    assertEquals("B", parentStart.phase);
+    assertEquals("parent", parentStart.name);
+    assertEquals(Map.of("early", "tag"), parentStart.args);
+    // Tags that arrive after the start was written go on the end event.
+    TestTraceEvent parentEnd = map.traceEvents.get(4);
+    assertEquals("E", parentEnd.phase);
+    assertEquals("parent", parentEnd.name);
+    assertEquals(Map.of("late", "tag"), parentEnd.args);
+  }
+
+  @Test
+  public void writeAndParse_links() throws Exception {
+    List<MarkList> markLists =
+        List.of(
+            MarkList.newBuilder()
+                .setMarkRecorderId(9)
+                .setThreadId(99)
+                .setThreadName("Billy")
+                .setMarks(
+                    List.of(
+                        Mark.taskStart(1, 2345, "out"),
+                        Mark.link(1, 5),
+                        Mark.taskEnd(1, 2347, "out")))
+                .build(),
+            MarkList.newBuilder()
+                .setMarkRecorderId(10)
+                .setThreadId(100)
+                .setThreadName("Bobby")
+                .setMarks(
+                    List.of(
+                        Mark.taskStart(1, 2350, "in"),
+                        Mark.link(1, -5),
+                        Mark.taskEnd(1, 2352, "in")))
+                .build());
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (var osw = new OutputStreamWriter(baos, StandardCharsets.UTF_8)) {
+      TraceEventWriter.writeTraceEvents(osw, markLists, 1234, 5678, 100);
+    }
+    TestTraceObject map =
+        new ObjectMapper().readValue(baos.toByteArray(), new TypeReference<>() {});
+
+    TestTraceEvent flowStart = null;
+    TestTraceEvent flowStep = null;
+    for (TestTraceEvent event : map.traceEvents) {
+      if ("s".equals(event.phase)) {
+        flowStart = event;
+      } else if ("t".equals(event.phase)) {
+        flowStep = event;
+      }
+    }
+    assertEquals("link(out -> in)", flowStart.name);
+    assertEquals(Long.valueOf(99), flowStart.tid);
+    assertEquals("link(out -> in)", flowStep.name);
+    assertEquals(Long.valueOf(100), flowStep.tid);
+    assertEquals(flowStart.id, flowStep.id);
+  }
+
+  @Test
+  public void writeParallel_matchesSerial() throws Exception {
+    List<MarkList> markLists = new ArrayList<>();
+    for (int thread = 0; thread < 20; thread++) {
+      List<Mark> marks = new ArrayList<>();
+      for (long gen = 1; gen <= 2; gen++) {
+        marks.add(Mark.taskStart(gen, 2345 + thread, "task" + thread));
+        marks.add(Mark.keyedTag(gen, "thread", thread));
+        marks.add(Mark.event(gen, 2346 + thread, "event"));
+        marks.add(Mark.taskEnd(gen, 2347 + thread));
+      }
+      // Unmatched, so the walker will need to create fake ends.
+      marks.add(Mark.taskStart(2, 2400, "unfinished"));
+      markLists.add(
+          MarkList.newBuilder()
+              .setMarkRecorderId(thread)
+              .setThreadId(thread + 100)
+              .setThreadName("thread-" + thread)
+              .setMarks(marks)
+              .build());
+    }
+
+    StringWriter serial = new StringWriter();
+    TraceEventWriter.writeTraceEvents(serial, markLists, 1234, 99, 5678, 100);
+    StringWriter parallel = new StringWriter();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      TraceEventWriter.writeTraceEventsParallel(parallel, markLists, 1234, 99, 5678, 100, pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    assertEquals(serial.toString(), parallel.toString());
+  }
+
+  @Test
+  public void writeParallel_links() throws Exception {
+    List<MarkList> markLists = new ArrayList<>();
+    for (int thread = 0; thread < 20; thread++) {
+      // Each thread links in from the previous one, and out to the next.
+      markLists.add(
+          MarkList.newBuilder()
+              .setMarkRecorderId(thread)
+              .setThreadId(thread + 100)
+              .setThreadName("thread-" + thread)
+              .setMarks(
+                  List.of(
+                      Mark.taskStart(1, 2345 + thread, "task" + thread),
+                      Mark.link(1, -(thread + 1)),
+                      Mark.link(1, thread + 2),
+                      Mark.taskEnd(1, 2347 + thread)))
+              .build());
+    }
+
+    StringWriter serial = new StringWriter();
+    TraceEventWriter.writeTraceEvents(serial, markLists, 1234, 99, 5678, 100);
+    StringWriter parallel = new StringWriter();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      TraceEventWriter.writeTraceEventsParallel(parallel, markLists, 1234, 99, 5678, 100, pool);
+    } finally {
+      pool.shutdown();
+    }
+    ObjectMapper mapper = new ObjectMapper();
+    TestTraceObject serialTrace = mapper.readValue(serial.toString(), new TypeReference<>() {});
+    TestTraceObject parallelTrace =
+        mapper.readValue(parallel.toString(), new TypeReference<>() {});
+
+    // The link events are written at a different point, but otherwise should be the same.
+    List<String> serialEvents = new ArrayList<>();
+    serialTrace.traceEvents.forEach(e -> serialEvents.add(e.toString()));
+    List<String> parallelEvents = new ArrayList<>();
+    parallelTrace.traceEvents.forEach(e -> parallelEvents.add(e.toString()));
+    Collections.sort(serialEvents);
+    Collections.sort(parallelEvents);
+    assertEquals(serialEvents, parallelEvents);
+  }
+
   public static final class TestTraceObject {
     public List<TestTraceEvent> traceEvents;
     public String displayTimeUnit = "ns";
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2023 Carl Mastrangelo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.perfmark.tracewriter;
+
+import static io.perfmark.tracewriter.TestMarkLists.markList;
+import static org.junit.Assert.assertEquals;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TraceExportOptionsTest {
+  @Test
+  public void apply_defaultsKeepEverythingBalanced() {
+    List<MarkList> markLists =
+        List.of(markList(1, 1, "main", Mark.taskEnd(1, 100), Mark.taskStart(1, 200, "open")));
+
+    List<MarkList> result = TraceExportOptions.newBuilder().build().apply(markLists, 500);
+
+    assertEquals(
+        List.of(
+            Mark.taskStart(1, 100, MarkListWalker.UNKNOWN_TASK_NAME),
+            Mark.taskEnd(1, 100),
+            Mark.taskStart(1, 200, "open"),
+            Mark.taskEnd(1, 500, "open")),
+        List.copyOf(result.get(0)));
+  }
+
+  @Test
+  public void apply_timeWindowClipsTasks() {
+    List<MarkList> markLists =
+        List.of(
+            markList(
+                1,
+                1,
+                "main",
+                Mark.taskStart(1, 0, "before"),
+                Mark.taskEnd(1, 50, "before"),
+                Mark.taskStart(1, 100, "across"),
+                Mark.tag(1, "tag"),
+                Mark.event(1, 150, "early"),
+                Mark.event(1, 250, "inside"),
+                Mark.taskEnd(1, 400, "across"),
+                Mark.taskStart(1, 600, "after"),
+                Mark.taskEnd(1, 700, "after")));
+
+    List<MarkList> result =
+        TraceExportOptions.newBuilder().setTimeWindow(200, 500).build().apply(markLists, 1000);
+
+    assertEquals(
+        List.of(
+            Mark.taskStart(1, 200, "across"),
+            Mark.tag(1, "tag"),
+            Mark.event(1, 250, "inside"),
+            Mark.taskEnd(1, 400, "across")),
+        List.copyOf(result.get(0)));
+  }
+
+  @Test
+  public void apply_threadNamePattern() {
+    List<MarkList> markLists =
+        List.of(
+            markList(1, 1, "main", Mark.event(1, 10, "a")),
+            markList(1, 1, "worker-1", Mark.event(1, 20, "b")));
+
+    List<MarkList> result =
+        TraceExportOptions.newBuilder()
+            .setThreadNamePattern(Pattern.compile("^worker"))
+            .build()
+            .apply(markLists, 100);
+
+    assertEquals(1, result.size());
+    assertEquals("worker-1", result.get(0).getThreadName());
+  }
+
+  @Test
+  public void apply_mergesShortTasks() {
+    List<MarkList> markLists =
+        List.of(
+            markList(
+                1,
+                1,
+                "main",
+                Mark.taskStart(1, 0, "parent"),
+                Mark.taskStart(1, 1000, "short"),
+                Mark.taskStart(1, 1100, "shorter"),
+                Mark.link(1, 5),
+                Mark.taskEnd(1, 1200, "shorter"),
+                Mark.taskEnd(1, 2000, "short"),
+                Mark.event(1, 2500, "between"),
+                Mark.taskStart(1, 3000, "short"),
+                Mark.taskEnd(1, 5000, "short"),
+                Mark.taskStart(1, 6000, "long"),
+                Mark.taskStart(1, 7000, "alone"),
+                Mark.taskEnd(1, 8000, "alone"),
+                Mark.taskEnd(1, 50000, "long"),
+                Mark.taskEnd(1, 100000, "parent")));
+
+    List<MarkList> result =
+        TraceExportOptions.newBuilder()
+            .setMinTaskDuration(10, TimeUnit.MICROSECONDS)
+            .build()
+            .apply(markLists, 100_000);
+
+    assertEquals(
+        List.of(
+            Mark.taskStart(1, 0, "parent"),
+            Mark.taskStart(1, 1000, "2 tasks, 3.0\u00b5s"),
+            Mark.link(1, 5),
+            Mark.taskEnd(1, 5000, "2 tasks, 3.0\u00b5s"),
+            Mark.taskStart(1, 6000, "long"),
+            Mark.taskStart(1, 7000, "alone"),
+            Mark.taskEnd(1, 8000, "alone"),
+            Mark.taskEnd(1, 50000, "long"),
+            Mark.taskEnd(1, 100000, "parent")),
+        List.copyOf(result.get(0)));
+  }
+}
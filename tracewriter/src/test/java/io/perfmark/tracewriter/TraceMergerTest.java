@@ -0,0 +1,232 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.perfmark.tracewriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.perfmark.impl.Mark;
+import io.perfmark.impl.MarkList;
+import io.perfmark.impl.RemoteLinks;
+import io.perfmark.impl.Storage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TraceMergerTest {
+  @Test
+  public void writersRecordClockAnchor() throws Exception {
+    // The trace doesn't start when PerfMark was loaded, so the anchor has to come from the caller.
+    long initNanoTime = Storage.getInitNanoTime() + 5_000;
+    long initCurrentTimeMillis = 1_700_000_000_000L;
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    TraceEventWriter.writeTraceEvents(
+        json, List.of(), initNanoTime, initCurrentTimeMillis, initNanoTime, 1);
+    ByteArrayOutputStream perfetto = new ByteArrayOutputStream();
+    PerfettoTraceWriter.writeTraceEvents(
+        perfetto, List.of(), initNanoTime, initCurrentTimeMillis, initNanoTime, 1);
+
+    long expected = initCurrentTimeMillis * 1_000_000;
+    try (TraceEventReader reader =
+        TraceEventReader.create(
+            Channels.newChannel(new ByteArrayInputStream(json.toByteArray())))) {
+      reader.readAll();
+      assertEquals(Long.valueOf(expected), reader.getTraceStartUnixNanos());
+    }
+    try (PerfettoTraceReader reader =
+        PerfettoTraceReader.create(
+            Channels.newChannel(new ByteArrayInputStream(perfetto.toByteArray())))) {
+      reader.readAll();
+      assertEquals(Long.valueOf(expected), reader.getTraceStartUnixNanos());
+      assertEquals(1, reader.getPid());
+    }
+  }
+
+  @Test
+  public void writersWithoutWallClock_haveNoClockAnchor() throws Exception {
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    TraceEventWriter.writeTraceEvents(
+        json, List.of(), Storage.getInitNanoTime(), Storage.getInitNanoTime(), 1);
+    ByteArrayOutputStream perfetto = new ByteArrayOutputStream();
+    PerfettoTraceWriter.writeTraceEvents(
+        perfetto, List.of(), Storage.getInitNanoTime(), Storage.getInitNanoTime(), 1);
+
+    try (TraceEventReader reader =
+        TraceEventReader.create(
+            Channels.newChannel(new ByteArrayInputStream(json.toByteArray())))) {
+      reader.readAll();
+      assertNull(reader.getTraceStartUnixNanos());
+    }
+    try (PerfettoTraceReader reader =
+        PerfettoTraceReader.create(
+            Channels.newChannel(new ByteArrayInputStream(perfetto.toByteArray())))) {
+      reader.readAll();
+      assertNull(reader.getTraceStartUnixNanos());
+    }
+  }
+
+  @Test
+  public void merge_linesUpClocks() throws Exception {
+    // The second JVM started 2us after the first, and both had pid 7.
+    Path dir = Files.createTempDirectory("perfmark-test");
+    Path first = writeTrace(dir.resolve("first.json"), 7, 0, 1_000_000_000L);
+    Path second = writeTrace(dir.resolve("second.json"), 7, 500, 1_000_002_500L);
+    Path noAnchor = writeTrace(dir.resolve("none.json"), 3, -1, -1);
+    Path merged = dir.resolve("merged.perfetto-trace");
+    Path mergedJson = dir.resolve("merged.json");
+    try {
+      try (var os = Files.newOutputStream(merged)) {
+        TraceMerger.merge(List.of(first, second, noAnchor), os, TraceMerger.Format.PERFETTO);
+      }
+      try (var os = Files.newOutputStream(mergedJson)) {
+        TraceMerger.merge(
+            List.of(first, second, noAnchor), os, TraceMerger.Format.TRACE_EVENT_JSON);
+      }
+
+      for (Path trace : List.of(merged, mergedJson)) {
+        List<MarkList> markLists;
+        try (MarkListSource source = TraceAnalyzer.openTrace(trace)) {
+          markLists = source.readAll();
+          assertEquals(Long.valueOf(1_000_000_000L), source.getTraceStartUnixNanos());
+          assertEquals(7, source.getPid());
+        }
+        assertEquals(3, markLists.size());
+        assertEquals(1000, markLists.get(0).get(0).getNanoTime());
+        assertEquals(3000, markLists.get(1).get(0).getNanoTime());
+        // Without an anchor, the trace starts with the merged trace.
+        assertEquals(1000, markLists.get(2).get(0).getNanoTime());
+        assertNotEquals(markLists.get(0).getMarkRecorderId(), markLists.get(1).getMarkRecorderId());
+      }
+
+      String json = new String(Files.readAllBytes(mergedJson), StandardCharsets.UTF_8);
+      assertTrue(json, json.contains("\"pid\":7,\"args\":{\"name\":\"first.json\"}"));
+      assertTrue(json, json.contains("\"pid\":8,\"args\":{\"name\":\"second.json\"}"));
+      assertTrue(json, json.contains("\"pid\":3,\"args\":{\"name\":\"none.json\"}"));
+      assertTrue(
+          json,
+          json.endsWith(
+              "],\"metadata\":{\"perfmarkClock\":{\"traceNanos\":0,\"unixNanos\":1000000000}}}"));
+    } finally {
+      Files.delete(merged);
+      Files.delete(mergedJson);
+      Files.delete(first);
+      Files.delete(second);
+      Files.delete(noAnchor);
+      Files.delete(dir);
+    }
+  }
+
+  @Test
+  public void merge_connectsRemoteLinks() throws Exception {
+    long remoteLinkId = RemoteLinks.fromToken("4123456789abcdef");
+    Path dir = Files.createTempDirectory("perfmark-test");
+    Path client = dir.resolve("client.json");
+    Path server = dir.resolve("server.json");
+    Path merged = dir.resolve("merged.perfetto-trace");
+    Path mergedJson = dir.resolve("merged.json");
+    try {
+      writeLinkTrace(client, 7, "call", remoteLinkId);
+      writeLinkTrace(server, 7, "serve", -remoteLinkId);
+      try (var os = Files.newOutputStream(merged)) {
+        TraceMerger.merge(List.of(client, server), os, TraceMerger.Format.PERFETTO);
+      }
+      try (var os = Files.newOutputStream(mergedJson)) {
+        TraceMerger.merge(List.of(client, server), os, TraceMerger.Format.TRACE_EVENT_JSON);
+      }
+
+      for (Path trace : List.of(merged, mergedJson)) {
+        List<MarkList> markLists;
+        try (MarkListSource source = TraceAnalyzer.openTrace(trace)) {
+          markLists = source.readAll();
+        }
+        assertEquals(Mark.link(0, remoteLinkId), markLists.get(0).get(1));
+        assertEquals(Mark.link(0, -remoteLinkId), markLists.get(1).get(1));
+      }
+      String json = new String(Files.readAllBytes(mergedJson), StandardCharsets.UTF_8);
+      assertTrue(
+          json,
+          json.contains(
+              "{\"ph\":\"s\",\"name\":\"remote link\",\"ts\":1.000,\"pid\":7,\"tid\":1,\"id\":"
+                  + remoteLinkId));
+      assertTrue(
+          json,
+          json.contains(
+              "{\"ph\":\"t\",\"name\":\"remote link\",\"ts\":1.000,\"pid\":8,\"tid\":1,\"id\":"
+                  + remoteLinkId));
+    } finally {
+      Files.delete(merged);
+      Files.delete(mergedJson);
+      Files.delete(client);
+      Files.delete(server);
+      Files.delete(dir);
+    }
+  }
+
+  private static void writeLinkTrace(Path trace, long pid, String taskName, long linkId)
+      throws Exception {
+    MarkList markList =
+        MarkList.newBuilder()
+            .setMarkRecorderId(1)
+            .setThreadId(1)
+            .setThreadName("main")
+            .setMarks(
+                List.of(
+                    Mark.taskStart(0, 1000, taskName),
+                    Mark.link(0, linkId),
+                    Mark.taskEnd(0, 2000)))
+            .build();
+    try (var os = Files.newOutputStream(trace)) {
+      TraceEventWriter.writeTraceEvents(os, List.of(markList), 0, 2000, pid);
+    }
+  }
+
+  /** Writes a trace with a single task, starting at 1us, with the anchor if it isn't negative. */
+  private static Path writeTrace(Path trace, long pid, long traceNanos, long unixNanos)
+      throws Exception {
+    MarkList markList =
+        MarkList.newBuilder()
+            .setMarkRecorderId(1)
+            .setThreadId(1)
+            .setThreadName("main")
+            .setMarks(List.of(Mark.taskStart(0, 1000, "task"), Mark.taskEnd(0, 2000)))
+            .build();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TraceEventWriter.writeTraceEvents(out, List.of(markList), 0, 2000, pid);
+    String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    if (traceNanos >= 0) {
+      json =
+          json.substring(0, json.length() - 1)
+              + ",\"metadata\":{\"perfmarkClock\":{\"traceNanos\":"
+              + traceNanos
+              + ",\"unixNanos\":"
+              + unixNanos
+              + "}}}";
+    }
+    Files.write(trace, json.getBytes(StandardCharsets.UTF_8));
+    return trace;
+  }
+}